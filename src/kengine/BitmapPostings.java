@@ -0,0 +1,173 @@
+package kengine;
+
+import java.util.Arrays;
+
+
+/**
+ * @overview The postings of a keyword that is in a large share of the
+ *           documents, kept in memory as a <code>DocBitmap</code> of the
+ *           document ids and an array of the counts, indexed by the rank of
+ *           the document id in the bitmap.
+ *
+ *           The counts are kept in a byte each, less 1, until a count does not
+ *           fit in a byte; then they are all moved to an <code>int</code>
+ *           array. A posting thus costs about 3 bytes instead of the 8 bytes
+ *           of a <code>PostingList</code>.
+ *
+ *           <code>doc</code> selects a document id from the bitmap and
+ *           <code>seek</code> ranks one in it, so neither walks the postings.
+ *           A query that intersects two of these intersects their bitmaps
+ *           (see <code>DocBitmap.and</code>) and reads the counts of the
+ *           documents that are left by their rank.
+ *
+ * @version 1.0
+ * @version 1.1 keep the largest count of each block of postings
+ * @author dmle
+ *
+ */
+public class BitmapPostings extends Postings {
+  // the rep of this class
+  private DocBitmap docs; // the document ids
+  private byte[] small; // the counts less 1, while they fit in a byte
+  private int[] large; // the counts, once one does not fit in a byte
+  private int max; // the largest count, 0 if empty
+  // the largest count of each block of BlockPostings.BLOCK postings
+  private int[] maxes;
+
+  /**
+   * Constructor method
+   *
+   * @effects Initialises <code>this</code> to be empty.
+   */
+  public BitmapPostings() {
+    docs = new DocBitmap();
+    small = new byte[16];
+    maxes = new int[4];
+  }
+
+  /**
+   * Constructor method
+   *
+   * @param pl
+   *          some postings
+   * @requires <code>pl</code> is not <code>null</code>
+   * @effects Initialises <code>this</code> to hold the postings of
+   *          <code>pl</code>.
+   */
+  public BitmapPostings(Postings pl) {
+    this();
+    small = new byte[Math.max(16, pl.size())];
+    for (int i = 0; i < pl.size(); i++) {
+      add(pl.doc(i), pl.count(i));
+    }
+  }
+
+  /**
+   * A method to append a posting to <code>this</code>.
+   *
+   * @param id
+   *          the id of a document
+   * @param cnt
+   *          the number of occurrences of the keyword in the document
+   * @requires <code>id</code> is greater than all the document ids in
+   *           <code>this</code> and <code>cnt > 0</code>
+   * @modifies <code>this</code>
+   * @effects appends <code><id,cnt></code> to the end of <code>this</code>
+   */
+  public void add(int id, int cnt) {
+    int i = docs.size();
+    if (large == null && cnt > 256) {
+      large = new int[Math.max(small.length, i + 1)];
+      for (int j = 0; j < i; j++) {
+        large[j] = (small[j] & 0xFF) + 1;
+      }
+      small = null;
+    }
+
+    if (large != null) {
+      if (i == large.length)
+        large = Arrays.copyOf(large, i + (i >> 1) + 1);
+      large[i] = cnt;
+    } else {
+      if (i == small.length)
+        small = Arrays.copyOf(small, i + (i >> 1) + 1);
+      small[i] = (byte) (cnt - 1);
+    }
+    docs.add(id);
+    if (cnt > max)
+      max = cnt;
+
+    int b = i / BlockPostings.BLOCK;
+    if (b == maxes.length)
+      maxes = Arrays.copyOf(maxes, b * 2);
+    if (cnt > maxes[b])
+      maxes[b] = cnt;
+  }
+
+  /**
+   * @effects returns the document ids of <code>this</code>
+   */
+  public DocBitmap bitmap() {
+    return docs;
+  }
+
+  public int size() {
+    return docs.size();
+  }
+
+  public int doc(int i) {
+    return docs.select(i);
+  }
+
+  public int count(int i) {
+    return (large != null) ? large[i] : (small[i] & 0xFF) + 1;
+  }
+
+  public int lastDoc() {
+    return docs.last();
+  }
+
+  /**
+   * @effects returns the largest count of <code>this</code>, which is kept
+   *          as postings are added, or <code>0</code> if it is empty
+   */
+  public int maxCount() {
+    return max;
+  }
+
+  /**
+   * @effects returns the document id of the last posting of the block of
+   *          <code>BlockPostings.BLOCK</code> postings that holds the first
+   *          posting whose document id is at least <code>target</code>, or
+   *          <code>Integer.MAX_VALUE</code> if there is none
+   */
+  public int blockLastDoc(int target) {
+    int i = docs.rank(target), n = docs.size();
+    if (i == n)
+      return Integer.MAX_VALUE;
+    int b = i / BlockPostings.BLOCK;
+    return docs.select(Math.min(n, (b + 1) * BlockPostings.BLOCK) - 1);
+  }
+
+  /**
+   * @effects returns the largest count of the block of
+   *          <code>BlockPostings.BLOCK</code> postings that holds the first
+   *          posting whose document id is at least <code>target</code>, or
+   *          <code>0</code> if there is none
+   */
+  public int blockMaxCount(int target) {
+    int i = docs.rank(target);
+    return (i < docs.size()) ? maxes[i / BlockPostings.BLOCK] : 0;
+  }
+
+  /**
+   * @effects returns the index of the first posting at or after
+   *          <code>from</code> whose document id is at least
+   *          <code>target</code>, or <code>size()</code> if there is none,
+   *          by ranking <code>target</code> in the bitmap
+   */
+  public int seek(int target, int from) {
+    int i = docs.rank(target);
+    return (i > from) ? i : from;
+  }
+}
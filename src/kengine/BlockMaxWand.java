@@ -0,0 +1,145 @@
+package kengine;
+
+
+/**
+ * @overview Finds the best matches of a disjunction of keywords, i.e. the
+ *           documents with the largest sums of the counts of the keywords that
+ *           they contain, without reading all the postings of the keywords
+ *           (Block-Max WAND, Ding and Suel, 2011).
+ *
+ *           The cursors of the keywords are kept in order of their current
+ *           documents. The best matches found so far are kept in a
+ *           <code>DocHeap</code>, whose worst count is the threshold that a
+ *           document must pass to be one of them. Adding up the upper bounds
+ *           of the counts of the keywords (<code>Postings.maxCount</code>) in
+ *           the order of the cursors gives the first document, the pivot, that
+ *           may pass the threshold: the cursors before it skip ahead to it.
+ *           The upper bounds of the counts of the blocks of postings that hold
+ *           the pivot (<code>Postings.blockMaxCount</code>) are then checked:
+ *           if they do not pass the threshold, no document up to the end of
+ *           the shortest of those blocks can, and the cursors skip past it
+ *           without decoding the postings in between. A document is only
+ *           scored when all the cursors that may contain it are at it.
+ *
+ *           As the threshold rises, most of the postings of the frequent
+ *           keywords are skipped, so a top-k query with a small
+ *           <code>k</code> reads a small part of its postings.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class BlockMaxWand {
+  // the rep of this class
+  private DocCursor.TermCursor[] cs; // the cursors, in order of their documents
+  private int n; // the number of cursors that have documents left
+  private int scored; // the number of documents scored
+
+  /**
+   * Constructor method
+   *
+   * @param lists
+   *          the postings of the keywords of a disjunction
+   * @requires <code>lists</code> and its elements are not <code>null</code>
+   * @effects initialises <code>this</code> to find the best matches of the
+   *          disjunction of <code>lists</code>
+   */
+  public BlockMaxWand(Postings[] lists) {
+    cs = new DocCursor.TermCursor[lists.length];
+    for (int i = 0; i < lists.length; i++) {
+      cs[i] = new DocCursor.TermCursor(lists[i]);
+    }
+    n = cs.length;
+    sort();
+  }
+
+  /**
+   * A method to find the best matches.
+   *
+   * @param heap
+   *          a heap that holds the best matches
+   * @requires <code>heap</code> is not <code>null</code>
+   * @modifies <code>this, heap</code>
+   * @effects offers to <code>heap</code> the documents of the disjunction that
+   *          may be among its best matches, with their sums of counts, so
+   *          that <code>heap</code> then holds the best matches of the
+   *          disjunction, and returns the number of documents offered. The
+   *          documents are offered in increasing order of id, so a document
+   *          with the same count as the worst match of a full heap is not one
+   *          of the best matches.
+   */
+  public int collect(DocHeap heap) {
+    long threshold, sum;
+    int p, d, i, next;
+    while (n > 0) {
+      threshold = heap.isFull() ? heap.minCount() : 0;
+
+      // the pivot: the first cursor at which the upper bounds pass the
+      // threshold, and the cursors after it that are at the same document
+      sum = 0;
+      for (p = 0; p < n; p++) {
+        sum += cs[p].maxCount();
+        if (sum > threshold)
+          break;
+      }
+      if (p == n)
+        break;
+      d = cs[p].doc();
+      while (p + 1 < n && cs[p + 1].doc() == d)
+        p++;
+
+      sum = 0;
+      for (i = 0; i <= p; i++) {
+        sum += cs[i].blockMaxCount(d);
+      }
+
+      if (sum > threshold) {
+        if (cs[0].doc() == d) {
+          // all the cursors that may contain d are at it
+          int cnt = 0;
+          for (i = 0; i <= p; i++) {
+            cnt += cs[i].count();
+            cs[i].next();
+          }
+          heap.offer(d, cnt);
+          scored++;
+        } else {
+          for (i = 0; i < p && cs[i].doc() < d; i++) {
+            cs[i].advance(d);
+          }
+        }
+      } else {
+        // no document before the end of the first of the blocks, or before
+        // the document of the next cursor, can pass the threshold
+        next = (p + 1 < n) ? cs[p + 1].doc() : DocCursor.NO_MORE_DOCS;
+        for (i = 0; i <= p; i++) {
+          next = (int) Math.min(next, cs[i].blockLastDoc(d) + 1L);
+        }
+        for (i = 0; i <= p; i++) {
+          cs[i].advance(next);
+        }
+      }
+      sort();
+    }
+    return scored;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects orders <code>cs[0..n-1]</code> by their current documents and
+   *          moves the cursors that have no documents left after them
+   */
+  private void sort() {
+    DocCursor.TermCursor c;
+    int j;
+    for (int i = 1; i < n; i++) {
+      c = cs[i];
+      for (j = i; j > 0 && cs[j - 1].doc() > c.doc(); j--) {
+        cs[j] = cs[j - 1];
+      }
+      cs[j] = c;
+    }
+    while (n > 0 && cs[n - 1].doc() == DocCursor.NO_MORE_DOCS)
+      n--;
+  }
+}
@@ -0,0 +1,394 @@
+package kengine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * @overview The postings of a term in a segment file, stored compressed in
+ *           blocks of <code>BLOCK</code> postings.
+ *
+ *           The postings of a term are encoded as follows:
+ *           <pre>
+ *   size         int              the number of postings
+ *   skip table   (int, int, int)[b]
+ *                                 the last document id of each block, less
+ *                                 the base of the segment, the offset of
+ *                                 the block after the skip table and the
+ *                                 largest count of the block
+ *   blocks       byte[]
+ *           </pre>
+ *           A document id is stored as its gap from the previous id of the
+ *           term, less 1, and a count is stored less 1, so that both are
+ *           usually small. Each full block is frame-of-reference bit-packed:
+ *           a byte with the number of bits of its largest gap, a byte with
+ *           the number of bits of its largest count, then the gaps and the
+ *           counts packed with those numbers of bits. The last block, if it is
+ *           not full, is variable-byte encoded: 7 bits per byte, the high bit
+ *           set on all bytes but the last, a gap and a count per posting.
+ *
+ *           A posting is read by decoding its block into an array of
+ *           <code>this</code>, which is kept until another block is read, so
+ *           the postings are cheapest to read in order.
+ *           <code>seek</code> searches the skip table first and only decodes
+ *           the block that holds the target document, so an intersection
+ *           jumps over whole blocks that cannot match.
+ *
+ *           <code>blockMaxCount</code> reads the largest count of a block from
+ *           the skip table, without decoding the block.
+ *
+ *           The decoded block is state of <code>this</code>: an object of
+ *           this class must not be read by several threads at once. Each
+ *           lookup in a segment creates a new one.
+ *
+ * @version 1.0
+ * @version 1.1 keep the largest count of each block in the skip table
+ * @author dmle
+ *
+ */
+public class BlockPostings extends Postings {
+  /** the number of postings in a block */
+  static final int BLOCK = 128;
+
+  /** the size of an entry of the skip table */
+  private static final int ENTRY = 12;
+
+  // the rep of this class
+  private ByteBuffer buf;
+  private int skip; // the offset of the skip table
+  private int data; // the offset of the blocks
+  private int size;
+  private int blocks; // the number of blocks
+  private int base; // the base of the document ids
+
+  private int block; // the decoded block, -1 if none
+  private int[] docs; // the document ids of the decoded block
+  private int[] cnts; // the counts of the decoded block
+  private int maxCnt; // the largest count, 0 if not computed
+
+  /**
+   * Constructor method
+   *
+   * @param buf
+   *          a buffer holding postings encoded by <code>encode</code>
+   * @param off
+   *          the offset of the postings in <code>buf</code>
+   * @param base
+   *          the base of the document ids
+   * @effects initialises <code>this</code> to be the postings encoded at
+   *          <code>off</code> in <code>buf</code>.
+   */
+  public BlockPostings(ByteBuffer buf, int off, int base) {
+    this.buf = buf;
+    this.size = buf.getInt(off);
+    this.blocks = (size + BLOCK - 1) / BLOCK;
+    this.skip = off + 4;
+    this.data = skip + blocks * ENTRY;
+    this.base = base;
+    this.block = -1;
+    this.docs = new int[BLOCK];
+    this.cnts = new int[BLOCK];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int doc(int i) {
+    load(i / BLOCK);
+    return docs[i % BLOCK];
+  }
+
+  public int count(int i) {
+    load(i / BLOCK);
+    return cnts[i % BLOCK];
+  }
+
+  /**
+   * @effects returns the document id of the last posting, read from the
+   *          skip table
+   */
+  public int lastDoc() {
+    return base + lastDoc(blocks - 1);
+  }
+
+  /**
+   * @effects returns the index of the first posting at or after
+   *          <code>from</code> whose document id is at least
+   *          <code>target</code>, or <code>size()</code> if there is none.
+   *          The blocks before the one that holds that posting are skipped
+   *          using the skip table, without decoding them.
+   */
+  public int seek(int target, int from) {
+    if (from >= size)
+      return size;
+
+    int rel = target - base;
+    int b = from / BLOCK;
+    if (lastDoc(b) < rel) {
+      // gallop over the skip table to the first block that may match
+      int low = b, step = 1, high = b + 1;
+      while (high < blocks && lastDoc(high) < rel) {
+        low = high;
+        step <<= 1;
+        high = low + step;
+      }
+      if (high > blocks)
+        high = blocks;
+
+      int mid;
+      low++;
+      while (low < high) {
+        mid = (low + high) >>> 1;
+        if (lastDoc(mid) < rel)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+      if (low == blocks)
+        return size;
+
+      b = low;
+      from = b * BLOCK;
+    }
+
+    // the block holds a document at least target
+    load(b);
+    int n = Math.min(BLOCK, size - b * BLOCK);
+    return b * BLOCK + PostingList.gallop(docs, from - b * BLOCK, n, target);
+  }
+
+  /**
+   * @effects returns the largest count of <code>this</code>, the largest of
+   *          the largest counts of its blocks
+   */
+  public int maxCount() {
+    if (maxCnt == 0) {
+      int m;
+      for (int b = 0; b < blocks; b++) {
+        m = blockMax(b);
+        if (m > maxCnt)
+          maxCnt = m;
+      }
+    }
+    return maxCnt;
+  }
+
+  public int blockLastDoc(int target) {
+    int b = blockOf(target);
+    return (b < blocks) ? base + lastDoc(b) : Integer.MAX_VALUE;
+  }
+
+  public int blockMaxCount(int target) {
+    int b = blockOf(target);
+    return (b < blocks) ? blockMax(b) : 0;
+  }
+
+  /**
+   * @effects returns the first block whose last document id is at least
+   *          <code>target</code>, or <code>blocks</code> if there is none,
+   *          by a binary search of the skip table
+   */
+  private int blockOf(int target) {
+    int rel = target - base;
+    int low = 0, high = blocks, mid;
+    while (low < high) {
+      mid = (low + high) >>> 1;
+      if (lastDoc(mid) < rel)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * @requires <code>0 <= b < blocks</code>
+   * @effects returns the largest count of block <code>b</code>, read from
+   *          the skip table
+   */
+  private int blockMax(int b) {
+    return buf.getInt(skip + b * ENTRY + 8);
+  }
+
+  /**
+   * @effects returns the last document id of block <code>b</code>, less the
+   *          base
+   */
+  private int lastDoc(int b) {
+    return buf.getInt(skip + b * ENTRY);
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects makes block <code>b</code> the decoded block of
+   *          <code>this</code>
+   */
+  private void load(int b) {
+    if (b == block)
+      return;
+
+    int p = data + buf.getInt(skip + b * ENTRY + 4);
+    int prev = (b > 0) ? lastDoc(b - 1) : -1;
+    int n = Math.min(BLOCK, size - b * BLOCK);
+    if (n == BLOCK) {
+      int docBits = buf.get(p);
+      int cntBits = buf.get(p + 1);
+      p = unpack(buf, p + 2, docs, BLOCK, docBits);
+      unpack(buf, p, cnts, BLOCK, cntBits);
+      for (int i = 0; i < BLOCK; i++) {
+        prev += docs[i] + 1;
+        docs[i] = base + prev;
+        cnts[i]++;
+      }
+    } else {
+      int v, shift;
+      byte x;
+      for (int i = 0; i < 2 * n; i++) {
+        v = 0;
+        shift = 0;
+        do {
+          x = buf.get(p++);
+          v |= (x & 0x7F) << shift;
+          shift += 7;
+        } while (x < 0);
+
+        if ((i & 1) == 0) {
+          prev += v + 1;
+          docs[i >> 1] = base + prev;
+        } else {
+          cnts[i >> 1] = v + 1;
+        }
+      }
+    }
+    block = b;
+  }
+
+  /**
+   * A method to encode postings in the format read by <code>this</code>.
+   *
+   * @param pl
+   *          the postings to encode
+   * @param base
+   *          the base of the document ids, which is at most the first
+   *          document id of <code>pl</code>
+   * @param out
+   *          a stream to write to
+   * @requires the arguments are not <code>null</code>
+   * @modifies <code>out</code>
+   * @effects writes the encoding of <code>pl</code>, with its document ids
+   *          less <code>base</code>, to <code>out</code>.
+   */
+  public static void encode(Postings pl, int base, ByteArrayOutputStream out) {
+    int size = pl.size();
+    int blocks = (size + BLOCK - 1) / BLOCK;
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    int[] gaps = new int[BLOCK];
+    int[] cnts = new int[BLOCK];
+
+    writeInt(out, size);
+    int prev = -1, n, d;
+    for (int b = 0; b < blocks; b++) {
+      n = Math.min(BLOCK, size - b * BLOCK);
+      int docMax = 0, cntMax = 0, max = 0;
+      for (int i = 0; i < n; i++) {
+        d = pl.doc(b * BLOCK + i) - base;
+        gaps[i] = d - prev - 1;
+        cnts[i] = pl.count(b * BLOCK + i) - 1;
+        docMax |= gaps[i];
+        cntMax |= cnts[i];
+        if (cnts[i] > max)
+          max = cnts[i];
+        prev = d;
+      }
+
+      // the skip entry
+      writeInt(out, prev);
+      writeInt(out, data.size());
+      writeInt(out, max + 1);
+
+      if (n == BLOCK) {
+        int docBits = 32 - Integer.numberOfLeadingZeros(docMax);
+        int cntBits = 32 - Integer.numberOfLeadingZeros(cntMax);
+        data.write(docBits);
+        data.write(cntBits);
+        pack(gaps, BLOCK, docBits, data);
+        pack(cnts, BLOCK, cntBits, data);
+      } else {
+        for (int i = 0; i < n; i++) {
+          writeVInt(data, gaps[i]);
+          writeVInt(data, cnts[i]);
+        }
+      }
+    }
+
+    byte[] bytes = data.toByteArray();
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * @modifies <code>out</code>
+   * @effects writes the low <code>bits</code> bits of each of
+   *          <code>v[0..n-1]</code> to <code>out</code>, least significant
+   *          first
+   */
+  private static void pack(int[] v, int n, int bits, ByteArrayOutputStream out) {
+    long acc = 0;
+    int nb = 0;
+    for (int i = 0; i < n; i++) {
+      acc |= (v[i] & 0xFFFFFFFFL) << nb;
+      nb += bits;
+      while (nb >= 8) {
+        out.write((int) acc);
+        acc >>>= 8;
+        nb -= 8;
+      }
+    }
+    if (nb > 0)
+      out.write((int) acc);
+  }
+
+  /**
+   * @modifies <code>out</code>
+   * @effects reads <code>n</code> values of <code>bits</code> bits packed by
+   *          <code>pack</code> at <code>off</code> in <code>buf</code> into
+   *          <code>out</code> and returns the offset after them
+   */
+  private static int unpack(ByteBuffer buf, int off, int[] out, int n, int bits) {
+    if (bits == 0) {
+      for (int i = 0; i < n; i++) {
+        out[i] = 0;
+      }
+      return off;
+    }
+
+    long mask = (1L << bits) - 1;
+    long acc = 0;
+    int nb = 0;
+    for (int i = 0; i < n; i++) {
+      while (nb < bits) {
+        acc |= (buf.get(off++) & 0xFFL) << nb;
+        nb += 8;
+      }
+      out[i] = (int) (acc & mask);
+      acc >>>= bits;
+      nb -= bits;
+    }
+    return off;
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int v) {
+    out.write(v >>> 24);
+    out.write(v >>> 16);
+    out.write(v >>> 8);
+    out.write(v);
+  }
+
+  private static void writeVInt(ByteArrayOutputStream out, int v) {
+    while ((v & ~0x7F) != 0) {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+}
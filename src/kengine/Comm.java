@@ -1,10 +1,21 @@
 package kengine;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 
 /**
@@ -17,6 +28,8 @@ import java.util.Iterator;
  * 
  */
 public class Comm {
+  /** files of at least this many bytes are mapped into memory */
+  private static final long MAP_THRESHOLD = 1 << 20;
 
   /**
    * A method to obtain documents from a remote web site <code>u</code>
@@ -33,6 +46,30 @@ public class Comm {
    * 
    */
   public static Iterator getDocs(String u) throws NotPossibleException {
+    return getDocs(u, 0);
+  }
+
+  /**
+   * A method to obtain documents from a remote web site <code>u</code>,
+   * reading up to <code>readAhead</code> documents in advance.
+   * 
+   * @param u
+   *          the URL of a remote web site
+   * @param readAhead
+   *          the number of documents to read in advance on a background
+   *          thread, or <code>0</code> to read each document when it is
+   *          requested
+   * @effects if documents cannot be retrieved from the web site <code>u</code>
+   *          throws <code>NotPossibleException</code>, else returns a generator
+   *          for the documents. The documents are read one at a time as the
+   *          generator is advanced, so at most <code>readAhead + 1</code> of
+   *          them are in memory at once unless the caller keeps them. If a
+   *          document cannot be read the generator throws
+   *          <code>NotPossibleException</code> when it gets to it.
+   * @version 2.0 streams the documents
+   */
+  public static Iterator getDocs(String u, int readAhead)
+      throws NotPossibleException {
     // if u is a local folder, reads its files as Doc objects
     // and returns a generator for them.
 
@@ -54,53 +91,313 @@ public class Comm {
 
     File[] files = dir.listFiles();
 
-    return new DocGenerator(files);
+    if (readAhead > 0)
+      return new ReadAheadDocGenerator(files, readAhead);
+    else
+      return new DocGenerator(files);
+  }
+
+  /**
+   * A method to stop a generator of documents before its end.
+   * 
+   * @param docs
+   *          a generator returned by <code>getDocs</code>
+   * @requires <code>docs</code> is not <code>null</code>
+   * @modifies <code>docs</code>
+   * @effects if <code>docs</code> reads documents in advance, stops its
+   *          background thread and drops the documents that it has read, so
+   *          that <code>docs</code> has no more documents; else does nothing.
+   *          A caller that may stop before the end of a generator (e.g. on
+   *          <code>DuplicateException</code>) calls this once it is done with
+   *          it.
+   */
+  public static void close(Iterator docs) {
+    if (docs instanceof ReadAheadDocGenerator)
+      ((ReadAheadDocGenerator) docs).close();
+  }
+
+  /**
+   * A method to read the content of a document file.
+   * 
+   * @param f
+   *          a document file
+   * @param buf
+   *          a buffer to read the bytes of <code>f</code> into
+   * @requires <code>buf</code> is not <code>null</code>
+   * @modifies <code>buf</code>
+   * @effects if <code>f</code> cannot be read throws
+   *          <code>NotPossibleException</code>, else returns a
+   *          <code>Doc</code> whose content is that of <code>f</code>, decoded
+   *          in the default charset, with each line ended by a single
+   *          <code>\n</code> (i.e. the lines of <code>f</code> as read by
+   *          <code>BufferedReader.readLine</code>, each followed by
+   *          <code>\n</code>).
+   * @version 2.0 read the file with a single channel read (or map it, if it
+   *          is large) and decode it once, into the array that the
+   *          <code>Doc</code> wraps
+   */
+  static Doc readDoc(File f, ReadBuffer buf) throws NotPossibleException {
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(f);
+      FileChannel ch = in.getChannel();
+      long size = ch.size();
+      if (size > Integer.MAX_VALUE - 8)
+        throw new NotPossibleException("Comm.readDoc: File is too large " + f);
+
+      ByteBuffer bytes;
+      if (size >= MAP_THRESHOLD) {
+        bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } else {
+        bytes = buf.bytes((int) size);
+        while (bytes.hasRemaining() && ch.read(bytes) >= 0)
+          ;
+        bytes.flip();
+      }
+
+      char[] chars = buf.decode(bytes);
+      int n = normalise(chars, buf.length);
+      return new Doc(chars, 0, n);
+    } catch (IOException e) {
+      throw new NotPossibleException(
+          "Comm.readDoc: Failed to read file " + f);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * @requires <code>n < chars.length</code>
+   * @modifies <code>chars</code>
+   * @effects replaces each <code>\r\n</code> and lone <code>\r</code> of
+   *          <code>chars[0..n-1]</code> by <code>\n</code>, in place, appends
+   *          a <code>\n</code> if the last line has no terminator and returns
+   *          the new length
+   */
+  private static int normalise(char[] chars, int n) {
+    int j = 0;
+    char c;
+    for (int i = 0; i < n; i++) {
+      c = chars[i];
+      if (c == '\r') {
+        c = '\n';
+        if (i + 1 < n && chars[i + 1] == '\n')
+          i++;
+      }
+      chars[j++] = c;
+    }
+    if (j > 0 && chars[j - 1] != '\n')
+      chars[j++] = '\n';
+    return j;
+  }
+
+  /**
+   * @overview A reusable buffer into which the files of a generator are read
+   *           one at a time, together with a decoder for the default charset.
+   *           Malformed input is replaced, as by <code>InputStreamReader</code>.
+   */
+  static class ReadBuffer {
+    private ByteBuffer bytes = ByteBuffer.allocate(8192);
+    private CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    int length; // the number of characters decoded by the last decode
+
+    /**
+     * @modifies <code>this</code>
+     * @effects returns the byte buffer of <code>this</code>, cleared and
+     *          limited to <code>n</code> bytes
+     */
+    ByteBuffer bytes(int n) {
+      if (n > bytes.capacity())
+        bytes = ByteBuffer.allocate(Math.max(n, bytes.capacity() * 2));
+      bytes.clear();
+      bytes.limit(n);
+      return bytes;
+    }
+
+    /**
+     * @modifies <code>this, in</code>
+     * @effects decodes the remaining bytes of <code>in</code> into a new array
+     *          with at least one free element at the end, sets
+     *          <code>length</code> to the number of characters and returns
+     *          the array
+     */
+    char[] decode(ByteBuffer in) throws CharacterCodingException {
+      int n = in.remaining();
+      char[] chars = new char[(int) (n * decoder.maxCharsPerByte()) + 1];
+      CharBuffer out = CharBuffer.wrap(chars, 0, chars.length - 1);
+      decoder.reset();
+      CoderResult cr;
+      boolean flushed = false;
+      while (true) {
+        cr = flushed ? decoder.flush(out) : decoder.decode(in, out, true);
+        if (cr.isOverflow()) {
+          // only for charsets whose estimate is too small
+          int pos = out.position();
+          chars = Arrays.copyOf(chars, chars.length * 2);
+          out = CharBuffer.wrap(chars, pos, chars.length - 1 - pos);
+        } else if (cr.isError()) {
+          cr.throwException();
+        } else if (!flushed) {
+          flushed = true;
+        } else {
+          break;
+        }
+      }
+      length = out.position();
+
+      // do not keep much more space than the document needs
+      if (chars.length - length > (length >> 2) + 1)
+        chars = Arrays.copyOf(chars, length + 1);
+      return chars;
+    }
   }
 }
 
 /**
  * @overview A generator implementation for documents. 
  * 
+ *           The documents are read from their files one at a time, when they
+ *           are requested, into a buffer that is reused for every file.
+ * 
+ * @version 2.0 read the documents lazily
  * @author dmle
  *
  */
 class DocGenerator implements Iterator {
-  Doc[] docs;
+  File[] files;
   int currIndex = -1;
+  Comm.ReadBuffer buf = new Comm.ReadBuffer();
 
-  public DocGenerator(File[] files) throws NotPossibleException {
-    docs = new Doc[files.length];
-
-    File f;
-    BufferedReader fr;
-    String d, line;
-    Doc doc;
-    for (int i = 0; i < files.length; i++) {
-      f = files[i];
-      try {
-        fr = new BufferedReader(new FileReader(f));
-        d = "";
-        while ((line = fr.readLine()) != null) {
-          d += line + "\n";
+  public DocGenerator(File[] files) {
+    this.files = files;
+  }
+
+  public boolean hasNext() {
+    return currIndex < files.length - 1;
+  }
+
+  /**
+   * @effects if there are no more documents throws
+   *          <code>NoSuchElementException</code>; if the next document cannot
+   *          be read throws <code>NotPossibleException</code>; else returns
+   *          the next document.
+   */
+  public Object next() throws NotPossibleException {
+    if (!hasNext())
+      throw new NoSuchElementException("Comm.DocGenerator.next");
+    currIndex++;
+    return Comm.readDoc(files[currIndex], buf);
+  }
+  
+  public void remove() {
+    // does nothing
+  }
+}
+
+/**
+ * @overview A generator implementation for documents that reads them in
+ *           advance, on a background (daemon) thread, into a bounded queue.
+ *           Reading the files thus overlaps with the processing of the
+ *           documents by the caller, while at most <code>window</code>
+ *           documents are waiting in the queue.
+ * 
+ *           If a file cannot be read, the generator throws
+ *           <code>NotPossibleException</code> when it gets to that file, and
+ *           the files after it are not read.
+ * 
+ *           The background thread blocks while the queue is full, so a caller
+ *           that stops before the end must <code>close</code> the generator
+ *           to stop the thread and drop the queued documents.
+ * 
+ * @version 1.0
+ * @version 1.1 close
+ * @author dmle
+ *
+ */
+class ReadAheadDocGenerator implements Iterator {
+  private int count; // the number of files
+  private int currIndex = -1;
+  private BlockingQueue queue; // the documents read, or the read error
+  private Thread reader;
+  private volatile boolean closed;
+
+  public ReadAheadDocGenerator(final File[] files, int window) {
+    count = files.length;
+    queue = new ArrayBlockingQueue(window);
+
+    reader = new Thread("Comm.ReadAheadDocGenerator") {
+      public void run() {
+        Comm.ReadBuffer buf = new Comm.ReadBuffer();
+        Object o;
+        try {
+          for (int i = 0; i < files.length && !closed; i++) {
+            try {
+              o = Comm.readDoc(files[i], buf);
+            } catch (NotPossibleException e) {
+              o = e;
+            }
+            queue.put(o);
+            if (o instanceof NotPossibleException)
+              return;
+          }
+        } catch (InterruptedException e) {
+          // stop reading
         }
-      } catch (IOException e) {
-        throw new NotPossibleException(
-            "Comm.DocGenerator.init: Failed to read file " + f);
       }
-      doc = new Doc(d);
-      docs[i] = doc;
-    }
+    };
+    reader.setDaemon(true);
+    reader.start();
   }
 
   public boolean hasNext() {
-    return currIndex < docs.length - 1;
+    return !closed && currIndex < count - 1;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects stops the background thread and drops the documents that it has
+   *          read; <code>this</code> then has no more documents
+   */
+  public void close() {
+    closed = true;
+    reader.interrupt();
+    queue.clear();
   }
 
-  public Object next() {
+  /**
+   * @effects if there are no more documents throws
+   *          <code>NoSuchElementException</code>; if the next document cannot
+   *          be read throws <code>NotPossibleException</code>; else waits for
+   *          the next document to be read and returns it.
+   */
+  public Object next() throws NotPossibleException {
+    if (!hasNext())
+      throw new NoSuchElementException("Comm.ReadAheadDocGenerator.next");
+
+    Object o;
+    try {
+      o = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new NotPossibleException(
+          "Comm.ReadAheadDocGenerator.next: interrupted");
+    }
+    if (o instanceof NotPossibleException) {
+      currIndex = count; // no more documents
+      throw (NotPossibleException) o;
+    }
     currIndex++;
-    return docs[currIndex];
+    return o;
   }
-  
+
   public void remove() {
     // does nothing
   }
@@ -0,0 +1,959 @@
+package kengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @overview A sharded engine whose shards are <code>ShardServer</code>s,
+ *           in other processes, that it sends requests to over sockets. Each
+ *           shard may have several replicas, servers that hold the same
+ *           documents.
+ *
+ *           Documents are routed to their shards as those of a
+ *           <code>ShardedEngine</code> are (see
+ *           <code>ShardedEngine.shardOf</code>), and are added to every replica
+ *           of their shard. A query is scattered to one replica of each shard,
+ *           and the best <code>k</code> matches of the shards are gathered and
+ *           merged (see <code>ShardedEngine.merge</code>) into those of the
+ *           query.
+ *
+ *           A query request carries all the keywords of the current query, so
+ *           a server keeps no state between requests and any replica of a
+ *           shard may answer it. A request is sent first to the replica of the
+ *           shard that answered last, and a query tolerates slow and failed
+ *           servers:
+ *           <ul>
+ *           <li>a shard that has not answered after the hedge delay is sent
+ *           the request again, on a replica that has not been tried if it has
+ *           one, and the first answer is used;</li>
+ *           <li>a shard whose replica fails is sent the request on a replica
+ *           that has not been tried;</li>
+ *           <li>a shard that has not answered when the timeout runs out is
+ *           left out of the result, which is then partial and tells which
+ *           shards are missing and why (see <code>Result</code>).</li>
+ *           </ul>
+ *           Adding documents has a timeout of its own, longer than that of a
+ *           query, since a batch may take long to index; a replica that has not
+ *           added a batch when it runs out has failed to add it. A replica
+ *           that fails to add a batch that another replica of its shard added
+ *           no longer holds the same documents as the others,
+ *           so it is out of sync: it is sent no more requests until it is
+ *           restored (see <code>restore</code>), e.g. by copying the index of
+ *           a replica in sync to it. The methods of a coordinator lock it, so
+ *           they are done one at a time.
+ *
+ * @version 1.0
+ * @version 1.1 stop using replicas that missed a write
+ * @version 1.2 time out adding documents
+ * @author dmle
+ *
+ */
+public class Coordinator {
+  /** the number of documents that <code>addDocs</code> adds at a time */
+  private static final int BATCH_SIZE = 4096;
+
+  /** the number of documents read in advance while others are added */
+  private static final int READ_AHEAD = 256;
+
+  // the rep of this class
+  private InetSocketAddress[][] replicas; // the servers of each shard
+  private Vector[][] idle; // the idle connections to each server
+  private int[] preferred; // the replica of each shard that answered last
+  private boolean[][] stale; // the replicas that are out of sync
+  private long timeout; // the time that a query may take, in ms
+  private long writeTimeout; // the time that adding a batch may take, in ms
+  private long hedgeDelay; // the time before a request is sent again, 0 if never
+  private ExecutorService pool;
+  private Vector urls;
+  private Vector keys; // the keywords of the current query, null if none
+  private int k; // the number of matches of the current query to return
+  private Result last; // the last result of the current query
+
+  /**
+   * Constructor method
+   *
+   * @param shards
+   *          the servers of each shard, as
+   *          <code>host:port[,host:port...]</code>
+   * @param timeoutMs
+   *          the time, in milliseconds, that a query may take
+   * @param writeTimeoutMs
+   *          the time, in milliseconds, that a replica may take to add a
+   *          batch of documents
+   * @param hedgeDelayMs
+   *          the time, in milliseconds, after which a shard that has not
+   *          answered a query is sent it again, or <code>0</code> not to send
+   *          requests again
+   * @effects if <code>shards</code> is empty or a server of it is not a
+   *          valid address, or <code>timeoutMs < 1</code> or
+   *          <code>writeTimeoutMs < 1</code> or <code>hedgeDelayMs < 0</code>,
+   *          throws
+   *          <code>NotPossibleException</code>; else initialises
+   *          <code>this</code> to be an empty coordinator of the shards. No
+   *          server is connected to until it is sent a request.
+   */
+  public Coordinator(String[] shards, long timeoutMs, long writeTimeoutMs,
+      long hedgeDelayMs) throws NotPossibleException {
+    if (shards == null || shards.length == 0)
+      throw new NotPossibleException("Coordinator: no shards");
+    if (timeoutMs < 1 || writeTimeoutMs < 1 || hedgeDelayMs < 0)
+      throw new NotPossibleException("Coordinator: invalid timeouts or hedge delay: "
+          + timeoutMs + ", " + writeTimeoutMs + ", " + hedgeDelayMs);
+
+    replicas = new InetSocketAddress[shards.length][];
+    idle = new Vector[shards.length][];
+    preferred = new int[shards.length];
+    stale = new boolean[shards.length][];
+    String[] rs;
+    int c;
+    for (int i = 0; i < shards.length; i++) {
+      rs = shards[i].split(",");
+      replicas[i] = new InetSocketAddress[rs.length];
+      idle[i] = new Vector[rs.length];
+      stale[i] = new boolean[rs.length];
+      for (int j = 0; j < rs.length; j++) {
+        c = rs[j].lastIndexOf(':');
+        try {
+          replicas[i][j] = new InetSocketAddress(rs[j].substring(0, c).trim(),
+              Integer.parseInt(rs[j].substring(c + 1).trim()));
+        } catch (RuntimeException e) {
+          throw new NotPossibleException("Coordinator: invalid server of shard " + i
+              + ": " + rs[j]);
+        }
+        idle[i][j] = new Vector();
+      }
+    }
+    timeout = timeoutMs;
+    writeTimeout = writeTimeoutMs;
+    hedgeDelay = hedgeDelayMs;
+    pool = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "kengine.Coordinator");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    urls = new Vector();
+  }
+
+  /**
+   * @effects returns the number of shards of <code>this</code>
+   */
+  public int shards() {
+    return replicas.length;
+  }
+
+  /**
+   * @requires <code>0 <= s < shards()</code> and <code>r</code> is a replica
+   *           of shard <code>s</code>
+   * @effects returns <code>true</code> if replica <code>r</code> of shard
+   *          <code>s</code> is in sync, i.e. has added all the documents that
+   *          the other replicas of the shard have; else returns
+   *          <code>false</code>
+   */
+  public synchronized boolean inSync(int s, int r) {
+    return !stale[s][r];
+  }
+
+  /**
+   * A method to bring back a replica that is out of sync.
+   *
+   * @requires <code>0 <= s < shards()</code> and <code>r</code> is a replica
+   *           of shard <code>s</code> that holds the same documents as the
+   *           replicas of <code>s</code> that are in sync
+   * @modifies <code>this</code>
+   * @effects makes replica <code>r</code> of shard <code>s</code> in sync,
+   *          so that it is sent requests again
+   */
+  public synchronized void restore(int s, int r) {
+    stale[s][r] = false;
+  }
+
+  /**
+   * A method to retrieve documents from a web site and add them to
+   * <code>this</code>.
+   *
+   * @param u
+   *          the URL of a web site
+   * @effects if <code>u</code> is not a URL for a web site containing
+   *          documents or <code>u</code> is one of the existing URLs, or a
+   *          server cannot be reached, throws
+   *          <code>NotPossibleException</code>; else adds each new document to
+   *          every replica of its shard. If some document has the same title
+   *          as an existing one then <code>DuplicateException</code> is thrown
+   *          once its batch is added (see <code>addBatch</code>). Returns the
+   *          current query, brought up to date (see <code>best</code>).
+   */
+  public synchronized Result addDocs(String u) throws NotPossibleException {
+    if (urls.contains(u))
+      throw new NotPossibleException("Coordinator.addDocs: URL has been used: " + u);
+
+    Iterator docs = Comm.getDocs(u, READ_AHEAD);
+    Doc[] batch = new Doc[BATCH_SIZE];
+    int n;
+    try {
+      while (docs.hasNext()) {
+        n = 0;
+        while (n < BATCH_SIZE && docs.hasNext()) {
+          batch[n++] = (Doc) docs.next();
+        }
+        addBatch(batch, n);
+      }
+    } finally {
+      Comm.close(docs);
+    }
+    urls.add(u);
+
+    return best();
+  }
+
+  /**
+   * A method to add a document to <code>this</code>.
+   *
+   * @param d
+   *          a document
+   * @effects if <code>d</code> is <code>null</code> throws
+   *          <code>NullPointerException</code>; if a server cannot be reached
+   *          throws <code>NotPossibleException</code>; if a document with the
+   *          same title is in <code>this</code> throws
+   *          <code>DuplicateException</code>; else adds <code>d</code> to every
+   *          replica of its shard
+   */
+  public synchronized void addDoc(Doc d) throws NullPointerException {
+    if (d == null)
+      throw new NullPointerException("document is empty");
+
+    addBatch(new Doc[] { d }, 1);
+  }
+
+  /**
+   * @requires the first <code>n</code> elements of <code>batch</code> are not
+   *           <code>null</code>
+   * @modifies <code>this</code>
+   * @effects sends the first <code>n</code> documents of <code>batch</code>
+   *          to every replica in sync of their shards, all the servers in
+   *          parallel. The documents of the batch after one whose title is
+   *          that of an earlier one are not sent. A server adds the documents
+   *          that it is sent up to one whose title it already has, so a
+   *          document with the same title as one of <code>this</code> stops
+   *          the documents of its shard only.
+   *
+   *          If a replica cannot be reached, fails or does not reply within
+   *          the write timeout while another replica of its shard adds the
+   *          documents, it is made out of sync. If some
+   *          replica fails, or a shard has no replica in sync, throws
+   *          <code>NotPossibleException</code> naming each such replica and
+   *          shard; else if some document has a duplicate title throws
+   *          <code>DuplicateException</code>.
+   */
+  private void addBatch(Doc[] batch, int n) throws DuplicateException {
+    Vector[] parts = new Vector[replicas.length];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = new Vector();
+    }
+    HashSet titles = new HashSet();
+    String dup = null;
+    String t;
+    for (int i = 0; i < n; i++) {
+      t = Helpers.canon(batch[i].title());
+      if (!titles.add(t)) {
+        dup = "Coordinator.addDocs: a document with same title already exists: " + t;
+        break;
+      }
+      parts[shardOf(t)].add(batch[i]);
+    }
+
+    ExecutorCompletionService cs = new ExecutorCompletionService(pool);
+    StringBuffer failures = new StringBuffer();
+    long deadline = System.currentTimeMillis() + writeTimeout;
+    int sent = 0;
+    int[] rs;
+    Request req;
+    for (int i = 0; i < parts.length; i++) {
+      if (parts[i].isEmpty())
+        continue;
+      rs = synced(i);
+      if (rs.length == 0) {
+        failures.append("; shard " + i + ": no replica in sync");
+        continue;
+      }
+      req = Request.add(parts[i]);
+      for (int j = 0; j < rs.length; j++) {
+        cs.submit(attempt(i, rs[j], req, deadline));
+        sent++;
+      }
+    }
+
+    Vector failed = new Vector();
+    boolean[] added = new boolean[replicas.length];
+    Attempt a;
+    for (int i = 0; i < sent; i++) {
+      a = take(cs);
+      if (a.error != null) {
+        failed.add(a);
+      } else {
+        added[a.shard] = true;
+        if (a.reply instanceof String && dup == null)
+          dup = (String) a.reply;
+      }
+    }
+    for (int i = 0; i < failed.size(); i++) {
+      a = (Attempt) failed.get(i);
+      // if no replica of the shard added the batch they are still alike
+      if (added[a.shard])
+        stale[a.shard][a.replica] = true;
+      failures.append("; shard " + a.shard + ": " + a.error
+          + (added[a.shard] ? " (out of sync)" : ""));
+    }
+    if (failures.length() > 0)
+      throw new NotPossibleException("Coordinator.addDocs: "
+          + failures.substring(2));
+    if (dup != null)
+      throw new DuplicateException(dup);
+  }
+
+  /**
+   * A method to query the documents of <code>this</code> for a keyword.
+   *
+   * @param w
+   *          a keyword to search
+   * @param k
+   *          the number of matches to return
+   * @effects if <code>k < 1</code> or <code>k > ShardServer.MAX_MATCHES</code>,
+   *          or no shard answers, or <code>w</code> is
+   *          not a word or is an uninteresting word (or, if <code>w</code> is a
+   *          prefix or fuzzy keyword, no interesting word matches it) in every
+   *          shard that answers, throws <code>NotPossibleException</code>; else
+   *          makes <code>w</code> the current query of <code>this</code> and
+   *          returns its result (see <code>best</code>)
+   */
+  public synchronized Result queryFirst(String w, int k)
+      throws NotPossibleException {
+    if (k < 1 || k > ShardServer.MAX_MATCHES)
+      throw new NotPossibleException("Coordinator.queryFirst: invalid number of matches: " + k);
+    String cw = (w != null) ? Helpers.canon(w) : null;
+    if (cw == null)
+      throw new NotPossibleException("Coordinator.queryFirst: the specified word is either not found in any documents or uninteresting: " + cw);
+
+    Vector ks = new Vector();
+    ks.add(cw);
+    Answer[] as = new Answer[replicas.length];
+    Result r = query(ks, k, as);
+    if (!found(as, 0))
+      throw new NotPossibleException("Coordinator.queryFirst: the specified word is either not found in any documents or uninteresting: " + cw);
+
+    keys = ks;
+    this.k = k;
+    last = r;
+    return r;
+  }
+
+  /**
+   * A method to refine the current query of <code>this</code> with another
+   * keyword.
+   *
+   * @param w
+   *          a keyword to search
+   * @effects if <code>this</code> has no query, or its last result has no
+   *          matches, or it has the keyword <code>w</code>, or no shard
+   *          answers, or <code>w</code> is not a word or is an uninteresting
+   *          word (or, if <code>w</code> is a prefix or fuzzy keyword, no
+   *          interesting word matches it) in every shard that answers, throws
+   *          <code>NotPossibleException</code>; else adds <code>w</code> to
+   *          the current query and returns its result (see
+   *          <code>best</code>). A shard matches the query only if it has all
+   *          its keywords.
+   */
+  public synchronized Result queryMore(String w) throws NotPossibleException {
+    String cw = (w != null) ? Helpers.canon(w) : null;
+    if (keys == null || last.getSize() == 0 || cw == null || keys.contains(cw))
+      throw new NotPossibleException(
+          "Coordinator.queryMore: query is empty OR keyword already exists in query: " + cw);
+
+    Vector ks = new Vector(keys);
+    ks.add(cw);
+    Answer[] as = new Answer[replicas.length];
+    Result r = query(ks, k, as);
+    if (!found(as, ks.size() - 1))
+      throw new NotPossibleException("Coordinator.queryMore: the specified word is either not found in any documents or uninteresting: " + cw);
+
+    keys = ks;
+    last = r;
+    return r;
+  }
+
+  /**
+   * A method to read the result of the current query of <code>this</code>.
+   *
+   * @effects if <code>this</code> has no query returns an empty result; if no
+   *          shard answers throws <code>NotPossibleException</code>; else
+   *          scatters the query to the shards and returns the best
+   *          <code>k</code> matches of those that answer, where <code>k</code>
+   *          is that of <code>queryFirst</code>, ordered as those of
+   *          <code>ShardedEngine.best</code>
+   */
+  public synchronized Result best() throws NotPossibleException {
+    if (keys == null)
+      return new Result(new DocCnt[0], 0, new String[replicas.length]);
+
+    last = query(keys, k, new Answer[replicas.length]);
+    return last;
+  }
+
+  /**
+   * A method to retrieve a <code>Doc</code> given its title.
+   *
+   * @param t
+   *          the title of the document to retrieve
+   * @effects if there is no document with title <code>t</code> in
+   *          <code>this</code>, or its shard does not answer, throws
+   *          <code>NotPossibleException</code>, else returns the document with
+   *          title <code>t</code>
+   */
+  public synchronized Doc findDoc(String t) throws NotPossibleException {
+    if (t == null)
+      throw new NotPossibleException("Coordinator.findDoc: the specified title could not be found: " + t);
+
+    int s = shardOf(Helpers.canon(t));
+    Request[] reqs = new Request[replicas.length];
+    reqs[s] = Request.find(t);
+    Object[] replies = new Object[replicas.length];
+    String[] failures = scatter(reqs, replies);
+    if (failures[s] != null)
+      throw new NotPossibleException("Coordinator.findDoc: shard " + s + " " + failures[s]);
+    if (replies[s] instanceof String)
+      throw new NotPossibleException((String) replies[s]);
+    return (Doc) replies[s];
+  }
+
+  /**
+   * @effects stops the threads of <code>this</code> and closes its idle
+   *          connections
+   */
+  public synchronized void close() {
+    pool.shutdownNow();
+    Conn c;
+    for (int i = 0; i < idle.length; i++) {
+      for (int j = 0; j < idle[i].length; j++) {
+        while ((c = take(i, j)) != null) {
+          c.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * @modifies <code>as</code>
+   * @effects scatters the query of the keywords <code>ks</code> to the
+   *          shards and records the answer of each in <code>as</code>
+   *          (<code>null</code> if it did not answer). If no shard answers
+   *          throws <code>NotPossibleException</code>, else returns the result
+   *          of the query.
+   */
+  private Result query(Vector ks, int k, Answer[] as) throws NotPossibleException {
+    Request[] reqs = new Request[replicas.length];
+    Request req = Request.query(ks, k);
+    for (int i = 0; i < reqs.length; i++) {
+      reqs[i] = req;
+    }
+    Object[] replies = new Object[replicas.length];
+    String[] failures = scatter(reqs, replies);
+
+    DocCnt[][] lists = new DocCnt[replicas.length][];
+    int size = 0, answered = 0;
+    for (int i = 0; i < as.length; i++) {
+      as[i] = (Answer) replies[i];
+      if (as[i] != null) {
+        answered++;
+        size += as[i].size;
+        lists[i] = as[i].best;
+      } else {
+        lists[i] = new DocCnt[0];
+      }
+    }
+    if (answered == 0) {
+      StringBuffer sb = new StringBuffer("Coordinator: no shard answered");
+      for (int i = 0; i < failures.length; i++) {
+        sb.append((i == 0) ? ": " : "; ").append("shard " + i + ": " + failures[i]);
+      }
+      throw new NotPossibleException(sb.toString());
+    }
+
+    return new Result(ShardedEngine.merge(lists, k), size, failures);
+  }
+
+  /**
+   * @effects returns <code>true</code> if keyword <code>i</code> of the query
+   *          was found by some shard of <code>as</code>, else returns
+   *          <code>false</code>
+   */
+  private static boolean found(Answer[] as, int i) {
+    for (int s = 0; s < as.length; s++) {
+      if (as[s] != null && as[s].found[i])
+        return true;
+    }
+    return false;
+  }
+
+  private int shardOf(String t) {
+    return ShardedEngine.shardOf(t, replicas.length);
+  }
+
+  /**
+   * @requires <code>reqs.length = replies.length = shards()</code>
+   * @modifies <code>replies</code>
+   * @effects sends each request of <code>reqs</code> that is not
+   *          <code>null</code> to its shard, hedging and failing over as
+   *          described in the overview, and waits until every shard has
+   *          answered or failed or the timeout runs out. Records the reply of
+   *          each shard that answered in <code>replies</code> and returns the
+   *          reason why each other shard that was sent a request did not
+   *          answer; the elements of the other shards are <code>null</code>.
+   */
+  private String[] scatter(Request[] reqs, Object[] replies) {
+    int n = reqs.length;
+    long start = System.currentTimeMillis(), deadline = start + timeout;
+    String[] failures = new String[n];
+    boolean[] done = new boolean[n];
+    boolean[] hedged = new boolean[n];
+    int[] tries = new int[n]; // the number of requests sent to the shard
+    int[] pending = new int[n]; // the number of them not yet answered
+    int[][] order = new int[n][]; // the replicas to send them to, in turn
+    ExecutorCompletionService cs = new ExecutorCompletionService(pool);
+    int left = 0;
+    for (int s = 0; s < n; s++) {
+      if (reqs[s] == null) {
+        done[s] = true;
+        continue;
+      }
+      order[s] = synced(s);
+      if (order[s].length == 0) {
+        failures[s] = "no replica in sync";
+        done[s] = true;
+        continue;
+      }
+      cs.submit(attempt(s, order[s][0], reqs[s], deadline));
+      tries[s] = pending[s] = 1;
+      left++;
+    }
+
+    long now, wake;
+    Future f;
+    Attempt a;
+    while (left > 0 && (now = System.currentTimeMillis()) < deadline) {
+      // send the requests of the shards that are due to be hedged
+      wake = deadline;
+      if (hedgeDelay > 0) {
+        for (int s = 0; s < n; s++) {
+          if (done[s] || hedged[s])
+            continue;
+          if (now >= start + hedgeDelay) {
+            // a replica that was tried is either still busy or failed
+            if (tries[s] < order[s].length) {
+              cs.submit(attempt(s, order[s][tries[s]++], reqs[s], deadline));
+              pending[s]++;
+            }
+            hedged[s] = true;
+          } else {
+            wake = Math.min(wake, start + hedgeDelay);
+          }
+        }
+      }
+
+      try {
+        f = cs.poll(wake - now, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (f == null)
+        continue;
+
+      a = (Attempt) get(f);
+      int s = a.shard;
+      pending[s]--;
+      if (done[s])
+        continue; // an answer to a hedged request came first
+      if (a.error == null) {
+        replies[s] = a.reply;
+        failures[s] = null;
+        preferred[s] = a.replica;
+        done[s] = true;
+        left--;
+      } else {
+        failures[s] = a.error;
+        if (tries[s] < order[s].length) {
+          cs.submit(attempt(s, order[s][tries[s]++], reqs[s], deadline));
+          pending[s]++;
+        } else if (pending[s] == 0) {
+          done[s] = true;
+          left--;
+        }
+      }
+    }
+
+    for (int s = 0; s < n; s++) {
+      if (!done[s])
+        failures[s] = "timed out after " + timeout + " ms"
+            + ((failures[s] != null) ? " (" + failures[s] + ")" : "");
+    }
+    return failures;
+  }
+
+  /**
+   * @effects returns the replicas of shard <code>s</code> that are in sync,
+   *          in turn from the one that answered last
+   */
+  private int[] synced(int s) {
+    int m = replicas[s].length, n = 0;
+    int[] rs = new int[m];
+    int r;
+    for (int i = 0; i < m; i++) {
+      r = (preferred[s] + i) % m;
+      if (!stale[s][r])
+        rs[n++] = r;
+    }
+    return Arrays.copyOf(rs, n);
+  }
+
+  /**
+   * @effects returns a task that sends <code>req</code> to replica
+   *          <code>r</code> of shard <code>s</code> and returns its
+   *          <code>Attempt</code>; the task does not throw
+   */
+  private Callable attempt(final int s, final int r, final Request req,
+      final long deadline) {
+    return new Callable() {
+      public Object call() {
+        Attempt a = new Attempt(s, r);
+        try {
+          a.reply = exchange(s, r, req, deadline);
+        } catch (IOException e) {
+          a.error = replicas[s][r] + ": " + e;
+        } catch (RuntimeException e) {
+          a.error = replicas[s][r] + ": " + e.getMessage();
+        }
+        return a;
+      }
+    };
+  }
+
+  private static Attempt take(ExecutorCompletionService cs) {
+    try {
+      return (Attempt) get(cs.take());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new NotPossibleException("Coordinator: interrupted");
+    }
+  }
+
+  /**
+   * @requires <code>f</code> is done
+   */
+  private static Object get(Future f) {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new NotPossibleException("Coordinator: interrupted");
+    } catch (ExecutionException e) {
+      throw new NotPossibleException("Coordinator: request failed due to " + e.getCause());
+    }
+  }
+
+  /**
+   * @effects sends <code>req</code> to replica <code>r</code> of shard
+   *          <code>s</code>, over an idle connection if there is one, and
+   *          returns its reply; if the server cannot be reached or does not
+   *          reply by <code>deadline</code> throws <code>IOException</code>,
+   *          and if it fails throws
+   *          <code>NotPossibleException</code>. An idle connection that the
+   *          server has since closed is replaced by a new one.
+   */
+  private Object exchange(int s, int r, Request req, long deadline)
+      throws IOException {
+    Conn c;
+    boolean pooled, replied;
+    Object reply;
+    while (true) {
+      c = take(s, r);
+      pooled = c != null;
+      if (!pooled)
+        c = new Conn(replicas[s][r], remaining(deadline));
+      replied = false;
+      try {
+        c.out.write(req.bytes);
+        c.out.flush();
+        c.socket.setSoTimeout(remaining(deadline));
+        int status = c.in.readInt();
+        replied = true;
+        reply = req.reply(status, c.in);
+      } catch (IOException e) {
+        c.close();
+        if (pooled && !replied && !(e instanceof SocketTimeoutException))
+          continue; // a stale connection
+        throw e;
+      } catch (RuntimeException e) {
+        c.close();
+        throw e;
+      }
+
+      idle[s][r].add(c);
+      return reply;
+    }
+  }
+
+  /**
+   * @effects returns the time left until <code>deadline</code> as a socket
+   *          timeout; if it has passed throws
+   *          <code>SocketTimeoutException</code>
+   */
+  private static int remaining(long deadline) throws SocketTimeoutException {
+    long t = deadline - System.currentTimeMillis();
+    if (t <= 0)
+      throw new SocketTimeoutException("deadline passed");
+    return (int) Math.min(t, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @effects removes and returns an idle connection to replica
+   *          <code>r</code> of shard <code>s</code>, or returns
+   *          <code>null</code> if there is none
+   */
+  private Conn take(int s, int r) {
+    Vector v = idle[s][r];
+    synchronized (v) {
+      return v.isEmpty() ? null : (Conn) v.remove(v.size() - 1);
+    }
+  }
+
+  /**
+   * @overview The result of a query: its best matches in the shards that
+   *           answered, the number of matches in them, and why each other
+   *           shard did not answer.
+   */
+  public static class Result {
+    private DocCnt[] matches;
+    private int size;
+    private String[] failures;
+
+    Result(DocCnt[] matches, int size, String[] failures) {
+      this.matches = matches;
+      this.size = size;
+      this.failures = failures;
+    }
+
+    /**
+     * @effects returns the best matches of the query, in descending order of
+     *          their counts
+     */
+    public DocCnt[] getMatches() {
+      return matches;
+    }
+
+    /**
+     * @effects returns the number of matches of the query in the shards that
+     *          answered
+     */
+    public int getSize() {
+      return size;
+    }
+
+    /**
+     * @effects returns <code>true</code> if some shard did not answer, else
+     *          returns <code>false</code>
+     */
+    public boolean isPartial() {
+      for (int i = 0; i < failures.length; i++) {
+        if (failures[i] != null)
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * @effects returns, for each shard, why it did not answer, or
+     *          <code>null</code> if it did
+     */
+    public String[] getFailures() {
+      return failures.clone();
+    }
+  }
+
+  /**
+   * @overview A request in the protocol of <code>ShardServer</code>, which
+   *           may be sent to several servers, and the reading of its reply.
+   */
+  private static class Request {
+    private int op;
+    private int nkeys; // the number of keywords, if op is OP_QUERY
+    private byte[] bytes;
+
+    private Request(int op, int nkeys, ByteArrayOutputStream b) {
+      this.op = op;
+      this.nkeys = nkeys;
+      this.bytes = b.toByteArray();
+    }
+
+    static Request add(Vector docs) {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(b);
+      try {
+        out.writeInt(ShardServer.OP_ADD);
+        out.writeInt(docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+          ShardServer.writeString(out, ((Doc) docs.get(i)).content());
+        }
+      } catch (IOException e) {
+        // not thrown by a byte array
+      }
+      return new Request(ShardServer.OP_ADD, 0, b);
+    }
+
+    static Request query(Vector keys, int k) {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(b);
+      try {
+        out.writeInt(ShardServer.OP_QUERY);
+        out.writeInt(k);
+        out.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+          ShardServer.writeString(out, (String) keys.get(i));
+        }
+      } catch (IOException e) {
+        // not thrown by a byte array
+      }
+      return new Request(ShardServer.OP_QUERY, keys.size(), b);
+    }
+
+    static Request find(String t) {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(b);
+      try {
+        out.writeInt(ShardServer.OP_FIND);
+        ShardServer.writeString(out, t);
+      } catch (IOException e) {
+        // not thrown by a byte array
+      }
+      return new Request(ShardServer.OP_FIND, 0, b);
+    }
+
+    /**
+     * @effects reads the rest of the reply to <code>this</code>, whose status
+     *          is <code>status</code>, from <code>in</code> and returns it: the
+     *          <code>Answer</code> of a query; <code>null</code> for documents
+     *          that were all added, or the message of a duplicate; the
+     *          <code>Doc</code> that was found, or the message of one that was
+     *          not. If the request failed throws
+     *          <code>NotPossibleException</code>.
+     */
+    Object reply(int status, DataInputStream in) throws IOException {
+      if (status == ShardServer.FAILED) {
+        String m = ShardServer.readString(in);
+        if (op == ShardServer.OP_FIND)
+          return m;
+        throw new NotPossibleException(m);
+      }
+
+      if (op == ShardServer.OP_ADD) {
+        in.readInt(); // the number added
+        return (status == ShardServer.DUPLICATE) ? ShardServer.readString(in) : null;
+      }
+      if (op == ShardServer.OP_FIND)
+        return new Doc(ShardServer.readString(in));
+
+      Answer a = new Answer();
+      a.found = new boolean[nkeys];
+      for (int i = 0; i < nkeys; i++) {
+        a.found[i] = in.readBoolean();
+      }
+      a.size = in.readInt();
+      a.best = new DocCnt[ShardServer.readLength(in, ShardServer.MAX_MATCHES)];
+      String d;
+      for (int i = 0; i < a.best.length; i++) {
+        d = ShardServer.readString(in);
+        a.best[i] = new DocCnt(new Doc(d), in.readInt());
+      }
+      return a;
+    }
+  }
+
+  /**
+   * @overview The answer of a shard to a query.
+   */
+  private static class Answer {
+    boolean[] found; // whether each keyword is an interesting word of the shard
+    int size;
+    DocCnt[] best;
+  }
+
+  /**
+   * @overview The outcome of sending a request to a replica of a shard: its
+   *           reply, or why there is none.
+   */
+  private static class Attempt {
+    int shard;
+    int replica;
+    Object reply;
+    String error; // null if the request was answered
+
+    Attempt(int shard, int replica) {
+      this.shard = shard;
+      this.replica = replica;
+    }
+  }
+
+  /**
+   * @overview A connection to a server.
+   */
+  private static class Conn {
+    Socket socket;
+    DataInputStream in;
+    DataOutputStream out;
+
+    /**
+     * @effects connects to <code>addr</code>, waiting at most
+     *          <code>timeout</code> ms (<code>0</code> for no limit)
+     */
+    Conn(InetSocketAddress addr, int timeout) throws IOException {
+      socket = new Socket();
+      try {
+        socket.setTcpNoDelay(true);
+        socket.connect(addr, timeout);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+}
@@ -12,13 +12,19 @@ import kengine.NotPossibleException;
  * 
  * @see "Program Development in Java", pgs: 314,322,333
  * @version 1.0
+ * @version 2.0 keep the content in a character array, which may be shared
+ *          with the reader of the document
  * @author dmle
  * 
  */
 public class Doc {
-  private String d; // the document content
+  private char[] d; // the document content, in d[off..off+len-1]
+  private int off;
+  private int len;
   private String title; // the document title
   private String body; // the document body
+  private int bodyStart = -1; // the bounds of the body in d, -1 if unknown
+  private int bodyEnd;
 
   private Vector docWords; // the sequence of document words
 
@@ -33,9 +39,31 @@ public class Doc {
    * 
    */
   public Doc(String d) throws NotPossibleException {
+    this(d.toCharArray(), 0, d.length());
+  }
+
+  /**
+   * Constructor method that wraps a character array, without copying it.
+   * 
+   * @param chars
+   *          an array that contains the document content
+   * @param off
+   *          the start of the content in <code>chars</code>
+   * @param len
+   *          the length of the content
+   * @requires <code>chars</code> is not <code>null</code>,
+   *           <code>0 <= off <= off + len <= chars.length</code> and
+   *           <code>chars[off..off+len-1]</code> is not modified afterwards
+   * @effects if the content cannot be processed as a document throws
+   *          <code>NotPossibleException</code> else makes <code>this</code> be
+   *          the <code>Doc</code> corresponding to the content
+   */
+  public Doc(char[] chars, int off, int len) throws NotPossibleException {
     // check that d is an HTML file
     // stores this content for processing later
-    this.d = d;
+    this.d = chars;
+    this.off = off;
+    this.len = len;
   }
 
   /**
@@ -49,16 +77,16 @@ public class Doc {
     if (title == null) {
       // note that we donot scan the entire body at this stage,
       // only up to the <title> tag
-      int tind1 = d.indexOf("<title>");
-      int tind2 = d.indexOf("</title>"); // must be well-formed
+      int tind1 = indexOf("<title>");
+      int tind2 = indexOf("</title>"); // must be well-formed
       if (tind1 < 0) {
-        tind1 = d.indexOf("<TITLE>"); // possibly upper case
-        tind2 = d.indexOf("</TITLE>");
+        tind1 = indexOf("<TITLE>"); // possibly upper case
+        tind2 = indexOf("</TITLE>");
       }
 
       if (tind1 >= 0 && tind2 >= 0) {
         // extract only the title text
-        title = d.substring(tind1 + 7, tind2);
+        title = substring(tind1 + 7, tind2);
       }
     }
 
@@ -73,24 +101,70 @@ public class Doc {
   public String body() {
     // scans the document content once to extract its body
     // stores the body into the body attribute to use later
-    if (body == null) {
+    if (body == null && findBody()) {
+      body = substring(bodyStart, bodyEnd);
+    }
+
+    return body;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects if <code>this</code> has a body sets <code>bodyStart</code>,
+   *          <code>bodyEnd</code> to its bounds in the content and returns
+   *          <code>true</code>, else returns <code>false</code>
+   */
+  private boolean findBody() {
+    if (bodyStart < 0) {
       // note that we donot scan the entire body at this stage,
       // only up to the <title> tag
-      int bind1 = d.indexOf("<body");
-      int bind2 = d.indexOf("</body>"); // must be well-formed
+      int bind1 = indexOf("<body");
+      int bind2 = indexOf("</body>"); // must be well-formed
       if (bind1 < 0) {
-        bind1 = d.indexOf("<BODY"); // possibly upper case
-        bind2 = d.indexOf("</BODY>");
+        bind1 = indexOf("<BODY"); // possibly upper case
+        bind2 = indexOf("</BODY>");
       }
 
       if (bind1 >= 0 && bind2 >= 0) {
         // we want to keep the <body</body> tag pairs in
         // the body text
-        body = d.substring(bind1, bind2 + 7);
+        if (bind2 + 7 < bind1)
+          throw new StringIndexOutOfBoundsException(bind2 + 7 - bind1);
+        bodyStart = bind1;
+        bodyEnd = bind2 + 7;
       }
     }
 
-    return body;
+    return bodyStart >= 0;
+  }
+
+  /**
+   * @effects returns the index in the content of the first occurrence of
+   *          <code>s</code>, or <code>-1</code> if there is none
+   */
+  private int indexOf(String s) {
+    int n = s.length();
+    char first = s.charAt(0);
+    int i, k;
+    for (int j = off, last = off + len - n; j <= last; j++) {
+      if (d[j] == first) {
+        for (i = j + 1, k = 1; k < n && d[i] == s.charAt(k); i++, k++)
+          ;
+        if (k == n)
+          return j - off;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @effects returns the characters of the content from index
+   *          <code>from</code> to index <code>to - 1</code> as a string
+   */
+  private String substring(int from, int to) {
+    if (from > to)
+      throw new StringIndexOutOfBoundsException(to - from);
+    return new String(d, off + from, to - from);
   }
 
   /**
@@ -101,9 +175,10 @@ public class Doc {
    *          as strings in the order they appear in the text
    *          <p>
    * 
-   *          This implementation also parses the Javascript text that is
-   *          contained between the <code>&lt;script&gt;&lt;/script&gt;</code>
-   *          tags.
+   *          This implementation skips the text that is contained between
+   *          the <code>&lt;script&gt;&lt;/script&gt;</code> and
+   *          <code>&lt;style&gt;&lt;/style&gt;</code> tags.
+   * @version 2.0 scans the body with a <code>Tokenizer</code>
    */
   public Iterator words() {
     // extracts body
@@ -114,94 +189,9 @@ public class Doc {
     // note: recall that body has the enclosing <body></body> tag pairs
     if (docWords == null) {
       docWords = new Vector();
-      final char OPEN_TAG = '<';
-      final char CLOSED_TAG = '>';
-      // final char FORWARD_SLASH = '/';
-      final char NEW_LINE = '\n';
-      final String[] SPECIALS = { NEW_LINE+"", "\t" };
-      final boolean SKIP_SPECIAL_HTML = true;
-      //final String[] JUNK_CHARS = { "`","``","''","(",")","-","[","]",":",";","\"",".",",","...","<",">"}; 
-                 
-      // reads the content one character at a time, stop each time
-      // we get to a stop-word (e.g. space or a tag)
-      char[] chars = body.toCharArray();
-      char c;
-      String w = null;
-      String reading = null;
-      boolean skip = false;
-      for (int i = 0; i < chars.length; i++) {
-
-        c = chars[i];
-
-        // if we have found a new open tag
-        if (!skip && c == OPEN_TAG) {
-          // skip to locate the next closing and stop chars
-          skip = true;
-          reading = "";
-          continue;
-        }
-
-        if (skip) {
-          reading += c;
-          // check closing and stop tags
-          if (c == CLOSED_TAG) { // end of opening tag, beginning text
-            // if told to skip special tags and reading
-            // so far shows that it is some special tag then do nothing
-            if (SKIP_SPECIAL_HTML) {
-              // skip <script> and <style>
-              if (!(reading.startsWith("script") || 
-                  reading.startsWith("SCRIPT") ||
-                  reading.startsWith("style") || 
-                  reading.startsWith("STYLE")
-                  )) {
-                w = "";
-              }
-            } else {
-              w = "";
-            }
-          } else if (c == OPEN_TAG) { // begin a new tag, end of text
-            // process reading
-            if (w != null) {
-              w.trim();
-              for (int j = 0; j < SPECIALS.length; j++) {
-                if (w.startsWith(SPECIALS[j]))
-                  w = w.substring(1); // remove special char at the beginning
-                if (w.endsWith(SPECIALS[j]))
-                  w = w.substring(0, w.length() - 1);// remove special char at
-                                                     // the end
-                
-                // replace all remaining special chars by spaces
-                w = w.replaceAll(SPECIALS[j], " ");
-              }
-
-              if (!w.equals("")) {
-                String[] witems = w.split(" ");
-                for (int j = 0; j < witems.length; j++) {
-                  String witem = witems[j].trim();
-                  if (!witem.equals("")) {
-                    //for (int x = 0; x < JUNK_CHARS.length; x++) 
-                    //  witem = witem.replaceAll(JUNK_CHARS[x], "");
-                    
-                    docWords.add(witem);
-                  }
-                }
-              }
-              // reset word
-              w = null;
-            }
-            reading = null;
-            // continue to parse from c
-            skip = false; // stop skipping
-            // decrement i so that we start from c from the next iteration
-            i--;
-          } else if (w != null) {
-            // still inside a text
-            // update word
-            if (c != NEW_LINE)
-              w += c;
-          }
-          // continue; // skip
-        }
+      Tokenizer tokens = tokens();
+      while (tokens.next()) {
+        docWords.add(tokens.toString());
       }
     } // end body processing
 
@@ -214,6 +204,30 @@ public class Doc {
       return null;
   }
 
+  /**
+   * A method that is used to scan the words in <code>this</code> in the order
+   * that they appear, without creating an object for each word.
+   * 
+   * @effects returns a new <code>Tokenizer</code> over the body of
+   *          <code>this</code>, which yields the same words as
+   *          <code>words()</code>. If <code>this</code> has no body the
+   *          tokenizer yields no words.
+   * @version 2.1 scans the content in place, without copying the body
+   */
+  public Tokenizer tokens() {
+    if (findBody())
+      return new Tokenizer(d, off + bodyStart, bodyEnd - bodyStart);
+    else
+      return new Tokenizer(d, off, 0);
+  }
+
+  /**
+   * @effects returns the content of <code>this</code>
+   */
+  String content() {
+    return new String(d, off, len);
+  }
+
   public String toString() {
     return title();
   }
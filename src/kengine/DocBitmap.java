@@ -0,0 +1,505 @@
+package kengine;
+
+import java.util.Arrays;
+
+
+/**
+ * @overview A set of document ids, stored as a compressed bitmap in the manner
+ *           of Roaring bitmaps.
+ *
+ *           The ids are split by their high 16 bits into chunks of 65536 ids,
+ *           and each chunk that has ids in the set is a container of their low
+ *           16 bits. A container of at most <code>ARRAY_MAX</code> ids is a
+ *           sorted array of <code>char</code>s; a fuller one is a bitmap of
+ *           1024 <code>long</code>s. A container thus costs at most 2 bytes per
+ *           id, and less than that when it is dense.
+ *
+ *           Ids are added in ascending order, so only the last container
+ *           changes. The index of an id in the set (its rank) is found from
+ *           the number of ids in the containers before it and, in a bitmap
+ *           container, from the number of ids before each block of
+ *           <code>BLOCK_WORDS</code> words, which is kept with the bitmap. So
+ *           neither <code>rank</code> nor <code>select</code> scans a whole
+ *           bitmap.
+ *
+ *           <code>and</code> intersects two sets container by container; two
+ *           bitmap containers are intersected a word (64 ids) at a time.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class DocBitmap {
+  /** the largest number of ids in an array container */
+  static final int ARRAY_MAX = 4096;
+
+  private static final int WORDS = 1024; // the words of a bitmap container
+  private static final int BLOCK_WORDS = 16; // the words of a block
+  private static final int BLOCKS = WORDS / BLOCK_WORDS;
+
+  // the rep of this class
+  private int[] keys; // the high 16 bits of the ids of each container
+  private int[] starts; // the rank of the first id of each container
+  private char[][] arrays; // the array containers, null for a bitmap one
+  private long[][] bitmaps; // the bitmap containers, null for an array one
+  private int[][] ranks; // the number of ids before each block of a bitmap
+  private int n; // the number of containers
+  private int size; // the number of ids, also starts[n]
+  private int last; // the largest id, -1 if none
+
+  /**
+   * Constructor method
+   *
+   * @effects initialises <code>this</code> to be an empty set
+   */
+  public DocBitmap() {
+    keys = new int[4];
+    starts = new int[5];
+    arrays = new char[4][];
+    bitmaps = new long[4][];
+    ranks = new int[4][];
+    last = -1;
+  }
+
+  /**
+   * A method to add a document id to <code>this</code>.
+   *
+   * @param id
+   *          a document id
+   * @requires <code>id</code> is greater than all the ids in
+   *           <code>this</code>
+   * @modifies <code>this</code>
+   * @effects adds <code>id</code> to <code>this</code>
+   */
+  public void add(int id) {
+    int key = id >>> 16;
+    int low = id & 0xFFFF;
+    if (n == 0 || keys[n - 1] != key) {
+      if (n > 0)
+        close(n - 1);
+      ensureCapacity(n + 1);
+      keys[n] = key;
+      arrays[n] = new char[4];
+      bitmaps[n] = null;
+      ranks[n] = null;
+      n++;
+    }
+
+    int c = n - 1;
+    int card = size - starts[c];
+    if (arrays[c] != null) {
+      if (card < ARRAY_MAX) {
+        if (card == arrays[c].length)
+          arrays[c] = Arrays.copyOf(arrays[c],
+              Math.min(ARRAY_MAX, card + (card >> 1) + 1));
+        arrays[c][card] = (char) low;
+        added(id);
+        return;
+      }
+      toBitmap(c);
+    }
+
+    // the ids before the blocks after the last id are not counted yet
+    int b = low >>> 10;
+    int[] r = ranks[c];
+    for (int lb = (last & 0xFFFF) >>> 10; lb < b; lb++) {
+      r[lb + 1] = card;
+    }
+    bitmaps[c][low >>> 6] |= 1L << low;
+    added(id);
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects records that <code>id</code> was added to the last container
+   */
+  private void added(int id) {
+    size++;
+    starts[n] = size;
+    last = id;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects completes the block ranks of container <code>c</code>, to which
+   *          no more ids are added
+   */
+  private void close(int c) {
+    if (ranks[c] != null) {
+      int card = starts[c + 1] - starts[c];
+      for (int b = ((last & 0xFFFF) >>> 10) + 1; b < BLOCKS; b++) {
+        ranks[c][b] = card;
+      }
+    }
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects replaces the array container <code>c</code> with a bitmap
+   *          container of the same ids
+   */
+  private void toBitmap(int c) {
+    long[] words = new long[WORDS];
+    char[] a = arrays[c];
+    int card = size - starts[c];
+    for (int i = 0; i < card; i++) {
+      words[a[i] >>> 6] |= 1L << a[i];
+    }
+    arrays[c] = null;
+    bitmaps[c] = words;
+    ranks[c] = blockRanks(words);
+  }
+
+  /**
+   * @effects returns the number of ids before each block of
+   *          <code>words</code>
+   */
+  private static int[] blockRanks(long[] words) {
+    int[] r = new int[BLOCKS];
+    int card = 0;
+    for (int w = 0; w < WORDS; w++) {
+      if ((w % BLOCK_WORDS) == 0)
+        r[w / BLOCK_WORDS] = card;
+      card += Long.bitCount(words[w]);
+    }
+    return r;
+  }
+
+  /**
+   * @effects returns the number of ids of the bitmap container
+   *          <code>c</code> before its block <code>b</code>
+   */
+  private int blockRank(int c, int b) {
+    if (c == n - 1 && b > (last & 0xFFFF) >>> 10)
+      return size - starts[c];
+    return ranks[c][b];
+  }
+
+  private void ensureCapacity(int cap) {
+    if (cap > keys.length) {
+      int capacity = Math.max(cap, keys.length * 2);
+      keys = Arrays.copyOf(keys, capacity);
+      starts = Arrays.copyOf(starts, capacity + 1);
+      arrays = Arrays.copyOf(arrays, capacity);
+      bitmaps = Arrays.copyOf(bitmaps, capacity);
+      ranks = Arrays.copyOf(ranks, capacity);
+    }
+  }
+
+  /**
+   * @effects returns the number of ids in <code>this</code>
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @effects returns the largest id in <code>this</code>, or <code>-1</code>
+   *          if <code>this</code> is empty
+   */
+  public int last() {
+    return last;
+  }
+
+  /**
+   * @effects returns the index of the container of the ids whose high bits
+   *          are <code>key</code>, or <code>-(i + 1)</code> if there is none
+   *          and <code>i</code> is where it would be
+   */
+  private int container(int key) {
+    // ids are usually looked up near the end
+    if (n > 0 && keys[n - 1] == key)
+      return n - 1;
+    return Arrays.binarySearch(keys, 0, n, key);
+  }
+
+  /**
+   * @effects returns <code>true</code> if <code>id</code> is in
+   *          <code>this</code>, else returns <code>false</code>
+   */
+  public boolean contains(int id) {
+    int c = container(id >>> 16);
+    if (c < 0)
+      return false;
+
+    int low = id & 0xFFFF;
+    if (arrays[c] != null)
+      return Arrays.binarySearch(arrays[c], 0, starts[c + 1] - starts[c],
+          (char) low) >= 0;
+    return (bitmaps[c][low >>> 6] & (1L << low)) != 0;
+  }
+
+  /**
+   * @effects returns the number of ids in <code>this</code> that are less
+   *          than <code>id</code>; if <code>id</code> is in <code>this</code>
+   *          this is its index
+   */
+  public int rank(int id) {
+    int c = container(id >>> 16);
+    if (c < 0)
+      return starts[-c - 1];
+
+    int low = id & 0xFFFF;
+    if (arrays[c] != null) {
+      int i = Arrays.binarySearch(arrays[c], 0, starts[c + 1] - starts[c],
+          (char) low);
+      return starts[c] + ((i >= 0) ? i : -i - 1);
+    }
+
+    long[] words = bitmaps[c];
+    int w = low >>> 6;
+    int r = blockRank(c, w / BLOCK_WORDS);
+    for (int i = w - w % BLOCK_WORDS; i < w; i++) {
+      r += Long.bitCount(words[i]);
+    }
+    r += Long.bitCount(words[w] & ((1L << low) - 1));
+    return starts[c] + r;
+  }
+
+  /**
+   * @requires <code>0 <= i < size()</code>
+   * @effects returns the id whose index in <code>this</code> is
+   *          <code>i</code>
+   */
+  public int select(int i) {
+    // the last container whose first id is at index i or before
+    int low = 0, high = n - 1, mid;
+    while (low < high) {
+      mid = (low + high + 1) >>> 1;
+      if (starts[mid] <= i)
+        low = mid;
+      else
+        high = mid - 1;
+    }
+    int c = low;
+    int r = i - starts[c];
+    if (arrays[c] != null)
+      return (keys[c] << 16) | arrays[c][r];
+
+    // the last block whose first id is at index r or before
+    int b = 0;
+    high = BLOCKS - 1;
+    while (b < high) {
+      mid = (b + high + 1) >>> 1;
+      if (blockRank(c, mid) <= r)
+        b = mid;
+      else
+        high = mid - 1;
+    }
+    r -= blockRank(c, b);
+
+    long[] words = bitmaps[c];
+    int w = b * BLOCK_WORDS;
+    int cnt;
+    while ((cnt = Long.bitCount(words[w])) <= r) {
+      r -= cnt;
+      w++;
+    }
+    long word = words[w];
+    for (; r > 0; r--) {
+      word &= word - 1; // clear the lowest bit
+    }
+    return (keys[c] << 16) | (w << 6) | Long.numberOfTrailingZeros(word);
+  }
+
+  /**
+   * @requires <code>ids.length >= size()</code>
+   * @modifies <code>ids</code>
+   * @effects writes the ids of <code>this</code> to
+   *          <code>ids[0..size()-1]</code>, in ascending order
+   */
+  public void toArray(int[] ids) {
+    int p = 0, card, high;
+    long word;
+    for (int c = 0; c < n; c++) {
+      high = keys[c] << 16;
+      card = starts[c + 1] - starts[c];
+      if (arrays[c] != null) {
+        for (int i = 0; i < card; i++) {
+          ids[p++] = high | arrays[c][i];
+        }
+      } else {
+        for (int w = 0; w < WORDS; w++) {
+          word = bitmaps[c][w];
+          while (word != 0) {
+            ids[p++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @effects returns a copy of <code>this</code>, which does not change
+   *          when ids are added to <code>this</code>. The containers other
+   *          than the last are shared, since they no longer change.
+   */
+  public DocBitmap copy() {
+    DocBitmap b = new DocBitmap();
+    b.ensureCapacity(n);
+    System.arraycopy(keys, 0, b.keys, 0, n);
+    System.arraycopy(starts, 0, b.starts, 0, n + 1);
+    System.arraycopy(arrays, 0, b.arrays, 0, n);
+    System.arraycopy(bitmaps, 0, b.bitmaps, 0, n);
+    System.arraycopy(ranks, 0, b.ranks, 0, n);
+    b.n = n;
+    b.size = size;
+    b.last = last;
+    if (n > 0) {
+      int c = n - 1;
+      if (arrays[c] != null) {
+        b.arrays[c] = arrays[c].clone();
+      } else {
+        b.bitmaps[c] = bitmaps[c].clone();
+        b.ranks[c] = ranks[c].clone();
+      }
+    }
+    return b;
+  }
+
+  /**
+   * A method to intersect two sets.
+   *
+   * @requires <code>a</code> and <code>b</code> are not <code>null</code>
+   * @effects returns a new set of the ids that are in both <code>a</code> and
+   *          <code>b</code>
+   */
+  public static DocBitmap and(DocBitmap a, DocBitmap b) {
+    DocBitmap r = new DocBitmap();
+    int i = 0, j = 0;
+    while (i < a.n && j < b.n) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        r.and(a, i, b, j);
+        i++;
+        j++;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * @requires <code>a.keys[i] == b.keys[j]</code> and the containers of
+   *           <code>this</code> have smaller keys
+   * @modifies <code>this</code>
+   * @effects adds the ids in both the container <code>i</code> of
+   *          <code>a</code> and the container <code>j</code> of
+   *          <code>b</code> to <code>this</code>
+   */
+  private void and(DocBitmap a, int i, DocBitmap b, int j) {
+    if (a.arrays[i] == null && b.arrays[j] == null) {
+      // word-level AND of two bitmaps
+      long[] x = a.bitmaps[i], y = b.bitmaps[j];
+      long[] words = new long[WORDS];
+      int card = 0;
+      for (int w = 0; w < WORDS; w++) {
+        words[w] = x[w] & y[w];
+        card += Long.bitCount(words[w]);
+      }
+      if (card == 0)
+        return;
+      if (card > ARRAY_MAX) {
+        append(a.keys[i], null, words, card);
+        return;
+      }
+
+      char[] ids = new char[card];
+      int p = 0;
+      long word;
+      for (int w = 0; p < card; w++) {
+        word = words[w];
+        while (word != 0) {
+          ids[p++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      append(a.keys[i], ids, null, card);
+      return;
+    }
+
+    // at least one array container: the result is no larger than it
+    if (a.arrays[i] == null) {
+      DocBitmap t = a;
+      a = b;
+      b = t;
+      int k = i;
+      i = j;
+      j = k;
+    }
+    char[] x = a.arrays[i];
+    int nx = a.starts[i + 1] - a.starts[i];
+    char[] ids = new char[nx];
+    int card = 0;
+    if (b.arrays[j] == null) {
+      long[] words = b.bitmaps[j];
+      for (int k = 0; k < nx; k++) {
+        if ((words[x[k] >>> 6] & (1L << x[k])) != 0)
+          ids[card++] = x[k];
+      }
+    } else {
+      char[] y = b.arrays[j];
+      int ny = b.starts[j + 1] - b.starts[j];
+      for (int k = 0, l = 0; k < nx && l < ny;) {
+        if (x[k] < y[l]) {
+          k++;
+        } else if (x[k] > y[l]) {
+          l++;
+        } else {
+          ids[card++] = x[k];
+          k++;
+          l++;
+        }
+      }
+    }
+    if (card > 0)
+      append(a.keys[i], ids, null, card);
+  }
+
+  /**
+   * @requires <code>card > 0</code> ids are in exactly one of
+   *           <code>ids, words</code> and <code>key</code> is greater than
+   *           the keys of the containers of <code>this</code>
+   * @modifies <code>this</code>
+   * @effects adds the container of <code>card</code> ids with high bits
+   *          <code>key</code> to <code>this</code>
+   */
+  private void append(int key, char[] ids, long[] words, int card) {
+    if (n > 0)
+      close(n - 1);
+    ensureCapacity(n + 1);
+    keys[n] = key;
+    arrays[n] = ids;
+    bitmaps[n] = words;
+    ranks[n] = (words != null) ? blockRanks(words) : null;
+    n++;
+
+    int low;
+    if (ids != null) {
+      low = ids[card - 1];
+    } else {
+      int w = WORDS - 1;
+      while (words[w] == 0)
+        w--;
+      low = (w << 6) | (63 - Long.numberOfLeadingZeros(words[w]));
+    }
+    size += card;
+    starts[n] = size;
+    last = (key << 16) | low;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer("{");
+    int[] ids = new int[size];
+    toArray(ids);
+    for (int i = 0; i < size; i++) {
+      if (i > 0)
+        sb.append(", ");
+      sb.append(ids[i]);
+    }
+    return sb.append("}").toString();
+  }
+}
@@ -0,0 +1,330 @@
+package kengine;
+
+
+/**
+ * @overview A cursor over the documents that match a part of a boolean
+ *           query, in increasing order of document id. A cursor is at one
+ *           document at a time: it reads the postings of its keywords only as
+ *           far as that document, so a query is evaluated one document at a
+ *           time by a tree of cursors, without building the matches of its
+ *           parts.
+ *
+ *           A cursor is created at its first document. <code>count</code> is
+ *           the sum of the occurrence counts of the keywords of the cursor in
+ *           the current document, which is how the matches of a query are
+ *           ranked.
+ *
+ *           The cursors of a tree are:
+ *           <ul>
+ *           <li><code>TermCursor</code>, over the postings of a keyword;
+ *           <li><code>OrCursor</code>, the union of some cursors, kept in a
+ *           heap ordered by their current documents;
+ *           <li><code>AndCursor</code>, the intersection of some cursors less
+ *           the documents of some others: each cursor in turn skips ahead to
+ *           the document of the previous one until they all agree, and the
+ *           documents of the excluded cursors are then skipped.
+ *           </ul>
+ *
+ * @version 1.0
+ * @version 1.1 upper bounds of the counts
+ * @author dmle
+ *
+ */
+public abstract class DocCursor {
+  /** the document of a cursor past its last document */
+  public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  /**
+   * @effects returns the current document of <code>this</code>, or
+   *          <code>NO_MORE_DOCS</code> if there is none
+   */
+  public abstract int doc();
+
+  /**
+   * @requires <code>doc() != NO_MORE_DOCS</code>
+   * @effects returns the sum of the occurrence counts of the keywords of
+   *          <code>this</code> in the current document
+   */
+  public abstract int count();
+
+  /**
+   * @requires <code>doc() != NO_MORE_DOCS</code>
+   * @modifies <code>this</code>
+   * @effects moves <code>this</code> to its next document
+   */
+  public abstract void next();
+
+  /**
+   * @modifies <code>this</code>
+   * @effects if <code>doc() < target</code> moves <code>this</code> to its
+   *          first document that is at least <code>target</code>, else does
+   *          nothing
+   */
+  public abstract void advance(int target);
+
+  /**
+   * @effects returns an estimate of the number of documents of
+   *          <code>this</code>, which is used to order the cursors of an
+   *          intersection
+   */
+  public abstract int cost();
+
+  /**
+   * @effects returns an upper bound of <code>count()</code> over all the
+   *          documents of <code>this</code>
+   */
+  public abstract int maxCount();
+
+  /**
+   * @overview A cursor over some postings.
+   */
+  static class TermCursor extends DocCursor {
+    private Postings pl;
+    private int pos; // the index of the current posting
+    private int max; // pl.maxCount(), 0 if not read yet
+
+    /**
+     * @requires <code>pl</code> is not <code>null</code>
+     */
+    TermCursor(Postings pl) {
+      this.pl = pl;
+    }
+
+    public int doc() {
+      return (pos < pl.size()) ? pl.doc(pos) : NO_MORE_DOCS;
+    }
+
+    public int count() {
+      return pl.count(pos);
+    }
+
+    public void next() {
+      pos++;
+    }
+
+    public void advance(int target) {
+      pos = pl.seek(target, pos);
+    }
+
+    public int cost() {
+      return pl.size();
+    }
+
+    public int maxCount() {
+      if (max == 0)
+        max = pl.maxCount();
+      return max;
+    }
+
+    /**
+     * @effects returns the last document of the block of postings of
+     *          <code>this</code> that holds its first document at least
+     *          <code>target</code> (see <code>Postings.blockLastDoc</code>)
+     */
+    int blockLastDoc(int target) {
+      return pl.blockLastDoc(target);
+    }
+
+    /**
+     * @effects returns an upper bound of the counts of the block of postings
+     *          of <code>this</code> that holds its first document at least
+     *          <code>target</code> (see <code>Postings.blockMaxCount</code>)
+     */
+    int blockMaxCount(int target) {
+      return pl.blockMaxCount(target);
+    }
+  }
+
+  /**
+   * @overview The union of some cursors. The cursors are kept in a heap
+   *           ordered by their current documents, so the current document of
+   *           the union is that of the top of the heap.
+   */
+  static class OrCursor extends DocCursor {
+    private DocCursor[] heap;
+
+    /**
+     * @requires <code>cs</code> is not empty and does not contain
+     *           <code>null</code>
+     */
+    OrCursor(DocCursor[] cs) {
+      heap = cs.clone();
+      for (int i = heap.length / 2 - 1; i >= 0; i--) {
+        siftDown(i);
+      }
+    }
+
+    public int doc() {
+      return heap[0].doc();
+    }
+
+    public int count() {
+      return count(0, heap[0].doc());
+    }
+
+    /**
+     * @effects returns the sum of the counts of the cursors in the sub-heap
+     *          at <code>i</code> whose current document is <code>doc</code>
+     */
+    private int count(int i, int doc) {
+      if (i >= heap.length || heap[i].doc() != doc)
+        return 0;
+      return heap[i].count() + count(2 * i + 1, doc) + count(2 * i + 2, doc);
+    }
+
+    public void next() {
+      int doc = heap[0].doc();
+      while (heap[0].doc() == doc) {
+        heap[0].next();
+        siftDown(0);
+      }
+    }
+
+    public void advance(int target) {
+      while (heap[0].doc() < target) {
+        heap[0].advance(target);
+        siftDown(0);
+      }
+    }
+
+    public int cost() {
+      int c = 0;
+      for (int i = 0; i < heap.length; i++) {
+        c += heap[i].cost();
+      }
+      return c;
+    }
+
+    public int maxCount() {
+      int m = 0;
+      for (int i = 0; i < heap.length; i++) {
+        m += heap[i].maxCount();
+      }
+      return m;
+    }
+
+    private void siftDown(int i) {
+      int n = heap.length, c;
+      DocCursor x = heap[i];
+      while ((c = 2 * i + 1) < n) {
+        if (c + 1 < n && heap[c + 1].doc() < heap[c].doc())
+          c++;
+        if (heap[c].doc() >= x.doc())
+          break;
+        heap[i] = heap[c];
+        i = c;
+      }
+      heap[i] = x;
+    }
+  }
+
+  /**
+   * @overview The intersection of some cursors less the documents of some
+   *           others. The cursors of the intersection are ordered by their
+   *           costs, so the one with the fewest documents leads and the others
+   *           skip ahead to its documents.
+   */
+  static class AndCursor extends DocCursor {
+    private DocCursor[] all; // the cursors to intersect
+    private DocCursor[] none; // the cursors whose documents are excluded
+    private int doc; // the current document
+
+    /**
+     * @requires <code>all</code> is not empty and neither array contains
+     *           <code>null</code>
+     */
+    AndCursor(DocCursor[] all, DocCursor[] none) {
+      this.all = all.clone();
+      this.none = none;
+      // insertion sort by cost: there are only a few cursors
+      DocCursor c;
+      for (int i = 1, j; i < this.all.length; i++) {
+        c = this.all[i];
+        for (j = i; j > 0 && this.all[j - 1].cost() > c.cost(); j--) {
+          this.all[j] = this.all[j - 1];
+        }
+        this.all[j] = c;
+      }
+      doc = -1;
+      moveTo(0);
+    }
+
+    public int doc() {
+      return doc;
+    }
+
+    public int count() {
+      int sum = 0;
+      for (int i = 0; i < all.length; i++) {
+        sum += all[i].count();
+      }
+      return sum;
+    }
+
+    public void next() {
+      moveTo(doc + 1);
+    }
+
+    public void advance(int target) {
+      if (doc < target)
+        moveTo(target);
+    }
+
+    public int cost() {
+      return all[0].cost();
+    }
+
+    public int maxCount() {
+      int m = 0;
+      for (int i = 0; i < all.length; i++) {
+        m += all[i].maxCount();
+      }
+      return m;
+    }
+
+    /**
+     * @modifies <code>this</code>
+     * @effects moves <code>this</code> to its first document that is at least
+     *          <code>target</code>
+     */
+    private void moveTo(int target) {
+      int d, i;
+      while (true) {
+        all[0].advance(target);
+        d = all[0].doc();
+        // leapfrog: each cursor in turn skips to d, and a cursor that skips
+        // past d makes its document the new candidate
+        i = 1;
+        while (i < all.length && d != NO_MORE_DOCS) {
+          all[i].advance(d);
+          if (all[i].doc() == d) {
+            i++;
+          } else {
+            d = all[i].doc();
+            all[0].advance(d);
+            d = all[0].doc();
+            i = 1;
+          }
+        }
+        if (d == NO_MORE_DOCS || !excluded(d)) {
+          doc = d;
+          return;
+        }
+        target = d + 1;
+      }
+    }
+
+    /**
+     * @effects returns <code>true</code> if one of the excluded cursors has
+     *          document <code>d</code>, else returns <code>false</code>
+     */
+    private boolean excluded(int d) {
+      for (int i = 0; i < none.length; i++) {
+        none[i].advance(d);
+        if (none[i].doc() == d)
+          return true;
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package kengine;
+
+
+/**
+ * @overview A bounded min-heap of document matches <code><id,cnt></code>
+ *           that keeps the <code>k</code> best matches offered to it. A match
+ *           is better than another if it has a larger count or, for equal
+ *           counts, a smaller document id. The worst kept match is at the
+ *           root, so a new match is compared with it in constant time and
+ *           replaces it in <code>O(log k)</code> time.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class DocHeap {
+  // the rep of this class
+  private int[] ids; // the document ids of the matches, as a binary heap
+  private int[] cnts; // the counts of the matches, parallel to ids
+  private int size; // the number of matches in the heap
+
+  /**
+   * Constructor method
+   *
+   * @param k
+   *          the maximum number of matches to keep
+   * @requires <code>k > 0</code>
+   * @effects Initialises <code>this</code> to be an empty heap of capacity
+   *          <code>k</code>.
+   */
+  public DocHeap(int k) {
+    ids = new int[k];
+    cnts = new int[k];
+    size = 0;
+  }
+
+  /**
+   * A method to offer a match to <code>this</code>.
+   *
+   * @param id
+   *          a document id
+   * @param cnt
+   *          the count of the document
+   * @modifies <code>this</code>
+   * @effects if <code>this</code> is not full adds <code><id,cnt></code> to
+   *          <code>this</code>; else if <code><id,cnt></code> is better than
+   *          the worst match of <code>this</code> replaces that match with it;
+   *          else does nothing.
+   */
+  public void offer(int id, int cnt) {
+    if (size < ids.length) {
+      // sift the new match up from the last leaf
+      int i = size++;
+      int parent;
+      while (i > 0) {
+        parent = (i - 1) >>> 1;
+        if (!better(ids[parent], cnts[parent], id, cnt))
+          break;
+        ids[i] = ids[parent];
+        cnts[i] = cnts[parent];
+        i = parent;
+      }
+      ids[i] = id;
+      cnts[i] = cnt;
+    } else if (better(id, cnt, ids[0], cnts[0])) {
+      siftDown(id, cnt, size);
+    }
+  }
+
+  /**
+   * @effects returns the number of matches in <code>this</code>
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @effects returns <code>true</code> if <code>this</code> holds the maximum
+   *          number of matches, else returns <code>false</code>
+   */
+  public boolean isFull() {
+    return size == ids.length;
+  }
+
+  /**
+   * @requires <code>size() > 0</code>
+   * @effects returns the count of the worst match of <code>this</code>
+   */
+  public int minCount() {
+    return cnts[0];
+  }
+
+  /**
+   * A method to remove the matches of <code>this</code> in ranked order.
+   *
+   * @param outIds
+   *          an array to store the document ids into
+   * @param outCnts
+   *          an array to store the counts into
+   * @requires <code>outIds.length, outCnts.length >= size()</code>
+   * @modifies <code>this, outIds, outCnts</code>
+   * @effects stores the matches of <code>this</code> into
+   *          <code>outIds[0..n-1], outCnts[0..n-1]</code> from the best to the
+   *          worst, where <code>n</code> is the initial <code>size()</code>,
+   *          makes <code>this</code> empty and returns <code>n</code>.
+   */
+  public int drain(int[] outIds, int[] outCnts) {
+    int n = size;
+    // the root is the worst match, so fill the output from the end
+    for (int i = n - 1; i >= 0; i--) {
+      outIds[i] = ids[0];
+      outCnts[i] = cnts[0];
+      size--;
+      if (size > 0)
+        siftDown(ids[size], cnts[size], size);
+    }
+    return n;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects replaces the root of the heap <code>ids[0..n-1]</code> with
+   *          <code><id,cnt></code> and restores the heap order
+   */
+  private void siftDown(int id, int cnt, int n) {
+    int i = 0, child;
+    while ((child = 2 * i + 1) < n) {
+      // choose the worse of the two children
+      if (child + 1 < n && better(ids[child], cnts[child], ids[child + 1],
+          cnts[child + 1]))
+        child++;
+      if (!better(id, cnt, ids[child], cnts[child]))
+        break;
+      ids[i] = ids[child];
+      cnts[i] = cnts[child];
+      i = child;
+    }
+    ids[i] = id;
+    cnts[i] = cnt;
+  }
+
+  /**
+   * @effects returns <code>true</code> if <code><id1,cnt1></code> is a better
+   *          match than <code><id2,cnt2></code>, else returns
+   *          <code>false</code>
+   */
+  static boolean better(int id1, int cnt1, int id2, int cnt2) {
+    return cnt1 > cnt2 || (cnt1 == cnt2 && id1 < id2);
+  }
+}
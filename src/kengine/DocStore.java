@@ -0,0 +1,97 @@
+package kengine;
+
+import java.util.Arrays;
+
+
+/**
+ * @overview Keeps the documents of the engine in an array, indexed by dense
+ *           document ids. The id of a document is its position in the order
+ *           in which the documents were added, and never changes. A store
+ *           may start at a base id, when the documents before it are kept in
+ *           segment files.
+ *
+ *           The other tables of the engine (<code>TitleTable</code>,
+ *           <code>WordTable</code>) and <code>Query</code> refer to documents
+ *           by their ids and use <code>this</code> to obtain the
+ *           <code>Doc</code> objects.
+ *
+ * @version 1.0
+ * @version 1.1 add the base id
+ * @author dmle
+ *
+ */
+public class DocStore {
+  private static final int INITIAL_CAPACITY = 16;
+
+  // the rep of this class
+  private Doc[] docs; // the documents, indexed by their ids
+  private int size; // the number of documents in docs
+  private int base; // the id of docs[0]
+
+  /**
+   * Constructor method
+   *
+   * @effects Initialises <code>this</code> to be an empty store.
+   */
+  public DocStore() {
+    this(0);
+  }
+
+  /**
+   * Constructor method
+   *
+   * @param base
+   *          the id of the first document to add
+   * @requires <code>base >= 0</code>
+   * @effects Initialises <code>this</code> to be an empty store whose
+   *          documents have the ids <code>base, base+1, ...</code>.
+   */
+  public DocStore(int base) {
+    docs = new Doc[INITIAL_CAPACITY];
+    size = 0;
+    this.base = base;
+  }
+
+  /**
+   * A method to add a new document to <code>this</code>.
+   *
+   * @param d
+   *          a <code>Doc</code> object to add
+   * @requires <code>d</code> is not <code>null</code>
+   * @modifies <code>this</code>
+   * @effects adds <code>d</code> to <code>this</code> and returns its id.
+   */
+  public int add(Doc d) {
+    if (size == docs.length)
+      docs = Arrays.copyOf(docs, size * 2);
+
+    docs[size] = d;
+    return base + size++;
+  }
+
+  /**
+   * A method to look up a document given its id.
+   *
+   * @param id
+   *          a document id
+   * @requires <code>base() <= id < base() + size()</code>
+   * @effects returns the document whose id is <code>id</code>
+   */
+  public Doc get(int id) {
+    return docs[id - base];
+  }
+
+  /**
+   * @effects returns the id of the first document of <code>this</code>
+   */
+  public int base() {
+    return base;
+  }
+
+  /**
+   * @effects returns the number of documents in <code>this</code>
+   */
+  public int size() {
+    return size;
+  }
+}
@@ -1,8 +1,11 @@
 package kengine;
 
-import java.util.Hashtable;
+import java.io.File;
+import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -12,17 +15,60 @@ import java.util.Vector;
  * The methods throw the NotPossibleException when there is a problem; the exception
  * contains a string explaining the problem. All instance methods modify the state of
  * <code>this</code>.
+ * <p>
+ * Documents retrieved by <code>addDocs</code> can be indexed by several threads: see
+ * <code>setParallelism</code>.
+ * <p>
+ * An engine may keep its index in a directory: see <code>Engine(String)</code> and
+ * <code>flush</code>. The segments that are flushed to the directory are merged in the
+ * background: see <code>setMergePolicy</code>.
+ * <p>
+ * An engine without a directory may keep its index outside the Java heap, so that a large
+ * index does not add to the pauses of the garbage collector: see <code>seal</code> and
+ * <code>setSealSize</code>.
+ * <p>
+ * A keyword of a query may be a prefix followed by <code>'*'</code>, e.g.
+ * <code>"ngu*"</code>, which matches the documents that contain any of the interesting
+ * words with that prefix, or a word followed by <code>'~'</code>, e.g.
+ * <code>"nguyen~"</code> or <code>"nguyen~1"</code>, which matches the documents that
+ * contain any of the interesting words that are at most 2 (or 1) edits away from the
+ * word, so that misspelled names are found: see <code>setMaxExpansions</code>.
+ * <p>
+ * A query may also combine keywords with <code>AND</code>, <code>OR</code> and
+ * <code>NOT</code>: see <code>query</code>.
+ * <p>
+ * Several threads may query an engine while documents are added to it: see
+ * <code>setConcurrent</code>. Several users may each refine their own queries with
+ * sessions of the engine: see <code>openSession</code>. The documents added to a
+ * concurrent engine may be buffered and made visible to queries a batch at a time: see
+ * <code>setRefreshPolicy</code>.
  * @see "Program Development in Java", pgs: 313, 316-323, 365
  */
 public class Engine {
-    private TitleTable tt;
-    private WordTable wt;
-    private Query q;
+    /** the number of documents that <code>addDocs</code> indexes in parallel at a time */
+    private static final int BATCH_SIZE = 4096;
+
+    /** the number of documents read in advance while others are indexed in parallel */
+    private static final int READ_AHEAD = 256;
+
+
+    private Index index; // the documents, their titles and their words
+    private MergeScheduler merges; // the merges of the segments of the index
+    private Query q; // the current query, if not concurrent
+    private volatile boolean concurrent; // true if queries read snapshots of the index
+    private ThreadLocal current; // the current query of each thread, if concurrent
+    private int sealSize; // seal the index at this many documents in memory, 0 means never
+    private int refreshSize; // refresh at this many buffered documents, 0 means never
+    private Refresher refresher; // refreshes the index at an interval, null if none
+    private NotPossibleException refreshError; // the failure of the last background refresh
 
     //dmle: use Vector instead of array to ease maintenance
     // private String[] urls;
     private Vector urls;
 
+    private int parallelism; // the number of threads that index documents
+    private ForkJoinPool pool; // the indexing threads, if parallelism > 1
+
     /**
      * Constructor method
      *
@@ -31,10 +77,400 @@ public class Engine {
      * the application state appropriately
      */
     public Engine() throws NotPossibleException {
-        tt = new TitleTable();
         // the exception is thrown by this line
-        wt = new WordTable();
+        index = new Index();
+        merges = new MergeScheduler(index);
         urls = new Vector();
+        parallelism = 1;
+    }
+
+    /**
+     * Constructor method to create an engine whose index is kept in a directory.
+     *
+     * @param dir the path of a directory
+     * @effects if <code>dir</code> cannot be created or the index in it cannot be read
+     * throw <code>NotPossibleException</code> else initialises the application state
+     * to be the documents, words and URLs that were flushed to <code>dir</code> (if any).
+     * The segment files of <code>dir</code> are mapped into memory rather than read, and
+     * documents added afterwards are kept in memory until the next <code>flush</code>.
+     */
+    public Engine(String dir) throws NotPossibleException {
+        urls = new Vector();
+        index = Index.open(new File(dir), urls);
+        merges = new MergeScheduler(index);
+        parallelism = 1;
+        merges.maybeMerge();
+    }
+
+    /**
+     * A method to set the number of threads that <code>addDocs</code> uses to index documents.
+     *
+     * @param p the number of threads
+     * @effects if <code>p < 1</code> throws <code>NotPossibleException</code>, else makes
+     * <code>addDocs</code> index documents using <code>p</code> threads. With more than one
+     * thread, the documents are split into parts, each part is indexed into a partial word
+     * table by a thread of a fork-join pool, and the partial tables are then merged into the
+     * word table in document order, so the tables and the query results are the same as
+     * those of indexing the documents one at a time.
+     */
+    public synchronized void setParallelism(int p) throws NotPossibleException {
+        if (p < 1)
+            throw new NotPossibleException("Engine.setParallelism: invalid number of threads: " + p);
+
+        if (p != parallelism) {
+            if (pool != null)
+                pool.shutdown();
+            pool = (p > 1) ? new ForkJoinPool(p) : null;
+            parallelism = p;
+        }
+    }
+
+    /**
+     * A method to set how the segments of the index of <code>this</code> are merged.
+     *
+     * @param mergeFactor the number of adjacent segments of similar size that are merged
+     *                    into one
+     * @param maxMBPerSec the maximum rate, in megabytes per second, at which merged
+     *                    segments are written, or <code>0</code> for no limit
+     * @effects if <code>mergeFactor < 2</code> or <code>maxMBPerSec < 0</code> throws
+     * <code>NotPossibleException</code>, else makes the background merges of
+     * <code>this</code> use the given policy. Limiting the rate of the merges keeps them
+     * from taking the disk bandwidth of queries when many documents are flushed; it does
+     * not apply to the sealed segments of an engine without a directory.
+     */
+    public void setMergePolicy(int mergeFactor, double maxMBPerSec) throws NotPossibleException {
+        merges.setPolicy(mergeFactor, maxMBPerSec * 1024 * 1024);
+    }
+
+    /**
+     * A method to wait for the background merges of <code>this</code> to finish.
+     *
+     * @effects waits until no segments of <code>this</code> are being merged; then, if a
+     * merge has failed, throws <code>NotPossibleException</code>
+     */
+    public void waitForMerges() throws NotPossibleException {
+        merges.await();
+    }
+
+    /**
+     * A method to move the documents added to <code>this</code> out of the Java heap.
+     *
+     * @effects if <code>this</code> was created with a directory (see <code>flush</code>)
+     * or the documents cannot be written throws <code>NotPossibleException</code>, else
+     * writes the documents added since the last seal, with their titles and words, to a
+     * segment in a direct buffer, in the format of a segment file, and then starts merging
+     * segments in the background, if needed. Queries read the postings, the terms and the
+     * documents of the segment from the buffer, and only small objects that refer to it
+     * are kept on the Java heap.
+     */
+    public synchronized void seal() throws NotPossibleException {
+        index.seal();
+        merges.maybeMerge();
+        merges.check();
+    }
+
+    /**
+     * A method to make <code>this</code> seal its index as documents are added.
+     *
+     * @param n the number of documents in memory at which to seal the index, or
+     *          <code>0</code> to seal it only when <code>seal</code> is called
+     * @effects if <code>this</code> was created with a directory or <code>n < 0</code>
+     * throws <code>NotPossibleException</code>, else makes <code>addDocs</code> and
+     * <code>addDoc</code> seal the index (see <code>seal</code>) whenever <code>n</code>
+     * documents have been added to it since the last seal.
+     */
+    public synchronized void setSealSize(int n) throws NotPossibleException {
+        if (index.hasDirectory() || n < 0)
+            throw new NotPossibleException("Engine.setSealSize: cannot seal at " + n
+                    + " documents");
+
+        sealSize = n;
+    }
+
+    /**
+     * @effects if <code>this</code> refreshes its index at <code>refreshSize</code>
+     * buffered documents and the index has that many in memory, refreshes it; else if
+     * <code>this</code> seals its index at <code>sealSize</code> documents and the index
+     * has that many in memory, seals it
+     */
+    private void maybeSeal() throws NotPossibleException {
+        if (refreshSize > 0 && index.memorySize() >= refreshSize)
+            refresh();
+        else if (sealSize > 0 && index.memorySize() >= sealSize)
+            seal();
+    }
+
+    /**
+     * A method to let several threads query <code>this</code> while documents are added
+     * to it.
+     *
+     * @param c <code>true</code> to make the queries of <code>this</code> read snapshots
+     *          of its index, <code>false</code> to make them read the index itself
+     * @modifies <code>this</code>
+     * @effects if <code>c</code>, makes the queries and <code>findDoc</code> of
+     * <code>this</code> read a point-in-time snapshot of its index (see
+     * <code>Index.snapshot</code>), which is never changed, so that any number of threads
+     * may query <code>this</code> without locking while another adds documents. A query
+     * then has the documents of the last <code>refresh</code> before it was created and
+     * is not updated with those added later; <code>addDocs</code> refreshes the index
+     * once it has added the documents of a URL, and the documents of <code>addDoc</code>
+     * are added to the queries created after the next refresh. The current query that
+     * <code>queryMore</code> refines is the last one created by the calling thread.
+     * <p>
+     * Else makes the queries read the index itself, as documents are added, so that
+     * <code>addDocs</code> and <code>addDoc</code> update the current query; the engine
+     * may then be used by one thread at a time only.
+     * <p>
+     * Either way, the methods that add documents or change the index lock
+     * <code>this</code>, so they are done one at a time; the queries do not lock it.
+     * Making <code>this</code> not concurrent also removes its refresh policy (see
+     * <code>setRefreshPolicy</code>).
+     */
+    public synchronized void setConcurrent(boolean c) {
+        if (c != concurrent) {
+            current = c ? new ThreadLocal() : null;
+            q = null;
+            concurrent = c;
+        }
+        if (!c) {
+            refreshSize = 0;
+            setRefresher(0);
+        }
+    }
+
+    /**
+     * A method to buffer the documents added to <code>this</code> and make them visible
+     * to queries a batch at a time, as a near-real-time reader does.
+     *
+     * @param maxDocs    the number of buffered documents at which to refresh the index, or
+     *                   <code>0</code> for no limit
+     * @param intervalMs the interval, in milliseconds, at which to refresh the index, or
+     *                   <code>0</code> to refresh it at no interval
+     * @effects if <code>maxDocs < 0</code> or <code>intervalMs < 0</code> throws
+     * <code>NotPossibleException</code>, else makes <code>this</code> concurrent (see
+     * <code>setConcurrent</code>) and makes it buffer the documents of
+     * <code>addDocs</code> and <code>addDoc</code> in its in-memory segment, which the
+     * queries do not read. The buffer is refreshed (see <code>refresh</code>) when it
+     * has <code>maxDocs</code> documents, and every <code>intervalMs</code>
+     * milliseconds by a daemon thread if it has any, so a document is visible to the
+     * queries at most about <code>intervalMs</code> milliseconds after it is added.
+     * <code>addDocs</code> then no longer refreshes the index after each URL. If both
+     * are <code>0</code> the documents are buffered until <code>refresh</code> is
+     * called.
+     * <p>
+     * A refresh seals or flushes the buffer into a new segment, so refreshing less
+     * often makes documents visible later but adds them faster, into fewer segments for
+     * the background merges to merge. If a background refresh fails, the documents stay
+     * in the buffer and the next call to <code>refresh</code> throws the failure.
+     */
+    public synchronized void setRefreshPolicy(int maxDocs, long intervalMs)
+            throws NotPossibleException {
+        if (maxDocs < 0 || intervalMs < 0)
+            throw new NotPossibleException("Engine.setRefreshPolicy: invalid policy: "
+                    + maxDocs + ", " + intervalMs);
+
+        setConcurrent(true);
+        refreshSize = maxDocs;
+        setRefresher(intervalMs);
+    }
+
+    /**
+     * @modifies <code>this</code>
+     * @effects stops the thread that refreshes the index of <code>this</code> at an
+     * interval, if any; then, if <code>intervalMs > 0</code>, makes a new daemon thread
+     * refresh it every <code>intervalMs</code> milliseconds
+     */
+    private void setRefresher(long intervalMs) {
+        if (refresher != null) {
+            refresher.halt();
+            refresher = null;
+        }
+        if (intervalMs > 0) {
+            refresher = new Refresher(this, intervalMs);
+            refresher.start();
+        }
+    }
+
+    /**
+     * @effects returns <code>true</code> if <code>this</code> has a refresh policy (see
+     * <code>setRefreshPolicy</code>), else returns <code>false</code>
+     */
+    private boolean buffered() {
+        return refreshSize > 0 || refresher != null;
+    }
+
+    /**
+     * @modifies <code>this</code>
+     * @effects if the index of <code>this</code> has buffered documents refreshes it; if
+     * that fails, records the failure for the next <code>refresh</code>
+     */
+    private synchronized void refreshBuffered() {
+        try {
+            if (index.memorySize() > 0)
+                refresh();
+        } catch (NotPossibleException e) {
+            refreshError = e;
+        }
+    }
+
+    /**
+     * @overview A daemon thread that refreshes the index of an engine at an interval. It
+     * refers to the engine weakly, so it stops once the engine is no longer used, and
+     * it stops when the refresh policy of the engine is changed.
+     */
+    private static class Refresher extends Thread {
+        private WeakReference engine;
+        private long interval; // in milliseconds
+        private boolean stopped;
+
+        Refresher(Engine engine, long interval) {
+            super("kengine.Refresher");
+            setDaemon(true);
+            this.engine = new WeakReference(engine);
+            this.interval = interval;
+        }
+
+        /**
+         * @effects makes <code>this</code> stop without another refresh, unless one has
+         * started. The thread is not interrupted, since that would close the files that a
+         * refresh is writing.
+         */
+        synchronized void halt() {
+            stopped = true;
+            notify();
+        }
+
+        public void run() {
+            Engine e;
+            while (true) {
+                synchronized (this) {
+                    try {
+                        if (!stopped)
+                            wait(interval);
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    if (stopped)
+                        return;
+                }
+                e = (Engine) engine.get();
+                if (e == null)
+                    return;
+                e.refreshBuffered();
+                e = null;
+            }
+        }
+    }
+
+    /**
+     * A method to make the documents added to <code>this</code> visible to the queries of
+     * other threads.
+     *
+     * @effects if the documents cannot be written throws <code>NotPossibleException</code>,
+     * else flushes the index of <code>this</code> if it has a directory (see
+     * <code>flush</code>), or seals it (see <code>seal</code>). The queries created
+     * afterwards, by any thread, have all the documents added so far. Then, if a
+     * background refresh has failed since the last refresh (see
+     * <code>setRefreshPolicy</code>), throws <code>NotPossibleException</code>.
+     */
+    public synchronized void refresh() throws NotPossibleException {
+        if (index.hasDirectory())
+            flush();
+        else
+            seal();
+
+        NotPossibleException e = refreshError;
+        if (e != null) {
+            refreshError = null;
+            throw e;
+        }
+    }
+
+    /**
+     * A method to start a query session of <code>this</code> for one user.
+     *
+     * @effects returns a new <code>QuerySession</code> of <code>this</code>, which has
+     * its own current query, so that several users may create and refine queries at the
+     * same time without changing those of the others. The query of a session is brought
+     * up to date with the documents added to <code>this</code> when it is next used, so
+     * adding documents costs nothing for the sessions that are not used.
+     */
+    public QuerySession openSession() {
+        return new QuerySession(this);
+    }
+
+    /**
+     * @requires <code>ix</code> is <code>reader()</code>
+     * @effects if <code>w</code> is not a word or <code>w</code> is an uninteresting word
+     * of <code>ix</code> (or, if <code>w</code> is a prefix or fuzzy keyword, no
+     * interesting word matches it) then throws <code>NotPossibleException</code>, else
+     * returns <code>w</code> in canonical form
+     */
+    static String checkKey(Index ix, String w) throws NotPossibleException {
+        if (w != null)
+            w = Helpers.canon(w);
+
+        // test the words of the expansion one at a time rather than making
+        // the postings of their union
+        String[] ts = ix.expand(w);
+        boolean found = false;
+        for (int i = 0; i < ts.length && !found; i++) {
+            found = ix.contains(ts[i]);
+        }
+        if (!found) {
+            throw new NotPossibleException("Engine.queryFirst: the specified word is either not found in any documents or uninteresting: " + w);
+        }
+        return w;
+    }
+
+    /**
+     * @effects returns the index that the queries of <code>this</code> read: a snapshot
+     * of the index, if <code>this</code> is concurrent, else the index itself
+     */
+    Index reader() {
+        return concurrent ? index.snapshot() : index;
+    }
+
+    /**
+     * @effects returns the current query of the calling thread, if <code>this</code> is
+     * concurrent, else the current query of <code>this</code>, or <code>null</code> if
+     * there is none
+     */
+    private Query current() {
+        ThreadLocal c = current;
+        return (c != null) ? (Query) c.get() : q;
+    }
+
+    /**
+     * @modifies <code>this</code>
+     * @effects makes <code>x</code> the current query of the calling thread, if
+     * <code>this</code> is concurrent, else the current query of <code>this</code>;
+     * returns <code>x</code>
+     */
+    private Query setCurrent(Query x) {
+        ThreadLocal c = current;
+        if (c != null)
+            c.set(x);
+        else
+            q = x;
+        return x;
+    }
+
+    /**
+     * A method to limit the number of words that a prefix or fuzzy keyword of a query
+     * matches.
+     *
+     * @param n the largest number of words that a prefix or fuzzy keyword expands to
+     * @effects if <code>n < 1</code> throws <code>NotPossibleException</code>, else makes
+     * a prefix keyword of the queries of <code>this</code> (e.g. <code>"ngu*"</code>)
+     * match the documents that contain any of the first <code>n</code> interesting words
+     * with the prefix, in sorted order, and a fuzzy keyword (e.g. <code>"nguyen~"</code>)
+     * match those that contain any of the <code>n</code> nearest similar words. Keeping
+     * <code>n</code> small keeps a short prefix from merging the postings of most of the
+     * words of the index.
+     */
+    public void setMaxExpansions(int n) throws NotPossibleException {
+        index.setMaxExpansions(n);
     }
 
     /**
@@ -43,21 +479,33 @@ public class Engine {
      *
      * @param w a keyword to search
      * @effects if <code>w</code> is not a word or <code>w</code> is an uninteresting word
+     * (or, if <code>w</code> is a prefix or fuzzy keyword, no interesting word matches it)
      * then throws <code>NotPossibleException</code>, else returns
      * a <code>Query</code> object containing the documents matching the keyword
      * @version 4.0
      */
     public Query queryFirst(String w) throws NotPossibleException {
-        if (w != null)
-            w = Helpers.canon(w);
+        return queryFirst(w, 0);
+    }
 
-        // check w
-        if (wt.lookup(w) == null) {
-            throw new NotPossibleException("Engine.queryFirst: the specified word is either not found in any documents or uninteresting: " + w);
-        }
+    /**
+     * A method to create a <code>Query</code> object containing the matching documents
+     * of a given keyword <code>w</code>, of which only the best <code>k</code> are ranked
+     * up front. The remaining matches are ranked when they are fetched.
+     *
+     * @param w a keyword to search
+     * @param k the number of matches to rank, or <code>0</code> to rank all matches
+     * @effects if <code>w</code> is not a word or <code>w</code> is an uninteresting word
+     * (or, if <code>w</code> is a prefix or fuzzy keyword, no interesting word matches it)
+     * then throws <code>NotPossibleException</code>, else returns
+     * a <code>Query</code> object containing the documents matching the keyword
+     * @version 5.0
+     */
+    public Query queryFirst(String w, int k) throws NotPossibleException {
+        Index ix = reader();
+        w = checkKey(ix, w);
 
-        q = new Query(wt, w);
-        return q;
+        return setCurrent(new Query(ix, w, k));
     }
 
     /**
@@ -66,22 +514,71 @@ public class Engine {
      *
      * @param w a keyword to search
      * @effects if <code>w</code> is not a word or <code>w</code> is an uninteresting word
+     * (or, if <code>w</code> is a prefix or fuzzy keyword, no interesting word matches it)
      * then throws <code>NotPossibleException</code>, else returns
      * an updated <code>Query</code> object containing the documents matching all keywords
      * @version 4.0
      */
     public Query queryMore(String w) throws NotPossibleException {
-        if (w != null)
-            w = Helpers.canon(w);
+        w = checkKey(reader(), w);
 
-        // check w
-        if (wt.lookup(w) == null) {
-            throw new NotPossibleException("Engine.queryFirst: the specified word is either not found in any documents or uninteresting: " + w);
-        }
+        Query cq = current();
+        cq.addKey(w);
 
-        q.addKey(w);
+        return cq;
+    }
 
-        return q;
+    /**
+     * A method to create a <code>Query</code> object containing the documents that match
+     * a boolean query, e.g. <code>"hanoi AND (nguyen OR le) NOT hue"</code>.
+     *
+     * @param e a boolean query in the syntax of <code>QueryExpr</code>
+     * @effects if <code>e</code> is not a valid query then throws
+     * <code>NotPossibleException</code>, else returns a <code>Query</code> object
+     * containing the documents that match <code>e</code>, which may be empty. The
+     * matches are ranked by the sums of the counts of the keywords that they match,
+     * as those of <code>queryFirst</code>, and <code>queryMore</code> adds keywords to
+     * the query.
+     * @version 5.1
+     */
+    public Query query(String e) throws NotPossibleException {
+        return query(e, 0);
+    }
+
+    /**
+     * A method to create a <code>Query</code> object containing the documents that match
+     * a boolean query, of which only the best <code>k</code> are ranked up front.
+     *
+     * @param e a boolean query in the syntax of <code>QueryExpr</code>
+     * @param k the number of matches to rank, or <code>0</code> to rank all matches
+     * @effects as <code>query(e)</code>
+     * @version 5.1
+     */
+    public Query query(String e, int k) throws NotPossibleException {
+        return setCurrent(new Query(reader(), QueryExpr.parse(e), k));
+    }
+
+    /**
+     * A method to create a <code>Query</code> object containing only the best
+     * <code>k</code> matches of a boolean query, e.g. the best 20 documents for
+     * <code>"nguyen OR le OR hanoi"</code>.
+     *
+     * @param e a boolean query in the syntax of <code>QueryExpr</code>
+     * @param k the number of matches to find
+     * @effects if <code>e</code> is not a valid query or <code>k < 1</code> then throws
+     * <code>NotPossibleException</code>, else returns a <code>Query</code> object
+     * containing the best <code>k</code> documents that match <code>e</code>, ranked as
+     * those of <code>query</code>. Unlike <code>query(e, k)</code>, the other matches are
+     * not kept, so the best matches of a disjunction of keywords are found without
+     * reading all the postings of its keywords. A later <code>queryMore</code> finds the
+     * best <code>k</code> matches of the refined query over all the documents.
+     * @version 5.2
+     */
+    public Query queryTop(String e, int k) throws NotPossibleException {
+        if (k < 1)
+            throw new NotPossibleException("Engine.queryTop: invalid number of matches: " + k);
+
+        return setCurrent(Query.best(reader(), QueryExpr.parse(e), k));
     }
 
     /**
@@ -93,7 +590,7 @@ public class Engine {
      * else return the <code>Doc</code> object with title <code>t</code>
      */
     public Doc findDoc(String t) throws NotPossibleException {
-        Doc d = tt.lookup(t);
+        Doc d = reader().lookupTitle(t);
 
         if (d == null) {
             throw new NotPossibleException("Engine.findDoc: the specified title could not be found: " + t);
@@ -102,6 +599,20 @@ public class Engine {
         return d;
     }
 
+    /**
+     * @effects returns <code>true</code> if a document whose title has the canonical form
+     * of <code>t</code> has been added to <code>this</code>, including those that are
+     * buffered (see <code>setRefreshPolicy</code>), else returns <code>false</code>
+     */
+    synchronized boolean hasTitle(String t) {
+        try {
+            index.lookupTitle(t);
+            return true;
+        } catch (NotPossibleException e) {
+            return false;
+        }
+    }
+
     /**
      * A method to retrieve documents from remote web site <code>u</code> and store
      * them for query processing.
@@ -113,47 +624,162 @@ public class Engine {
      * <code>TitleTable</code> and <code>WordTable</code> using their
      * respective methods. If no query was in progress then return an empty
      * <code>Query</code> object, else returns an updated object that contains
-     * any matching new documents.
+     * any matching new documents. If <code>this</code> is concurrent (see
+     * <code>setConcurrent</code>) refreshes its index instead, unless it buffers the
+     * documents (see <code>setRefreshPolicy</code>), and returns an empty
+     * <code>Query</code> object.
      * @version 4.0  add each new document to the current query (if one exists)
+     * @version 5.3  refresh the index of a concurrent engine
+     * @version 5.4  add the new documents to the current query at once
      */
-    public Query addDocs(String u) throws NotPossibleException {
+    public synchronized Query addDocs(String u) throws NotPossibleException {
         if (urls.contains(u))
             throw new NotPossibleException("Engine.addDocs: URL has been used: " + u);
 
         // use Comm.getDocs to obtain documents
         // this method will throw exception if u is not a valid URL
-        Iterator docs = Comm.getDocs(u);
+        Iterator docs = Comm.getDocs(u, parallelism > 1 ? READ_AHEAD : 0);
         Doc d;
-        Hashtable h;
-        while (docs.hasNext()) {
-            d = (Doc) docs.next();
-            //addDoc(d);
-            tt.addDoc(d);
-            h = wt.addDoc(d);
-
+        int first = index.size();
+        try {
+            if (parallelism > 1) {
+                addDocsParallel(docs);
+            }
+            while (docs.hasNext()) {
+                d = (Doc) docs.next();
+                //addDoc(d);
+                index.addDoc(d);
+                maybeSeal();
+            }
+        } finally {
+            Comm.close(docs);
+            // match the new documents against the current query at once rather than
+            // one at a time
             if (q != null) {
-                q.addDoc(d, h);
+                q.addDocs(first);
             }
         }
 
+        // stores URL to urls
+        urls.add(u);
+
+        if (concurrent) {
+            // the queries of other threads read the documents once they are refreshed
+            if (!buffered())
+                refresh();
+            return new Query();
+        }
+
         if (q == null) {
             q = new Query();
         }
 
-        // stores URL to urls
-        urls.add(u);
-
         return q;
     }
 
+    /**
+     * @requires <code>parallelism > 1</code>
+     * @modifies <code>this</code>
+     * @effects adds the documents of <code>it</code> to <code>TitleTable</code> and
+     * <code>WordTable</code> a batch at a time: the titles of a batch are added in order
+     * and then the batch is indexed in parallel. If some document has the same title as an
+     * existing one then the documents before it are indexed and
+     * <code>DuplicateException</code> is thrown.
+     */
+    private void addDocsParallel(Iterator it) throws DuplicateException {
+        Doc[] batch = new Doc[BATCH_SIZE];
+        int n, id, first, added;
+        while (it.hasNext()) {
+            n = 0;
+            while (n < BATCH_SIZE && it.hasNext()) {
+                batch[n++] = (Doc) it.next();
+            }
+
+            // the ids of the documents of the batch are consecutive
+            first = -1;
+            added = 0;
+            DuplicateException dup = null;
+            try {
+                while (added < n) {
+                    id = index.addTitle(batch[added]);
+                    if (added == 0)
+                        first = id;
+                    added++;
+                }
+            } catch (DuplicateException e) {
+                dup = e;
+            }
+
+            if (added > 0) {
+                // split the batch into a few parts per thread to balance the load
+                WordTable wt = index.wordTable();
+                int parts = Math.min(added, parallelism * 4);
+                WordTable[] tables = new WordTable[parts];
+                pool.invoke(new IndexTask(wt, batch, first, added, tables, 0, parts));
+
+                for (int i = 0; i < parts; i++) {
+                    wt.addAll(tables[i]);
+                }
+                maybeSeal();
+            }
+
+            if (dup != null)
+                throw dup;
+        }
+    }
+
+    /**
+     * @overview A fork-join task that indexes some parts of a batch of documents, each
+     * into its own partial <code>WordTable</code>.
+     */
+    private static class IndexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private WordTable wt; // the word table of the engine
+        private Doc[] batch;
+        private int first; // the id of batch[0]
+        private int n; // the number of documents in the batch
+        private WordTable[] tables; // the partial tables, one for each part
+        private int from, to; // the parts of this task
+
+        IndexTask(WordTable wt, Doc[] batch, int first, int n, WordTable[] tables,
+                  int from, int to) {
+            this.wt = wt;
+            this.batch = batch;
+            this.first = first;
+            this.n = n;
+            this.tables = tables;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new IndexTask(wt, batch, first, n, tables, from, mid),
+                        new IndexTask(wt, batch, first, n, tables, mid, to));
+            } else {
+                // part i has the documents [i*n/parts, (i+1)*n/parts)
+                int parts = tables.length;
+                int lo = (int) ((long) from * n / parts);
+                int hi = (int) ((long) (from + 1) * n / parts);
+                WordTable part = new WordTable(wt);
+                for (int i = lo; i < hi; i++) {
+                    part.addDoc(batch[i], first + i);
+                }
+                tables[from] = part;
+            }
+        }
+    }
+
     /**
      * A method to return all none-keywords in as a string for display.
      *
      * @effects return a string containing all none-keywords
      * @note this method is not in the original design of this class
      */
-    public String getNonkeys() {
-        return wt.getNonkeys();
+    public synchronized String getNonkeys() {
+        return index.getNonkeys();
     }
 
     /**
@@ -162,28 +788,47 @@ public class Engine {
      * @effects return a string containing all the words and their <code>DocCnt</code> objects
      * @note this method is not in the original design of this class
      */
-    public String getWordTableAsString() {
-        return wt.toString();
+    public synchronized String getWordTableAsString() {
+        return index.toString();
+    }
+
+    /**
+     * A method to write the documents added since the last flush to the directory of
+     * <code>this</code>.
+     *
+     * @effects if <code>this</code> was not created with a directory or the documents
+     * cannot be written throws <code>NotPossibleException</code>, else writes the
+     * documents added since the last flush, with their titles and words, to a new
+     * segment file of the directory and records the URLs added so far, so that an
+     * engine created later with the same directory has them without reading them again.
+     * Then starts merging segments in the background, if needed. If a background merge
+     * has failed since the last flush throws <code>NotPossibleException</code>; the index
+     * is then as if the merge had not started.
+     */
+    public synchronized void flush() throws NotPossibleException {
+        index.flush(urls);
+        merges.maybeMerge();
+        merges.check();
     }
 
     /**
      * @effects if d is null
      * throws NullPointerException
      * else
-     * add d to this.tt and this.wt using their
+     * add d to this.index using its
      * respective methods. If this.q is not null then
      * update this.q to contain any new matching
      * documents. Return this.q
      */
-    public Query addDoc(Doc d) throws NullPointerException {
+    public synchronized Query addDoc(Doc d) throws NullPointerException {
         if (d == null) {
             throw new NullPointerException("document is empty");
         } else {
-            this.tt.addDoc(d);
-            Hashtable h = this.wt.addDoc(d);
+            int id = this.index.addDoc(d);
             if (this.q != null) {
-                this.q.addDoc(d, h);
+                this.q.addDoc(id);
             }
+            maybeSeal();
         }
         return null;
     }
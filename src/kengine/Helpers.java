@@ -5,7 +5,8 @@ import kengine.NotPossibleException;
 /**
  * @overview A general helper class responsible for performing procedures that are 
  *           needed by a number of application classes.
- *           At present only <code>canon</code> is defined.
+ *           At present only <code>canon</code> is defined, for strings and for
+ *           character buffers.
  * @version  2.0
  *              
  * @see      "Program development in Java", pgs 332-333,365
@@ -13,6 +14,9 @@ import kengine.NotPossibleException;
  *
  */
 public class Helpers {
+  /** whether the default locale lower-cases ASCII words letter by letter */
+  private static final boolean ASCII_LOWER_CASE = 
+      "abcdefghijklmnopqrstuvwxyz".equals("ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase());
   
   /**
    * A method to produces a canonical form of a given string. 
@@ -25,4 +29,37 @@ public class Helpers {
   public static String canon(String s) throws NotPossibleException {    
     return s.toLowerCase();
   }
+  
+  /**
+   * A method to produce the canonical form of a word held in a character
+   * buffer, in place. 
+   * 
+   * @param buf a buffer holding a word
+   * @param len the length of the word
+   * @requires <code>buf</code> is not <code>null</code> and <code>len <= buf.length</code>
+   * @modifies <code>buf</code>
+   * @effects If the canonical form of <code>buf[0..len-1]</code> is the word with
+   *          each ASCII letter replaced by its lower-case then replaces
+   *          <code>buf[0..len-1]</code> with it and returns <code>true</code>, 
+   *          else leaves <code>buf</code> unchanged and returns <code>false</code>,
+   *          in which case the caller must use <code>canon(String)</code>.  
+   * @version 2.0 this holds for ASCII words unless the default locale has its own 
+   *          lower-case rules for ASCII letters (e.g. Turkish)
+   */
+  public static boolean canon(char[] buf, int len) {
+    if (!ASCII_LOWER_CASE)
+      return false;
+    
+    char c;
+    for (int i = 0; i < len; i++) {
+      if (buf[i] >= 0x80)
+        return false;
+    }
+    for (int i = 0; i < len; i++) {
+      c = buf[i];
+      if (c >= 'A' && c <= 'Z')
+        buf[i] = (char) (c + ('a' - 'A'));
+    }
+    return true;
+  }
 }
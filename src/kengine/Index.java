@@ -0,0 +1,966 @@
+package kengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.Vector;
+
+
+/**
+ * @overview The index of the engine: a sequence of immutable segments that
+ *           hold the documents flushed to disk, followed by an in-memory
+ *           segment (a <code>DocStore</code> with its <code>TitleTable</code>
+ *           and <code>WordTable</code>) into which new documents are added.
+ *           The segments hold consecutive ranges of document ids, so a
+ *           document keeps its id when its segment is flushed.
+ *
+ *           An index may be kept in a directory, in which case
+ *           <code>flush</code> writes the in-memory segment to a new segment
+ *           file and <code>open</code> maps the segment files of the
+ *           directory, so that the documents do not have to be read and
+ *           indexed again. The directory has a manifest file that lists the
+ *           segment files, in order, and the URLs whose documents they hold;
+ *           the manifest is replaced atomically, so it always lists complete
+ *           segment files.
+ *
+ *           An index without a directory may instead <code>seal</code> its
+ *           in-memory segment into a segment held in a direct buffer. Its
+ *           postings, terms and documents are then read from outside the Java
+ *           heap, so they are not scanned by the garbage collector.
+ *
+ *           Adjacent segments may be merged into one (see
+ *           <code>MergeScheduler</code>) while the index is in use. The array
+ *           of segments is never changed in place: a flush or a merge
+ *           publishes a new array, so a reader that takes the array once sees
+ *           a consistent sequence of segments without locking. Flushes and
+ *           merges replace the array and the manifest while holding the lock
+ *           of <code>this</code>.
+ *
+ *           The in-memory segment is changed in place as documents are added,
+ *           so it may only be read by the thread that adds the documents.
+ *           Other threads read a snapshot of the index instead (see
+ *           <code>snapshot</code>): an index of the segments at some point in
+ *           time, which is never changed, so any number of threads may query
+ *           it without locking while documents are added.
+ *
+ * @version 1.0
+ * @version 1.1 allow merging segments concurrently with queries
+ * @version 1.2 seal the in-memory segment into a direct buffer
+ * @version 1.3 enumerate the keywords in a range
+ * @version 1.4 expand prefix keywords
+ * @version 1.5 expand fuzzy keywords
+ * @version 1.6 point-in-time snapshots for concurrent readers
+ * @author dmle
+ *
+ */
+public class Index {
+  private static final String MANIFEST = "segments";
+  private static final int MANIFEST_MAGIC = 0x4B4D414E; // "KMAN"
+
+  /** the default number of keywords that a prefix expands to */
+  public static final int DEFAULT_MAX_EXPANSIONS = 64;
+
+  /** the largest number of edits of a fuzzy keyword */
+  public static final int MAX_EDITS = 2;
+
+  // the rep of this class
+  private File dir; // the directory of the segment files, null if none
+  private int generation; // the number of the next segment file
+  private volatile Segment[] segments; // the flushed segments, in order of their ids
+  private String[] urls; // the URLs of the last flush
+  private DocStore docs; // the in-memory segment
+  private TitleTable tt;
+  private WordTable wt;
+  private String[] stopWords; // the uninteresting words of wt
+  private volatile int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+  private volatile Index snapshot; // the last snapshot, null if none
+
+  /**
+   * Constructor method
+   *
+   * @effects if the uninteresting words cannot be read throws
+   *          <code>NotPossibleException</code>, else initialises
+   *          <code>this</code> to be an empty in-memory index.
+   */
+  public Index() throws NotPossibleException {
+    segments = new Segment[0];
+    docs = new DocStore();
+    tt = new TitleTable(docs);
+    wt = new WordTable(docs);
+    stopWords = wt.stopWords();
+  }
+
+  /**
+   * Constructor method to create an index of a word table only, e.g. for a
+   * <code>Query</code> that is created from a <code>WordTable</code>.
+   *
+   * @requires <code>wt</code> is not <code>null</code>
+   * @effects initialises <code>this</code> to be an in-memory index whose
+   *          words are those of <code>wt</code>; its titles cannot be looked
+   *          up.
+   */
+  Index(WordTable wt) {
+    segments = new Segment[0];
+    docs = wt.docs();
+    this.wt = wt;
+    stopWords = wt.stopWords();
+  }
+
+  /**
+   * A method to open the index kept in a directory.
+   *
+   * @param dir
+   *          a directory
+   * @param urls
+   *          a vector to store the URLs of the index into
+   * @requires <code>dir</code> and <code>urls</code> are not
+   *           <code>null</code>
+   * @modifies <code>urls</code>
+   * @effects if <code>dir</code> cannot be created or its index cannot be
+   *          read throws <code>NotPossibleException</code>, else returns the
+   *          index kept in <code>dir</code> (which is empty if
+   *          <code>dir</code> has no manifest) and adds its URLs to
+   *          <code>urls</code>.
+   */
+  public static Index open(File dir, Vector urls) throws NotPossibleException {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new NotPossibleException("Index.open: not a directory: " + dir);
+
+    Index index;
+    File mf = new File(dir, MANIFEST);
+    if (!mf.exists()) {
+      index = new Index();
+    } else {
+      Segment[] segs;
+      int gen;
+      DataInputStream in = null;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(mf)));
+        if (in.readInt() != MANIFEST_MAGIC)
+          throw new NotPossibleException("Index.open: not a manifest file " + mf);
+        gen = in.readInt();
+        segs = new Segment[in.readInt()];
+        for (int i = 0; i < segs.length; i++) {
+          segs[i] = Segment.open(new File(dir, in.readUTF()));
+          if (segs[i].base() != ((i > 0) ? end(segs[i - 1]) : 0))
+            throw new NotPossibleException("Index.open: segments are not consecutive: "
+                + segs[i]);
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+          urls.add(in.readUTF());
+        }
+      } catch (IOException e) {
+        throw new NotPossibleException("Index.open: Failed to read file " + mf
+            + " due to " + e);
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      }
+
+      if (segs.length == 0) {
+        index = new Index();
+      } else {
+        // new documents have the uninteresting words of the last segment
+        Segment last = segs[segs.length - 1];
+        String[] stop = new String[last.stopCount()];
+        for (int t = 0; t < stop.length; t++) {
+          stop[t] = last.term(t);
+        }
+        index = new Index(segs, stop);
+      }
+      index.generation = gen;
+    }
+    index.dir = dir;
+    index.urls = (String[]) urls.toArray(new String[urls.size()]);
+
+    return index;
+  }
+
+  /**
+   * @effects initialises <code>this</code> to be the index of
+   *          <code>segments</code> followed by an empty in-memory segment
+   *          whose uninteresting words are <code>stopWords</code>
+   */
+  private Index(Segment[] segments, String[] stopWords) {
+    this.segments = segments;
+    docs = new DocStore((segments.length > 0) ? end(segments[segments.length - 1]) : 0);
+    tt = new TitleTable(docs);
+    wt = new WordTable(docs, stopWords);
+    this.stopWords = stopWords;
+  }
+
+  /**
+   * A method to take a point-in-time view of <code>this</code> that other
+   * threads may query while documents are added.
+   *
+   * @effects returns an index of the segments of <code>this</code>, as they
+   *          are now, with the same uninteresting words and
+   *          <code>maxExpansions()</code> and an empty in-memory segment. The
+   *          documents of the in-memory segment of <code>this</code> are thus
+   *          not in the snapshot until they are sealed or flushed into a
+   *          segment. The snapshot must not be modified, and it does not
+   *          change as <code>this</code> does, so it may be read by any
+   *          number of threads without locking. The same snapshot is
+   *          returned until the segments of <code>this</code> change.
+   */
+  public Index snapshot() {
+    Segment[] segs = segments;
+    int max = maxExpansions;
+    Index s = snapshot;
+    if (s == null || s.segments != segs || s.maxExpansions != max) {
+      // a snapshot that is stale by the time it is stored is replaced by the
+      // next call
+      s = new Index(segs, stopWords);
+      s.maxExpansions = max;
+      snapshot = s;
+    }
+    return s;
+  }
+
+  /**
+   * @effects returns the id after the last document of <code>s</code>
+   */
+  private static int end(Segment s) {
+    return s.base() + s.size();
+  }
+
+  /**
+   * A method to look up all the documents containing a keyword.
+   *
+   * @param k
+   *          a keyword in canonical form
+   * @requires <code>k</code> is not <code>null</code>
+   * @effects If <code>k</code> is an interesting word of some document
+   *          returns the <code>Postings</code> of <code>k</code> in all the
+   *          segments of <code>this</code>, else returns <code>null</code>.
+   */
+  public Postings lookup(String k) {
+    if (!wt.isInteresting(k))
+      return null;
+
+    Segment[] segs = segments;
+    Postings[] parts = new Postings[segs.length + 1];
+    int n = 0, t;
+    for (int i = 0; i < segs.length; i++) {
+      t = segs[i].termId(k);
+      if (t >= 0 && (parts[n] = segs[i].postings(t)) != null)
+        n++;
+    }
+    if ((parts[n] = wt.lookup(k)) != null)
+      n++;
+
+    if (n == 0) {
+      return null;
+    } else if (n == 1) {
+      return parts[0];
+    } else {
+      Postings[] ps = new Postings[n];
+      System.arraycopy(parts, 0, ps, 0, n);
+      return new MultiPostings(ps);
+    }
+  }
+
+  /**
+   * A method to test whether some documents contain a keyword.
+   *
+   * @param k
+   *          a keyword in canonical form
+   * @effects returns <code>true</code> if <code>k</code> is an interesting
+   *          word of some document of <code>this</code>, else returns
+   *          <code>false</code>. Unlike <code>lookup</code>, no postings are
+   *          read.
+   */
+  public boolean contains(String k) {
+    if (!wt.isInteresting(k))
+      return false;
+
+    Segment[] segs = segments;
+    int t;
+    for (int i = 0; i < segs.length; i++) {
+      t = segs[i].termId(k);
+      if (t >= segs[i].stopCount())
+        return true;
+    }
+    return wt.lookup(k) != null;
+  }
+
+  /**
+   * A method to look up all the documents containing some keywords.
+   *
+   * @param ks
+   *          some keywords in canonical form, e.g. those of
+   *          <code>expand</code>
+   * @requires <code>ks</code> is not <code>null</code>
+   * @effects if <code>ks</code> has one element returns
+   *          <code>lookup(ks[0])</code>; else if none of <code>ks</code> is
+   *          an interesting word of some document returns <code>null</code>,
+   *          else returns the postings of the documents that contain any of
+   *          <code>ks</code>, with the sums of their counts (see
+   *          <code>PostingList.union</code>).
+   */
+  public Postings lookup(String[] ks) {
+    if (ks.length == 1)
+      return lookup(ks[0]);
+
+    Postings[] lists = new Postings[ks.length];
+    int n = 0;
+    for (int i = 0; i < ks.length; i++) {
+      if ((lists[n] = lookup(ks[i])) != null)
+        n++;
+    }
+    if (n == 0)
+      return null;
+    if (n == 1)
+      return lists[0];
+
+    Postings[] ps = new Postings[n];
+    System.arraycopy(lists, 0, ps, 0, n);
+    return PostingList.union(ps);
+  }
+
+  /**
+   * A method to expand a keyword of a query.
+   *
+   * @param k
+   *          a keyword in canonical form, which may be a prefix followed by
+   *          <code>'*'</code>, e.g. <code>"ngu*"</code>, or a fuzzy keyword:
+   *          a word followed by <code>'~'</code> and, optionally, the largest
+   *          number of edits, up to <code>MAX_EDITS</code>, e.g.
+   *          <code>"nguyen~1"</code> (<code>"nguyen~"</code> means
+   *          <code>"nguyen~2"</code>)
+   * @effects if <code>k</code> is a prefix keyword returns the interesting
+   *          words of <code>this</code> with that prefix, in sorted order, or
+   *          the first <code>maxExpansions()</code> of them if there are
+   *          more; else if <code>k</code> is a fuzzy keyword returns
+   *          <code>similarTerms(w, d, maxExpansions())</code> where
+   *          <code>w</code> is its word and <code>d</code> its number of
+   *          edits; else returns <code>{k}</code>
+   */
+  public String[] expand(String k) {
+    if (k == null || k.length() < 2)
+      return new String[] { k };
+
+    if (k.charAt(k.length() - 1) == '*')
+      return termsWithPrefix(k.substring(0, k.length() - 1), maxExpansions);
+
+    int i = k.lastIndexOf('~');
+    if (i > 0) {
+      int d = -1;
+      if (i == k.length() - 1)
+        d = MAX_EDITS;
+      else if (i == k.length() - 2)
+        d = Character.digit(k.charAt(i + 1), 10);
+      if (d >= 1 && d <= MAX_EDITS)
+        return similarTerms(k.substring(0, i), d, maxExpansions);
+    }
+
+    return new String[] { k };
+  }
+
+  /**
+   * @effects returns the largest number of keywords that a prefix expands to
+   */
+  public int maxExpansions() {
+    return maxExpansions;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects if <code>n < 1</code> throws <code>NotPossibleException</code>,
+   *          else makes a prefix expand to at most <code>n</code> keywords
+   */
+  public void setMaxExpansions(int n) throws NotPossibleException {
+    if (n < 1)
+      throw new NotPossibleException("Index.setMaxExpansions: invalid number: " + n);
+
+    maxExpansions = n;
+  }
+
+  /**
+   * A method to enumerate the keywords of <code>this</code> in a range.
+   *
+   * @param from
+   *          the least keyword of the range, or <code>null</code> if it has
+   *          no least one
+   * @param to
+   *          the keyword after the range, or <code>null</code> if the range
+   *          has no end
+   * @param max
+   *          the largest number of keywords to return, or <code>0</code> for
+   *          no limit
+   * @effects returns the interesting words of the documents of
+   *          <code>this</code> that are at least <code>from</code> and less
+   *          than <code>to</code>, in sorted order; if there are more than
+   *          <code>max > 0</code> of them returns the first <code>max</code>.
+   *          The words of each segment are read in order from its term
+   *          dictionary, and merged.
+   */
+  public String[] terms(String from, String to, int max) {
+    Segment[] segs = segments;
+    WordTable w = wt;
+    int n = segs.length + 1;
+    int[] next = new int[n]; // the rank of the next word of each part
+    int[] end = new int[n]; // the rank after the range in each part
+    String[] heads = new String[n]; // the next word of each part, or null
+    for (int i = 0; i < segs.length; i++) {
+      next[i] = (from != null) ? segs[i].lowerRank(from) : 0;
+      end[i] = (to != null) ? segs[i].lowerRank(to) : segs[i].termCount();
+    }
+    next[n - 1] = (from != null) ? w.lowerRank(from) : 0;
+    end[n - 1] = (to != null) ? w.lowerRank(to) : w.termCount();
+
+    Vector found = new Vector();
+    String least, last = null;
+    int p, t;
+    while (max == 0 || found.size() < max) {
+      least = null;
+      p = -1;
+      for (int i = 0; i < n; i++) {
+        // the next keyword of part i
+        while (heads[i] == null && next[i] < end[i]) {
+          if (i < segs.length) {
+            t = segs[i].sortedTerm(next[i]++);
+            if (t >= segs[i].stopCount())
+              heads[i] = segs[i].term(t);
+          } else {
+            t = w.sortedTerms()[next[i]++];
+            if (w.postings(t) != null)
+              heads[i] = w.term(t);
+          }
+        }
+        if (heads[i] != null && (least == null || heads[i].compareTo(least) < 0)) {
+          least = heads[i];
+          p = i;
+        }
+      }
+      if (p < 0)
+        break;
+
+      heads[p] = null;
+      if (!least.equals(last) && w.isInteresting(least))
+        found.add(least);
+      last = least;
+    }
+
+    return (String[]) found.toArray(new String[found.size()]);
+  }
+
+  /**
+   * A method to enumerate the keywords of <code>this</code> with a prefix.
+   *
+   * @requires <code>p</code> is not <code>null</code>
+   * @effects returns the interesting words of the documents of
+   *          <code>this</code> that start with <code>p</code>, as
+   *          <code>terms(p, to, max)</code> where <code>to</code> is the
+   *          least word after them
+   */
+  public String[] termsWithPrefix(String p, int max) {
+    return terms(p, TermDictionary.prefixEnd(p), max);
+  }
+
+  /**
+   * A method to enumerate the keywords of <code>this</code> that are similar
+   * to a word.
+   *
+   * @param w
+   *          a word in canonical form
+   * @param d
+   *          the largest number of edits
+   * @param max
+   *          the largest number of keywords to return, or <code>0</code> for
+   *          no limit
+   * @requires <code>w</code> is not <code>null</code> and <code>d >= 0</code>
+   * @effects returns the interesting words of the documents of
+   *          <code>this</code> that are at most <code>d</code> edits
+   *          (insertions, deletions and substitutions of a character) away
+   *          from <code>w</code>, nearest first and then in sorted order, or
+   *          the first <code>max</code> of them if <code>max > 0</code> and
+   *          there are more.
+   *
+   *          The term dictionary of each segment is walked with a
+   *          <code>LevenshteinAutomaton</code>, so only the terms that share a
+   *          prefix with a similar word are read; the words of the in-memory
+   *          segment, which has no dictionary, are read in sorted order,
+   *          skipping the words with a prefix that no similar word has.
+   */
+  public String[] similarTerms(String w, int d, int max) {
+    Segment[] segs = segments;
+    final LevenshteinAutomaton a = new LevenshteinAutomaton(w, d);
+    TreeSet found = new TreeSet();
+    int[] ranks;
+    int t;
+    for (int i = 0; i < segs.length; i++) {
+      ranks = a.ranks(segs[i].dictionary());
+      for (int j = 0; j < ranks.length; j++) {
+        t = segs[i].sortedTerm(ranks[j]);
+        if (t >= segs[i].stopCount())
+          found.add(segs[i].term(t));
+      }
+    }
+    addSimilar(a, wt, found);
+
+    Vector similar = new Vector();
+    String v;
+    for (Iterator it = found.iterator(); it.hasNext();) {
+      v = (String) it.next();
+      if (wt.isInteresting(v))
+        similar.add(v);
+    }
+
+    // nearest first; the sort is stable, so words at the same distance stay
+    // in sorted order
+    String[] terms = (String[]) similar.toArray(new String[similar.size()]);
+    final int[] dist = new int[terms.length];
+    Integer[] order = new Integer[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      dist[i] = a.editDistance(terms[i]);
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return dist[((Integer) o1).intValue()] - dist[((Integer) o2).intValue()];
+      }
+    });
+
+    int n = (max > 0) ? Math.min(max, terms.length) : terms.length;
+    String[] result = new String[n];
+    for (int i = 0; i < n; i++) {
+      result[i] = terms[order[i].intValue()];
+    }
+    return result;
+  }
+
+  /**
+   * @modifies <code>found</code>
+   * @effects adds the interesting words of <code>w</code> that <code>a</code>
+   *          accepts to <code>found</code>, reading the words in sorted order
+   *          and skipping the range of each prefix that <code>a</code>
+   *          rejects
+   */
+  private static void addSimilar(LevenshteinAutomaton a, WordTable w,
+      TreeSet found) {
+    int n = w.termCount();
+    int r = 0, t, k;
+    String v, end;
+    while (r < n) {
+      t = w.sortedTerms()[r];
+      v = w.term(t);
+      k = a.deadPrefix(v);
+      if (k >= 0) {
+        // no word with the first k characters of v is accepted
+        end = TermDictionary.prefixEnd(v.substring(0, k));
+        if (end == null)
+          break;
+        r = w.lowerRank(end);
+        continue;
+      }
+
+      if (a.accepts(v) && w.postings(t) != null)
+        found.add(v);
+      r++;
+    }
+  }
+
+  /**
+   * A method to look up a document given its id.
+   *
+   * @requires <code>0 <= id < size()</code>
+   * @effects returns the document whose id is <code>id</code>
+   */
+  public Doc doc(int id) {
+    if (id >= docs.base())
+      return docs.get(id);
+
+    // the last segment whose base is at most id
+    Segment[] segs = segments;
+    int low = 0, high = segs.length - 1, mid;
+    while (low < high) {
+      mid = (low + high + 1) >>> 1;
+      if (segs[mid].base() <= id)
+        low = mid;
+      else
+        high = mid - 1;
+    }
+    return segs[low].doc(id);
+  }
+
+  /**
+   * @effects returns the number of documents in <code>this</code>
+   */
+  public int size() {
+    return docs.base() + docs.size();
+  }
+
+  /**
+   * @effects returns the number of documents in the in-memory segment of
+   *          <code>this</code>
+   */
+  public int memorySize() {
+    return docs.size();
+  }
+
+  /**
+   * A method to look up a document given its title.
+   *
+   * @param t
+   *          the title of the document to look up
+   * @effects if <code>t</code> is <code>null</code> or there is no document
+   *          with this title throws <code>NotPossibleException</code>, else
+   *          returns the document with title <code>t</code>.
+   */
+  public Doc lookupTitle(String t) throws NotPossibleException {
+    if (t != null) {
+      String ct = Helpers.canon(t);
+      Segment[] segs = segments;
+      int id;
+      for (int i = 0; i < segs.length; i++) {
+        id = segs[i].titleId(ct);
+        if (id >= 0)
+          return segs[i].doc(id);
+      }
+    }
+
+    return tt.lookup(t);
+  }
+
+  /**
+   * A method to add a new document to <code>this</code>.
+   *
+   * @param d
+   *          a document
+   * @requires <code>d</code> is not <code>null</code>
+   * @modifies <code>this</code>
+   * @effects if a document with the same title is already in
+   *          <code>this</code> throws <code>DuplicateException</code>, else
+   *          adds <code>d</code> to the in-memory segment, indexes its words
+   *          and returns its id.
+   */
+  public int addDoc(Doc d) throws DuplicateException {
+    int id = addTitle(d);
+    wt.addDoc(d, id);
+    return id;
+  }
+
+  /**
+   * @requires <code>d</code> is not <code>null</code>
+   * @modifies <code>this</code>
+   * @effects if a document with the same title is already in
+   *          <code>this</code> throws <code>DuplicateException</code>, else
+   *          adds <code>d</code> and its title to the in-memory segment,
+   *          without indexing its words, and returns its id.
+   */
+  int addTitle(Doc d) throws DuplicateException {
+    String t = Helpers.canon(d.title());
+    Segment[] segs = segments;
+    for (int i = 0; i < segs.length; i++) {
+      if (segs[i].titleId(t) >= 0)
+        throw new DuplicateException("TitleTable.addDoc: a document with same title already exists: " + t);
+    }
+
+    return tt.addDoc(d);
+  }
+
+  /**
+   * @effects returns the word table of the in-memory segment
+   */
+  WordTable wordTable() {
+    return wt;
+  }
+
+  /**
+   * @effects returns the flushed segments of <code>this</code>, which must
+   *          not be modified
+   */
+  Segment[] segments() {
+    return segments;
+  }
+
+  /**
+   * @effects returns <code>true</code> if <code>this</code> is kept in a
+   *          directory, else returns <code>false</code>
+   */
+  boolean hasDirectory() {
+    return dir != null;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects returns a new segment file in the directory of
+   *          <code>this</code>
+   */
+  synchronized File newSegmentFile() {
+    return new File(dir, "seg" + generation++ + ".dat");
+  }
+
+  /**
+   * A method to replace adjacent segments by the segment that they were
+   * merged into.
+   *
+   * @param merged
+   *          the segments that were merged, which are adjacent segments of
+   *          <code>this</code>
+   * @param s
+   *          the segment written from the documents of <code>merged</code>
+   * @modifies <code>this</code>
+   * @effects if the manifest cannot be written throws
+   *          <code>NotPossibleException</code>, else replaces
+   *          <code>merged</code> with <code>s</code> in the segments of
+   *          <code>this</code> and, if <code>this</code> is kept in a
+   *          directory, writes the manifest and deletes the files of
+   *          <code>merged</code>.
+   */
+  void replace(Segment[] merged, Segment s) throws NotPossibleException {
+    synchronized (this) {
+      Segment[] segs = segments;
+      int from = 0;
+      while (segs[from] != merged[0])
+        from++;
+
+      Segment[] ns = new Segment[segs.length - merged.length + 1];
+      System.arraycopy(segs, 0, ns, 0, from);
+      ns[from] = s;
+      System.arraycopy(segs, from + merged.length, ns, from + 1,
+          segs.length - from - merged.length);
+      segments = ns;
+      if (dir == null)
+        return;
+
+      try {
+        writeManifest();
+      } catch (NotPossibleException e) {
+        segments = segs;
+        throw e;
+      }
+    }
+
+    // readers that still use the merged segments keep their mappings
+    for (int i = 0; i < merged.length; i++) {
+      merged[i].file().delete();
+    }
+  }
+
+  /**
+   * A method to write the in-memory segment to the directory of
+   * <code>this</code>.
+   *
+   * @param urls
+   *          the URLs whose documents are in <code>this</code>
+   * @modifies <code>this</code>
+   * @effects if <code>this</code> is not kept in a directory or the segment
+   *          cannot be written throws <code>NotPossibleException</code>,
+   *          else, if the in-memory segment has documents, writes them to a
+   *          new segment file, maps it and starts a new in-memory segment;
+   *          then writes the manifest of <code>this</code> with
+   *          <code>urls</code>.
+   */
+  public void flush(Vector urls) throws NotPossibleException {
+    if (dir == null)
+      throw new NotPossibleException("Index.flush: the index has no directory");
+
+    if (docs.size() > 0)
+      writeSegment(true);
+
+    synchronized (this) {
+      this.urls = (String[]) urls.toArray(new String[urls.size()]);
+      writeManifest();
+    }
+  }
+
+  /**
+   * A method to move the in-memory segment of <code>this</code> out of the
+   * Java heap.
+   *
+   * @modifies <code>this</code>
+   * @effects if <code>this</code> is kept in a directory (whose segments are
+   *          written by <code>flush</code>) or the segment cannot be written
+   *          throws <code>NotPossibleException</code>, else, if the in-memory
+   *          segment has documents, writes them to a segment in a new direct
+   *          buffer and starts a new in-memory segment.
+   */
+  public void seal() throws NotPossibleException {
+    if (dir != null)
+      throw new NotPossibleException("Index.seal: the index has a directory");
+
+    if (docs.size() > 0)
+      writeSegment(false);
+  }
+
+  /**
+   * @requires the in-memory segment has documents, and <code>toFile</code>
+   *           is <code>true</code> only if <code>this</code> is kept in a
+   *           directory
+   * @modifies <code>this</code>
+   * @effects writes the in-memory segment to a new segment file (if
+   *          <code>toFile</code>) or direct buffer, appends it to the
+   *          segments of <code>this</code> and starts a new in-memory segment
+   */
+  private void writeSegment(boolean toFile) throws NotPossibleException {
+    int base = docs.base();
+    int n = docs.size();
+    String[] stop = wt.stopWords();
+    int nk = wt.termCount() - stop.length;
+    String[] keys = new String[nk];
+    Postings[] postings = new Postings[nk];
+    nk = 0;
+    for (int t = 0; t < wt.termCount(); t++) {
+      if (wt.postings(t) != null) {
+        keys[nk] = wt.term(t);
+        postings[nk++] = wt.postings(t);
+      }
+    }
+
+    String[] titles = new String[n];
+    Vector ds = new Vector(n);
+    Doc d;
+    for (int i = 0; i < n; i++) {
+      d = docs.get(base + i);
+      titles[i] = Helpers.canon(d.title());
+      ds.add(d);
+    }
+
+    Segment s;
+    if (toFile) {
+      File f = newSegmentFile();
+      SegmentWriter.write(f, base, stop, keys, postings, titles, ds.iterator());
+      s = Segment.open(f);
+    } else {
+      s = new Segment(null, SegmentWriter.write(base, stop, keys, postings,
+          titles, ds.iterator()));
+    }
+
+    synchronized (this) {
+      Segment[] segs = segments;
+      Segment[] ns = new Segment[segs.length + 1];
+      System.arraycopy(segs, 0, ns, 0, segs.length);
+      ns[segs.length] = s;
+      segments = ns;
+    }
+
+    docs = new DocStore(base + n);
+    tt = new TitleTable(docs);
+    wt = new WordTable(docs, stop);
+  }
+
+  /**
+   * @requires the caller holds the lock of <code>this</code>
+   * @effects writes the manifest of <code>this</code> to a temporary file
+   *          and then renames it to the manifest file
+   */
+  private void writeManifest() throws NotPossibleException {
+    File tmp = new File(dir, MANIFEST + ".tmp");
+    DataOutputStream out = null;
+    try {
+      FileOutputStream fo = new FileOutputStream(tmp);
+      out = new DataOutputStream(new BufferedOutputStream(fo));
+      out.writeInt(MANIFEST_MAGIC);
+      out.writeInt(generation);
+      out.writeInt(segments.length);
+      for (int i = 0; i < segments.length; i++) {
+        out.writeUTF(segments[i].file().getName());
+      }
+      out.writeInt(urls.length);
+      for (int i = 0; i < urls.length; i++) {
+        out.writeUTF(urls[i]);
+      }
+      out.flush();
+      fo.getFD().sync();
+      out.close();
+      out = null;
+
+      Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new NotPossibleException("Index.flush: Failed to write file "
+          + tmp + " due to " + e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * A method to return all none-keywords in as a string for display
+   *
+   * @effects return a string containing all none-keywords of <code>this</code>
+   */
+  public String getNonkeys() {
+    return wt.getNonkeys();
+  }
+
+  /**
+   * A method to return the displayable content of the index as string.
+   *
+   * @effects return a string containing all the words and their postings,
+   *          in the same format as <code>WordTable.toString</code>
+   */
+  public String toString() {
+    Segment[] segs = segments;
+    if (segs.length == 0)
+      return wt.toString();
+
+    String[] stop = wt.stopWords();
+    if (stop.length == 0)
+      return null;
+
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < stop.length; i++) {
+      sb.append(stop[i]).append("\n");
+    }
+    TermMap seen = new TermMap();
+    for (int i = 0; i < segs.length; i++) {
+      for (int t = segs[i].stopCount(); t < segs[i].termCount(); t++) {
+        appendKey(sb, seen, segs[i].term(t));
+      }
+    }
+    for (int t = 0; t < wt.termCount(); t++) {
+      if (wt.postings(t) != null)
+        appendKey(sb, seen, wt.term(t));
+    }
+
+    sb.delete(sb.length() - 1, sb.length());
+    return sb.toString();
+  }
+
+  /**
+   * @modifies <code>sb, seen</code>
+   * @effects if <code>w</code> is not in <code>seen</code>, adds it to
+   *          <code>seen</code> and appends it and its postings to
+   *          <code>sb</code>
+   */
+  private void appendKey(StringBuffer sb, TermMap seen, String w) {
+    if (seen.get(w) >= 0)
+      return;
+    seen.add(w);
+
+    Postings dv = lookup(w);
+    sb.append(w).append("->[").append(dv.size()).append("][");
+    for (int i = 0; i < dv.size(); i++) {
+      if (i > 0)
+        sb.append(", ");
+      sb.append("<").append(doc(dv.doc(i)).title()).append(",")
+          .append(dv.count(i)).append(">");
+    }
+    sb.append("]\n");
+  }
+}
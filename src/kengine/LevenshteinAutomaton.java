@@ -0,0 +1,197 @@
+package kengine;
+
+import java.util.Arrays;
+
+
+/**
+ * @overview A Levenshtein automaton of a word <code>w</code> and a distance
+ *           <code>d</code>: it accepts the strings that are at most
+ *           <code>d</code> edits (insertions, deletions and substitutions of a
+ *           character) away from <code>w</code>.
+ *
+ *           A state of the automaton is a row of the edit distance matrix of
+ *           <code>w</code> and the characters read so far: its
+ *           <code>i</code>th entry is the distance between the first
+ *           <code>i</code> characters of <code>w</code> and the input, capped
+ *           at <code>d + 1</code>. The states are computed as the input is
+ *           read, one character at a time, so they are not built up front. A
+ *           state whose entries are all <code>d + 1</code> is dead: no string
+ *           that starts with the input is accepted.
+ *
+ *           The automaton is run over the paths of a
+ *           <code>TermDictionary</code> (see <code>ranks</code>): the walk
+ *           leaves a state of the dictionary as soon as the automaton dies, so
+ *           it only visits the prefixes that are within <code>d</code> edits
+ *           of a prefix of <code>w</code>, not all the terms. Terms that are
+ *           kept in sorted order but not in a dictionary are skipped a range
+ *           of a dead prefix at a time (see <code>deadPrefix</code>).
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class LevenshteinAutomaton {
+  // the rep of this class
+  private String w;
+  private int d;
+  private int n; // the length of w
+  // the ranks accepted by the current walk of ranks()
+  private int[] found;
+  private int nfound;
+
+  /**
+   * Constructor method
+   *
+   * @param w
+   *          a word
+   * @param d
+   *          the largest number of edits
+   * @requires <code>w</code> is not <code>null</code> and <code>d >= 0</code>
+   * @effects initialises <code>this</code> to be the automaton of the strings
+   *          that are at most <code>d</code> edits away from <code>w</code>
+   */
+  public LevenshteinAutomaton(String w, int d) {
+    this.w = w;
+    this.d = d;
+    this.n = w.length();
+  }
+
+  /**
+   * @effects returns the largest number of edits of <code>this</code>
+   */
+  public int distance() {
+    return d;
+  }
+
+  /**
+   * @effects returns the initial state of <code>this</code>
+   */
+  private int[] start() {
+    int[] s = new int[n + 1];
+    for (int i = 0; i <= n; i++) {
+      s[i] = Math.min(i, d + 1);
+    }
+    return s;
+  }
+
+  /**
+   * @modifies <code>t</code>
+   * @effects sets <code>t</code> to the state of <code>this</code> after
+   *          reading <code>c</code> in state <code>s</code>; returns
+   *          <code>false</code> if <code>t</code> is dead, else returns
+   *          <code>true</code>
+   */
+  private boolean step(int[] s, char c, int[] t) {
+    int min = t[0] = Math.min(s[0] + 1, d + 1);
+    int v;
+    for (int i = 1; i <= n; i++) {
+      v = s[i - 1] + ((w.charAt(i - 1) == c) ? 0 : 1);
+      if (s[i] + 1 < v)
+        v = s[i] + 1;
+      if (t[i - 1] + 1 < v)
+        v = t[i - 1] + 1;
+      if (v > d + 1)
+        v = d + 1;
+      t[i] = v;
+      if (v < min)
+        min = v;
+    }
+    return min <= d;
+  }
+
+  /**
+   * @requires <code>v</code> is not <code>null</code>
+   * @effects returns the edit distance between <code>w</code> and
+   *          <code>v</code> if it is at most <code>d</code>, else returns
+   *          <code>d + 1</code>
+   */
+  public int editDistance(String v) {
+    int[] s = start(), t = new int[n + 1], x;
+    for (int k = 0; k < v.length(); k++) {
+      if (!step(s, v.charAt(k), t))
+        return d + 1;
+      x = s;
+      s = t;
+      t = x;
+    }
+    return s[n];
+  }
+
+  /**
+   * @requires <code>v</code> is not <code>null</code>
+   * @effects returns <code>true</code> if <code>this</code> accepts
+   *          <code>v</code>, else returns <code>false</code>
+   */
+  public boolean accepts(String v) {
+    return editDistance(v) <= d;
+  }
+
+  /**
+   * @requires <code>v</code> is not <code>null</code>
+   * @effects returns the length of the shortest prefix of <code>v</code> that
+   *          no string accepted by <code>this</code> starts with, or
+   *          <code>-1</code> if there is none. The strings that are in sorted
+   *          order after <code>v</code> and start with that prefix can thus be
+   *          skipped.
+   */
+  public int deadPrefix(String v) {
+    int[] s = start(), t = new int[n + 1], x;
+    for (int k = 0; k < v.length(); k++) {
+      if (!step(s, v.charAt(k), t))
+        return k + 1;
+      x = s;
+      s = t;
+      t = x;
+    }
+    return -1;
+  }
+
+  /**
+   * A method to find the terms of a dictionary that <code>this</code>
+   * accepts.
+   *
+   * @requires <code>dict</code> is not <code>null</code>
+   * @effects returns the ranks of the terms of <code>dict</code> that are
+   *          accepted by <code>this</code>, in ascending order
+   */
+  public int[] ranks(TermDictionary dict) {
+    // a state is alive only if its first entry, the length of the input,
+    // is at most d more than n
+    int[][] rows = new int[n + d + 2][];
+    rows[0] = start();
+    for (int k = 1; k < rows.length; k++) {
+      rows[k] = new int[n + 1];
+    }
+
+    found = new int[16];
+    nfound = 0;
+    walk(dict, dict.root(), 0, 0, rows);
+
+    int[] ranks = Arrays.copyOf(found, nfound);
+    found = null;
+    return ranks;
+  }
+
+  /**
+   * @requires <code>rows[depth]</code> is the state of <code>this</code>
+   *           after reading the path to state <code>s</code> of
+   *           <code>dict</code>, which is not dead, and <code>r</code> is the
+   *           number of terms before that path
+   * @modifies <code>found, nfound, rows</code>
+   * @effects appends the ranks of the accepted terms that start with the path
+   *          to <code>found</code>
+   */
+  private void walk(TermDictionary dict, int s, int depth, int r, int[][] rows) {
+    if (dict.isFinal(s) && rows[depth][n] <= d) {
+      if (nfound == found.length)
+        found = Arrays.copyOf(found, nfound * 2);
+      found[nfound++] = r;
+    }
+
+    int arcs = dict.arcs(s);
+    for (int i = 0; i < arcs; i++) {
+      if (step(rows[depth], dict.label(s, i), rows[depth + 1]))
+        walk(dict, dict.target(s, i), depth + 1, r + dict.skip(s, i), rows);
+    }
+  }
+}
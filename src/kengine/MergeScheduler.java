@@ -0,0 +1,323 @@
+package kengine;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * @overview Merges adjacent segments of an index in the background, so that
+ *           the number of segments that a query has to read stays small as
+ *           documents are flushed.
+ *
+ *           The merge policy is tiered: the size of a segment (in bytes) puts
+ *           it in a tier, where tier 0 holds the segments of up to
+ *           <code>floor</code> bytes and each tier above holds segments
+ *           <code>mergeFactor</code> times larger than the one below. When
+ *           <code>mergeFactor</code> adjacent segments are in the same tier
+ *           they are merged into one segment, which is usually in the tier
+ *           above. Each document is thus rewritten about
+ *           <code>log(n)</code> times, in base <code>mergeFactor</code>.
+ *
+ *           Merges run one at a time on a daemon thread and write the new
+ *           segment at a limited rate, if one is set. Queries are not blocked:
+ *           they keep reading the old segments until the merged segment
+ *           replaces them (see <code>Index.replace</code>). If a merge fails,
+ *           the index is left as it was and the failure is reported by the
+ *           next call to <code>check</code>.
+ *
+ *           The segments of an index without a directory, which are held in
+ *           direct buffers (see <code>Index.seal</code>), are merged into a
+ *           new direct buffer, at no limited rate.
+ *
+ * @version 1.0
+ * @version 1.1 merge segments held in direct buffers
+ * @author dmle
+ *
+ */
+public class MergeScheduler {
+  /** the default number of segments to merge */
+  public static final int DEFAULT_MERGE_FACTOR = 10;
+
+  /** the size of the segments of the lowest tier */
+  private static final long FLOOR = 1 << 20;
+
+  // the rep of this class
+  private Index index;
+  private int mergeFactor;
+  private double maxBytesPerSec; // 0 means no limit
+  private Thread thread; // the merging thread, null if none is running
+  private boolean pending; // another merge pass has been requested
+  private NotPossibleException error; // the failure of the last merge
+
+  /**
+   * Constructor method
+   *
+   * @param index
+   *          an index
+   * @requires <code>index</code> is not <code>null</code>
+   * @effects initialises <code>this</code> to merge the segments of
+   *          <code>index</code> <code>DEFAULT_MERGE_FACTOR</code> at a time,
+   *          at no limited rate.
+   */
+  public MergeScheduler(Index index) {
+    this.index = index;
+    this.mergeFactor = DEFAULT_MERGE_FACTOR;
+  }
+
+  /**
+   * A method to set the merge policy of <code>this</code>.
+   *
+   * @param mergeFactor
+   *          the number of adjacent segments of a tier to merge
+   * @param maxBytesPerSec
+   *          the maximum rate at which merged segments are written, or
+   *          <code>0</code> for no limit
+   * @modifies <code>this</code>
+   * @effects if <code>mergeFactor < 2</code> or
+   *          <code>maxBytesPerSec < 0</code> throws
+   *          <code>NotPossibleException</code>, else sets the policy of
+   *          <code>this</code>; the merges that follow use it.
+   */
+  public synchronized void setPolicy(int mergeFactor, double maxBytesPerSec)
+      throws NotPossibleException {
+    if (mergeFactor < 2 || maxBytesPerSec < 0)
+      throw new NotPossibleException("MergeScheduler.setPolicy: invalid policy: "
+          + mergeFactor + ", " + maxBytesPerSec);
+
+    this.mergeFactor = mergeFactor;
+    this.maxBytesPerSec = maxBytesPerSec;
+  }
+
+  /**
+   * A method to request merging the segments of the index, e.g. after a
+   * flush.
+   *
+   * @modifies <code>this</code>
+   * @effects starts the merging thread if it is not running, else makes it
+   *          look for segments to merge again when it is done. Returns
+   *          without waiting for the merges.
+   */
+  public synchronized void maybeMerge() {
+    if (thread != null) {
+      pending = true;
+      return;
+    }
+
+    thread = new Thread("kengine.MergeScheduler") {
+      public void run() {
+        mergeAll();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @effects merges segments of the index while the policy finds some to
+   *          merge and more passes are requested, then stops the thread
+   */
+  private void mergeAll() {
+    int factor;
+    double rate;
+    Segment[] merge;
+    while (true) {
+      synchronized (this) {
+        pending = false;
+        factor = mergeFactor;
+        rate = maxBytesPerSec;
+      }
+
+      try {
+        while ((merge = findMerge(index.segments(), factor)) != null) {
+          merge(merge, rate);
+        }
+      } catch (NotPossibleException e) {
+        synchronized (this) {
+          error = e;
+        }
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          error = new NotPossibleException("MergeScheduler: merge failed due to " + e);
+        }
+      }
+
+      synchronized (this) {
+        if (!pending || error != null) {
+          thread = null;
+          notifyAll();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * A method to wait for the merges of <code>this</code> to finish.
+   *
+   * @effects waits until the merging thread has stopped; then, if a merge
+   *          has failed since the last check throws
+   *          <code>NotPossibleException</code>
+   */
+  public synchronized void await() throws NotPossibleException {
+    while (thread != null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new NotPossibleException("MergeScheduler.await: interrupted");
+      }
+    }
+    check();
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects if a merge has failed since the last check throws its
+   *          <code>NotPossibleException</code>, else does nothing
+   */
+  public synchronized void check() throws NotPossibleException {
+    NotPossibleException e = error;
+    error = null;
+    if (e != null)
+      throw e;
+  }
+
+  /**
+   * A method that implements the tiered merge policy.
+   *
+   * @param segs
+   *          the segments of an index, in order
+   * @param factor
+   *          the merge factor
+   * @requires <code>segs</code> is not <code>null</code> and
+   *           <code>factor >= 2</code>
+   * @effects if <code>segs</code> has <code>factor</code> adjacent segments
+   *          in the same tier returns the first such run, else returns
+   *          <code>null</code>
+   */
+  static Segment[] findMerge(Segment[] segs, int factor) {
+    int start = 0, tier, t;
+    for (int i = 0; i < segs.length; i++) {
+      t = tier(segs[i].sizeInBytes(), factor);
+      tier = tier(segs[start].sizeInBytes(), factor);
+      if (t != tier)
+        start = i;
+      if (i - start + 1 == factor) {
+        Segment[] merge = new Segment[factor];
+        System.arraycopy(segs, start, merge, 0, factor);
+        return merge;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @effects returns the tier of a segment of <code>bytes</code> bytes
+   */
+  private static int tier(long bytes, int factor) {
+    int tier = 0;
+    for (long max = FLOOR; bytes > max && tier < 62; max *= factor) {
+      tier++;
+    }
+    return tier;
+  }
+
+  /**
+   * @requires <code>segs</code> are adjacent segments of the index
+   * @modifies <code>index</code>
+   * @effects writes the documents of <code>segs</code> to a new segment file
+   *          (or direct buffer, if the index has no directory) at no more than <code>rate</code> bytes per second (if
+   *          <code>rate > 0</code>) and replaces <code>segs</code> with it in
+   *          the index
+   */
+  private void merge(final Segment[] segs, double rate)
+      throws NotPossibleException {
+    // the uninteresting words are those of the newest segment
+    Segment last = segs[segs.length - 1];
+    TermMap seen = new TermMap();
+    String[] stop = new String[last.stopCount()];
+    for (int t = 0; t < stop.length; t++) {
+      stop[t] = last.term(t);
+      seen.add(stop[t]);
+    }
+
+    // the keywords, in the order in which the segments first have them
+    int first = seen.size();
+    for (int i = 0; i < segs.length; i++) {
+      for (int t = segs[i].stopCount(); t < segs[i].termCount(); t++) {
+        String w = segs[i].term(t);
+        if (seen.get(w) < 0)
+          seen.add(w);
+      }
+    }
+
+    int nk = seen.size() - first;
+    String[] keys = new String[nk];
+    Postings[] postings = new Postings[nk];
+    Postings[] parts = new Postings[segs.length];
+    int n, t;
+    for (int k = 0; k < nk; k++) {
+      keys[k] = seen.term(first + k);
+      n = 0;
+      for (int i = 0; i < segs.length; i++) {
+        t = segs[i].termId(keys[k]);
+        if (t >= 0 && (parts[n] = segs[i].postings(t)) != null)
+          n++;
+      }
+      if (n == 1) {
+        postings[k] = parts[0];
+      } else {
+        Postings[] ps = new Postings[n];
+        System.arraycopy(parts, 0, ps, 0, n);
+        postings[k] = new MultiPostings(ps);
+      }
+    }
+
+    final int base = segs[0].base();
+    final int size = last.base() + last.size() - base;
+    String[] titles = new String[size];
+    for (int i = 0, s = 0; i < size; i++) {
+      if (base + i == segs[s].base() + segs[s].size())
+        s++;
+      titles[i] = segs[s].title(base + i);
+    }
+
+    // the documents are read from the segments as they are written
+    Iterator docs = new Iterator() {
+      int id = base;
+      int s = 0;
+
+      public boolean hasNext() {
+        return id < base + size;
+      }
+
+      public Object next() {
+        if (!hasNext())
+          throw new NoSuchElementException("MergeScheduler.merge");
+        if (id == segs[s].base() + segs[s].size())
+          s++;
+        return segs[s].doc(id++);
+      }
+
+      public void remove() {
+        // does nothing
+      }
+    };
+
+    if (!index.hasDirectory()) {
+      index.replace(segs, new Segment(null, SegmentWriter.write(base, stop,
+          keys, postings, titles, docs)));
+      return;
+    }
+
+    File f = index.newSegmentFile();
+    SegmentWriter.write(f, base, stop, keys, postings, titles, docs, rate);
+    try {
+      index.replace(segs, Segment.open(f));
+    } catch (NotPossibleException e) {
+      f.delete();
+      throw e;
+    }
+  }
+}
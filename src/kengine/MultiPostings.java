@@ -0,0 +1,153 @@
+package kengine;
+
+
+/**
+ * @overview The postings of a keyword in several segments, as a single
+ *           sequence. The segments hold consecutive ranges of document ids,
+ *           so the postings are the concatenation of the postings of the
+ *           keyword in each segment, in the order of the segments.
+ *
+ * @version 1.0
+ * @version 1.1 upper bounds of the counts from the parts
+ * @author dmle
+ *
+ */
+public class MultiPostings extends Postings {
+  // the rep of this class
+  private Postings[] parts; // the postings of each segment, in order
+  private int[] starts; // the index in this of the first posting of each part
+  private int size;
+
+  private int last; // the part of the last posting accessed
+  private int shallow; // the part of the last target of partOf
+  private int shallowTarget; // the last target of partOf
+
+  /**
+   * Constructor method
+   *
+   * @param parts
+   *          the postings of a keyword in consecutive segments
+   * @requires <code>parts</code> is not <code>null</code>, its elements are
+   *           not <code>null</code> and the document ids of each part are
+   *           greater than those of the parts before it
+   * @effects Initialises <code>this</code> to be the concatenation of
+   *          <code>parts</code>.
+   */
+  public MultiPostings(Postings[] parts) {
+    this.parts = parts;
+    starts = new int[parts.length + 1];
+    for (int i = 0; i < parts.length; i++) {
+      starts[i + 1] = starts[i] + parts[i].size();
+    }
+    size = starts[parts.length];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int doc(int i) {
+    int p = part(i);
+    return parts[p].doc(i - starts[p]);
+  }
+
+  public int count(int i) {
+    int p = part(i);
+    return parts[p].count(i - starts[p]);
+  }
+
+  public int lastDoc() {
+    int p = parts.length - 1;
+    while (parts[p].size() == 0)
+      p--;
+    return parts[p].lastDoc();
+  }
+
+  /**
+   * @effects returns the index in this of the first posting, at or after
+   *          <code>from</code>, whose document id is at least
+   *          <code>target</code>; the parts whose last document is smaller
+   *          than <code>target</code> are skipped without searching them.
+   */
+  public int seek(int target, int from) {
+    if (from >= size)
+      return size;
+
+    int p = part(from);
+    int i = from - starts[p];
+    Postings pl;
+    while (p < parts.length) {
+      pl = parts[p];
+      if (pl.size() > i && pl.lastDoc() >= target) {
+        return starts[p] + pl.seek(target, i);
+      }
+      p++;
+      i = 0;
+    }
+    return size;
+  }
+
+  /**
+   * @effects returns the largest of the upper bounds of the counts of the
+   *          parts
+   */
+  public int maxCount() {
+    int max = 0, m;
+    for (int p = 0; p < parts.length; p++) {
+      m = parts[p].maxCount();
+      if (m > max)
+        max = m;
+    }
+    return max;
+  }
+
+  public int blockLastDoc(int target) {
+    int p = partOf(target);
+    return (p < parts.length) ? parts[p].blockLastDoc(target) : Integer.MAX_VALUE;
+  }
+
+  public int blockMaxCount(int target) {
+    int p = partOf(target);
+    return (p < parts.length) ? parts[p].blockMaxCount(target) : 0;
+  }
+
+  /**
+   * @effects returns the first part that has a document at least
+   *          <code>target</code>, or <code>parts.length</code> if there is
+   *          none
+   */
+  private int partOf(int target) {
+    // the targets mostly increase, so start from the part of the last one
+    int p = (target >= shallowTarget) ? shallow : 0;
+    while (p < parts.length
+        && (parts[p].size() == 0 || parts[p].lastDoc() < target))
+      p++;
+    shallow = Math.min(p, parts.length - 1);
+    shallowTarget = target;
+    return p;
+  }
+
+  /**
+   * @requires <code>0 <= i < size()</code>
+   * @modifies <code>this</code>
+   * @effects returns the part that holds the <code>i</code>th posting
+   */
+  private int part(int i) {
+    // postings are mostly read in order, so try the last part first
+    int p = last;
+    if (i < starts[p] || i >= starts[p + 1]) {
+      int low = 0, high = parts.length - 1, mid;
+      while (low < high) {
+        mid = (low + high + 1) >>> 1;
+        if (starts[mid] <= i)
+          low = mid;
+        else
+          high = mid - 1;
+      }
+      // the last part starting at or before i, which is not empty
+      p = low;
+      last = p;
+    }
+    return p;
+  }
+}
@@ -0,0 +1,324 @@
+package kengine;
+
+import java.util.Arrays;
+
+
+/**
+ * @overview A posting list of a keyword. It is a sequence of pairs
+ *           <code><id,cnt></code>, where <code>id</code> is the id of a
+ *           document containing the keyword and <code>cnt</code> is the number
+ *           of occurrences of the keyword in that document. The pairs are
+ *           ordered by increasing document id.
+ *
+ *           The pairs are stored in two parallel <code>int</code> arrays that
+ *           grow in place, so that a posting costs two array slots instead of
+ *           a <code>DocCnt</code> object and a <code>Vector</code> slot.
+ *
+ * @version 1.0
+ * @version 1.1 extend <code>Postings</code>
+ * @version 1.2 add <code>union</code>
+ * @version 1.3 keep the largest count of each block of postings
+ * @author dmle
+ *
+ */
+public class PostingList extends Postings {
+  private static final int INITIAL_CAPACITY = 2;
+
+  // the rep of this class
+  private int[] docs; // document ids, in ascending order
+  private int[] cnts; // occurrence counts, parallel to docs
+  private int size; // number of postings in use
+  private int maxCnt; // the largest count, 0 if empty
+  // the largest count of each block of BlockPostings.BLOCK postings, null
+  // while there is only one block
+  private int[] maxes;
+
+  /**
+   * Constructor method
+   *
+   * @effects Initialises <code>this</code> to be an empty posting list.
+   */
+  public PostingList() {
+    docs = new int[INITIAL_CAPACITY];
+    cnts = new int[INITIAL_CAPACITY];
+    size = 0;
+  }
+
+  /**
+   * A method to append a posting to <code>this</code>.
+   *
+   * @param id
+   *          the id of a document
+   * @param cnt
+   *          the number of occurrences of the keyword in the document
+   * @requires <code>id</code> is greater than all the document ids in
+   *           <code>this</code> and <code>cnt > 0</code>
+   * @modifies <code>this</code>
+   * @effects appends <code><id,cnt></code> to the end of <code>this</code>
+   */
+  public void add(int id, int cnt) {
+    if (size == docs.length) {
+      // grow by half of the current capacity
+      int capacity = size + (size >> 1) + 1;
+      docs = Arrays.copyOf(docs, capacity);
+      cnts = Arrays.copyOf(cnts, capacity);
+    }
+
+    docs[size] = id;
+    cnts[size] = cnt;
+    size++;
+    noteCount(size - 1, cnt);
+  }
+
+  /**
+   * A method to append all the postings of another list to <code>this</code>.
+   *
+   * @param pl
+   *          a posting list
+   * @requires <code>pl</code> is not <code>null</code> and the document ids
+   *           of <code>pl</code> are greater than all the document ids in
+   *           <code>this</code>
+   * @modifies <code>this</code>
+   * @effects appends the postings of <code>pl</code> to the end of
+   *          <code>this</code>
+   */
+  public void addAll(PostingList pl) {
+    if (size + pl.size > docs.length) {
+      int capacity = Math.max(size + pl.size, size + (size >> 1) + 1);
+      docs = Arrays.copyOf(docs, capacity);
+      cnts = Arrays.copyOf(cnts, capacity);
+    }
+
+    System.arraycopy(pl.docs, 0, docs, size, pl.size);
+    System.arraycopy(pl.cnts, 0, cnts, size, pl.size);
+    size += pl.size;
+    for (int i = size - pl.size; i < size; i++) {
+      noteCount(i, cnts[i]);
+    }
+  }
+
+  /**
+   * @effects returns the number of postings in <code>this</code>
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @requires <code>0 <= i < size()</code>
+   * @effects returns the document id of the <code>i</code>th posting
+   */
+  public int doc(int i) {
+    return docs[i];
+  }
+
+  /**
+   * @requires <code>0 <= i < size()</code>
+   * @effects returns the occurrence count of the <code>i</code>th posting
+   */
+  public int count(int i) {
+    return cnts[i];
+  }
+
+  /**
+   * A method to skip ahead in <code>this</code> to the posting of a document.
+   *
+   * @param target
+   *          a document id
+   * @param from
+   *          the index of the posting to start from
+   * @requires <code>0 <= from <= size()</code>
+   * @effects returns the index of the first posting at or after
+   *          <code>from</code> whose document id is at least
+   *          <code>target</code>, or <code>size()</code> if there is no such
+   *          posting.
+   */
+  public int seek(int target, int from) {
+    return gallop(docs, from, size, target);
+  }
+
+  /**
+   * @effects returns the largest count of <code>this</code>, which is kept
+   *          as postings are added, or <code>0</code> if it is empty
+   */
+  public int maxCount() {
+    return maxCnt;
+  }
+
+  /**
+   * @effects returns the document id of the last posting of the block of
+   *          <code>BlockPostings.BLOCK</code> postings that holds the first
+   *          posting whose document id is at least <code>target</code>, or
+   *          <code>Integer.MAX_VALUE</code> if there is none
+   */
+  public int blockLastDoc(int target) {
+    int i = gallop(docs, 0, size, target);
+    if (i == size)
+      return Integer.MAX_VALUE;
+    int b = i / BlockPostings.BLOCK;
+    return docs[Math.min(size, (b + 1) * BlockPostings.BLOCK) - 1];
+  }
+
+  /**
+   * @effects returns the largest count of the block of
+   *          <code>BlockPostings.BLOCK</code> postings that holds the first
+   *          posting whose document id is at least <code>target</code>, or
+   *          <code>0</code> if there is none
+   */
+  public int blockMaxCount(int target) {
+    int i = gallop(docs, 0, size, target);
+    if (i == size)
+      return 0;
+    return (maxes != null) ? maxes[i / BlockPostings.BLOCK] : maxCnt;
+  }
+
+  /**
+   * @requires <code>0 <= i < size</code> and <code>cnt = cnts[i]</code>
+   * @modifies <code>this</code>
+   * @effects updates the largest counts of <code>this</code> and of the
+   *          block of posting <code>i</code> with <code>cnt</code>
+   */
+  private void noteCount(int i, int cnt) {
+    if (cnt > maxCnt)
+      maxCnt = cnt;
+    if (i < BlockPostings.BLOCK)
+      return;
+
+    int b = i / BlockPostings.BLOCK;
+    if (maxes == null) {
+      // the second block: the largest count so far is that of the first
+      maxes = new int[4];
+      for (int j = 0; j < BlockPostings.BLOCK; j++) {
+        if (cnts[j] > maxes[0])
+          maxes[0] = cnts[j];
+      }
+    } else if (b == maxes.length) {
+      maxes = Arrays.copyOf(maxes, b * 2);
+    }
+    if (cnt > maxes[b])
+      maxes[b] = cnt;
+  }
+
+  /**
+   * A method to merge the postings of several keywords, e.g. the keywords
+   * that a prefix expands to.
+   *
+   * @param lists
+   *          the postings of some keywords
+   * @requires <code>lists</code> and its elements are not <code>null</code>
+   * @effects returns a new posting list of the documents of
+   *          <code>lists</code>, where the count of a document is the sum of
+   *          its counts in <code>lists</code>. The lists are merged with a
+   *          heap of their next postings, ordered by document id, in
+   *          <code>O(n * log k)</code> time for <code>n</code> postings in
+   *          <code>k</code> lists.
+   */
+  public static PostingList union(Postings[] lists) {
+    int k = lists.length;
+    int[] heap = new int[k]; // the indexes of the lists that are not done
+    int[] pos = new int[k]; // the next posting of each list
+    int n = 0;
+    for (int i = 0; i < k; i++) {
+      if (lists[i].size() > 0) {
+        heap[n++] = i;
+        for (int c = n - 1, p; c > 0; c = p) {
+          p = (c - 1) >>> 1;
+          if (lists[heap[p]].doc(0) <= lists[heap[c]].doc(0))
+            break;
+          int t = heap[p];
+          heap[p] = heap[c];
+          heap[c] = t;
+        }
+      }
+    }
+
+    PostingList pl = new PostingList();
+    int top, doc, cnt;
+    while (n > 0) {
+      top = heap[0];
+      doc = lists[top].doc(pos[top]);
+      cnt = lists[top].count(pos[top]);
+      if (++pos[top] == lists[top].size())
+        heap[0] = heap[--n];
+      siftDown(heap, n, lists, pos);
+
+      if (pl.size > 0 && pl.docs[pl.size - 1] == doc) {
+        pl.cnts[pl.size - 1] += cnt;
+        pl.noteCount(pl.size - 1, pl.cnts[pl.size - 1]);
+      } else {
+        pl.add(doc, cnt);
+      }
+    }
+    return pl;
+  }
+
+  /**
+   * @modifies <code>heap</code>
+   * @effects moves <code>heap[0]</code> down the heap
+   *          <code>heap[0..n-1]</code> of lists, ordered by the document id
+   *          of their next posting, to its place
+   */
+  private static void siftDown(int[] heap, int n, Postings[] lists, int[] pos) {
+    int i = 0, c, t;
+    while ((c = 2 * i + 1) < n) {
+      if (c + 1 < n
+          && lists[heap[c + 1]].doc(pos[heap[c + 1]]) < lists[heap[c]].doc(pos[heap[c]]))
+        c++;
+      if (lists[heap[i]].doc(pos[heap[i]]) <= lists[heap[c]].doc(pos[heap[c]]))
+        break;
+      t = heap[i];
+      heap[i] = heap[c];
+      heap[c] = t;
+      i = c;
+    }
+  }
+
+  /**
+   * A method that implements galloping (exponential) search on a sorted
+   * array: it probes the positions <code>from, from+1, from+3, from+7,...</code>
+   * until it passes <code>target</code> and then binary-searches the last
+   * gap. The cost is logarithmic in the distance skipped rather than in the
+   * length of the array, which makes it cheap to step through a long array
+   * in the order of the elements of a much shorter one.
+   *
+   * @param a
+   *          an array of integers
+   * @param from
+   *          the left-most position to search
+   * @param to
+   *          the position after the right-most one to search
+   * @param target
+   *          the value to search for
+   * @requires <code>a[from], ..., a[to-1]</code> is in ascending order and
+   *           <code>0 <= from <= to <= a.length</code>
+   * @effects returns the smallest <code>i</code> in <code>[from,to)</code>
+   *          such that <code>a[i] >= target</code>, or <code>to</code> if there
+   *          is no such <code>i</code>.
+   */
+  static int gallop(int[] a, int from, int to, int target) {
+    if (from >= to || a[from] >= target)
+      return from;
+
+    // invariant: a[low] < target
+    int low = from, step = 1, high = from + 1;
+    while (high < to && a[high] < target) {
+      low = high;
+      step <<= 1;
+      high = low + step;
+    }
+    if (high > to)
+      high = to;
+
+    // a[low] < target and (high == to or a[high] >= target)
+    int mid;
+    low++;
+    while (low < high) {
+      mid = (low + high) >>> 1;
+      if (a[mid] < target)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+}
@@ -0,0 +1,147 @@
+package kengine;
+
+
+/**
+ * @overview The postings of a keyword: a sequence of pairs
+ *           <code><id,cnt></code>, where <code>id</code> is the id of a
+ *           document containing the keyword and <code>cnt</code> is the number
+ *           of occurrences of the keyword in that document, ordered by
+ *           increasing document id.
+ *
+ *           This is the view of postings that queries use, whichever way the
+ *           postings are stored: in memory (<code>PostingList</code>), in a
+ *           segment file (<code>Segment</code>) or across several segments.
+ *           The postings are accessed by their index, and
+ *           <code>seek</code> skips ahead to a document id.
+ *
+ *           <code>maxCount</code> bounds the counts of the postings, and
+ *           <code>blockMaxCount</code> those of the block of postings that
+ *           holds a document, so that a top-k query can skip the documents
+ *           that cannot be among its best matches (see
+ *           <code>BlockMaxWand</code>). The postings of this class are a
+ *           single block.
+ *
+ * @version 1.0
+ * @version 1.1 upper bounds of the counts
+ * @author dmle
+ *
+ */
+public abstract class Postings {
+
+  /**
+   * @effects returns the number of postings in <code>this</code>
+   */
+  public abstract int size();
+
+  /**
+   * @requires <code>0 <= i < size()</code>
+   * @effects returns the document id of the <code>i</code>th posting
+   */
+  public abstract int doc(int i);
+
+  /**
+   * @requires <code>0 <= i < size()</code>
+   * @effects returns the occurrence count of the <code>i</code>th posting
+   */
+  public abstract int count(int i);
+
+  /**
+   * @requires <code>size() > 0</code>
+   * @effects returns the document id of the last posting
+   */
+  public int lastDoc() {
+    return doc(size() - 1);
+  }
+
+  /**
+   * A method to skip ahead in <code>this</code> to the posting of a document.
+   *
+   * @param target
+   *          a document id
+   * @param from
+   *          the index of the posting to start from
+   * @requires <code>0 <= from <= size()</code>
+   * @effects returns the index of the first posting at or after
+   *          <code>from</code> whose document id is at least
+   *          <code>target</code>, or <code>size()</code> if there is no such
+   *          posting.
+   *
+   *          This implementation gallops over <code>doc</code>, as
+   *          <code>PostingList.gallop</code> does over an array.
+   */
+  public int seek(int target, int from) {
+    int to = size();
+    if (from >= to || doc(from) >= target)
+      return from;
+
+    // invariant: doc(low) < target
+    int low = from, step = 1, high = from + 1;
+    while (high < to && doc(high) < target) {
+      low = high;
+      step <<= 1;
+      high = low + step;
+    }
+    if (high > to)
+      high = to;
+
+    int mid;
+    low++;
+    while (low < high) {
+      mid = (low + high) >>> 1;
+      if (doc(mid) < target)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * @effects returns an upper bound of the counts of the postings of
+   *          <code>this</code>, or <code>0</code> if it is empty.
+   *
+   *          This implementation reads all the postings.
+   */
+  public int maxCount() {
+    int max = 0, n = size();
+    for (int i = 0; i < n; i++) {
+      if (count(i) > max)
+        max = count(i);
+    }
+    return max;
+  }
+
+  /**
+   * @param target
+   *          a document id
+   * @effects returns the document id of the last posting of the block that
+   *          holds the first posting whose document id is at least
+   *          <code>target</code>, or <code>Integer.MAX_VALUE</code> if there
+   *          is no such posting
+   */
+  public int blockLastDoc(int target) {
+    return (size() > 0 && target <= lastDoc()) ? lastDoc() : Integer.MAX_VALUE;
+  }
+
+  /**
+   * @param target
+   *          a document id
+   * @effects returns an upper bound of the counts of the postings of the
+   *          block that holds the first posting whose document id is at
+   *          least <code>target</code>, or <code>0</code> if there is no
+   *          such posting
+   */
+  public int blockMaxCount(int target) {
+    return (size() > 0 && target <= lastDoc()) ? maxCount() : 0;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer("[");
+    for (int i = 0; i < size(); i++) {
+      if (i > 0)
+        sb.append(", ");
+      sb.append("<").append(doc(i)).append(",").append(count(i)).append(">");
+    }
+    return sb.append("]").toString();
+  }
+}
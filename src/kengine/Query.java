@@ -1,6 +1,6 @@
 package kengine;
 
-import java.util.Hashtable;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Vector;
 
@@ -8,18 +8,75 @@ import java.util.Vector;
 /**
  * @overview Represents a user query
  * 
+ *           A query may be given a limit <code>k</code>, in which case only
+ *           the best <code>k</code> matches are ranked (using a bounded heap
+ *           rather than sorting all the matches). The ranking is extended on
+ *           demand when a caller reads a match past the ones ranked so far.
+ * 
+ *           While all the keywords of a query have <code>BitmapPostings</code>,
+ *           its matches are kept as the intersection of their bitmaps and are
+ *           not ranked: the counts are read, by rank, only for the documents
+ *           that are left when the matches are first read.
+ * 
+ *           A keyword may be a prefix followed by <code>'*'</code> (e.g.
+ *           <code>"ngu*"</code>), which matches the documents that contain any
+ *           of the keywords of the index with that prefix (up to
+ *           <code>Index.maxExpansions()</code> of them), with the sum of their
+ *           counts. Likewise a fuzzy keyword (e.g. <code>"nguyen~1"</code>,
+ *           see <code>Index.expand</code>) matches the documents that contain
+ *           any of the similar keywords of the index. The keyword is expanded
+ *           when it is added to the query, so documents added later match it
+ *           only through the keywords that it expanded to.
+ * 
+ *           A query may instead be made from a boolean expression of keywords
+ *           with <code>OR</code> and <code>NOT</code> (see
+ *           <code>QueryExpr</code>). Its matches are found one document at a
+ *           time by a tree of <code>DocCursor</code>s, so only the matches of
+ *           the whole expression are kept, and they are ranked by the same
+ *           sums of counts. A query may also hold only the best matches of
+ *           an expression (see <code>best</code>), which are found without
+ *           reading all the postings of a disjunction.
+ * 
  * @see "Program development in Java", pgs 314,322,326-332,365
  * 
  * @version 4.0 implements full code
+ * @version 5.0 keep matches as arrays of document ids and sums of counts
+ * @version 5.1 evaluate keywords by intersecting lists sorted by document id
+ * @version 5.2 top-k ranking
+ * @version 5.4 read the postings and documents from the index of the engine
+ * @version 5.5 intersect bitmap postings a word at a time
+ * @version 5.6 prefix keywords
+ * @version 5.7 fuzzy keywords
+ * @version 5.8 boolean expressions
+ * @version 5.9 top-k queries of disjunctions with Block-Max WAND
+ * @version 6.0 bring a query up to date with a later snapshot of the index
  * @author dmle
  * 
  */
 public class Query {
-  private WordTable wt; // reference to the engine's word table
-  private Vector matches; // document matches
+  private Index index; // reference to the engine's index
+  // document matches, in ascending order of document ids
+  private int[] ids; // the document ids of the matches
+  private int[] sums; // sums of counts, parallel to ids
+  // the best matches, in descending order of the sums of counts
+  private int[] matches; // the document ids of the matches
+  private int[] counts; // sums of counts, parallel to matches
+  private int ranked; // the number of matches in matches
+  private int size; // the number of matches
+  private int limit; // the number of matches to rank first, 0 means all
+  // the matches while all the keywords have bitmap postings, else null;
+  // ids and sums are filled in from it when the matches are first read
+  private DocBitmap bits;
   // dmle: use Vector instead of array
   // private String[] keys; // the keywords of this query
   private Vector keys;
+  private Vector terms; // the expansions (String[]) of keys, parallel to keys
+  // the boolean expression of this query, or null if it is a conjunction of
+  // keys; if not null, it holds the expansions of the keys, and terms is not
+  // used
+  private QueryExpr expr;
+  // true if this holds only the best limit matches of expr (see best)
+  private boolean top;
 
   /**
    * Constructor method to create an empty <code>Query</code>
@@ -28,8 +85,15 @@ public class Query {
    */
   public Query() {
     //
-    matches = new Vector();
+    ids = new int[0];
+    sums = new int[0];
+    matches = new int[0];
+    counts = new int[0];
+    ranked = 0;
+    size = 0;
+    limit = 0;
     keys = new Vector();
+    terms = new Vector();
   }
 
   /**
@@ -46,28 +110,239 @@ public class Query {
    * @see "Program development in Java", pg 329
    */
   public Query(WordTable wt, String w) {
+    this(wt, w, 0);
+  }
+
+  /**
+   * Constructor method to create a new <code>Query</code> from a single keyword
+   * that ranks only the best <code>k</code> matches.
+   * 
+   * @param w
+   *          a keyword to create the query with
+   * @param wt
+   *          the <code>WordTable</code> object of the engine
+   * @param k
+   *          the number of matches to rank, or <code>0</code> to rank all
+   *          the matches
+   * @requires <code>w</code> and <code>wt</code> are not <code>null</code> and
+   *           <code>k >= 0</code>
+   * @effects make a <code>Query</code> for the single keyword <code>w</code>
+   *          whose first <code>k</code> matches are ranked.
+   * 
+   * @version 5.2
+   */
+  public Query(WordTable wt, String w, int k) {
+    this(new Index(wt), w, k);
+  }
+
+  /**
+   * Constructor method to create a new <code>Query</code> from a single keyword
+   * that ranks only the best <code>k</code> matches.
+   * 
+   * @param w
+   *          a keyword to create the query with
+   * @param index
+   *          the <code>Index</code> object of the engine
+   * @param k
+   *          the number of matches to rank, or <code>0</code> to rank all
+   *          the matches
+   * @requires <code>w</code> and <code>index</code> are not <code>null</code>
+   *           and <code>k >= 0</code>
+   * @effects make a <code>Query</code> for the single keyword <code>w</code>
+   *          whose first <code>k</code> matches are ranked.
+   * 
+   * @version 5.4
+   */
+  public Query(Index index, String w, int k) {
     // call this to initialise rep
     this();
     
-    this.wt = wt;
+    this.index = index;
+    this.limit = k;
 
-    // look up the key in the word table
-    // sort the matches using quick sort
-    Vector newDocs = wt.lookup(w);
+    // look up the key in the index
+    // sort the matches
+    String[] ts = index.expand(w);
+    Postings newDocs = index.lookup(ts);
 
-    if (newDocs != null) {
-      // must clone newDocs so that changes to the doc counts of its objects
-      // do not affect the word table
-      Vector docClones = new Vector();
-      for (Iterator it = newDocs.iterator(); it.hasNext();) {
-        DocCnt dc = (DocCnt) ((DocCnt) it.next()).clone();
-        docClones.add(dc);
+    if (newDocs instanceof BitmapPostings) {
+      // copy the bitmap, which grows as documents are added to the index
+      bits = ((BitmapPostings) newDocs).bitmap().copy();
+      size = bits.size();
+      keys.add(w);
+      terms.add(ts);
+    } else if (newDocs != null) {
+      // copy the postings so that changes to the counts of the matches
+      // do not affect the index
+      size = newDocs.size();
+      ids = new int[size];
+      sums = new int[size];
+      for (int i = 0; i < size; i++) {
+        ids[i] = newDocs.doc(i);
+        sums[i] = newDocs.count(i);
       }
-      matches.addAll(docClones);
       keys.add(w);
+      terms.add(ts);
       
-      Sorting.quickSort(matches);
+      rank();
+    }
+  }
+
+  /**
+   * Constructor method to create a new <code>Query</code> from a boolean
+   * expression that ranks only the best <code>k</code> matches.
+   * 
+   * @param index
+   *          the <code>Index</code> object of the engine
+   * @param e
+   *          a boolean expression of keywords
+   * @param k
+   *          the number of matches to rank, or <code>0</code> to rank all
+   *          the matches
+   * @requires <code>index</code> and <code>e</code> are not
+   *           <code>null</code> and <code>k >= 0</code>
+   * @modifies <code>e</code>
+   * @effects expands the keywords of <code>e</code> (see
+   *          <code>QueryExpr.expand</code>) and makes a <code>Query</code>
+   *          for <code>e</code> whose first <code>k</code> matches are
+   *          ranked. The query may be empty.
+   * 
+   * @version 5.8
+   */
+  public Query(Index index, QueryExpr e, int k) {
+    this();
+
+    this.index = index;
+    this.limit = k;
+    this.expr = e;
+    e.expand(index);
+    String[] ks = e.keys();
+    for (int i = 0; i < ks.length; i++) {
+      keys.add(ks[i]);
+    }
+
+    DocCursor c = e.cursor(index);
+    if (c != null) {
+      for (int doc = c.doc(); doc != DocCursor.NO_MORE_DOCS; doc = c.doc()) {
+        appendMatch(doc, c.count());
+        c.next();
+      }
+    }
+    rank();
+  }
+
+  /**
+   * A method to create a new <code>Query</code> that holds only the best
+   * <code>k</code> matches of a boolean expression.
+   * 
+   * @param index
+   *          the <code>Index</code> object of the engine
+   * @param e
+   *          a boolean expression of keywords
+   * @param k
+   *          the number of matches to keep
+   * @requires <code>index</code> and <code>e</code> are not
+   *           <code>null</code> and <code>k > 0</code>
+   * @modifies <code>e</code>
+   * @effects expands the keywords of <code>e</code> and returns a
+   *          <code>Query</code> for <code>e</code> whose matches are its best
+   *          <code>k</code> matches (or all of them, if there are fewer),
+   *          ranked. The documents added to the index later are matched and
+   *          ranked as for any query. A keyword added to the query (see
+   *          <code>addKey</code>) may match documents that were not kept, so
+   *          the refined expression is evaluated again over the whole index.
+   * 
+   *          If <code>e</code> is a disjunction of keywords its best matches
+   *          are found with <code>BlockMaxWand</code>, which skips the
+   *          documents that cannot be among them; else the matches of
+   *          <code>e</code> are offered to a heap of the best <code>k</code>
+   *          one at a time, without keeping the others.
+   * 
+   * @version 5.9
+   */
+  public static Query best(Index index, QueryExpr e, int k) {
+    Query q = new Query();
+    q.index = index;
+    q.limit = k;
+    e.expand(index);
+    q.collect(e);
+    return q;
+  }
+
+  /**
+   * @requires <code>e</code> is expanded over <code>index</code> and
+   *           <code>limit > 0</code>
+   * @modifies <code>this</code>
+   * @effects makes <code>this</code> a query for <code>e</code> that holds
+   *          only its best <code>limit</code> matches in <code>index</code>
+   *          (see <code>best</code>)
+   */
+  private void collect(QueryExpr e) {
+    expr = e;
+    top = true;
+    keys = new Vector();
+    String[] ks = e.keys();
+    for (int i = 0; i < ks.length; i++) {
+      keys.add(ks[i]);
+    }
+
+    DocHeap heap = new DocHeap(limit);
+    Postings[] lists = e.disjunction(index);
+    if (lists != null) {
+      new BlockMaxWand(lists).collect(heap);
+    } else {
+      DocCursor c = e.cursor(index);
+      if (c != null) {
+        for (int doc = c.doc(); doc != DocCursor.NO_MORE_DOCS; doc = c.doc()) {
+          heap.offer(doc, c.count());
+          c.next();
+        }
+      }
     }
+
+    keep(heap);
+  }
+
+  /**
+   * @requires <code>top</code>
+   * @effects returns a heap of the best <code>limit</code> matches that
+   *          holds the matches of <code>this</code>
+   */
+  private DocHeap heap() {
+    DocHeap heap = new DocHeap(limit);
+    for (int i = 0; i < size; i++) {
+      heap.offer(ids[i], sums[i]);
+    }
+    return heap;
+  }
+
+  /**
+   * @modifies <code>this</code>, <code>heap</code>
+   * @effects makes the matches of <code>heap</code> the matches of
+   *          <code>this</code>, all of them ranked, and empties
+   *          <code>heap</code>
+   */
+  private void keep(DocHeap heap) {
+    int n = heap.size();
+    matches = new int[n];
+    counts = new int[n];
+    heap.drain(matches, counts);
+
+    // the matches in order of their ids: pack each into a long, the id in
+    // the high half, and sort the longs
+    long[] byId = new long[n];
+    for (int i = 0; i < n; i++) {
+      byId[i] = ((long) matches[i] << 32) | counts[i];
+    }
+    Arrays.sort(byId);
+    ids = new int[n];
+    sums = new int[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = (int) (byId[i] >>> 32);
+      sums[i] = (int) byId[i];
+    }
+    size = n;
+    ranked = n;
   }
 
   /**
@@ -80,105 +355,402 @@ public class Query {
    *          keyword in <code>this</code> throws
    *          <code>NotPossibleException</code>, else modifies <code>this</code>
    *          to be a query for <code>w</code> and all the keywords already in
-   *          <code>this</code>.
+   *          <code>this</code>. If <code>this</code> holds only the best
+   *          matches of an expression (see <code>best</code>), it is made to
+   *          hold the best matches of the conjunction of the expression and
+   *          <code>w</code>, found over the whole index.
    * @version 4.0
    * @see "Program development in Java", pg 329
    * 
    */
   public void addKey(String w) throws NotPossibleException {
-    if (matches.isEmpty() || keys.contains(w))
+    if (size == 0 || keys.contains(w))
       throw new NotPossibleException(
           "Query.addKey: query is empty OR keyword already exists in query: "
               + w);
 
+    // look up the new query in the index
+    String[] ts = index.expand(w);
+    if (top) {
+      // the matches that were not kept may match the refined expression
+      collect(expr.and(w, ts));
+      return;
+    }
+    Postings newDocs = index.lookup(ts);
+
+    if (bits != null && newDocs instanceof BitmapPostings) {
+      // word-level AND of the bitmaps
+      bits = DocBitmap.and(bits, ((BitmapPostings) newDocs).bitmap());
+      size = bits.size();
+      keys.add(w);
+      terms.add(ts);
+      return;
+    }
+    evaluate();
     keys.add(w);
+    terms.add(ts);
+    if (expr != null)
+      expr = expr.and(w, ts);
 
-    // look up the new query in word table
-    // store the information about matches in a hash table
-    Vector newDocs = wt.lookup(w);
-
-    // for each current match, look up the document in the hash table and if it
-    // is there, add it to the matches vector
-    DocCnt currentMatch, newDoc;
-    boolean foundNewMatch = false;
-
-    for (int i = 0; i < matches.size(); i++) {
-      currentMatch = (DocCnt) matches.get(i);
-      boolean containsKeyword = false;  // whether or not the current match contains the new keyword
-      INNER: for (Iterator dit = newDocs.iterator(); dit.hasNext();) {
-        newDoc = (DocCnt) dit.next();
-        if (currentMatch.getDoc().equals(newDoc.getDoc())) {
-          // found a new match, update the sum of count in the vector
-          currentMatch.addCount(newDoc.getCount());
-          containsKeyword = true;
-          if (!foundNewMatch)
-            foundNewMatch = true;
-          break INNER;
+    // intersect the current matches with the postings of w: both are sorted
+    // by document id, so each side gallops forward to the next document of
+    // the other side. The matches that are kept overwrite the removed ones.
+    int kept = 0;
+    if (newDocs != null) {
+      int n = newDocs.size();
+      int i = 0, j = 0;
+      int id;
+      while (i < size && j < n) {
+        id = newDocs.doc(j);
+        if (ids[i] < id) {
+          i = PostingList.gallop(ids, i, size, id);
+        } else if (ids[i] > id) {
+          j = newDocs.seek(ids[i], j);
+        } else {
+          // found a new match, update the sum of count
+          ids[kept] = id;
+          sums[kept] = sums[i] + newDocs.count(j);
+          kept++;
+          i++;
+          j++;
         }
       }
-      
-      if (!containsKeyword) {
-        // remove current match
-        matches.removeElementAt(i);
-        i--;
+    }
+    size = kept;
+
+    // sort the matches
+    rank();
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects if the matches of <code>this</code> are kept in
+   *          <code>bits</code>, moves them to <code>ids, sums</code>, with
+   *          the sums of the counts of the keywords in them, and ranks them;
+   *          else does nothing
+   */
+  private void evaluate() {
+    if (bits == null)
+      return;
+
+    ids = new int[size];
+    sums = new int[size];
+    bits.toArray(ids);
+    bits = null;
+
+    Postings pl;
+    int pos;
+    for (int k = 0; k < keys.size(); k++) {
+      pl = postings(k);
+      pos = 0;
+      for (int i = 0; i < size; i++) {
+        pos = pl.seek(ids[i], pos);
+        sums[i] += pl.count(pos);
+      }
+    }
+
+    rank();
+  }
+
+  /**
+   * @requires <code>0 <= k < keys.size()</code>
+   * @effects returns the postings of the <code>k</code>th keyword of
+   *          <code>this</code>, i.e. of the union of its expansion, or
+   *          <code>null</code> if it is in no document
+   */
+  private Postings postings(int k) {
+    return index.lookup((String[]) terms.get(k));
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects sets <code>matches, counts</code> to be the best matches of
+   *          <code>this</code> (up to <code>limit</code> of them if
+   *          <code>limit > 0</code>) in descending order of their counts
+   */
+  private void rank() {
+    rank((limit > 0) ? Math.min(limit, size) : size);
+  }
+
+  /**
+   * @requires <code>0 <= n <= size</code>
+   * @modifies <code>this</code>
+   * @effects sets <code>matches, counts</code> to be the best <code>n</code>
+   *          matches of <code>this</code> in descending order of their counts
+   */
+  private void rank(int n) {
+    if (matches.length < n) {
+      matches = new int[ids.length];
+      counts = new int[ids.length];
+    }
+
+    if (n == size) {
+      // rank all the matches. The sort is stable and ids are in ascending
+      // order, so equal counts are ranked by document id, as by the heap
+      System.arraycopy(ids, 0, matches, 0, size);
+      System.arraycopy(sums, 0, counts, 0, size);
+
+      Sorting.sort(counts, matches, size);
+    } else if (n > 0) {
+      // keep the best n matches in a bounded heap: O(size * log n)
+      DocHeap heap = new DocHeap(n);
+      for (int i = 0; i < size; i++) {
+        heap.offer(ids[i], sums[i]);
       }
+      heap.drain(matches, counts);
     }
+    ranked = n;
+  }
 
-    // sort the vector using quick-sort
-    if (foundNewMatch) {
-      Sorting.quickSort(matches);
+  /**
+   * @requires <code>0 <= i < size</code>
+   * @modifies <code>this</code>
+   * @effects if the <code>i</code>th match is not yet ranked, extends the
+   *          ranked matches to include it
+   */
+  private void rankTo(int i) {
+    evaluate();
+    if (i >= ranked) {
+      // at least double the ranked matches so that reading through the
+      // matches one at a time does not re-rank them each time
+      rank(Math.min(size, Math.max(2 * ranked, i + 1)));
     }
   }
 
   /**
    * A method to add a new <code>Doc</code> object to <code>this</code>.
    * 
-   * @param d
-   *          the <code>Doc</code> object to add
-   * @param h
-   *          a <code>Hashtable</code> that maps interesting words in
-   *          <code>d</code> to their frequencies in <code>d</code>.
-   * @requires <code>d</code> and <code>h</code> are not <code>null</code>
+   * @param id
+   *          the id of the <code>Doc</code> object to add
+   * @requires the document has been added to the index of
+   *           <code>this</code> and <code>id</code> is greater than the ids
+   *           of all the matches of <code>this</code>
    * @modifies <code>this</code>
-   * @effects If <code>this</code> is not empty and <code>d</code> contains all
-   *          the keywords of <code>this</code> then adds <code>d</code> and its
-   *          keyword entries in <code>h</code> to <code>matches</code> as a
-   *          query result, else does nothing
+   * @effects If <code>this</code> is not empty and the document matches
+   *          <code>this</code> (e.g. it contains all the keywords of
+   *          <code>this</code>) then adds the document and the
+   *          sum of the counts of the keywords in it to <code>matches</code>
+   *          as a query result, else does nothing. If <code>this</code> holds
+   *          only the best matches of an expression (see <code>best</code>)
+   *          the document is kept only if it is among them.
    * 
-   * @version 4.0
+   * @version 5.3 reads the counts of the keywords from the word table
    */
-  public void addDoc(Doc d, Hashtable h) {
+  public void addDoc(int id) {
+    evaluate();
     if (!keys.isEmpty()) {
-      String k;
-      Integer c;
-      int sum = 0;
-      for (Iterator kit = keys.iterator(); kit.hasNext();) {
-        k = (String) kit.next();
-        c = (Integer) h.get(k);
-        if (c == null) {
-          // d does not contain all keywords of this
-          return;
-        } else {
-          sum += c.intValue();
-        }
+      int sum = matchCount(id);
+      if (sum == 0) {
+        // d does not contain all keywords of this
+        return;
+      }
+      if (top) {
+        DocHeap heap = heap();
+        heap.offer(id, sum);
+        keep(heap);
+        return;
       }
 
-      // if we get here then d satisfies the query
-      DocCnt dc = new DocCnt(d, sum);
-      matches.add(dc);
-      DocCnt cm;
-
-      // add dc to a position in the matches vector
-      for (int i = 0; i < matches.size(); i++) {
-        cm = (DocCnt) matches.get(i);
-        if (cm.getCount() < dc.getCount()) {
-          matches.insertElementAt(dc, i);
-          break;
+      // if we get here then the document satisfies the query
+      // the document has the largest id so far
+      appendMatch(id, sum);
+      if (ranked == matches.length) {
+        matches = Arrays.copyOf(matches, ids.length);
+        counts = Arrays.copyOf(counts, ids.length);
+      }
+
+      // add the document to the ranked matches before the first match with
+      // a smaller count. If it falls after the ranked matches then it is
+      // ranked later, when a caller reads that far.
+      int pos = 0;
+      while (pos < ranked && counts[pos] >= sum)
+        pos++;
+
+      if (pos < ranked || ranked == size - 1) {
+        System.arraycopy(matches, pos, matches, pos + 1, ranked - pos);
+        System.arraycopy(counts, pos, counts, pos + 1, ranked - pos);
+        matches[pos] = id;
+        counts[pos] = sum;
+        ranked++;
+      }
+    }
+  }
+
+  /**
+   * @requires <code>id</code> is the largest document id of the index
+   * @effects if the document <code>id</code> matches <code>this</code>
+   *          returns the sum of the counts of the keywords of
+   *          <code>this</code> in it, else returns <code>0</code>
+   */
+  private int matchCount(int id) {
+    if (expr != null) {
+      DocCursor c = expr.cursor(index);
+      if (c == null)
+        return 0;
+      c.advance(id);
+      return (c.doc() == id) ? c.count() : 0;
+    }
+
+    Postings pl;
+    String[] ts;
+    int last;
+    int sum = 0, cnt;
+    for (Iterator kit = terms.iterator(); kit.hasNext();) {
+      // the document has the largest id in the index, so if it
+      // contains a keyword then it is the last posting of the keyword
+      ts = (String[]) kit.next();
+      cnt = 0;
+      for (int j = 0; j < ts.length; j++) {
+        pl = index.lookup(ts[j]);
+        last = (pl != null) ? pl.size() - 1 : -1;
+        if (last >= 0 && pl.doc(last) == id)
+          cnt += pl.count(last);
+      }
+      if (cnt == 0)
+        return 0;
+      sum += cnt;
+    }
+    return sum;
+  }
+
+  /**
+   * A method to add new <code>Doc</code> objects to <code>this</code>.
+   * 
+   * @param from
+   *          the smallest id of the new documents
+   * @requires the documents have been added to the index of
+   *           <code>this</code> and <code>from</code> is greater than the
+   *           ids of all the matches of <code>this</code>
+   * @modifies <code>this</code>
+   * @effects If <code>this</code> is not empty then adds each document whose
+   *          id is at least <code>from</code> and that matches
+   *          <code>this</code> to <code>matches</code>, with the
+   *          sum of the counts of the keywords in it, else does nothing. If
+   *          <code>this</code> holds only the best matches of an expression
+   *          (see <code>best</code>) only the best <code>limit</code> of the
+   *          old and new matches are kept.
+   * 
+   * @version 5.3
+   */
+  public void addDocs(int from) {
+    if (keys.isEmpty())
+      return;
+    evaluate();
+
+    if (expr != null) {
+      DocCursor c = expr.cursor(index);
+      // a top query offers the new matches to a heap of its best ones
+      DocHeap heap = top ? heap() : null;
+      int n = size;
+      if (c != null) {
+        c.advance(from);
+        for (int doc = c.doc(); doc != DocCursor.NO_MORE_DOCS; doc = c.doc()) {
+          if (top)
+            heap.offer(doc, c.count());
+          else
+            appendMatch(doc, c.count());
+          c.next();
         }
       }
+      if (top)
+        keep(heap);
+      else if (size > n)
+        rank((limit > 0) ? Math.min(size, Math.max(ranked, limit)) : size);
+      return;
+    }
+
+    // a cursor over the union of the postings of each keyword's expansion,
+    // each sought from the first new document, so the postings of the old
+    // documents are neither read nor merged
+    int k = keys.size();
+    DocCursor[] cs = new DocCursor[k];
+    for (int i = 0; i < k; i++) {
+      if ((cs[i] = cursor(i, from)) == null)
+        return;
+    }
+    DocCursor c = (k == 1) ? cs[0] : new DocCursor.AndCursor(cs, new DocCursor[0]);
+
+    int n = size;
+    for (int doc = c.doc(); doc != DocCursor.NO_MORE_DOCS; doc = c.doc()) {
+      appendMatch(doc, c.count());
+      c.next();
+    }
+
+    if (size > n) {
+      // rank the new matches together with the ranked ones
+      rank((limit > 0) ? Math.min(size, Math.max(ranked, limit)) : size);
     }
   }
 
+  /**
+   * @requires <code>0 <= k < keys.size()</code>
+   * @effects if no document whose id is at least <code>from</code> contains
+   *          the <code>k</code>th keyword of <code>this</code> returns
+   *          <code>null</code>, else returns a cursor, at the first of them,
+   *          over the union of the postings of the keyword's expansion
+   */
+  private DocCursor cursor(int k, int from) {
+    String[] ts = (String[]) terms.get(k);
+    Vector cs = new Vector();
+    Postings pl;
+    DocCursor c;
+    for (int i = 0; i < ts.length; i++) {
+      pl = index.lookup(ts[i]);
+      if (pl == null)
+        continue;
+      c = new DocCursor.TermCursor(pl);
+      c.advance(from);
+      if (c.doc() != DocCursor.NO_MORE_DOCS)
+        cs.add(c);
+    }
+    if (cs.isEmpty())
+      return null;
+    if (cs.size() == 1)
+      return (DocCursor) cs.get(0);
+    return new DocCursor.OrCursor((DocCursor[]) cs.toArray(new DocCursor[cs.size()]));
+  }
+
+  /**
+   * A method to bring <code>this</code> up to date with a later view of its
+   * index.
+   * 
+   * @param ix
+   *          the index of <code>this</code>, or a later snapshot of it (see
+   *          <code>Index.snapshot</code>)
+   * @param from
+   *          the number of documents of the index when the matches of
+   *          <code>this</code> were last updated
+   * @requires <code>ix</code> is not <code>null</code> and <code>from</code>
+   *           is greater than the ids of all the matches of <code>this</code>
+   * @modifies <code>this</code>
+   * @effects makes <code>this</code> read <code>ix</code> and adds the
+   *          documents of <code>ix</code> whose ids are at least
+   *          <code>from</code> and that match <code>this</code> (see
+   *          <code>addDocs</code>)
+   */
+  void refresh(Index ix, int from) {
+    index = ix;
+    addDocs(from);
+  }
+
+  /**
+   * @requires <code>id</code> is greater than the ids of all the matches
+   * @modifies <code>this</code>
+   * @effects adds <code><id,sum></code> to the end of <code>ids, sums</code>,
+   *          but not to the ranked matches
+   */
+  private void appendMatch(int id, int sum) {
+    if (size == ids.length) {
+      int capacity = size + (size >> 1) + 1;
+      ids = Arrays.copyOf(ids, capacity);
+      sums = Arrays.copyOf(sums, capacity);
+    }
+
+    ids[size] = id;
+    sums[size] = sum;
+    size++;
+  }
+
   /**
    * A method to read all the keywords of this query.
    * 
@@ -196,7 +768,7 @@ public class Query {
    * @version 4.0
    */
   public int size() {
-    return matches.size();
+    return size;
   }
 
   /**
@@ -204,14 +776,17 @@ public class Query {
    * 
    * @param i
    *          the index of the matching document to return
+   * @modifies <code>this</code>
    * @effects if <code>0 <= i < size</code> then returns the ith matching
    *          document in <code>matches</code>, else throws
-   *          <code>IndexOutOfBoundsException</code>.
-   * @version 4.0
+   *          <code>IndexOutOfBoundsException</code>. If the ith match is not
+   *          yet ranked then first extends the ranking to include it.
+   * @version 5.2
    */
   public Doc fetch(int i) throws IndexOutOfBoundsException {
     if (0 <= i && i < size()) {
-      return ((DocCnt) matches.get(i)).getDoc();
+      rankTo(i);
+      return index.doc(matches[i]);
     } else
       throw new IndexOutOfBoundsException(
           "Query.fetch: document index is invalid " + i);
@@ -229,9 +804,16 @@ public class Query {
       sb.append(keys.toString());
     }
     
-    if (matches != null && !matches.isEmpty()) {
-      sb.append("\nMatches [").append(matches.size()).append("]:\n");
-      sb.append(matches.toString());
+    if (size > 0) {
+      rankTo(size - 1);
+      sb.append("\nMatches [").append(size).append("]:\n[");
+      for (int i = 0; i < size; i++) {
+        if (i > 0)
+          sb.append(", ");
+        sb.append("<").append(index.doc(matches[i]).title()).append(",")
+            .append(counts[i]).append(">");
+      }
+      sb.append("]");
     }
     
     if (sb.length() > 0) 
@@ -248,10 +830,41 @@ public class Query {
    *   return iterator
    */
   public Iterator matchIterator(){
-    if(matches.isEmpty()){
+    if(size == 0){
       return null;
     }
-    return  matches.iterator();
+    return new MatchGenerator();
   }
 
+  /**
+   * @overview A generator implementation that is used by
+   *           <code>Query.matchIterator()</code> to return the matches of a
+   *           query as <code>DocCnt</code> objects, in descending order of
+   *           their counts.
+   * 
+   * @author dmle
+   *
+   */
+  class MatchGenerator implements Iterator {
+    int currIndex = -1;
+
+    public boolean hasNext() {
+      return currIndex < size - 1;
+    }
+
+    public Object next() {
+      currIndex++;
+      rankTo(currIndex);
+      return new DocCnt(index.doc(matches[currIndex]), counts[currIndex]);
+    }
+
+    /**
+     * @effects throws <code>NotImplementedException<code> because the matches
+     *          can only be changed by the query operations
+     */
+    public void remove() throws NotImplementedException {
+      throw new NotImplementedException(
+          "MatchGenerator.remove: matches are read-only");
+    }
+  }
 }
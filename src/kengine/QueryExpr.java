@@ -0,0 +1,376 @@
+package kengine;
+
+import java.util.Vector;
+
+
+/**
+ * @overview A boolean query over keywords, e.g.
+ *           <code>hanoi AND (nguyen OR le) NOT hue</code>. Its syntax is:
+ *           <pre>
+ *   expr    ::= and { "OR" and }
+ *   and     ::= unary { [ "AND" ] unary }
+ *   unary   ::= "NOT" unary | "(" expr ")" | keyword
+ *           </pre>
+ *           so <code>AND</code> may be left out and binds tighter than
+ *           <code>OR</code>. The operators are in upper case; anything else is
+ *           a keyword, which may be a prefix or fuzzy keyword (see
+ *           <code>Index.expand</code>). A negated part must be in a
+ *           conjunction with some part that is not negated (e.g.
+ *           <code>a NOT b</code>, but not <code>NOT b</code> or
+ *           <code>a OR NOT b</code>), so that a query matches only documents
+ *           that contain some of its keywords.
+ *
+ *           A document matches a keyword if it contains it, a conjunction if
+ *           it matches all its parts that are not negated and none of those
+ *           that are, and a disjunction if it matches any of its parts. The
+ *           count of a document is the sum of the occurrence counts of the
+ *           keywords that it matches, except those of the negated parts.
+ *
+ *           An expression is evaluated over an index with a tree of
+ *           <code>DocCursor</code>s (see <code>cursor</code>), one document at
+ *           a time. The best matches of a disjunction of keywords may
+ *           instead be found with <code>BlockMaxWand</code> (see
+ *           <code>disjunction</code>).
+ *
+ * @version 1.0
+ * @version 1.1 the postings of a disjunction
+ * @author dmle
+ *
+ */
+public class QueryExpr {
+  private static final int KEY = 0;
+  private static final int AND = 1;
+  private static final int OR = 2;
+
+  // the rep of this class
+  private int op;
+  private boolean not; // true if this is a negated part of a conjunction
+  private String key; // the keyword, if op == KEY
+  private String[] terms; // the expansion of key, once it is expanded
+  private QueryExpr[] parts; // the parts, if op != KEY
+
+  private QueryExpr(int op, String key, QueryExpr[] parts) {
+    this.op = op;
+    this.key = key;
+    this.parts = parts;
+  }
+
+  /**
+   * A method to parse a boolean query.
+   *
+   * @param s
+   *          a query in the syntax of <code>QueryExpr</code>
+   * @effects if <code>s</code> is <code>null</code> or not a valid query
+   *          throws <code>NotPossibleException</code>, else returns the
+   *          expression of <code>s</code>, with its keywords in canonical
+   *          form
+   */
+  public static QueryExpr parse(String s) throws NotPossibleException {
+    if (s == null)
+      throw new NotPossibleException("QueryExpr.parse: query is null");
+
+    Parser p = new Parser(s);
+    QueryExpr e = p.expr();
+    if (p.peek() != null)
+      throw new NotPossibleException("QueryExpr.parse: unexpected " + p.peek()
+          + " in query: " + s);
+    e.check(s);
+    return e;
+  }
+
+  /**
+   * A method to add a keyword to <code>this</code>.
+   *
+   * @param w
+   *          a keyword in canonical form
+   * @param ts
+   *          the expansion of <code>w</code>
+   * @requires the arguments are not <code>null</code>
+   * @effects returns the conjunction of <code>this</code> and <code>w</code>,
+   *          in which <code>w</code> is expanded to <code>ts</code>
+   */
+  public QueryExpr and(String w, String[] ts) {
+    QueryExpr k = new QueryExpr(KEY, w, null);
+    k.terms = ts;
+    if (op == AND)
+      return new QueryExpr(AND, null, append(parts, k));
+    return new QueryExpr(AND, null, new QueryExpr[] { this, k });
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects expands each keyword of <code>this</code> with
+   *          <code>index.expand</code>, unless it is already expanded
+   */
+  public void expand(Index index) {
+    if (op == KEY) {
+      if (terms == null)
+        terms = index.expand(key);
+    } else {
+      for (int i = 0; i < parts.length; i++) {
+        parts[i].expand(index);
+      }
+    }
+  }
+
+  /**
+   * @effects returns the keywords of <code>this</code>, in the order in which
+   *          they appear, including those of the negated parts
+   */
+  public String[] keys() {
+    Vector v = new Vector();
+    keys(v);
+    return (String[]) v.toArray(new String[v.size()]);
+  }
+
+  private void keys(Vector v) {
+    if (op == KEY) {
+      v.add(key);
+    } else {
+      for (int i = 0; i < parts.length; i++) {
+        parts[i].keys(v);
+      }
+    }
+  }
+
+  /**
+   * A method to evaluate <code>this</code> over an index.
+   *
+   * @requires <code>this</code> is expanded over <code>index</code> (see
+   *           <code>expand</code>)
+   * @effects if no document of <code>index</code> can match
+   *          <code>this</code> returns <code>null</code>, else returns a
+   *          cursor, at its first document, over the documents of
+   *          <code>index</code> that match <code>this</code>, with their
+   *          counts
+   */
+  public DocCursor cursor(Index index) {
+    Vector cs = new Vector();
+    if (op == KEY) {
+      Postings pl;
+      for (int i = 0; i < terms.length; i++) {
+        pl = index.lookup(terms[i]);
+        if (pl != null && pl.size() > 0)
+          cs.add(new DocCursor.TermCursor(pl));
+      }
+      return union(cs);
+    }
+
+    if (op == OR) {
+      DocCursor c;
+      for (int i = 0; i < parts.length; i++) {
+        c = parts[i].cursor(index);
+        if (c != null)
+          cs.add(c);
+      }
+      return union(cs);
+    }
+
+    // AND: no document matches if a part that is not negated has none
+    Vector none = new Vector();
+    DocCursor c;
+    for (int i = 0; i < parts.length; i++) {
+      c = parts[i].cursor(index);
+      if (!parts[i].not) {
+        if (c == null)
+          return null;
+        cs.add(c);
+      } else if (c != null) {
+        none.add(c);
+      }
+    }
+    if (cs.size() == 1 && none.isEmpty())
+      return (DocCursor) cs.get(0);
+    return new DocCursor.AndCursor(
+        (DocCursor[]) cs.toArray(new DocCursor[cs.size()]),
+        (DocCursor[]) none.toArray(new DocCursor[none.size()]));
+  }
+
+  /**
+   * @requires <code>this</code> is expanded over <code>index</code> (see
+   *           <code>expand</code>)
+   * @effects if <code>this</code> is a keyword or a disjunction of keywords
+   *          (of any depth) returns the postings in <code>index</code> of
+   *          all their expansions, leaving out those that are in no
+   *          document; else returns <code>null</code>
+   */
+  public Postings[] disjunction(Index index) {
+    Vector v = new Vector();
+    if (!disjunction(index, v))
+      return null;
+    return (Postings[]) v.toArray(new Postings[v.size()]);
+  }
+
+  private boolean disjunction(Index index, Vector v) {
+    if (op == KEY) {
+      Postings pl;
+      for (int i = 0; i < terms.length; i++) {
+        pl = index.lookup(terms[i]);
+        if (pl != null && pl.size() > 0)
+          v.add(pl);
+      }
+      return true;
+    }
+    if (op == AND)
+      return false;
+
+    for (int i = 0; i < parts.length; i++) {
+      if (!parts[i].disjunction(index, v))
+        return false;
+    }
+    return true;
+  }
+
+  private static DocCursor union(Vector cs) {
+    if (cs.isEmpty())
+      return null;
+    if (cs.size() == 1)
+      return (DocCursor) cs.get(0);
+    return new DocCursor.OrCursor(
+        (DocCursor[]) cs.toArray(new DocCursor[cs.size()]));
+  }
+
+  /**
+   * @effects if a negated part of <code>this</code> is not in a conjunction
+   *          with a part that is not negated throws
+   *          <code>NotPossibleException</code>, else does nothing
+   */
+  private void check(String s) throws NotPossibleException {
+    if (not)
+      throw new NotPossibleException(
+          "QueryExpr.parse: NOT must be in a conjunction with a part that is not negated: " + s);
+    if (op == KEY)
+      return;
+
+    boolean some = false;
+    for (int i = 0; i < parts.length; i++) {
+      if (op == AND && parts[i].not) {
+        parts[i].not = false;
+        parts[i].check(s);
+        parts[i].not = true;
+      } else {
+        parts[i].check(s);
+        some = true;
+      }
+    }
+    if (!some)
+      throw new NotPossibleException(
+          "QueryExpr.parse: NOT must be in a conjunction with a part that is not negated: " + s);
+  }
+
+  private static QueryExpr[] append(QueryExpr[] a, QueryExpr e) {
+    QueryExpr[] b = new QueryExpr[a.length + 1];
+    System.arraycopy(a, 0, b, 0, a.length);
+    b[a.length] = e;
+    return b;
+  }
+
+  public String toString() {
+    String s;
+    if (op == KEY) {
+      s = key;
+    } else {
+      StringBuffer sb = new StringBuffer("(");
+      for (int i = 0; i < parts.length; i++) {
+        if (i > 0)
+          sb.append((op == AND) ? " AND " : " OR ");
+        sb.append(parts[i]);
+      }
+      s = sb.append(")").toString();
+    }
+    return not ? "NOT " + s : s;
+  }
+
+  /**
+   * @overview A recursive descent parser of the syntax of
+   *           <code>QueryExpr</code>.
+   */
+  private static class Parser {
+    private String s;
+    private Vector tokens = new Vector();
+    private int next;
+
+    Parser(String s) {
+      this.s = s;
+      int i = 0, j;
+      char c;
+      while (i < s.length()) {
+        c = s.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        } else if (c == '(' || c == ')') {
+          tokens.add(String.valueOf(c));
+          i++;
+        } else {
+          j = i;
+          while (j < s.length() && !Character.isWhitespace(s.charAt(j))
+              && s.charAt(j) != '(' && s.charAt(j) != ')')
+            j++;
+          tokens.add(s.substring(i, j));
+          i = j;
+        }
+      }
+    }
+
+    String peek() {
+      return (next < tokens.size()) ? (String) tokens.get(next) : null;
+    }
+
+    QueryExpr expr() throws NotPossibleException {
+      Vector v = new Vector();
+      v.add(and());
+      while ("OR".equals(peek())) {
+        next++;
+        v.add(and());
+      }
+      return make(OR, v);
+    }
+
+    QueryExpr and() throws NotPossibleException {
+      Vector v = new Vector();
+      v.add(unary());
+      String t;
+      while ((t = peek()) != null && !t.equals(")") && !t.equals("OR")) {
+        if (t.equals("AND"))
+          next++;
+        v.add(unary());
+      }
+      return make(AND, v);
+    }
+
+    QueryExpr unary() throws NotPossibleException {
+      String t = peek();
+      if (t == null || t.equals(")") || t.equals("OR") || t.equals("AND"))
+        throw new NotPossibleException("QueryExpr.parse: expected a keyword at "
+            + ((t != null) ? t : "the end") + " of query: " + s);
+      next++;
+
+      if (t.equals("NOT")) {
+        QueryExpr e = unary();
+        if (e.not)
+          throw new NotPossibleException("QueryExpr.parse: NOT NOT in query: " + s);
+        e.not = true;
+        return e;
+      }
+      if (t.equals("(")) {
+        QueryExpr e = expr();
+        if (!")".equals(peek()))
+          throw new NotPossibleException("QueryExpr.parse: missing ) in query: " + s);
+        next++;
+        return e;
+      }
+      return new QueryExpr(KEY, Helpers.canon(t), null);
+    }
+
+    /**
+     * @effects returns the single expression of <code>v</code>, or the
+     *          expression <code>op</code> of them if there are more
+     */
+    private QueryExpr make(int op, Vector v) {
+      if (v.size() == 1)
+        return (QueryExpr) v.get(0);
+      return new QueryExpr(op, null,
+          (QueryExpr[]) v.toArray(new QueryExpr[v.size()]));
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package kengine;
+
+
+/**
+ * @overview A query session of an engine: the current query of one user,
+ *           which the user creates and refines with <code>queryFirst</code>,
+ *           <code>queryMore</code>, <code>query</code> and
+ *           <code>queryTop</code> as those of <code>Engine</code>. The
+ *           sessions of an engine have their own queries, so several users
+ *           may search the engine at the same time without changing each
+ *           other's results.
+ *
+ *           The engine does not keep its sessions, and adding documents to it
+ *           does not update their queries. Instead a session records the
+ *           number of documents of the index that its query was matched
+ *           against, and when the session is next used it matches only the
+ *           documents added since (see <code>current</code>). A session that
+ *           is not used costs nothing as documents are added, and one that is
+ *           no longer needed is simply dropped.
+ *
+ *           If the engine is concurrent (see <code>Engine.setConcurrent</code>)
+ *           the query of a session reads a snapshot of the index, and is moved
+ *           to the latest snapshot when it is brought up to date. The methods
+ *           of a session lock it, so a session that is shared by some threads
+ *           is used by one of them at a time.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class QuerySession {
+  private Engine engine;
+  private Query q; // the current query, null if none
+  // the number of documents of the index that q has been matched against
+  private int seen;
+
+  /**
+   * Constructor method
+   *
+   * @requires <code>engine</code> is not <code>null</code>
+   * @effects initialises <code>this</code> to be a session of
+   *          <code>engine</code> without a query
+   */
+  QuerySession(Engine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * A method to create the query of <code>this</code> from a keyword.
+   *
+   * @param w
+   *          a keyword to search
+   * @effects as <code>Engine.queryFirst(w)</code>, but makes the query the
+   *          current query of <code>this</code>
+   */
+  public Query queryFirst(String w) throws NotPossibleException {
+    return queryFirst(w, 0);
+  }
+
+  /**
+   * A method to create the query of <code>this</code> from a keyword, of
+   * which only the best <code>k</code> matches are ranked up front.
+   *
+   * @param w
+   *          a keyword to search
+   * @param k
+   *          the number of matches to rank, or <code>0</code> to rank all
+   *          matches
+   * @effects as <code>Engine.queryFirst(w, k)</code>, but makes the query
+   *          the current query of <code>this</code>
+   */
+  public synchronized Query queryFirst(String w, int k)
+      throws NotPossibleException {
+    Index ix = engine.reader();
+    w = Engine.checkKey(ix, w);
+
+    return start(ix, new Query(ix, w, k));
+  }
+
+  /**
+   * A method to refine the query of <code>this</code> with another keyword.
+   *
+   * @param w
+   *          a keyword to search
+   * @effects if <code>this</code> has no query throws
+   *          <code>NotPossibleException</code>, else brings its query up to
+   *          date (see <code>current</code>) and then refines it as
+   *          <code>Engine.queryMore(w)</code>
+   */
+  public synchronized Query queryMore(String w) throws NotPossibleException {
+    if (q == null)
+      throw new NotPossibleException("QuerySession.queryMore: no query in progress: " + w);
+
+    Query cq = current();
+    w = Engine.checkKey(engine.reader(), w);
+    cq.addKey(w);
+
+    return cq;
+  }
+
+  /**
+   * A method to create the query of <code>this</code> from a boolean query.
+   *
+   * @param e
+   *          a boolean query in the syntax of <code>QueryExpr</code>
+   * @effects as <code>Engine.query(e)</code>, but makes the query the current
+   *          query of <code>this</code>
+   */
+  public Query query(String e) throws NotPossibleException {
+    return query(e, 0);
+  }
+
+  /**
+   * A method to create the query of <code>this</code> from a boolean query,
+   * of which only the best <code>k</code> matches are ranked up front.
+   *
+   * @param e
+   *          a boolean query in the syntax of <code>QueryExpr</code>
+   * @param k
+   *          the number of matches to rank, or <code>0</code> to rank all
+   *          matches
+   * @effects as <code>Engine.query(e, k)</code>, but makes the query the
+   *          current query of <code>this</code>
+   */
+  public synchronized Query query(String e, int k) throws NotPossibleException {
+    QueryExpr x = QueryExpr.parse(e);
+    Index ix = engine.reader();
+
+    return start(ix, new Query(ix, x, k));
+  }
+
+  /**
+   * A method to create the query of <code>this</code> from the best
+   * <code>k</code> matches of a boolean query.
+   *
+   * @param e
+   *          a boolean query in the syntax of <code>QueryExpr</code>
+   * @param k
+   *          the number of matches to find
+   * @effects as <code>Engine.queryTop(e, k)</code>, but makes the query the
+   *          current query of <code>this</code>
+   */
+  public synchronized Query queryTop(String e, int k)
+      throws NotPossibleException {
+    if (k < 1)
+      throw new NotPossibleException("QuerySession.queryTop: invalid number of matches: " + k);
+
+    QueryExpr x = QueryExpr.parse(e);
+    Index ix = engine.reader();
+
+    return start(ix, Query.best(ix, x, k));
+  }
+
+  /**
+   * A method to read the query of <code>this</code>.
+   *
+   * @modifies <code>this</code>
+   * @effects if <code>this</code> has no query returns <code>null</code>,
+   *          else adds the documents that were added to the engine since the
+   *          query was last brought up to date, and that match it, to the
+   *          query (see <code>Query.addDocs</code>), and returns it
+   */
+  public synchronized Query current() {
+    if (q == null)
+      return null;
+
+    Index ix = engine.reader();
+    int n = ix.size();
+    if (n > seen) {
+      q.refresh(ix, seen);
+      seen = n;
+    }
+    return q;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects makes <code>x</code>, which was matched against the documents of
+   *          <code>ix</code>, the query of <code>this</code>; returns
+   *          <code>x</code>
+   */
+  private Query start(Index ix, Query x) {
+    q = x;
+    seen = ix.size();
+    return x;
+  }
+}
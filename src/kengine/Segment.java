@@ -0,0 +1,365 @@
+package kengine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * @overview An immutable part of the index of the engine, stored in a segment
+ *           file that is mapped into memory. A segment holds the documents
+ *           whose ids are <code>base(), ..., base() + size() - 1</code>: their
+ *           content, their titles and the postings of their keywords, together
+ *           with the uninteresting words of the engine when it was written.
+ *
+ *           Nothing is read into the heap when a segment is opened; each
+ *           lookup reads the mapped file directly. The terms and the titles
+ *           are kept sorted, so the titles are looked up by binary search and
+ *           the terms by a walk down the term dictionary. A
+ *           segment may also be held in a direct buffer rather than a file
+ *           (see <code>SegmentWriter.write</code>); it is then read in the
+ *           same way, from memory outside the Java heap.
+ *
+ *           The file is a sequence of big-endian sections whose offsets are
+ *           in the header (see <code>SegmentWriter</code>):
+ *           <pre>
+ *   header        MAGIC, VERSION, base, size, terms, stop words, postings,
+ *                 then the offset of each of the following sections
+ *   term offsets  int[terms + 1]   the start of each term in term chars
+ *   term chars    char[]           the terms, in the order of their ids;
+ *                                  the uninteresting words come first
+ *   term postings int[terms + 1]   the offset of the postings of each term
+ *                                  in posting data
+ *   sorted terms  int[terms]       the term ids in the order of the terms
+ *   term dict     byte[]           the terms, mapped to their index in
+ *                                  sorted terms (see
+ *                                  <code>TermDictionary</code>)
+ *   posting data  byte[]           the postings of the terms, compressed in
+ *                                  blocks (see <code>BlockPostings</code>)
+ *   title offsets int[size + 1], title chars char[], sorted titles int[size]
+ *                                  the canonical titles of the documents
+ *   doc chars     char[], doc offsets int[size + 1]
+ *                                  the content of the documents
+ *           </pre>
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class Segment {
+  static final int MAGIC = 0x4B534547; // "KSEG"
+  static final int VERSION = 1;
+
+  // the header fields, as int indexes
+  static final int H_BASE = 2;
+  static final int H_SIZE = 3;
+  static final int H_TERMS = 4;
+  static final int H_STOP = 5;
+  static final int H_POSTINGS = 6;
+  static final int H_TERM_OFFSETS = 7;
+  static final int H_TERM_CHARS = 8;
+  static final int H_TERM_POSTINGS = 9;
+  static final int H_SORTED_TERMS = 10;
+  static final int H_POSTING_DATA = 11;
+  static final int H_TITLE_OFFSETS = 12;
+  static final int H_TITLE_CHARS = 13;
+  static final int H_SORTED_TITLES = 14;
+  static final int H_DOC_CHARS = 15;
+  static final int H_DOC_OFFSETS = 16;
+  static final int H_TERM_DICT = 17;
+  static final int HEADER_SIZE = 18 * 4;
+
+  // the rep of this class
+  private File file; // null if the segment is not in a file
+  private ByteBuffer buf; // the mapped file, or a direct buffer
+  private int base; // the id of the first document
+  private int size; // the number of documents
+  private int terms; // the number of terms
+  private int stop; // the number of uninteresting words
+  private int[] sections; // the header
+  private TermDictionary dict;
+
+  /**
+   * A method to open a segment file.
+   *
+   * @param f
+   *          a segment file written by <code>SegmentWriter</code>
+   * @effects if <code>f</code> cannot be read or is not a segment file throws
+   *          <code>NotPossibleException</code>, else maps <code>f</code> into
+   *          memory and returns the segment it holds.
+   */
+  public static Segment open(File f) throws NotPossibleException {
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(f, "r");
+      FileChannel ch = raf.getChannel();
+      if (ch.size() < HEADER_SIZE || ch.size() > Integer.MAX_VALUE)
+        throw new NotPossibleException("Segment.open: not a segment file " + f);
+
+      return new Segment(f, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+    } catch (IOException e) {
+      throw new NotPossibleException("Segment.open: Failed to read file " + f
+          + " due to " + e);
+    } finally {
+      if (raf != null) {
+        try {
+          // the mapping stays valid after the file is closed
+          raf.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructor method
+   *
+   * @param file
+   *          the file that <code>buf</code> maps, or <code>null</code> if
+   *          <code>buf</code> is a direct buffer
+   * @effects if <code>buf</code> does not hold a segment throws
+   *          <code>NotPossibleException</code>, else initialises
+   *          <code>this</code> to be the segment in <code>buf</code>
+   */
+  Segment(File file, ByteBuffer buf) throws NotPossibleException {
+    this.file = file;
+    this.buf = buf;
+    if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+      throw new NotPossibleException("Segment: not a segment file " + file);
+
+    sections = new int[HEADER_SIZE / 4];
+    for (int i = 0; i < sections.length; i++) {
+      sections[i] = buf.getInt(i * 4);
+    }
+    base = sections[H_BASE];
+    size = sections[H_SIZE];
+    terms = sections[H_TERMS];
+    stop = sections[H_STOP];
+    dict = new TermDictionary(buf, sections[H_TERM_DICT]);
+  }
+
+  /**
+   * @effects returns the file of <code>this</code>, or <code>null</code> if
+   *          <code>this</code> is held in a direct buffer
+   */
+  public File file() {
+    return file;
+  }
+
+  /**
+   * @effects returns the size of <code>this</code>, in bytes
+   */
+  public long sizeInBytes() {
+    return buf.capacity();
+  }
+
+  /**
+   * @effects returns the id of the first document of <code>this</code>
+   */
+  public int base() {
+    return base;
+  }
+
+  /**
+   * @effects returns the number of documents in <code>this</code>
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @effects returns the number of terms in <code>this</code>, including the
+   *          uninteresting words
+   */
+  public int termCount() {
+    return terms;
+  }
+
+  /**
+   * @effects returns the number of uninteresting words in <code>this</code>,
+   *          which are the terms <code>0, ..., stopCount() - 1</code>
+   */
+  public int stopCount() {
+    return stop;
+  }
+
+  /**
+   * @requires <code>0 <= t < termCount()</code>
+   * @effects returns the term whose id is <code>t</code>
+   */
+  public String term(int t) {
+    return string(H_TERM_OFFSETS, H_TERM_CHARS, t);
+  }
+
+  /**
+   * A method to look up the id of a term.
+   *
+   * @param w
+   *          a word in canonical form
+   * @requires <code>w</code> is not <code>null</code>
+   * @effects if <code>w</code> is a term of <code>this</code> returns its id,
+   *          else returns <code>-1</code>
+   */
+  public int termId(String w) {
+    int r = dict.rank(w);
+    return (r >= 0) ? intAt(H_SORTED_TERMS, r) : -1;
+  }
+
+  /**
+   * @requires <code>w</code> is not <code>null</code>
+   * @effects returns the number of terms of <code>this</code> that are less
+   *          than <code>w</code>. The terms whose ranks (their indexes in
+   *          sorted order) are at least <code>lowerRank(from)</code> and less
+   *          than <code>lowerRank(to)</code> are the terms in the range
+   *          <code>[from, to)</code>.
+   */
+  public int lowerRank(String w) {
+    return dict.lowerRank(w);
+  }
+
+  /**
+   * @requires <code>0 <= r < termCount()</code>
+   * @effects returns the id of the term whose rank is <code>r</code>
+   */
+  public int sortedTerm(int r) {
+    return intAt(H_SORTED_TERMS, r);
+  }
+
+  /**
+   * @effects returns the term dictionary of <code>this</code>, whose ranks
+   *          are those of <code>sortedTerm</code>
+   */
+  TermDictionary dictionary() {
+    return dict;
+  }
+
+  /**
+   * A method to look up the postings of a term.
+   *
+   * @requires <code>0 <= t < termCount()</code>
+   * @effects if <code>t</code> is an uninteresting word returns
+   *          <code>null</code>, else returns the postings of <code>t</code>
+   */
+  public Postings postings(int t) {
+    if (t < stop)
+      return null;
+
+    return new BlockPostings(buf, sections[H_POSTING_DATA]
+        + intAt(H_TERM_POSTINGS, t), base);
+  }
+
+  /**
+   * A method to look up a document given its title.
+   *
+   * @param t
+   *          the canonical form of a title
+   * @requires <code>t</code> is not <code>null</code>
+   * @effects if <code>this</code> has a document with title <code>t</code>
+   *          returns its id, else returns <code>-1</code>
+   */
+  public int titleId(String t) {
+    int i = find(H_TITLE_OFFSETS, H_TITLE_CHARS, H_SORTED_TITLES, size, t);
+    return (i >= 0) ? base + i : -1;
+  }
+
+  /**
+   * @requires <code>base() <= id < base() + size()</code>
+   * @effects returns the canonical title of the document <code>id</code>
+   */
+  public String title(int id) {
+    return string(H_TITLE_OFFSETS, H_TITLE_CHARS, id - base);
+  }
+
+  /**
+   * A method to read a document.
+   *
+   * @requires <code>base() <= id < base() + size()</code>
+   * @effects returns a new <code>Doc</code> with the content of the document
+   *          <code>id</code>
+   */
+  public Doc doc(int id) {
+    int i = id - base;
+    int from = sections[H_DOC_CHARS] + intAt(H_DOC_OFFSETS, i) * 2;
+    int len = intAt(H_DOC_OFFSETS, i + 1) - intAt(H_DOC_OFFSETS, i);
+
+    char[] chars = new char[len];
+    ByteBuffer b = buf.duplicate();
+    b.position(from);
+    b.asCharBuffer().get(chars);
+    return new Doc(chars, 0, len);
+  }
+
+  /**
+   * @effects returns the <code>i</code>th int of the section
+   *          <code>section</code>
+   */
+  private int intAt(int section, int i) {
+    return buf.getInt(sections[section] + i * 4);
+  }
+
+  /**
+   * @effects returns the <code>i</code>th string of the strings whose
+   *          offsets and characters are in the sections <code>offsets</code>
+   *          and <code>chars</code>
+   */
+  private String string(int offsets, int chars, int i) {
+    int from = intAt(offsets, i);
+    int to = intAt(offsets, i + 1);
+    ByteBuffer b = buf.duplicate();
+    b.position(sections[chars] + from * 2);
+    CharBuffer cb = b.asCharBuffer();
+    cb.limit(to - from);
+    return cb.toString();
+  }
+
+  /**
+   * @effects returns the index of <code>w</code> among the <code>n</code>
+   *          strings of the sections <code>offsets, chars</code>, using the
+   *          section <code>sorted</code> that lists them in sorted order, or
+   *          <code>-1</code> if <code>w</code> is not one of them
+   */
+  private int find(int offsets, int chars, int sorted, int n, String w) {
+    int low = 0, high = n - 1, mid, i, c;
+    while (low <= high) {
+      mid = (low + high) >>> 1;
+      i = intAt(sorted, mid);
+      c = compare(offsets, chars, i, w);
+      if (c < 0)
+        low = mid + 1;
+      else if (c > 0)
+        high = mid - 1;
+      else
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @effects compares the <code>i</code>th string of the sections
+   *          <code>offsets, chars</code> with <code>w</code>, as
+   *          <code>String.compareTo</code> does
+   */
+  private int compare(int offsets, int chars, int i, String w) {
+    int from = intAt(offsets, i);
+    int len = intAt(offsets, i + 1) - from;
+    int p = sections[chars] + from * 2;
+    int n = Math.min(len, w.length());
+    char c1, c2;
+    for (int k = 0; k < n; k++) {
+      c1 = buf.getChar(p + k * 2);
+      c2 = w.charAt(k);
+      if (c1 != c2)
+        return c1 - c2;
+    }
+    return len - w.length();
+  }
+
+  public String toString() {
+    return "Segment(" + ((file != null) ? file.toString() : "memory") + ": "
+        + base + ".." + (base + size) + ")";
+  }
+}
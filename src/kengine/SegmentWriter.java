@@ -0,0 +1,421 @@
+package kengine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+
+/**
+ * @overview Writes segment files in the format read by <code>Segment</code>.
+ *
+ *           The sections are streamed to the file in one pass and the header,
+ *           which holds their offsets, is written last. A segment file is
+ *           complete once <code>write</code> returns; the engine only lists it
+ *           in its manifest after that, so a partly written file is never
+ *           opened.
+ *
+ *           The writing may be throttled to a maximum rate, so that a large
+ *           segment written in the background (e.g. by a merge) does not take
+ *           the disk bandwidth that queries need.
+ *
+ *           A segment may also be written to a direct buffer instead of a
+ *           file, so that an engine without a directory can keep its index
+ *           outside the Java heap.
+ *
+ * @version 1.0
+ * @version 1.1 add throttling
+ * @version 1.2 write segments to direct buffers
+ * @author dmle
+ *
+ */
+public class SegmentWriter {
+  private DataOutputStream out;
+  private long pos; // the number of bytes written
+  private int[] header;
+
+  private SegmentWriter(DataOutputStream out) {
+    this.out = out;
+    this.header = new int[Segment.HEADER_SIZE / 4];
+  }
+
+  /**
+   * A method to write a segment file.
+   *
+   * @param f
+   *          the file to write
+   * @param base
+   *          the id of the first document of the segment
+   * @param stopWords
+   *          the uninteresting words
+   * @param terms
+   *          the keywords of the documents, in the order of their term ids
+   * @param postings
+   *          the postings of <code>terms</code>, with the document ids of the
+   *          segment
+   * @param titles
+   *          the canonical titles of the documents, in order of their ids
+   * @param docs
+   *          a generator of the documents, as <code>Doc</code> objects in
+   *          order of their ids
+   * @requires the arguments are not <code>null</code>, <code>postings</code>
+   *           is parallel to <code>terms</code>, and <code>docs</code> yields
+   *           <code>titles.length</code> documents
+   * @effects if <code>f</code> cannot be written or is too large for a
+   *          segment throws <code>NotPossibleException</code>, else writes
+   *          the segment of documents
+   *          <code>base, ..., base + titles.length - 1</code> to
+   *          <code>f</code>.
+   */
+  public static void write(File f, int base, String[] stopWords,
+      String[] terms, Postings[] postings, String[] titles, Iterator docs)
+      throws NotPossibleException {
+    write(f, base, stopWords, terms, postings, titles, docs, 0);
+  }
+
+  /**
+   * A method to write a segment file at a limited rate.
+   *
+   * @param maxBytesPerSec
+   *          the maximum rate at which to write, or <code>0</code> for no
+   *          limit
+   * @effects as <code>write(f, base, stopWords, terms, postings, titles,
+   *          docs)</code>, except that the file is written at no more than
+   *          <code>maxBytesPerSec</code> bytes per second, on average.
+   */
+  public static void write(File f, int base, String[] stopWords,
+      String[] terms, Postings[] postings, String[] titles, Iterator docs,
+      double maxBytesPerSec) throws NotPossibleException {
+    DataOutputStream out = null;
+    try {
+      OutputStream fo = new FileOutputStream(f);
+      if (maxBytesPerSec > 0)
+        fo = new ThrottledOutputStream(fo, maxBytesPerSec);
+      out = new DataOutputStream(new BufferedOutputStream(fo, 1 << 16));
+      SegmentWriter w = new SegmentWriter(out);
+      w.writeSections(base, stopWords, terms, postings, titles, docs);
+      out.close();
+      out = null;
+
+      if (w.pos > Integer.MAX_VALUE)
+        throw new NotPossibleException("SegmentWriter.write: segment is too large: "
+            + f);
+
+      // write the header and make the file durable
+      RandomAccessFile raf = new RandomAccessFile(f, "rw");
+      try {
+        for (int i = 0; i < w.header.length; i++) {
+          raf.writeInt(w.header[i]);
+        }
+        raf.getFD().sync();
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      f.delete();
+      throw new NotPossibleException("SegmentWriter.write: Failed to write file "
+          + f + " due to " + e);
+    } catch (NotPossibleException e) {
+      f.delete();
+      throw e;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * A method to write a segment to memory outside the Java heap.
+   *
+   * @effects as <code>write(f, base, stopWords, terms, postings, titles,
+   *          docs)</code>, except that the segment is written to a new direct
+   *          buffer, which is returned, rather than to a file. If the segment
+   *          is too large, or there is not enough direct memory for it (see
+   *          <code>-XX:MaxDirectMemorySize</code>), throws
+   *          <code>NotPossibleException</code>.
+   */
+  public static ByteBuffer write(int base, String[] stopWords, String[] terms,
+      Postings[] postings, String[] titles, Iterator docs)
+      throws NotPossibleException {
+    DirectOutputStream bo = new DirectOutputStream();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bo,
+        1 << 16));
+    SegmentWriter w = new SegmentWriter(out);
+    try {
+      w.writeSections(base, stopWords, terms, postings, titles, docs);
+      out.flush();
+    } catch (IOException e) {
+      throw new NotPossibleException("SegmentWriter.write: Failed to write segment due to "
+          + e);
+    } catch (OutOfMemoryError e) {
+      throw new NotPossibleException("SegmentWriter.write: Failed to write segment due to "
+          + e);
+    }
+
+    ByteBuffer buf = bo.buffer();
+    for (int i = 0; i < w.header.length; i++) {
+      buf.putInt(i * 4, w.header[i]);
+    }
+    return buf;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects writes the sections of the segment and records their offsets
+   *          in <code>header</code>
+   */
+  private void writeSections(int base, String[] stopWords, String[] terms,
+      Postings[] postings, String[] titles, Iterator docs) throws IOException {
+    int nt = stopWords.length + terms.length;
+    int n = titles.length;
+    String[] all = new String[nt];
+    System.arraycopy(stopWords, 0, all, 0, stopWords.length);
+    System.arraycopy(terms, 0, all, stopWords.length, terms.length);
+
+    int np = 0;
+    for (int t = 0; t < postings.length; t++) {
+      np += postings[t].size();
+    }
+
+    header[0] = Segment.MAGIC;
+    header[1] = Segment.VERSION;
+    header[Segment.H_BASE] = base;
+    header[Segment.H_SIZE] = n;
+    header[Segment.H_TERMS] = nt;
+    header[Segment.H_STOP] = stopWords.length;
+    header[Segment.H_POSTINGS] = np;
+    writeInts(new int[header.length], header.length);
+
+    // terms
+    writeStrings(all, Segment.H_TERM_OFFSETS, Segment.H_TERM_CHARS);
+
+    header[Segment.H_SORTED_TERMS] = (int) pos;
+    int[] order = writeSorted(all);
+
+    // the term dictionary
+    String[] sorted = new String[nt];
+    for (int r = 0; r < nt; r++) {
+      sorted[r] = all[order[r]];
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    TermDictionary.encode(sorted, bytes);
+    header[Segment.H_TERM_DICT] = (int) pos;
+    bytes.writeTo(out);
+    pos += bytes.size();
+    align();
+
+    // postings, compressed one term at a time
+    int[] offsets = new int[nt + 1];
+    header[Segment.H_POSTING_DATA] = (int) pos;
+    long p = 0;
+    for (int t = 0; t < nt; t++) {
+      offsets[t] = (int) p;
+      if (t >= stopWords.length) {
+        bytes.reset();
+        BlockPostings.encode(postings[t - stopWords.length], base, bytes);
+        bytes.writeTo(out);
+        p += bytes.size();
+        if (p > Integer.MAX_VALUE)
+          throw new NotPossibleException("SegmentWriter.write: segment is too large");
+      }
+    }
+    offsets[nt] = (int) p;
+    pos += p;
+    align();
+    header[Segment.H_TERM_POSTINGS] = (int) pos;
+    writeInts(offsets, nt + 1);
+
+    // titles
+    writeStrings(titles, Segment.H_TITLE_OFFSETS, Segment.H_TITLE_CHARS);
+    header[Segment.H_SORTED_TITLES] = (int) pos;
+    writeSorted(titles);
+
+    // documents
+    header[Segment.H_DOC_CHARS] = (int) pos;
+    offsets = new int[n + 1];
+    String c;
+    for (int i = 0; i < n; i++) {
+      c = ((Doc) docs.next()).content();
+      out.writeChars(c);
+      pos += c.length() * 2L;
+      offsets[i + 1] = offsets[i] + c.length();
+    }
+    align();
+    header[Segment.H_DOC_OFFSETS] = (int) pos;
+    writeInts(offsets, n + 1);
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects writes the offsets and the characters of <code>strings</code>
+   *          and records the offsets of these sections in
+   *          <code>header[offsets], header[chars]</code>
+   */
+  private void writeStrings(String[] strings, int offsets, int chars)
+      throws IOException {
+    header[offsets] = (int) pos;
+    int p = 0;
+    writeInt(0);
+    for (int i = 0; i < strings.length; i++) {
+      p += strings[i].length();
+      writeInt(p);
+    }
+
+    header[chars] = (int) pos;
+    for (int i = 0; i < strings.length; i++) {
+      out.writeChars(strings[i]);
+      pos += strings[i].length() * 2L;
+    }
+    align();
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects writes the indexes of <code>strings</code> in the order of the
+   *          strings and returns them
+   */
+  private int[] writeSorted(final String[] strings) throws IOException {
+    Integer[] order = new Integer[strings.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return strings[((Integer) o1).intValue()]
+            .compareTo(strings[((Integer) o2).intValue()]);
+      }
+    });
+    int[] sorted = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      sorted[i] = order[i].intValue();
+      writeInt(sorted[i]);
+    }
+    return sorted;
+  }
+
+  private void writeInts(int[] a, int n) throws IOException {
+    for (int i = 0; i < n; i++) {
+      writeInt(a[i]);
+    }
+  }
+
+  private void writeInt(int v) throws IOException {
+    out.writeInt(v);
+    pos += 4;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects pads the file to a multiple of 4 bytes
+   */
+  private void align() throws IOException {
+    while ((pos & 3) != 0) {
+      out.writeByte(0);
+      pos++;
+    }
+  }
+
+  /**
+   * @overview An output stream into a direct buffer, which is replaced with
+   *           one twice as large when it is full.
+   */
+  private static class DirectOutputStream extends OutputStream {
+    private ByteBuffer buf;
+
+    DirectOutputStream() {
+      buf = ByteBuffer.allocateDirect(1 << 16);
+    }
+
+    public void write(int b) throws IOException {
+      ensureCapacity(1);
+      buf.put((byte) b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensureCapacity(len);
+      buf.put(b, off, len);
+    }
+
+    private void ensureCapacity(int n) throws IOException {
+      if (buf.remaining() < n) {
+        long capacity = Math.max((long) buf.position() + n, 2L * buf.capacity());
+        if (capacity > Integer.MAX_VALUE)
+          capacity = Integer.MAX_VALUE;
+        if (buf.position() + (long) n > capacity)
+          throw new IOException("segment is too large");
+
+        ByteBuffer b = ByteBuffer.allocateDirect((int) capacity);
+        buf.flip();
+        b.put(buf);
+        buf = b;
+      }
+    }
+
+    /**
+     * @effects returns the bytes written to <code>this</code>, from
+     *          position 0 to the capacity of the returned buffer
+     */
+    ByteBuffer buffer() {
+      buf.flip();
+      return buf.slice();
+    }
+  }
+
+  /**
+   * @overview An output stream that sleeps as needed to keep the average
+   *           rate at which it is written below a maximum.
+   */
+  private static class ThrottledOutputStream extends FilterOutputStream {
+    private double bytesPerNano;
+    private long start; // the time of the first write
+    private long written; // the number of bytes written since start
+
+    ThrottledOutputStream(OutputStream out, double maxBytesPerSec) {
+      super(out);
+      this.bytesPerNano = maxBytesPerSec / 1e9;
+      this.start = System.nanoTime();
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      pause(1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      pause(len);
+    }
+
+    /**
+     * @effects if writing <code>n</code> more bytes makes the rate exceed
+     *          the maximum, sleeps until it no longer does
+     */
+    private void pause(int n) throws IOException {
+      written += n;
+      long due = start + (long) (written / bytesPerNano);
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("SegmentWriter: interrupted");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package kengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+
+/**
+ * @overview Serves the engine of a shard to a <code>Coordinator</code> over
+ *           sockets, so that the shards of a corpus may run in separate
+ *           processes, on one machine or several.
+ *
+ *           A coordinator sends requests over a connection and reads a reply
+ *           to each, in order. Each connection is served by its own thread,
+ *           and the engine is concurrent (see
+ *           <code>Engine.setConcurrent</code>), so queries from several
+ *           connections are answered at the same time. A request is an
+ *           operation code followed by its arguments, and a reply is a status
+ *           followed by its results or, if the request failed, a message:
+ *           <pre>
+ *   ADD   n doc*            -> OK added | DUPLICATE added message
+ *   QUERY k n key*          -> OK found* size n (doc count)*
+ *   FIND  title             -> OK doc
+ *                           -> FAILED message, for any request
+ *           </pre>
+ *           where the numbers are <code>int</code>s, <code>found</code> is a
+ *           <code>boolean</code> and the keywords, titles, messages and
+ *           documents are strings (see <code>writeString</code>).
+ *
+ *           The lengths in a request are bounded (see <code>MAX_STRING</code>
+ *           and the others), so a corrupt request cannot make the server
+ *           allocate more than it is sent. A request that exceeds a bound is
+ *           answered <code>FAILED</code> and its connection is closed, since
+ *           the rest of the request cannot be skipped. A connection that sends
+ *           nothing for <code>IDLE_TIMEOUT</code> ms is closed, so a stalled
+ *           coordinator does not hold a thread of the server.
+ *
+ *           <code>ADD</code> adds the documents to the engine in order, up to
+ *           the first whose title is already in it, and then refreshes the
+ *           engine so that the queries that follow find them.
+ *           <code>QUERY</code> tells, for each keyword, whether it is an
+ *           interesting word of the engine and, if they all are, returns the
+ *           number of matches of their conjunction and the best
+ *           <code>k</code> of them, with their counts. A query does not
+ *           depend on the requests before it, so a coordinator may send it to
+ *           any replica of a shard, or to several.
+ *
+ * @version 1.0
+ * @version 1.1 bound the lengths of requests and time out idle connections
+ * @author dmle
+ *
+ */
+public class ShardServer {
+  static final int OP_ADD = 1;
+  static final int OP_QUERY = 2;
+  static final int OP_FIND = 3;
+
+  static final int OK = 0;
+  static final int FAILED = 1;
+  static final int DUPLICATE = 2;
+
+  /** the largest number of bytes of a string */
+  static final int MAX_STRING = 1 << 24;
+
+  /** the largest number of documents of an <code>ADD</code> request */
+  static final int MAX_DOCS = 1 << 13;
+
+  /** the largest number of keywords of a <code>QUERY</code> request */
+  static final int MAX_KEYS = 1 << 10;
+
+  /** the largest number of matches that a <code>QUERY</code> may ask for */
+  static final int MAX_MATCHES = 1 << 20;
+
+  /** the time, in ms, after which an idle connection is closed */
+  static final int IDLE_TIMEOUT = 60 * 1000;
+
+  // the rep of this class
+  private Engine engine;
+  private ServerSocket server;
+
+  /**
+   * Constructor method
+   *
+   * @param engine
+   *          the engine of a shard
+   * @param addr
+   *          the address to listen on
+   * @param port
+   *          the port to listen on, or <code>0</code> for any free port
+   * @requires <code>engine</code> and <code>addr</code> are not
+   *           <code>null</code>
+   * @effects if the port cannot be bound throws
+   *          <code>NotPossibleException</code>, else makes
+   *          <code>engine</code> concurrent and initialises <code>this</code>
+   *          to serve it on <code>addr</code> and <code>port</code>, once
+   *          <code>serve</code> is called
+   */
+  public ShardServer(Engine engine, InetAddress addr, int port)
+      throws NotPossibleException {
+    engine.setConcurrent(true);
+    this.engine = engine;
+    try {
+      server = new ServerSocket(port, 64, addr);
+    } catch (IOException e) {
+      throw new NotPossibleException("ShardServer: cannot listen on port " + port
+          + " due to " + e);
+    }
+  }
+
+  /**
+   * @effects returns the port that <code>this</code> listens on
+   */
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * A method to serve the engine of <code>this</code>.
+   *
+   * @effects accepts connections and serves each on a new daemon thread,
+   *          until <code>this</code> is closed
+   */
+  public void serve() {
+    Socket s;
+    while (true) {
+      try {
+        s = server.accept();
+      } catch (IOException e) {
+        return; // closed
+      }
+
+      final Socket conn = s;
+      Thread t = new Thread("kengine.ShardServer " + conn.getRemoteSocketAddress()) {
+        public void run() {
+          handle(conn);
+        }
+      };
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /**
+   * @effects stops accepting connections
+   */
+  public void close() {
+    try {
+      server.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * @effects reads the requests of <code>s</code> and writes their replies
+   *          until it is closed or broken, then closes it
+   */
+  private void handle(Socket s) {
+    DataOutputStream out = null;
+    try {
+      s.setTcpNoDelay(true);
+      s.setSoTimeout(IDLE_TIMEOUT);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      int op;
+      while (true) {
+        try {
+          op = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+
+        if (op == OP_ADD)
+          add(in, out);
+        else if (op == OP_QUERY)
+          query(in, out);
+        else if (op == OP_FIND)
+          find(in, out);
+        else
+          break; // not a request of this protocol
+        out.flush();
+      }
+    } catch (NotPossibleException e) {
+      // a malformed request: the rest of it cannot be skipped
+      try {
+        out.writeInt(FAILED);
+        writeString(out, e.getMessage());
+        out.flush();
+      } catch (IOException x) {
+        // the coordinator has gone
+      }
+    } catch (IOException e) {
+      // the coordinator has gone, or timed out
+    } finally {
+      try {
+        s.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private void add(DataInputStream in, DataOutputStream out) throws IOException {
+    // read the whole request first, so that the connection stays in step
+    // if a document is rejected
+    String[] docs = new String[readLength(in, MAX_DOCS)];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = readString(in);
+    }
+
+    int added = 0;
+    String dup = null, failure = null;
+    try {
+      for (; added < docs.length; added++) {
+        engine.addDoc(new Doc(docs[added]));
+      }
+    } catch (DuplicateException e) {
+      dup = e.getMessage();
+    } catch (NotPossibleException e) {
+      failure = e.getMessage();
+    }
+    // the documents before a rejected one are added, so refresh in any case
+    try {
+      engine.refresh();
+    } catch (NotPossibleException e) {
+      if (failure == null)
+        failure = e.getMessage();
+    }
+
+    if (failure != null) {
+      out.writeInt(FAILED);
+      writeString(out, failure);
+    } else if (dup == null) {
+      out.writeInt(OK);
+      out.writeInt(added);
+    } else {
+      out.writeInt(DUPLICATE);
+      out.writeInt(added);
+      writeString(out, dup);
+    }
+  }
+
+  private void query(DataInputStream in, DataOutputStream out) throws IOException {
+    int k = in.readInt();
+    String[] keys = new String[readLength(in, MAX_KEYS)];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = readString(in);
+    }
+    if (k < 1 || k > MAX_MATCHES || keys.length == 0) {
+      out.writeInt(FAILED);
+      writeString(out, "ShardServer.query: invalid query: " + k + ", " + keys.length);
+      return;
+    }
+
+    boolean[] found = new boolean[keys.length];
+    boolean all = true;
+    for (int i = 0; i < keys.length; i++) {
+      try {
+        Engine.checkKey(engine.reader(), keys[i]);
+        found[i] = true;
+      } catch (NotPossibleException e) {
+        all = false;
+      }
+    }
+
+    int size = 0;
+    DocCnt[] best = new DocCnt[0];
+    if (all) {
+      try {
+        QuerySession session = engine.openSession();
+        Query q = session.queryFirst(keys[0], k);
+        for (int i = 1; i < keys.length && q.size() > 0; i++) {
+          q = session.queryMore(keys[i]);
+        }
+        size = q.size();
+        best = ShardedEngine.top(q, k);
+      } catch (NotPossibleException e) {
+        // a keyword is repeated: the query has no matches
+      }
+    }
+
+    out.writeInt(OK);
+    for (int i = 0; i < found.length; i++) {
+      out.writeBoolean(found[i]);
+    }
+    out.writeInt(size);
+    out.writeInt(best.length);
+    for (int i = 0; i < best.length; i++) {
+      writeString(out, best[i].getDoc().content());
+      out.writeInt(best[i].getCount());
+    }
+  }
+
+  private void find(DataInputStream in, DataOutputStream out) throws IOException {
+    String t = readString(in);
+    try {
+      Doc d = engine.findDoc(t);
+      out.writeInt(OK);
+      writeString(out, d.content());
+    } catch (NotPossibleException e) {
+      out.writeInt(FAILED);
+      writeString(out, e.getMessage());
+    }
+  }
+
+  /**
+   * @effects writes <code>s</code> to <code>out</code> as the number of its
+   *          UTF-8 bytes followed by the bytes, so that strings of any length
+   *          (unlike those of <code>writeUTF</code>) may be written
+   */
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  /**
+   * @effects reads a string written by <code>writeString</code> from
+   *          <code>in</code>; if its length is more than
+   *          <code>MAX_STRING</code> throws <code>NotPossibleException</code>
+   */
+  static String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[readLength(in, MAX_STRING)];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  /**
+   * @effects reads a length from <code>in</code> and returns it; if it is
+   *          negative or more than <code>max</code> throws
+   *          <code>NotPossibleException</code>
+   */
+  static int readLength(DataInputStream in, int max) throws IOException {
+    int n = in.readInt();
+    if (n < 0 || n > max)
+      throw new NotPossibleException("ShardServer: invalid length: " + n
+          + " (at most " + max + ")");
+    return n;
+  }
+
+  /**
+   * A method to run a shard server process.
+   *
+   * @param args
+   *          <code>port [dir]</code>: the port to listen on, or
+   *          <code>0</code> for any free port, and the directory of the index
+   *          of the shard, if it is kept in one (see
+   *          <code>Engine(String)</code>)
+   * @effects serves an engine on the loopback address, after printing the
+   *          port that it listens on, until the process is killed
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("usage: java kengine.ShardServer <port> [<dir>]");
+      System.exit(2);
+    }
+
+    Engine engine = (args.length > 1) ? new Engine(args[1]) : new Engine();
+    ShardServer s = new ShardServer(engine, InetAddress.getLoopbackAddress(),
+        Integer.parseInt(args[0]));
+    System.out.println("ShardServer listening on port " + s.port());
+    System.out.flush();
+    s.serve();
+  }
+}
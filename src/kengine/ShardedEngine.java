@@ -0,0 +1,521 @@
+package kengine;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * @overview An engine whose documents are partitioned across some independent
+ *           <code>Engine</code>s, its shards, so that the documents are
+ *           indexed and searched by several threads, each with its own word
+ *           and title tables.
+ *
+ *           A document is added to the shard of its title (see
+ *           <code>shardOf</code>), so two documents with the same title are
+ *           always in the same shard, whose <code>TitleTable</code> thus
+ *           rejects the duplicate as that of a single engine does. The
+ *           documents of a URL are added a batch at a time, each shard adding
+ *           its part of the batch in parallel.
+ *
+ *           A query is sent to all the shards in parallel. Each shard finds
+ *           the best <code>k</code> matches of its documents, and these are
+ *           merged with a heap of the shards (see <code>merge</code>) into the
+ *           best <code>k</code> matches of the query. Each shard keeps its part
+ *           of the current query in a <code>QuerySession</code>, so the query
+ *           is refined by <code>queryMore</code> and brought up to date with
+ *           new documents as that of an engine is.
+ *
+ *           A prefix or fuzzy keyword is expanded by each shard over its own
+ *           keywords, so it may match different words in different shards.
+ *           The methods of a sharded engine lock it, so they are done one at a
+ *           time. The threads of a sharded engine are stopped by
+ *           <code>close</code>, after which it must not be used.
+ *
+ * @version 1.0
+ * @version 1.1 close
+ * @author dmle
+ *
+ */
+public class ShardedEngine {
+  /** the number of documents that <code>addDocs</code> adds at a time */
+  private static final int BATCH_SIZE = 4096;
+
+  /** the number of documents read in advance while others are added */
+  private static final int READ_AHEAD = 256;
+
+  // the rep of this class
+  private Engine[] shards;
+  private ForkJoinPool pool; // the threads that the shards use
+  private Vector urls;
+  // the current query of each shard, null if the shard has no part of it
+  private QuerySession[] sessions;
+  private Vector keys; // the keywords of the current query, null if none
+  private int k; // the number of matches of the current query to return
+
+  /**
+   * Constructor method
+   *
+   * @param n
+   *          the number of shards
+   * @effects if <code>n < 1</code> or the uninteresting words cannot be read
+   *          throws <code>NotPossibleException</code>, else initialises
+   *          <code>this</code> to be an empty engine of <code>n</code> shards
+   */
+  public ShardedEngine(int n) throws NotPossibleException {
+    if (n < 1)
+      throw new NotPossibleException("ShardedEngine: invalid number of shards: " + n);
+
+    shards = new Engine[n];
+    for (int i = 0; i < n; i++) {
+      shards[i] = new Engine();
+    }
+    pool = new ForkJoinPool(n);
+    urls = new Vector();
+  }
+
+  /**
+   * @effects returns the number of shards of <code>this</code>
+   */
+  public int shards() {
+    return shards.length;
+  }
+
+  /**
+   * A method to find the shard of a document.
+   *
+   * @param t
+   *          the title of a document, in canonical form
+   * @param n
+   *          the number of shards
+   * @requires <code>t</code> is not <code>null</code> and <code>n > 0</code>
+   * @effects returns the shard, in <code>[0, n)</code>, of the documents whose
+   *          title is <code>t</code>: the hash code of <code>t</code>, whose
+   *          high bits are mixed into the low ones, modulo <code>n</code>.
+   *          <code>String.hashCode</code> is defined by the language, so the
+   *          shard of a title is the same in any process.
+   */
+  public static int shardOf(String t, int n) {
+    int h = t.hashCode();
+    h ^= h >>> 16;
+    return (h & 0x7FFFFFFF) % n;
+  }
+
+  /**
+   * A method to retrieve documents from a web site and add them to
+   * <code>this</code>.
+   *
+   * @param u
+   *          the URL of a web site
+   * @effects if <code>u</code> is not a URL for a web site containing
+   *          documents or <code>u</code> is one of the existing URLs throws
+   *          <code>NotPossibleException</code>, else adds each new document to
+   *          its shard. If some document has the same title as an existing
+   *          one then the documents before it are added and
+   *          <code>DuplicateException</code> is thrown. Returns the best
+   *          matches of the current query, brought up to date (see
+   *          <code>best</code>).
+   */
+  public synchronized DocCnt[] addDocs(String u) throws NotPossibleException {
+    if (urls.contains(u))
+      throw new NotPossibleException("ShardedEngine.addDocs: URL has been used: " + u);
+
+    Iterator docs = Comm.getDocs(u, READ_AHEAD);
+    Doc[] batch = new Doc[BATCH_SIZE];
+    int n;
+    try {
+      while (docs.hasNext()) {
+        n = 0;
+        while (n < BATCH_SIZE && docs.hasNext()) {
+          batch[n++] = (Doc) docs.next();
+        }
+        addBatch(batch, n);
+      }
+    } finally {
+      Comm.close(docs);
+    }
+    urls.add(u);
+
+    return best();
+  }
+
+  /**
+   * A method to add a document to <code>this</code>.
+   *
+   * @param d
+   *          a document
+   * @effects if <code>d</code> is <code>null</code> throws
+   *          <code>NullPointerException</code>; if a document with the same
+   *          title is in <code>this</code> throws
+   *          <code>DuplicateException</code>; else adds <code>d</code> to its
+   *          shard
+   */
+  public synchronized void addDoc(Doc d) throws NullPointerException {
+    if (d == null)
+      throw new NullPointerException("document is empty");
+
+    shards[shardOf(Helpers.canon(d.title()), shards.length)].addDoc(d);
+  }
+
+  /**
+   * @requires the first <code>n</code> elements of <code>batch</code> are not
+   *           <code>null</code>
+   * @modifies <code>this</code>
+   * @effects adds the first <code>n</code> documents of <code>batch</code>
+   *          to their shards, the shards in parallel. If some document has
+   *          the same title as one of <code>this</code> or an earlier one of
+   *          the batch, adds only the documents before it and throws
+   *          <code>DuplicateException</code>.
+   */
+  private void addBatch(Doc[] batch, int n) throws DuplicateException {
+    // find the first duplicate before adding any document, so that the
+    // shards add the same documents as an engine would
+    final Vector[] parts = new Vector[shards.length];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = new Vector();
+    }
+    HashSet titles = new HashSet();
+    DuplicateException dup = null;
+    String t;
+    int s;
+    for (int i = 0; i < n; i++) {
+      t = Helpers.canon(batch[i].title());
+      s = shardOf(t, shards.length);
+      if (!titles.add(t) || shards[s].hasTitle(t)) {
+        dup = new DuplicateException("ShardedEngine.addDocs: a document with same title already exists: " + t);
+        break;
+      }
+      parts[s].add(batch[i]);
+    }
+
+    Callable[] tasks = new Callable[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      final Engine shard = shards[i];
+      final Vector part = parts[i];
+      tasks[i] = new Callable() {
+        public Object call() {
+          for (int j = 0; j < part.size(); j++) {
+            shard.addDoc((Doc) part.get(j));
+          }
+          return null;
+        }
+      };
+    }
+    fanOut(tasks);
+
+    if (dup != null)
+      throw dup;
+  }
+
+  /**
+   * A method to query the documents of <code>this</code> for a keyword.
+   *
+   * @param w
+   *          a keyword to search
+   * @param k
+   *          the number of matches to return
+   * @effects if <code>k < 1</code>, or <code>w</code> is not a word or is an
+   *          uninteresting word (or, if <code>w</code> is a prefix or fuzzy
+   *          keyword, no interesting word matches it) in every shard, throws
+   *          <code>NotPossibleException</code>; else makes <code>w</code> the
+   *          current query of <code>this</code> and returns its best
+   *          <code>k</code> matches (see <code>best</code>)
+   */
+  public synchronized DocCnt[] queryFirst(String w, final int k)
+      throws NotPossibleException {
+    if (k < 1)
+      throw new NotPossibleException("ShardedEngine.queryFirst: invalid number of matches: " + k);
+
+    final String cw = (w != null) ? Helpers.canon(w) : null;
+    Callable[] tasks = new Callable[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      final Engine shard = shards[i];
+      tasks[i] = new Callable() {
+        public Object call() {
+          QuerySession s = shard.openSession();
+          try {
+            s.queryFirst(cw, k);
+            return s;
+          } catch (NotPossibleException e) {
+            return null; // w is in no document of the shard
+          }
+        }
+      };
+    }
+    Object[] rs = fanOut(tasks);
+
+    QuerySession[] ss = new QuerySession[shards.length];
+    boolean found = false;
+    for (int i = 0; i < rs.length; i++) {
+      ss[i] = (QuerySession) rs[i];
+      found |= ss[i] != null;
+    }
+    if (!found)
+      throw new NotPossibleException("ShardedEngine.queryFirst: the specified word is either not found in any documents or uninteresting: " + cw);
+
+    sessions = ss;
+    keys = new Vector();
+    keys.add(cw);
+    this.k = k;
+    return best();
+  }
+
+  /**
+   * A method to refine the current query of <code>this</code> with another
+   * keyword.
+   *
+   * @param w
+   *          a keyword to search
+   * @effects if <code>this</code> has no query, or the query has no matches
+   *          or has the keyword <code>w</code>, or <code>w</code> is not a
+   *          word or is an uninteresting word (or, if <code>w</code> is a
+   *          prefix or fuzzy keyword, no interesting word matches it) in every
+   *          shard, throws <code>NotPossibleException</code>; else adds
+   *          <code>w</code> to the current query and returns its best matches
+   *          (see <code>best</code>). A shard whose part of the query has no
+   *          matches, or has no document with <code>w</code>, then drops out
+   *          of the query.
+   */
+  public synchronized DocCnt[] queryMore(String w) throws NotPossibleException {
+    final String cw = (w != null) ? Helpers.canon(w) : null;
+    if (keys == null || size() == 0 || keys.contains(cw))
+      throw new NotPossibleException(
+          "ShardedEngine.queryMore: query is empty OR keyword already exists in query: " + cw);
+
+    // a shard refines its part of the query only if it has w, so that no
+    // part is changed if w is in no shard
+    Callable[] tasks = new Callable[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      final Engine shard = shards[i];
+      final QuerySession s = sessions[i];
+      tasks[i] = new Callable() {
+        public Object call() {
+          try {
+            Engine.checkKey(shard.reader(), cw);
+          } catch (NotPossibleException e) {
+            return Boolean.FALSE;
+          }
+          if (s != null && s.current().size() > 0)
+            s.queryMore(cw);
+          return Boolean.TRUE;
+        }
+      };
+    }
+    Object[] rs = fanOut(tasks);
+
+    boolean found = false;
+    for (int i = 0; i < rs.length; i++) {
+      found |= rs[i] == Boolean.TRUE;
+    }
+    if (!found)
+      throw new NotPossibleException("ShardedEngine.queryMore: the specified word is either not found in any documents or uninteresting: " + cw);
+
+    for (int i = 0; i < rs.length; i++) {
+      if (rs[i] != Boolean.TRUE || (sessions[i] != null && sessions[i].current().size() == 0))
+        sessions[i] = null;
+    }
+    keys.add(cw);
+    return best();
+  }
+
+  /**
+   * A method to read the best matches of the current query of
+   * <code>this</code>.
+   *
+   * @effects if <code>this</code> has no query returns an empty array, else
+   *          brings the query of each shard up to date with the documents
+   *          added since it was last read and returns the best
+   *          <code>k</code> matches of the query, where <code>k</code> is
+   *          that of <code>queryFirst</code>, in descending order of their
+   *          counts. Matches with equal counts are in the order of their
+   *          shards and, within a shard, in the order of the shard's ranking.
+   */
+  public synchronized DocCnt[] best() {
+    if (sessions == null)
+      return new DocCnt[0];
+
+    Callable[] tasks = new Callable[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      final QuerySession s = sessions[i];
+      tasks[i] = new Callable() {
+        public Object call() {
+          return (s != null) ? top(s.current(), k) : new DocCnt[0];
+        }
+      };
+    }
+    Object[] rs = fanOut(tasks);
+
+    DocCnt[][] lists = new DocCnt[rs.length][];
+    for (int i = 0; i < rs.length; i++) {
+      lists[i] = (DocCnt[]) rs[i];
+    }
+    return merge(lists, k);
+  }
+
+  /**
+   * @effects returns the number of matches of the current query of
+   *          <code>this</code> in all the shards, or <code>0</code> if there
+   *          is no query
+   */
+  public synchronized int size() {
+    if (sessions == null)
+      return 0;
+
+    int n = 0;
+    for (int i = 0; i < sessions.length; i++) {
+      if (sessions[i] != null)
+        n += sessions[i].current().size();
+    }
+    return n;
+  }
+
+  /**
+   * A method to retrieve a <code>Doc</code> given its title.
+   *
+   * @param t
+   *          the title of the document to retrieve
+   * @effects if there is no document with title <code>t</code> in
+   *          <code>this</code> throws <code>NotPossibleException</code>, else
+   *          returns the document with title <code>t</code>
+   */
+  public synchronized Doc findDoc(String t) throws NotPossibleException {
+    if (t == null)
+      throw new NotPossibleException("ShardedEngine.findDoc: the specified title could not be found: " + t);
+
+    return shards[shardOf(Helpers.canon(t), shards.length)].findDoc(t);
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects stops the threads of <code>this</code>, once the tasks that they
+   *          are running are done
+   */
+  public synchronized void close() {
+    pool.shutdown();
+  }
+
+  /**
+   * @requires <code>k > 0</code>
+   * @effects returns the best <code>k</code> matches of <code>q</code>, or
+   *          all of them if there are fewer, in the order of its ranking
+   */
+  static DocCnt[] top(Query q, int k) {
+    DocCnt[] a = new DocCnt[Math.min(k, q.size())];
+    Iterator it = q.matchIterator();
+    for (int i = 0; i < a.length; i++) {
+      a[i] = (DocCnt) it.next();
+    }
+    return a;
+  }
+
+  /**
+   * A method to merge the best matches of some shards.
+   *
+   * @param lists
+   *          the best matches of each shard, each in descending order of
+   *          their counts
+   * @param k
+   *          the number of matches to return
+   * @requires <code>lists</code> and its elements are not <code>null</code>
+   *           and <code>k >= 0</code>
+   * @effects returns the best <code>k</code> matches of <code>lists</code>,
+   *          or all of them if there are fewer, in descending order of their
+   *          counts; matches with equal counts are in the order of their
+   *          lists and then of their positions in their lists. The lists are
+   *          merged with a heap of their next matches, so it takes
+   *          <code>O(k log(lists.length))</code> time.
+   */
+  static DocCnt[] merge(DocCnt[][] lists, int k) {
+    // the heap holds the lists that have matches left, the best next match
+    // at the root
+    int[] heap = new int[lists.length];
+    int[] pos = new int[lists.length];
+    int n = 0, total = 0;
+    for (int i = 0; i < lists.length; i++) {
+      total += lists[i].length;
+      if (lists[i].length > 0)
+        heap[n++] = i;
+    }
+    for (int i = n / 2 - 1; i >= 0; i--) {
+      siftDown(lists, pos, heap, n, i);
+    }
+
+    DocCnt[] best = new DocCnt[Math.min(k, total)];
+    int l;
+    for (int i = 0; i < best.length; i++) {
+      l = heap[0];
+      best[i] = lists[l][pos[l]++];
+      if (pos[l] == lists[l].length)
+        heap[0] = heap[--n];
+      siftDown(lists, pos, heap, n, 0);
+    }
+    return best;
+  }
+
+  /**
+   * @effects returns <code>true</code> if the next match of list
+   *          <code>a</code> comes before that of list <code>b</code>, else
+   *          returns <code>false</code>
+   */
+  private static boolean before(DocCnt[][] lists, int[] pos, int a, int b) {
+    int ca = lists[a][pos[a]].getCount(), cb = lists[b][pos[b]].getCount();
+    return ca > cb || (ca == cb && a < b);
+  }
+
+  private static void siftDown(DocCnt[][] lists, int[] pos, int[] heap, int n,
+      int i) {
+    int x = heap[i], c;
+    while ((c = 2 * i + 1) < n) {
+      if (c + 1 < n && before(lists, pos, heap[c + 1], heap[c]))
+        c++;
+      if (!before(lists, pos, heap[c], x))
+        break;
+      heap[i] = heap[c];
+      i = c;
+    }
+    heap[i] = x;
+  }
+
+  /**
+   * @requires <code>tasks</code> does not contain <code>null</code>
+   * @effects runs <code>tasks</code> in parallel on the threads of
+   *          <code>this</code> and returns their results, in order. If a
+   *          task throws an exception, throws it (or, if it is not a run-time
+   *          exception, a <code>NotPossibleException</code>) once all the
+   *          tasks are done. If <code>this</code> is closed throws
+   *          <code>NotPossibleException</code>.
+   */
+  private Object[] fanOut(Callable[] tasks) throws NotPossibleException {
+    Future[] fs = new Future[tasks.length];
+    try {
+      for (int i = 0; i < tasks.length; i++) {
+        fs[i] = pool.submit(tasks[i]);
+      }
+    } catch (RejectedExecutionException e) {
+      throw new NotPossibleException("ShardedEngine: closed");
+    }
+
+    Object[] rs = new Object[tasks.length];
+    RuntimeException failure = null;
+    for (int i = 0; i < rs.length; i++) {
+      try {
+        rs[i] = fs[i].get();
+      } catch (ExecutionException e) {
+        if (failure == null)
+          failure = (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause()
+              : new NotPossibleException("ShardedEngine: shard " + i + " failed due to " + e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new NotPossibleException("ShardedEngine: interrupted");
+      }
+    }
+    if (failure != null)
+      throw failure;
+    return rs;
+  }
+}
@@ -1,18 +1,36 @@
 package kengine;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Vector;
 
 /**
- * @overview Implements quick-sort algorithm.
- * 
+ * @overview Implements the sorting algorithms of the engine.
+ *
+ *           Matches are sorted as arrays of integral keys (their counts) with
+ *           a parallel array of values (their document ids). The keys of
+ *           matches are mostly small frequencies, often all equal, so they
+ *           are sorted by counting sort when their range is small, and by
+ *           introsort (quick-sort with a median-of-three pivot that falls
+ *           back to heap-sort when the recursion gets too deep) otherwise.
+ *           Both are stable: elements with equal keys keep their order.
+ *
+ * @version 2.0 replace the recursive quick-sort of vectors by introsort and
+ *          counting sort over arrays
  * @author dmle
- * 
+ *
  */
 public class Sorting {
 
+  /** arrays up to this length are sorted by insertion sort */
+  private static final int INSERTION_THRESHOLD = 24;
+
+  /** the extra key range that counting sort may use above the array length */
+  private static final int COUNTING_EXTRA_RANGE = 1 << 12;
+
   /**
-   * A method that implements quick-sort algorithm.
-   * 
+   * A method that sorts a vector in ascending order.
+   *
    * @param v
    *          a vector of integral values
    * @requires <code>v</code> is not <code>null</code>
@@ -21,156 +39,310 @@ public class Sorting {
    *          <code>ClassCastException</code>; if some element of <code>v</code>
    *          is <code>null</code> throws <code>NullPointerException</code>;
    *          else sort <code>v</code> such that elements having larger index
-   *          are less than those at smaller indexes. (i.e. in ascending order)
-   * 
+   *          are not less than those at smaller indexes. (i.e. in ascending
+   *          order). Equal elements keep their order.
+   *
    */
   public static void quickSortAsc(Vector v) throws ClassCastException,
       NullPointerException {
-    quickSort(v, 0, v.size() - 1);
+    sort(v, false);
   }
 
   /**
-   * A method to sort the elements of a vector that are between the low and high
-   * indexes.
-   * 
+   * A method that sorts a vector in descending order.
+   *
    * @param v
-   *          the vector to sort
-   * @param low
-   *          the left-most position
-   * @param high
-   *          the right most position
-   * @requires <code>0 <= low</code> and <code>high < v.size()</code>
+   *          a vector of integral values
+   * @requires <code>v</code> is not <code>null</code>
+   * @modifies <code>v</code>
+   * @effects If the elements of <code>v</code> are not comparable throws
+   *          <code>ClassCastException</code>; if some element of <code>v</code>
+   *          is <code>null</code> throws <code>NullPointerException</code>;
+   *          else sort <code>v</code> such that elements having larger index
+   *          are not greater than those at smaller indexes. (i.e. in
+   *          descending order). Equal elements keep their order.
+   *
+   */
+  public static void quickSort(Vector v) throws ClassCastException,
+      NullPointerException {
+    sort(v, true);
+  }
+
+  /**
    * @modifies <code>v</code>
-   * @effects sorts <code>v[low], ..., v[high]</code> into ascending order
+   * @effects sorts <code>v</code> in descending order if <code>desc</code>,
+   *          else in ascending order. A vector of <code>DocCnt</code> is
+   *          sorted by its counts using {@link #sort(int[], int[], int)};
+   *          other elements are sorted using their
+   *          <code>compareTo</code> method by a stable merge sort.
+   */
+  private static void sort(Vector v, boolean desc) {
+    int n = v.size();
+    Object[] a = v.toArray();
+
+    boolean docCnts = true;
+    for (int i = 0; i < n && docCnts; i++) {
+      if (a[i] == null)
+        throw new NullPointerException("Sorting.sort: element is null at " + i);
+      docCnts = a[i] instanceof DocCnt;
+    }
+
+    if (docCnts) {
+      int[] keys = new int[n];
+      int[] pos = new int[n];
+      for (int i = 0; i < n; i++) {
+        keys[i] = ((DocCnt) a[i]).getCount();
+        // negating the keys turns a descending sort into an ascending one
+        if (!desc)
+          keys[i] = -keys[i];
+        pos[i] = i;
+      }
+      sort(keys, pos, n);
+      for (int i = 0; i < n; i++) {
+        v.setElementAt(a[pos[i]], i);
+      }
+    } else {
+      if (desc)
+        Arrays.sort(a, Collections.reverseOrder());
+      else
+        Arrays.sort(a);
+      for (int i = 0; i < n; i++) {
+        v.setElementAt(a[i], i);
+      }
+    }
+  }
+
+  /**
+   * A method that sorts an array of integral keys in descending order, moving
+   * the elements of a parallel array of values together with their keys.
+   *
+   * @param keys
+   *          an array of keys
+   * @param vals
+   *          an array of values, parallel to <code>keys</code>
+   * @param n
+   *          the number of elements to sort
+   * @requires <code>keys</code> and <code>vals</code> are not <code>null</code>
+   *           and <code>n <= keys.length, vals.length</code>
+   * @modifies <code>keys, vals</code>
+   * @effects sort <code>keys[0], ..., keys[n-1]</code> into descending order,
+   *          such that each <code>vals[i]</code> stays with the key it was
+   *          paired with and elements with equal keys keep their order.
    */
-  private static void quickSortAsc(Vector v, int low, int high) {
-    if (low >= high)
+  public static void sort(int[] keys, int[] vals, int n) {
+    if (n <= INSERTION_THRESHOLD) {
+      insertionSort(keys, vals, n);
       return;
+    }
+
+    int min = keys[0], max = keys[0];
+    for (int i = 1; i < n; i++) {
+      if (keys[i] < min)
+        min = keys[i];
+      else if (keys[i] > max)
+        max = keys[i];
+    }
+
+    if (min == max)
+      return; // all keys are equal
 
-    int mid = partition(v, low, high);
-    quickSort(v, low, mid);
-    quickSort(v, mid + 1, high);
+    long range = (long) max - min + 1;
+    if (range <= (long) n + COUNTING_EXTRA_RANGE) {
+      countingSort(keys, vals, n, min, (int) range);
+    } else {
+      introSort(keys, vals, n);
+    }
   }
 
   /**
-   * A method that arranges elements of an array into two sub-arrays separated
-   * by a middle value that is greater than all the elements of the first (left)
-   * sub-array and is less than all the elements of the second (right)
-   * sub-array.
-   * 
-   * @param v
-   *          an array (here represented as a {@link Vector} to partition
-   * @param i
-   *          the left-most position of the array
-   * @param j
-   *          the righ-most position of the array
-   * @requires <code>v</code> is not <code>null</code> and
-   *           <code>0 <= i < j < v.size()</code>
-   * @modifies <code>v</code>
-   * @effects Reorders the elements into two contiguous groups,
-   *          <code>v[i],...,v[res]</code> and <code>v[res+1],...,v[j]</code>,
-   *          such that each element in the second group is at least as large as
-   *          each element of the first group. Returns <code>res</code>.
+   * @modifies <code>keys, vals</code>
+   * @effects sorts the first <code>n</code> elements into descending order
+   *          of keys by (stable) insertion sort
    */
-  private static int partitionAsc(Vector v, int i, int j) {
-    Comparable x = (Comparable) v.get(i);
-    while (true) {
-      while (((Comparable) v.get(j)).compareTo(x) > 0)
-        j--;
-      while (((Comparable) v.get(i)).compareTo(x) < 0)
-        i++;
-
-      if (i < j) { // need to swap
-        Object temp = v.get(i);
-        v.setElementAt(v.get(j), i);
-        v.setElementAt(temp, j);
-        j--;
-        i++;
-      } else {
-        return j;
+  private static void insertionSort(int[] keys, int[] vals, int n) {
+    int k, v, j;
+    for (int i = 1; i < n; i++) {
+      k = keys[i];
+      v = vals[i];
+      // shift only the smaller keys so that equal keys keep their order
+      for (j = i; j > 0 && keys[j - 1] < k; j--) {
+        keys[j] = keys[j - 1];
+        vals[j] = vals[j - 1];
       }
+      keys[j] = k;
+      vals[j] = v;
     }
   }
 
   /**
-   * A method that implements quick-sort algorithm (descending order).
-   * 
-   * @param v
-   *          a vector of integral values
-   * @requires <code>v</code> is not <code>null</code>
-   * @modifies <code>v</code>
-   * @effects If the elements of <code>v</code> are not comparable throws
-   *          <code>ClassCastException</code>; if some element of <code>v</code>
-   *          is <code>null</code> throws <code>NullPointerException</code>;
-   *          else sort <code>v</code> such that elements having larger index
-   *          are less than those at smaller indexes. (i.e. in descending order)
-   * 
+   * @requires all of <code>keys[0..n-1]</code> are in
+   *           <code>[min, min+range)</code>
+   * @modifies <code>keys, vals</code>
+   * @effects sorts the first <code>n</code> elements into descending order
+   *          of keys by counting sort: <code>O(n + range)</code>
    */
-  public static void quickSort(Vector v) throws ClassCastException,
-      NullPointerException {
-    quickSort(v, 0, v.size() - 1);
+  private static void countingSort(int[] keys, int[] vals, int n, int min,
+      int range) {
+    int[] start = new int[range];
+    for (int i = 0; i < n; i++) {
+      start[keys[i] - min]++;
+    }
+
+    // the largest keys come first
+    int pos = 0, c;
+    for (int r = range - 1; r >= 0; r--) {
+      c = start[r];
+      start[r] = pos;
+      pos += c;
+    }
+
+    int[] tkeys = new int[n];
+    int[] tvals = new int[n];
+    int j;
+    for (int i = 0; i < n; i++) {
+      j = start[keys[i] - min]++;
+      tkeys[j] = keys[i];
+      tvals[j] = vals[i];
+    }
+
+    System.arraycopy(tkeys, 0, keys, 0, n);
+    System.arraycopy(tvals, 0, vals, 0, n);
   }
 
   /**
-   * A method to sort the elements of a vector that are between the low and high
-   * indexes.
-   * 
-   * @param v
-   *          the vector to sort
-   * @param low
-   *          the left-most position
-   * @param high
-   *          the right most position
-   * @requires <code>0 <= low</code> and <code>high < v.size()</code>
-   * @modifies <code>v</code>
-   * @effects sorts <code>v[low], ..., v[high]</code> into descending order
+   * @modifies <code>keys, vals</code>
+   * @effects sorts the first <code>n</code> elements into descending order
+   *          of keys by introsort.
+   *
+   *          Each element is packed into a <code>long</code> whose high half
+   *          is the complement of its key (so that ascending order of the
+   *          packed values is descending order of the keys) and whose low
+   *          half is its position. The packed values are all different, so
+   *          the unstable introsort cannot reorder equal keys.
    */
-  private static void quickSort(Vector v, int low, int high) {
-    if (low >= high)
-      return;
+  private static void introSort(int[] keys, int[] vals, int n) {
+    long[] a = new long[n];
+    for (int i = 0; i < n; i++) {
+      a[i] = ((long) ~keys[i] << 32) | i;
+    }
+
+    int depth = 2 * (31 - Integer.numberOfLeadingZeros(n));
+    introSort(a, 0, n - 1, depth);
 
-    int mid = partition(v, low, high);
-    quickSort(v, low, mid);
-    quickSort(v, mid + 1, high);
+    int[] tvals = new int[n];
+    int p;
+    for (int i = 0; i < n; i++) {
+      p = (int) a[i];
+      keys[i] = ~(int) (a[i] >> 32);
+      tvals[i] = vals[p];
+    }
+    System.arraycopy(tvals, 0, vals, 0, n);
   }
 
   /**
-   * A method that arranges elements of an array into two sub-arrays separated
-   * by a middle value that is greater than all the elements of the first (left)
-   * sub-array and is greater than all the elements of the second (right)
-   * sub-array.
-   * 
-   * @param v
-   *          an array (here represented as a {@link Vector} to partition
-   * @param i
-   *          the left-most position of the array
-   * @param j
-   *          the righ-most position of the array
-   * @requires <code>v</code> is not <code>null</code> and
-   *           <code>0 <= i < j < v.size()</code>
-   * @modifies <code>v</code>
-   * @effects Reorders the elements into two contiguous groups,
-   *          <code>v[i],...,v[res]</code> and <code>v[res+1],...,v[j]</code>,
-   *          such that each element in the first group is at least as large as
-   *          each element of the second group. Returns <code>res</code>.
+   * @requires <code>0 <= low</code> and <code>high < a.length</code>
+   * @modifies <code>a</code>
+   * @effects sorts <code>a[low], ..., a[high]</code> into ascending order.
+   *          Partitions around the median of the first, middle and last
+   *          elements, recursing into the smaller part and looping on the
+   *          larger one; once <code>depth</code> partitions have been made
+   *          the rest is heap-sorted, which bounds the time to
+   *          <code>O(n log n)</code> and the stack to <code>O(log n)</code>.
    */
-  private static int partition(Vector v, int i, int j) {
-    Comparable x = (Comparable) v.get(i);
-    while (true) {
-      while (((Comparable) v.get(j)).compareTo(x) < 0)
-        j--;
-      while (((Comparable) v.get(i)).compareTo(x) > 0)
-        i++;
-
-      if (i < j) { // need to swap
-        Object temp = v.get(i);
-        v.setElementAt(v.get(j), i);
-        v.setElementAt(temp, j);
-        j--;
-        i++;
+  private static void introSort(long[] a, int low, int high, int depth) {
+    int mid, i, j;
+    long pivot;
+    while (high - low >= INSERTION_THRESHOLD) {
+      if (depth == 0) {
+        heapSort(a, low, high);
+        return;
+      }
+      depth--;
+
+      // median of three
+      mid = (low + high) >>> 1;
+      if (a[mid] < a[low])
+        swap(a, low, mid);
+      if (a[high] < a[low])
+        swap(a, low, high);
+      if (a[high] < a[mid])
+        swap(a, mid, high);
+      pivot = a[mid];
+
+      i = low;
+      j = high;
+      while (i <= j) {
+        while (a[i] < pivot)
+          i++;
+        while (a[j] > pivot)
+          j--;
+        if (i <= j) {
+          swap(a, i, j);
+          i++;
+          j--;
+        }
+      }
+
+      // a[low..j] <= pivot <= a[i..high]
+      if (j - low < high - i) {
+        introSort(a, low, j, depth);
+        low = i;
       } else {
-        return j;
+        introSort(a, i, high, depth);
+        high = j;
+      }
+    }
+
+    // insertion sort the remaining short run
+    long x;
+    int k;
+    for (i = low + 1; i <= high; i++) {
+      x = a[i];
+      for (k = i; k > low && a[k - 1] > x; k--) {
+        a[k] = a[k - 1];
       }
+      a[k] = x;
     }
   }
+
+  /**
+   * @modifies <code>a</code>
+   * @effects sorts <code>a[low], ..., a[high]</code> into ascending order by
+   *          heap-sort
+   */
+  private static void heapSort(long[] a, int low, int high) {
+    int n = high - low + 1;
+    for (int i = n / 2 - 1; i >= 0; i--) {
+      siftDown(a, low, i, n);
+    }
+    for (int end = n - 1; end > 0; end--) {
+      swap(a, low, low + end);
+      siftDown(a, low, 0, end);
+    }
+  }
+
+  /**
+   * @modifies <code>a</code>
+   * @effects restores the max-heap order of the heap
+   *          <code>a[base..base+n-1]</code> below its <code>i</code>th node
+   */
+  private static void siftDown(long[] a, int base, int i, int n) {
+    long x = a[base + i];
+    int child;
+    while ((child = 2 * i + 1) < n) {
+      if (child + 1 < n && a[base + child + 1] > a[base + child])
+        child++;
+      if (a[base + child] <= x)
+        break;
+      a[base + i] = a[base + child];
+      i = child;
+    }
+    a[base + i] = x;
+  }
+
+  private static void swap(long[] a, int i, int j) {
+    long temp = a[i];
+    a[i] = a[j];
+    a[j] = temp;
+  }
 }
@@ -0,0 +1,402 @@
+package kengine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * @overview An immutable dictionary of terms, stored as a minimal acyclic
+ *           automaton (a DAWG): the terms share the states of their common
+ *           prefixes and of their common suffixes, so the dictionary is much
+ *           smaller than the terms.
+ *
+ *           The dictionary maps each term to its rank, i.e. its index in the
+ *           sorted order of the terms (as <code>String.compareTo</code>), and
+ *           back. Each transition of a state holds the number of terms that
+ *           are accepted before it from that state, so a term is ranked, and a
+ *           rank is mapped to its term, in one walk down the automaton. A
+ *           range of terms (e.g. those with a given prefix, see
+ *           <code>prefixEnd</code>) is a range of ranks, which is enumerated
+ *           in order with <code>term</code>.
+ *
+ *           The dictionary is read from a buffer, which may be a part of a
+ *           segment file. It is encoded as follows:
+ *           <pre>
+ *   size         int              the number of terms
+ *   root         int              the offset of the initial state
+ *   states       byte[]
+ *           </pre>
+ *           where each state is:
+ *           <pre>
+ *   count        int              the number of terms accepted from the state
+ *   arcs         int              the number of transitions, times 2, plus 1
+ *                                 if the state is final
+ *   transitions  (char, int, int)[arcs / 2]
+ *                                 the label, the offset of the target state
+ *                                 and the number of terms accepted before the
+ *                                 transition, in order of the labels
+ *           </pre>
+ *           Offsets are relative to the start of the dictionary.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class TermDictionary {
+  private static final int ARC = 10; // the size of a transition
+
+  // the rep of this class
+  private ByteBuffer buf;
+  private int off; // the offset of the dictionary in buf
+  private int size;
+  private int root; // the offset of the initial state in buf
+
+  /**
+   * Constructor method
+   *
+   * @param buf
+   *          a buffer holding a dictionary encoded by <code>encode</code>
+   * @param off
+   *          the offset of the dictionary in <code>buf</code>
+   * @effects initialises <code>this</code> to be the dictionary encoded at
+   *          <code>off</code> in <code>buf</code>
+   */
+  public TermDictionary(ByteBuffer buf, int off) {
+    this.buf = buf;
+    this.off = off;
+    this.size = buf.getInt(off);
+    this.root = off + buf.getInt(off + 4);
+  }
+
+  /**
+   * @effects returns the number of terms in <code>this</code>
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * A method to look up a term.
+   *
+   * @requires <code>w</code> is not <code>null</code>
+   * @effects if <code>w</code> is in <code>this</code> returns its rank, else
+   *          returns <code>-1</code>
+   */
+  public int rank(String w) {
+    int s = root, r = 0, i;
+    for (int k = 0; k < w.length(); k++) {
+      i = find(s, w.charAt(k));
+      if (i >= arcs(s) || label(s, i) != w.charAt(k))
+        return -1;
+      r += skip(s, i);
+      s = target(s, i);
+    }
+    return isFinal(s) ? r : -1;
+  }
+
+  /**
+   * @requires <code>w</code> is not <code>null</code>
+   * @effects returns the number of terms of <code>this</code> that are less
+   *          than <code>w</code>, which is the rank of <code>w</code> if it
+   *          is in <code>this</code>
+   */
+  public int lowerRank(String w) {
+    int s = root, r = 0, i;
+    for (int k = 0; k < w.length(); k++) {
+      i = find(s, w.charAt(k));
+      r += skip(s, i);
+      if (i >= arcs(s) || label(s, i) != w.charAt(k))
+        return r;
+      s = target(s, i);
+    }
+    return r;
+  }
+
+  /**
+   * @requires <code>0 <= r < size()</code>
+   * @effects returns the term of rank <code>r</code>
+   */
+  public String term(int r) {
+    StringBuffer sb = new StringBuffer();
+    int s = root, i, n;
+    while (!isFinal(s) || r > 0) {
+      // the last transition with at most r terms before it
+      n = arcs(s);
+      i = 0;
+      while (i + 1 < n && skip(s, i + 1) <= r)
+        i++;
+      sb.append(label(s, i));
+      r -= skip(s, i);
+      s = target(s, i);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A method to find the end of the range of the terms with a prefix.
+   *
+   * @requires <code>p</code> is not <code>null</code>
+   * @effects returns the least string that is greater than all the strings
+   *          with prefix <code>p</code>, or <code>null</code> if there is none
+   *          (i.e. <code>p</code> is made of the largest characters). The
+   *          terms with prefix <code>p</code> are thus those whose ranks are
+   *          at least <code>lowerRank(p)</code> and less than
+   *          <code>lowerRank(prefixEnd(p))</code>.
+   */
+  public static String prefixEnd(String p) {
+    int k = p.length() - 1;
+    while (k >= 0 && p.charAt(k) == '\uffff')
+      k--;
+    if (k < 0)
+      return null;
+    return p.substring(0, k) + (char) (p.charAt(k) + 1);
+  }
+
+  /**
+   * @effects returns the initial state of <code>this</code>
+   */
+  int root() {
+    return root;
+  }
+
+  /**
+   * @effects returns <code>true</code> if a term ends at state
+   *          <code>s</code>, else returns <code>false</code>
+   */
+  boolean isFinal(int s) {
+    return (buf.getInt(s + 4) & 1) != 0;
+  }
+
+  /**
+   * @effects returns the number of transitions of state <code>s</code>
+   */
+  int arcs(int s) {
+    return buf.getInt(s + 4) >>> 1;
+  }
+
+  /**
+   * @requires <code>0 <= i < arcs(s)</code>
+   * @effects returns the label of the <code>i</code>th transition of
+   *          <code>s</code>
+   */
+  char label(int s, int i) {
+    return buf.getChar(s + 8 + i * ARC);
+  }
+
+  /**
+   * @requires <code>0 <= i < arcs(s)</code>
+   * @effects returns the target state of the <code>i</code>th transition of
+   *          <code>s</code>
+   */
+  int target(int s, int i) {
+    return off + buf.getInt(s + 8 + i * ARC + 2);
+  }
+
+  /**
+   * @requires <code>0 <= i <= arcs(s)</code>
+   * @effects returns the number of terms accepted from <code>s</code> before
+   *          its <code>i</code>th transition (or all of them, if
+   *          <code>i == arcs(s)</code>)
+   */
+  int skip(int s, int i) {
+    if (i == arcs(s))
+      return buf.getInt(s);
+    return buf.getInt(s + 8 + i * ARC + 6);
+  }
+
+  /**
+   * @effects returns the index of the first transition of <code>s</code>
+   *          whose label is at least <code>c</code>, or <code>arcs(s)</code>
+   *          if there is none
+   */
+  int find(int s, char c) {
+    int low = 0, high = arcs(s), mid;
+    while (low < high) {
+      mid = (low + high) >>> 1;
+      if (label(s, mid) < c)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * A method to encode a dictionary in the format read by <code>this</code>.
+   *
+   * @param terms
+   *          some different terms, in sorted order
+   * @param out
+   *          a stream to write to
+   * @requires the arguments are not <code>null</code>
+   * @modifies <code>out</code>
+   * @effects writes the dictionary of <code>terms</code> to <code>out</code>
+   */
+  public static void encode(String[] terms, ByteArrayOutputStream out) {
+    Builder b = new Builder();
+    for (int i = 0; i < terms.length; i++) {
+      b.add(terms[i]);
+    }
+    State root = b.finish();
+
+    ByteArrayOutputStream states = new ByteArrayOutputStream();
+    count(root);
+    write(root, states);
+
+    writeInt(out, terms.length);
+    writeInt(out, 8 + root.offset);
+    byte[] bytes = states.toByteArray();
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * @modifies <code>s</code> and the states reachable from it
+   * @effects sets the number of terms accepted from each of them
+   */
+  private static int count(State s) {
+    if (s.count < 0) {
+      int n = s.fin ? 1 : 0;
+      for (int i = 0; i < s.arcs; i++) {
+        n += count(s.targets[i]);
+      }
+      s.count = n;
+    }
+    return s.count;
+  }
+
+  /**
+   * @modifies <code>s</code> and the states reachable from it,
+   *           <code>out</code>
+   * @effects writes the states reachable from <code>s</code> that are not
+   *          written yet, and then <code>s</code>, to <code>out</code>
+   */
+  private static void write(State s, ByteArrayOutputStream out) {
+    if (s.offset >= 0)
+      return;
+    for (int i = 0; i < s.arcs; i++) {
+      write(s.targets[i], out);
+    }
+
+    s.offset = out.size();
+    writeInt(out, s.count);
+    writeInt(out, (s.arcs << 1) | (s.fin ? 1 : 0));
+    int skip = s.fin ? 1 : 0;
+    for (int i = 0; i < s.arcs; i++) {
+      out.write(s.labels[i] >>> 8);
+      out.write(s.labels[i]);
+      writeInt(out, 8 + s.targets[i].offset);
+      writeInt(out, skip);
+      skip += s.targets[i].count;
+    }
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int v) {
+    out.write(v >>> 24);
+    out.write(v >>> 16);
+    out.write(v >>> 8);
+    out.write(v);
+  }
+
+  /**
+   * @overview A state of an automaton being built. Once a state is in the
+   *           register of the builder it does not change, so it is equal to
+   *           another state if they have the same finality and the same
+   *           transitions.
+   */
+  private static class State {
+    boolean fin;
+    char[] labels = new char[2];
+    State[] targets = new State[2];
+    int arcs;
+    int count = -1; // the number of terms accepted, -1 if not counted
+    int offset = -1; // the offset of the encoded state, -1 if not written
+
+    void add(char c, State t) {
+      if (arcs == labels.length) {
+        labels = Arrays.copyOf(labels, arcs * 2);
+        targets = Arrays.copyOf(targets, arcs * 2);
+      }
+      labels[arcs] = c;
+      targets[arcs] = t;
+      arcs++;
+    }
+
+    public boolean equals(Object o) {
+      State s = (State) o;
+      if (fin != s.fin || arcs != s.arcs)
+        return false;
+      for (int i = 0; i < arcs; i++) {
+        if (labels[i] != s.labels[i] || targets[i] != s.targets[i])
+          return false;
+      }
+      return true;
+    }
+
+    public int hashCode() {
+      int h = fin ? 1 : 0;
+      for (int i = 0; i < arcs; i++) {
+        h = h * 31 + labels[i];
+        h = h * 31 + System.identityHashCode(targets[i]);
+      }
+      return h;
+    }
+  }
+
+  /**
+   * @overview Builds the minimal automaton of some sorted terms, one term at
+   *           a time (Daciuk et al., 2000): the states of the previous term
+   *           that are not on the path of the new term no longer change, so
+   *           they are replaced with an equal state of the register, if there
+   *           is one, or added to it.
+   */
+  private static class Builder {
+    private HashMap register = new HashMap();
+    private State[] path = new State[16]; // the states of the previous term
+    private String prev = "";
+
+    Builder() {
+      path[0] = new State();
+    }
+
+    void add(String w) {
+      int p = 0;
+      int n = Math.min(w.length(), prev.length());
+      while (p < n && w.charAt(p) == prev.charAt(p))
+        p++;
+
+      minimise(p);
+      if (w.length() + 1 > path.length)
+        path = Arrays.copyOf(path, w.length() * 2 + 1);
+      for (int k = p; k < w.length(); k++) {
+        path[k + 1] = new State();
+        path[k].add(w.charAt(k), path[k + 1]);
+      }
+      path[w.length()].fin = true;
+      prev = w;
+    }
+
+    State finish() {
+      minimise(0);
+      return path[0];
+    }
+
+    /**
+     * @effects replaces the states of the previous term after its first
+     *          <code>p</code> characters with their equals in the register
+     */
+    private void minimise(int p) {
+      State s, r;
+      for (int k = prev.length(); k > p; k--) {
+        s = path[k];
+        r = (State) register.get(s);
+        if (r != null) {
+          path[k - 1].targets[path[k - 1].arcs - 1] = r;
+        } else {
+          register.put(s, s);
+        }
+      }
+    }
+  }
+}
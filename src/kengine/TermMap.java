@@ -0,0 +1,210 @@
+package kengine;
+
+
+/**
+ * @overview A map from words to dense integer term ids <code>0, 1, 2,
+ *           ...</code>, in the order in which the words were added.
+ *
+ *           The map is an open-addressing hash table with linear probing.
+ *           Words can be looked up directly from a <code>char</code> buffer
+ *           (e.g. the buffer of a <code>Tokenizer</code>) without creating a
+ *           <code>String</code>; a <code>String</code> is only created once
+ *           for each new word that is added.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class TermMap {
+  private static final int INITIAL_CAPACITY = 64;
+
+  // the rep of this class
+  private int[] slots; // term id + 1 of each slot, 0 if the slot is empty
+  private int[] hashes; // the hash codes of the terms, indexed by term id
+  private String[] terms; // the terms, indexed by term id
+  private int size; // the number of terms
+
+  /**
+   * Constructor method
+   *
+   * @effects Initialises <code>this</code> to be an empty map.
+   */
+  public TermMap() {
+    slots = new int[INITIAL_CAPACITY];
+    hashes = new int[INITIAL_CAPACITY / 2];
+    terms = new String[INITIAL_CAPACITY / 2];
+    size = 0;
+  }
+
+  /**
+   * @effects returns the number of terms in <code>this</code>
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @requires <code>0 <= id < size()</code>
+   * @effects returns the term whose id is <code>id</code>
+   */
+  public String term(int id) {
+    return terms[id];
+  }
+
+  /**
+   * A method to look up the id of a word given as a string.
+   *
+   * @param w
+   *          a word
+   * @requires <code>w</code> is not <code>null</code>
+   * @effects if <code>w</code> is in <code>this</code> returns its id, else
+   *          returns <code>-1</code>.
+   */
+  public int get(String w) {
+    int h = w.hashCode();
+    int mask = slots.length - 1;
+    int i = mix(h) & mask;
+    int id;
+    while ((id = slots[i] - 1) >= 0) {
+      if (hashes[id] == h && terms[id].equals(w))
+        return id;
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * A method to look up the id of a word given as a character buffer.
+   *
+   * @param buf
+   *          a buffer holding a word
+   * @param len
+   *          the length of the word
+   * @requires <code>buf</code> is not <code>null</code> and
+   *           <code>len <= buf.length</code>
+   * @effects if <code>buf[0..len-1]</code> is in <code>this</code> returns
+   *          its id, else returns <code>-1</code>.
+   */
+  public int get(char[] buf, int len) {
+    int h = hash(buf, len);
+    int mask = slots.length - 1;
+    int i = mix(h) & mask;
+    int id;
+    while ((id = slots[i] - 1) >= 0) {
+      if (hashes[id] == h && equals(terms[id], buf, len))
+        return id;
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * A method to add a word given as a string.
+   *
+   * @param w
+   *          a word
+   * @requires <code>w</code> is not <code>null</code> and is not in
+   *           <code>this</code>
+   * @modifies <code>this</code>
+   * @effects adds <code>w</code> to <code>this</code> and returns its id
+   */
+  public int add(String w) {
+    return add(w, w.hashCode());
+  }
+
+  /**
+   * A method to add a word given as a character buffer.
+   *
+   * @param buf
+   *          a buffer holding a word
+   * @param len
+   *          the length of the word
+   * @requires <code>buf[0..len-1]</code> is not in <code>this</code>
+   * @modifies <code>this</code>
+   * @effects adds <code>buf[0..len-1]</code> to <code>this</code> and
+   *          returns its id
+   */
+  public int add(char[] buf, int len) {
+    return add(new String(buf, 0, len), hash(buf, len));
+  }
+
+  /**
+   * @requires <code>h</code> is the hash code of <code>w</code>
+   * @modifies <code>this</code>
+   * @effects adds <code>w</code> to <code>this</code> and returns its id
+   */
+  private int add(String w, int h) {
+    if (size == terms.length) {
+      // keep the load factor at most 1/2
+      String[] t = new String[size * 2];
+      System.arraycopy(terms, 0, t, 0, size);
+      terms = t;
+      int[] hs = new int[size * 2];
+      System.arraycopy(hashes, 0, hs, 0, size);
+      hashes = hs;
+      rehash(slots.length * 2);
+    }
+
+    int id = size++;
+    terms[id] = w;
+    hashes[id] = h;
+    insert(id);
+    return id;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects makes <code>slots</code> a table of <code>capacity</code> slots
+   *          holding all the terms of <code>this</code>
+   */
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+    for (int id = 0; id < size; id++) {
+      insert(id);
+    }
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects stores the term <code>id</code> in the first free slot of its
+   *          probe sequence
+   */
+  private void insert(int id) {
+    int mask = slots.length - 1;
+    int i = mix(hashes[id]) & mask;
+    while (slots[i] != 0)
+      i = (i + 1) & mask;
+    slots[i] = id + 1;
+  }
+
+  /**
+   * @effects returns the hash code of <code>buf[0..len-1]</code>, which is
+   *          the same as the hash code of the string of those characters
+   */
+  private static int hash(char[] buf, int len) {
+    int h = 0;
+    for (int i = 0; i < len; i++) {
+      h = 31 * h + buf[i];
+    }
+    return h;
+  }
+
+  /**
+   * @effects spreads the high bits of <code>h</code> into the low bits, which
+   *          are the ones used to choose a slot
+   */
+  private static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean equals(String s, char[] buf, int len) {
+    if (s.length() != len)
+      return false;
+    for (int i = 0; i < len; i++) {
+      if (s.charAt(i) != buf[i])
+        return false;
+    }
+    return true;
+  }
+}
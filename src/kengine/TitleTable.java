@@ -4,11 +4,13 @@ import java.util.Hashtable;
 
 
 /**
- * @overview  Keeps track of documents with their titles.
+ * @overview  Keeps track of documents with their titles. Each title is mapped 
+ *            to the id of its document in the engine's <code>DocStore</code>.
  * 
  * @see "Program development in Java", pgs 320, 365
  * 
  * @version 2.0 provides a full implementation 
+ * @version 3.0 map titles to document ids
  * 
  * @author dmle
  *
@@ -16,14 +18,19 @@ import java.util.Hashtable;
 public class TitleTable {
   
   // the rep of this class
-  private Hashtable docs;
+  private Hashtable ids;
+  private DocStore docs;
   
   /**
    * Constructor method
-   * @effects Initialises <code>this</code> to be an empty table.
+   * @param docs  the document store of the engine
+   * @requires    <code>docs</code> is not <code>null</code>
+   * @effects Initialises <code>this</code> to be an empty table of the documents 
+   *          in <code>docs</code>.
    */
-  public TitleTable() {
-    docs = new Hashtable();
+  public TitleTable(DocStore docs) {
+    ids = new Hashtable();
+    this.docs = docs;
   }
   
   /**
@@ -32,20 +39,24 @@ public class TitleTable {
    * @param d   A <code>Doc</code> object to add
    * @requires  <code>d</code> is not <code>null</code>
    * @effects   if a document with the same title already in <code>this</code> 
-   *            throws <code>DuplicateException</code>, else adds <code>d</code> with 
-   *            its title to <code>this</code>.
-   * @version 2.0           
+   *            throws <code>DuplicateException</code>, else adds <code>d</code> to 
+   *            the document store, adds its title to <code>this</code> and returns 
+   *            the id of <code>d</code>.
+   * @version 3.0           
    */
-  public void addDoc(Doc d) throws DuplicateException {
+  public int addDoc(Doc d) throws DuplicateException {
     String t = d.title();
     // canonical form
     t = Helpers.canon(t);
     
-    if (docs.containsKey(t)) {
+    if (ids.containsKey(t)) {
       throw new DuplicateException("TitleTable.addDoc: a document with same title already exists: " + t);
     }
     
-    docs.put(t, d);
+    int id = docs.add(d);
+    ids.put(t, Integer.valueOf(id));
+    
+    return id;
   }
   
   /**
@@ -55,20 +66,20 @@ public class TitleTable {
    * @effects   if <code>t</code> is <code>null</code> or there is no document with this 
    *            title throws <code>NotPossibleException</code>, else returns the document
    *            with title <code>t</code>.
-   * @version 2.0 
+   * @version 3.0 
    */
   public Doc lookup(String t) throws NotPossibleException {
-    Doc d = null;
+    Integer id = null;
     if (t != null) {
       // canonical form
       String ct = Helpers.canon(t);
 
-      d = (Doc) docs.get(ct);
+      id = (Integer) ids.get(ct);
     }
     
-    if (d == null)
+    if (id == null)
       throw new NotPossibleException("TitleTable.lookup: could not look up document with title " + t);
     else 
-      return d;
+      return docs.get(id.intValue());
   }
 }
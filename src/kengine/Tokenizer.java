@@ -0,0 +1,231 @@
+package kengine;
+
+
+/**
+ * @overview A tokenizer that scans the body of an HTML document once, from
+ *           left to right, and yields the words of its text one at a time.
+ *
+ *           The text of the body is made up of the runs of characters between
+ *           a tag and the next tag. The text that follows a
+ *           <code>&lt;script&gt;</code> or <code>&lt;style&gt;</code> tag
+ *           (in lower or upper case) is skipped, up to the next tag. Within a
+ *           text run, the words are separated by spaces and tabs, new-line
+ *           characters are ignored and other control characters are trimmed
+ *           from both ends of each word. The text before the first tag and
+ *           after the last one is not part of any run.
+ *
+ *           The current word is kept in a buffer that is reused for every
+ *           word, and <code>this</code> is a <code>CharSequence</code> view of
+ *           that buffer, so scanning a document allocates no objects per
+ *           word. Callers that keep a word must copy it, e.g. using
+ *           <code>toString()</code>.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class Tokenizer implements CharSequence {
+  private static final char OPEN_TAG = '<';
+  private static final char CLOSED_TAG = '>';
+  private static final char NEW_LINE = '\n';
+  private static final char SPACE = ' ';
+  private static final char TAB = '\t';
+
+  // the rep of this class
+  private char[] chars; // the text to scan
+  private int pos; // the next character to scan in chars
+  private int end; // the end of the text in chars
+  private int runStart; // the start of the current text run, -1 if none
+  private int runEnd; // the end of the current text run
+
+  private char[] word; // the current word
+  private int len; // the length of the current word
+
+  /**
+   * Constructor method
+   *
+   * @param chars
+   *          an array containing the text of a document body, with its
+   *          enclosing <code>&lt;body&gt;&lt;/body&gt;</code> tags
+   * @param off
+   *          the start of the text in <code>chars</code>
+   * @param len
+   *          the length of the text
+   * @requires <code>chars</code> is not <code>null</code> and
+   *           <code>0 <= off <= off + len <= chars.length</code>
+   * @effects makes <code>this</code> be a tokenizer positioned before the
+   *          first word of the text
+   */
+  public Tokenizer(char[] chars, int off, int len) {
+    this.chars = chars;
+    this.pos = off;
+    this.end = off + len;
+    this.runStart = -1;
+    this.word = new char[32];
+    this.len = 0;
+  }
+
+  /**
+   * A method to move <code>this</code> to the next word.
+   *
+   * @modifies <code>this</code>
+   * @effects if there is another word in the text makes it the current word
+   *          of <code>this</code> and returns <code>true</code>, else returns
+   *          <code>false</code>.
+   */
+  public boolean next() {
+    while (true) {
+      if (runStart >= 0) {
+        if (nextInRun())
+          return true;
+        runStart = -1;
+      }
+      if (!nextRun())
+        return false;
+    }
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects if the text has another text run, sets
+   *          <code>runStart, runEnd</code> to its bounds and returns
+   *          <code>true</code>, else returns <code>false</code>.
+   */
+  private boolean nextRun() {
+    // find the first tag
+    while (pos < end && chars[pos] != OPEN_TAG)
+      pos++;
+
+    int tagStart, lastClose;
+    boolean special;
+    while (pos < end) {
+      // chars[pos] is the start of a tag; the text of this tag region
+      // is after its last closing bracket, up to the next tag
+      tagStart = ++pos;
+      lastClose = -1;
+      special = false;
+      while (pos < end && chars[pos] != OPEN_TAG) {
+        if (chars[pos] == CLOSED_TAG) {
+          if (lastClose < 0)
+            special = isSpecial(tagStart, pos);
+          lastClose = pos;
+        }
+        pos++;
+      }
+
+      if (pos < end && lastClose >= 0 && !special) {
+        // the run ends at the next tag
+        runStart = lastClose + 1;
+        runEnd = pos;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @effects returns <code>true</code> if the tag text
+   *          <code>chars[from..to-1]</code> starts with the name of a tag
+   *          whose content is skipped, else returns <code>false</code>.
+   */
+  private boolean isSpecial(int from, int to) {
+    return startsWith(from, to, "script") || startsWith(from, to, "SCRIPT")
+        || startsWith(from, to, "style") || startsWith(from, to, "STYLE");
+  }
+
+  private boolean startsWith(int from, int to, String s) {
+    int n = s.length();
+    if (to - from < n)
+      return false;
+    for (int i = 0; i < n; i++) {
+      if (chars[from + i] != s.charAt(i))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects if the current text run has another word, copies it to
+   *          <code>word</code> and returns <code>true</code>, else returns
+   *          <code>false</code>.
+   */
+  private boolean nextInRun() {
+    char c;
+    int start;
+    while (runStart < runEnd) {
+      // skip the separators
+      while (runStart < runEnd
+          && ((c = chars[runStart]) == SPACE || c == TAB))
+        runStart++;
+
+      // copy the word, without its new-line characters
+      len = 0;
+      while (runStart < runEnd
+          && (c = chars[runStart]) != SPACE && c != TAB) {
+        if (c != NEW_LINE) {
+          if (len == word.length) {
+            char[] w = new char[len * 2];
+            System.arraycopy(word, 0, w, 0, len);
+            word = w;
+          }
+          word[len++] = c;
+        }
+        runStart++;
+      }
+
+      // trim the control characters from both ends
+      start = 0;
+      while (start < len && word[start] <= SPACE)
+        start++;
+      while (len > start && word[len - 1] <= SPACE)
+        len--;
+
+      if (len > start) {
+        if (start > 0) {
+          System.arraycopy(word, start, word, 0, len - start);
+          len -= start;
+        }
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @effects returns the buffer that holds the current word of
+   *          <code>this</code> in its first <code>length()</code> characters.
+   *          The buffer is overwritten by the next call to <code>next</code>.
+   */
+  public char[] buffer() {
+    return word;
+  }
+
+  /**
+   * @effects returns the length of the current word
+   */
+  public int length() {
+    return len;
+  }
+
+  /**
+   * @requires <code>0 <= i < length()</code>
+   * @effects returns the <code>i</code>th character of the current word
+   */
+  public char charAt(int i) {
+    return word[i];
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    return new String(word, start, end - start);
+  }
+
+  /**
+   * @effects returns the current word as a new string
+   */
+  public String toString() {
+    return new String(word, 0, len);
+  }
+}
@@ -3,41 +3,89 @@ package kengine;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.Comparator;
 
 
 /**
  * @overview Keeps track of both interesting and uninteresting words.
  *           Uninteresting words are mapped to </code>null</code>, while each
- *           interesting word is mapped to a <code>Vector</code> of
- *           <code>DocCnt</code> objects, each of which is a pair of document
- *           and the number of occurrences of the keyword in that document. The
- *           uninteresting words are obtained from a private file.
+ *           interesting word is mapped to a <code>PostingList</code> of pairs
+ *           of document id and the number of occurrences of the keyword in
+ *           that document. The uninteresting words are obtained from a private
+ *           file.
+ * 
+ *           Documents are identified by their ids in the engine's
+ *           <code>DocStore</code>.
+ * 
+ *           Words are kept in a <code>TermMap</code> that gives each word a
+ *           term id; the posting lists are indexed by term id and are
+ *           <code>null</code> for the uninteresting words.
+ * 
+ *           The postings of a keyword that is in at least one in
+ *           <code>BITMAP_DENSITY</code> of the documents (and has at least
+ *           <code>BITMAP_MIN_SIZE</code> postings) are moved from a
+ *           <code>PostingList</code> to a <code>BitmapPostings</code>, which
+ *           is smaller and which queries intersect a word of ids at a time.
+ * 
+ *           The words can also be read in sorted order, e.g. to enumerate
+ *           those in a range: the term ids are sorted when they are first
+ *           read in order after new words have been added.
  * 
  * @see "Program development in Java", pgs 320, 330, 365
  * @version 3.0 implement the full version
+ * @version 4.0 use compact posting lists of document ids instead of vectors
+ *          of <code>DocCnt</code>
+ * @version 4.1 index documents without creating objects for their words
+ * @version 4.2 keep the postings of dense keywords as bitmaps
+ * @version 4.3 read the words in sorted order
  * @author dmle
  * 
  */
 public class WordTable {
+  /** the least number of postings of a keyword kept as a bitmap */
+  static final int BITMAP_MIN_SIZE = 1024;
+
+  /**
+   * the postings of a keyword are kept as a bitmap once it is in at least
+   * one in this many documents
+   */
+  static final int BITMAP_DENSITY = 16;
+
   // the rep of this class
-  private Hashtable table;
+  private TermMap terms; // the words of this table
+  private Postings[] postings; // indexed by term id, null for non-keys
+  private DocStore docs; // the documents of the engine
+  // the term ids in the order of the words, or null. A snapshot of the index
+  // shares its table between the threads that query it, any of which may sort
+  // the ids, so the array is published through a volatile field
+  private volatile int[] sorted;
+
+  // the counts of the words of the document being added, indexed by term id
+  // (all 0 between documents), and the term ids whose counts are not 0
+  private int[] freqs;
+  private int[] touched;
 
   private static final String NK_FILE = "nk.dat";
 
   /**
    * Constructor method
    * 
+   * @param docs
+   *          the document store of the engine
+   * @requires <code>docs</code> is not <code>null</code>
    * @effects If the file cannot be read throws
    *          <code>NotPossibleException</code>, else initialises the table to
    *          contain all the words in the file as uninteresting words.
    * @version 3.0 add cannonical form to uninteresting words
+   * @version 4.0 add the document store
    */
-  public WordTable() throws NotPossibleException {
-    table = new Hashtable();
+  public WordTable(DocStore docs) throws NotPossibleException {
+    terms = new TermMap();
+    postings = new Postings[64];
+    freqs = new int[64];
+    touched = new int[64];
+    this.docs = docs;
 
     // read the NK file and store keywords to this table
     // assumes file is stored in the same directory as this class
@@ -64,7 +112,8 @@ public class WordTable {
           // canonical form 
           nw = Helpers.canon(nw);
           
-          table.put(nw, null + "");
+          if (terms.get(nw) < 0)
+            addTerm(nw); // no posting list: uninteresting
         } else {
           eof = true;
         }
@@ -74,60 +123,206 @@ public class WordTable {
     }
   }
 
+  /**
+   * Constructor method to create a partial table, into which a part of a
+   * collection of documents is indexed separately (e.g. by another thread) and
+   * then merged into the table of the engine using <code>addAll</code>.
+   * 
+   * @param wt
+   *          the word table of the engine
+   * @requires <code>wt</code> is not <code>null</code>
+   * @effects initialises <code>this</code> to contain the uninteresting words
+   *          of <code>wt</code> and no documents
+   */
+  WordTable(WordTable wt) {
+    this(wt.docs, wt.stopWords());
+  }
+
+  /**
+   * Constructor method to create a table with given uninteresting words,
+   * e.g. those of the segments of the engine.
+   * 
+   * @param docs
+   *          the document store of the engine
+   * @param stopWords
+   *          the uninteresting words, in canonical form
+   * @requires <code>docs</code> and <code>stopWords</code> are not
+   *           <code>null</code> and the elements of <code>stopWords</code>
+   *           are different
+   * @effects initialises <code>this</code> to contain the words of
+   *          <code>stopWords</code> as uninteresting words and no documents
+   */
+  WordTable(DocStore docs, String[] stopWords) {
+    terms = new TermMap();
+    postings = new Postings[64];
+    freqs = new int[64];
+    touched = new int[64];
+    this.docs = docs;
+
+    for (int i = 0; i < stopWords.length; i++) {
+      addTerm(stopWords[i]);
+    }
+  }
+
   /**
    * A method to add a document <code>d</code> to <code>this</code>.
    * 
    * @param d
    *          a <code>Doc</code> object representing a document
-   * @requires <code>d</code> is not <code>null</code>
+   * @param id
+   *          the id of <code>d</code> in the document store
+   * @requires <code>d</code> is not <code>null</code> and <code>id</code> is
+   *           greater than the ids of all the documents in <code>this</code>
    * @modifies <code>this</code>
    * @effects Adds all interesting words of <code>d</code> to <code>this</code>
-   *          with a count of their number of occurrences; returns a table
-   *          mapping each interesting word in <code>d</code> to its number of
-   *          occurrences.
+   *          with a count of their number of occurrences; returns the number
+   *          of different interesting words in <code>d</code>.
    * 
-   * @version 3.0
+   * @version 4.1 scans, canonicalises and counts the words of <code>d</code>
+   *          in one pass, in the tokenizer's buffer
    */
-  public Hashtable addDoc(Doc d) {
-    Hashtable kmap = new Hashtable();
+  public int addDoc(Doc d, int id) {
+    Tokenizer words = d.tokens();
+    char[] w;
+    int len, t;
+    int n = 0; // the number of different interesting words in d
+    while (words.next()) {
+      w = words.buffer();
+      len = words.length();
+
+      // create canonical form of w, in place if possible
+      if (Helpers.canon(w, len)) {
+        t = terms.get(w, len);
+        if (t < 0)
+          t = addTerm(terms.add(w, len));
+      } else {
+        String cw = Helpers.canon(words.toString());
+        t = terms.get(cw);
+        if (t < 0)
+          t = addTerm(terms.add(cw));
+      }
 
-    Iterator words = d.words();
+      // count the interesting words
+      if (postings[t] != null) {
+        if (freqs[t]++ == 0)
+          touched[n++] = t;
+      }
+    }
+
+    // update this with the postings of d
+    for (int i = 0; i < n; i++) {
+      t = touched[i];
+      addPosting(t, id, freqs[t]);
+      freqs[t] = 0;
+    }
+
+    return n;
+  }
+
+  /**
+   * A method to merge a partial table into <code>this</code>.
+   * 
+   * @param wt
+   *          a partial table created from <code>this</code>
+   * @requires <code>wt</code> is not <code>null</code> and the ids of the
+   *           documents in <code>wt</code> are greater than the ids of all
+   *           the documents in <code>this</code>
+   * @modifies <code>this</code>
+   * @effects adds the postings of <code>wt</code> to <code>this</code>. New
+   *          words are added in the order in which <code>wt</code> first saw
+   *          them, so merging the partial tables of consecutive parts of a
+   *          collection in order gives the same table as adding the
+   *          documents one at a time.
+   */
+  void addAll(WordTable wt) {
+    Postings pl;
     String w;
-    Integer wfreq; // count of number of occurrences of w in d
-    while (words.hasNext()) {
-      w = (String) words.next();
-      
-      // create canonical form of w
-      w = Helpers.canon(w);
-      
-      if (isInteresting(w)) {
-        wfreq = (Integer) kmap.get(w);
-        if (wfreq == null) {
-          wfreq = new Integer(1);
+    int t;
+    for (int pt = 0; pt < wt.terms.size(); pt++) {
+      pl = wt.postings[pt];
+      if (pl != null) {
+        w = wt.terms.term(pt);
+        t = terms.get(w);
+        if (t < 0)
+          t = addTerm(terms.add(w));
+        if (postings[t] instanceof PostingList && pl instanceof PostingList) {
+          ((PostingList) postings[t]).addAll((PostingList) pl);
+          checkDensity(t);
         } else {
-          wfreq = new Integer(wfreq.intValue() + 1);
+          for (int i = 0; i < pl.size(); i++) {
+            addPosting(t, pl.doc(i), pl.count(i));
+          }
         }
-        kmap.put(w, wfreq);
       }
     }
+  }
 
-    // update this with DocCnt objects
-    if (!kmap.isEmpty()) {
-      Vector docVector;
-      DocCnt dc;
-      for (Enumeration e = kmap.keys(); e.hasMoreElements();) {
-        w = (String) e.nextElement();
-        dc = new DocCnt(d, ((Integer) kmap.get(w)).intValue());
-        docVector = (Vector) table.get(w);
-        if (docVector == null)
-          docVector = new Vector();
-        docVector.add(dc);
-        table.put(w, docVector);
-      }
-
-      return kmap;
+  /**
+   * @requires <code>t</code> is an interesting word and <code>id</code> is
+   *           greater than the ids of its postings
+   * @modifies <code>this</code>
+   * @effects appends <code><id,cnt></code> to the postings of the term
+   *          <code>t</code>
+   */
+  private void addPosting(int t, int id, int cnt) {
+    if (postings[t] instanceof BitmapPostings) {
+      ((BitmapPostings) postings[t]).add(id, cnt);
     } else {
-      return null;
+      ((PostingList) postings[t]).add(id, cnt);
+      checkDensity(t);
+    }
+  }
+
+  /**
+   * @requires the postings of the term <code>t</code> are a
+   *           <code>PostingList</code>
+   * @modifies <code>this</code>
+   * @effects if the term <code>t</code> is in at least one in
+   *          <code>BITMAP_DENSITY</code> of the documents of the store and
+   *          has at least <code>BITMAP_MIN_SIZE</code> postings, moves its
+   *          postings to a <code>BitmapPostings</code>
+   */
+  private void checkDensity(int t) {
+    Postings pl = postings[t];
+    int n = pl.size();
+    if (n >= BITMAP_MIN_SIZE
+        && (long) n * BITMAP_DENSITY >= pl.lastDoc() - docs.base() + 1)
+      postings[t] = new BitmapPostings(pl);
+  }
+
+  /**
+   * @requires <code>w</code> is not in <code>this</code>
+   * @modifies <code>this</code>
+   * @effects adds the uninteresting word <code>w</code> to <code>this</code>
+   */
+  private void addTerm(String w) {
+    int t = terms.add(w);
+    ensureCapacity(t + 1);
+  }
+
+  /**
+   * @requires <code>t</code> is the id of a new term of <code>terms</code>
+   * @modifies <code>this</code>
+   * @effects makes the term <code>t</code> an interesting word with an
+   *          empty posting list and returns <code>t</code>
+   */
+  private int addTerm(int t) {
+    ensureCapacity(t + 1);
+    postings[t] = new PostingList();
+    return t;
+  }
+
+  /**
+   * @modifies <code>this</code>
+   * @effects makes the arrays indexed by term id hold at least
+   *          <code>n</code> terms
+   */
+  private void ensureCapacity(int n) {
+    if (n > postings.length) {
+      int capacity = Math.max(n, postings.length * 2);
+      postings = Arrays.copyOf(postings, capacity);
+      freqs = Arrays.copyOf(freqs, capacity);
+      touched = Arrays.copyOf(touched, capacity);
     }
   }
 
@@ -143,9 +338,9 @@ public class WordTable {
    */
   boolean isInteresting(String w) {
     if (w != null) {
-      Object v = table.get(w);
-      if (v != null && !(v instanceof Vector)) {
-        return false; // v is the text "null", which is mapped to all uninteresting words
+      int t = terms.get(w);
+      if (t >= 0 && postings[t] == null) {
+        return false; // w is an uninteresting word
       } else {
         return true;
       }
@@ -160,19 +355,118 @@ public class WordTable {
    * @param k
    *          a keyword to look up
    * @requires <code>k</code> is not <code>null</code>
-   * @effects Returns a vector of <code>DocCnt</code>s where <code>Doc</code>
-   *          contains <code>k</code> <code>cnt</code> times.
-   * @version 3.0
+   * @effects If <code>k</code> is an interesting word of some document
+   *          returns the <code>Postings</code> of <code>k</code>, else
+   *          returns <code>null</code>.
+   * @version 4.0
+   * @version 4.2 the postings may be a <code>BitmapPostings</code>
    */
-  public Vector lookup(String k) {
-    Object dv = table.get(k);
-    if (dv != null && !dv.equals("null")) {
-      return (Vector) dv;
+  public Postings lookup(String k) {
+    int t = terms.get(k);
+    if (t >= 0) {
+      return postings[t];
     } else {
       return null;
     }
   }
 
+  /**
+   * @effects returns the uninteresting words of <code>this</code>, in the
+   *          order in which they were added
+   */
+  String[] stopWords() {
+    int n = 0;
+    for (int t = 0; t < terms.size(); t++) {
+      if (postings[t] == null)
+        n++;
+    }
+    String[] words = new String[n];
+    n = 0;
+    for (int t = 0; t < terms.size(); t++) {
+      if (postings[t] == null)
+        words[n++] = terms.term(t);
+    }
+    return words;
+  }
+
+  /**
+   * @effects returns the number of words in <code>this</code>, which have the
+   *          term ids <code>0, ..., termCount() - 1</code>
+   */
+  int termCount() {
+    return terms.size();
+  }
+
+  /**
+   * @requires <code>0 <= t < termCount()</code>
+   * @effects returns the word whose term id is <code>t</code>
+   */
+  String term(int t) {
+    return terms.term(t);
+  }
+
+  /**
+   * @requires <code>0 <= t < termCount()</code>
+   * @effects returns the posting list of the word whose term id is
+   *          <code>t</code>, or <code>null</code> if it is uninteresting
+   */
+  Postings postings(int t) {
+    return postings[t];
+  }
+
+  /**
+   * @effects returns the term ids of <code>this</code> in the order of their
+   *          words, which must not be modified
+   */
+  int[] sortedTerms() {
+    int[] s = sorted;
+    int n = terms.size();
+    if (s == null || s.length != n) {
+      Integer[] order = new Integer[n];
+      for (int t = 0; t < n; t++) {
+        order[t] = Integer.valueOf(t);
+      }
+      Arrays.sort(order, new Comparator() {
+        public int compare(Object o1, Object o2) {
+          return terms.term(((Integer) o1).intValue())
+              .compareTo(terms.term(((Integer) o2).intValue()));
+        }
+      });
+      s = new int[n];
+      for (int i = 0; i < n; i++) {
+        s[i] = order[i].intValue();
+      }
+      sorted = s;
+    }
+    return s;
+  }
+
+  /**
+   * @requires <code>w</code> is not <code>null</code>
+   * @effects returns the number of words of <code>this</code> that are less
+   *          than <code>w</code>, i.e. the index in <code>sortedTerms()</code>
+   *          of the first word that is at least <code>w</code>
+   */
+  int lowerRank(String w) {
+    int[] s = sortedTerms();
+    int low = 0, high = s.length, mid;
+    while (low < high) {
+      mid = (low + high) >>> 1;
+      if (terms.term(s[mid]).compareTo(w) < 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * @effects returns the document store of <code>this</code>
+   */
+  public DocStore docs() {
+    return docs;
+  }
+
   /**
    * A method to return all none-keywords in as a string for display
    * 
@@ -181,11 +475,9 @@ public class WordTable {
    */
   public String getNonkeys() {
     StringBuffer sb = new StringBuffer();
-    for (Enumeration e = table.keys(); e.hasMoreElements();) {
-      String w = (String) e.nextElement();
-      Object v = lookup(w);
-      if (v == null) {
-        sb.append(w).append(" ");
+    for (int t = 0; t < terms.size(); t++) {
+      if (postings[t] == null) {
+        sb.append(terms.term(t)).append(" ");
       }
     }
 
@@ -206,15 +498,22 @@ public class WordTable {
   public String toString() {
     StringBuffer sb = new StringBuffer();
     StringBuffer sbk = new StringBuffer();
-    for (Enumeration e = table.keys(); e.hasMoreElements();) {
-      String w = (String) e.nextElement();
-      Vector dv = lookup(w);
+    for (int t = 0; t < terms.size(); t++) {
+      String w = terms.term(t);
+      Postings dv = postings[t];
       if (dv == null) {
         // non-key
         sb.append(w).append("\n");
       } else {
         // key
-        sbk.append(w).append("->[").append(dv.size()).append("]").append(dv.toString()).append("\n");
+        sbk.append(w).append("->[").append(dv.size()).append("][");
+        for (int i = 0; i < dv.size(); i++) {
+          if (i > 0)
+            sbk.append(", ");
+          sbk.append("<").append(docs.get(dv.doc(i)).title()).append(",")
+              .append(dv.count(i)).append(">");
+        }
+        sbk.append("]\n");
       }
     }
 
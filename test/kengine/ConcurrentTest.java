@@ -0,0 +1,258 @@
+package kengine;
+
+import java.io.File;
+import java.util.Random;
+
+
+/**
+ * @overview Tests that several threads may query a concurrent engine while
+ *           another adds documents and refreshes it.
+ *
+ *           The documents are added in order, so the documents that a query
+ *           can see are always the first <code>m</code> of them, where
+ *           <code>m</code> is the number added before the last refresh. Each
+ *           reader checks every query it makes against this: its matches must
+ *           be exactly the documents among some such first <code>m</code> that
+ *           have its keywords, <code>queryMore</code> must refine the matches
+ *           that the reader saw, a document that a query found must be found
+ *           by <code>findDoc</code>, and the number of matches of a keyword
+ *           must never go down. Once all documents are added and refreshed,
+ *           the engine must answer as an engine that was not concurrent.
+ *
+ *           This is done for an engine refreshed by its writer, for one that
+ *           refreshes at a number of buffered documents and for one kept in
+ *           a directory that refreshes at an interval (see
+ *           <code>Engine.setRefreshPolicy</code>).
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class ConcurrentTest {
+  private static final String PREFIX = "Concurrent doc ";
+
+  /** the number of documents */
+  private static final int N = 6000;
+
+  /** the number of reader threads */
+  private static final int READERS = 4;
+
+  /** the number of keywords that the readers query */
+  private static final int KEYS = 24;
+
+  private static TestSupport t = new TestSupport("ConcurrentTest");
+
+  // the documents, and the number of the first m of them with each keyword
+  private static String[] words;
+  private static String[] docs;
+  private static int[][] counts;
+
+  public static void main(String[] args) throws Exception {
+    words = TestSupport.words(200);
+    docs = TestSupport.docs(PREFIX, N, 30, words, 6);
+    counts = new int[KEYS][N + 1];
+    for (int w = 0; w < KEYS; w++) {
+      for (int m = 0; m < N; m++) {
+        counts[w][m + 1] = counts[w][m] + (TestSupport.has(docs[m], words[w]) ? 1 : 0);
+      }
+    }
+
+    Engine ref = new Engine();
+    for (int i = 0; i < N; i++) {
+      ref.addDoc(new Doc(docs[i]));
+    }
+
+    Engine e = new Engine();
+    e.setConcurrent(true);
+    run("refresh", e, ref, 500, true);
+
+    e = new Engine();
+    e.setRefreshPolicy(700, 0);
+    run("refresh at 700 docs", e, ref, 700, false);
+
+    File dir = TestSupport.tempDir("concurrent");
+    try {
+      e = new Engine(dir.getPath());
+      e.setRefreshPolicy(0, 5);
+      run("refresh every 5 ms", e, ref, 1, false);
+    } finally {
+      TestSupport.delete(dir);
+    }
+    t.done();
+  }
+
+  /**
+   * @param step
+   *          the number of documents between refreshes, so that the number
+   *          that a query can see is a multiple of <code>step</code>
+   * @param refresh
+   *          whether the writer refreshes <code>e</code> itself every
+   *          <code>step</code> documents
+   * @effects adds the documents to <code>e</code> while reader threads
+   *          query it, then checks that <code>e</code> answers as
+   *          <code>ref</code>
+   */
+  private static void run(String name, Engine e, Engine ref, int step,
+      boolean refresh) throws Exception {
+    Reader[] rs = new Reader[READERS];
+    for (int i = 0; i < rs.length; i++) {
+      rs[i] = new Reader(name, e, step, i);
+      rs[i].start();
+    }
+
+    for (int i = 0; i < N; i++) {
+      e.addDoc(new Doc(docs[i]));
+      if (refresh && (i + 1) % step == 0)
+        e.refresh();
+      if (i % 100 == 99)
+        Thread.sleep(1); // let the readers see the documents
+    }
+    e.refresh();
+    e.waitForMerges();
+
+    int queries = 0, partial = 0;
+    for (int i = 0; i < rs.length; i++) {
+      rs[i].halt();
+      rs[i].join();
+      t.check(rs[i].error == null, name + ": reader " + i + " failed: " + rs[i].error);
+      queries += rs[i].queries;
+      partial += rs[i].partial;
+    }
+    t.check(queries > 0, name + ": no queries were made");
+    t.check(partial > 0, name + ": no query saw some of the documents only");
+
+    for (int w = 0; w < KEYS; w++) {
+      String[] q = new String[] { words[w] };
+      t.check(TestSupport.matches(e, q).equals(TestSupport.matches(ref, q)), name
+          + ": final query " + words[w]);
+    }
+    System.out.println("ConcurrentTest: " + name + ": " + queries + " queries, "
+        + partial + " of some of the documents");
+  }
+
+  /**
+   * @overview A thread that queries an engine and checks its answers, until
+   *           it is halted.
+   */
+  private static class Reader extends Thread {
+    private String name;
+    private Engine e;
+    private int step;
+    private Random r;
+    private volatile boolean halted;
+    private int[] seen; // the largest number of matches of each keyword
+
+    int queries;
+    int partial; // the queries that saw some of the documents only
+    Throwable error;
+
+    Reader(String name, Engine e, int step, int seed) {
+      super("ConcurrentTest.Reader " + seed);
+      this.name = name;
+      this.e = e;
+      this.step = step;
+      this.r = new Random(seed);
+      this.seen = new int[KEYS];
+    }
+
+    void halt() {
+      halted = true;
+    }
+
+    public void run() {
+      try {
+        while (!halted) {
+          query();
+          queries++;
+        }
+      } catch (Throwable x) {
+        error = x;
+      }
+    }
+
+    /**
+     * @effects queries a keyword, and maybe refines the query with another,
+     *          and checks the answers
+     */
+    private void query() {
+      int w = r.nextInt(KEYS);
+      Query q;
+      try {
+        q = e.queryFirst(words[w]);
+      } catch (NotPossibleException x) {
+        // the keyword is not in the documents refreshed so far
+        t.check(seen[w] == 0, name + ": " + words[w] + " is no longer found");
+        return;
+      }
+
+      int size = q.size();
+      int m = visible(w, size);
+      if (m < 0) {
+        t.check(false, name + ": " + words[w] + " has " + size
+            + " matches, which no refresh had");
+        return;
+      }
+      t.check(size >= seen[w], name + ": " + words[w] + " has " + size
+          + " matches after " + seen[w]);
+      seen[w] = size;
+      if (size < counts[w][N])
+        partial++;
+
+      // the matches are the documents before m that have the keyword
+      int[] ids = new int[size];
+      Doc d;
+      for (int i = 0; i < size; i++) {
+        d = q.fetch(i);
+        ids[i] = Integer.parseInt(d.title().substring(PREFIX.length()));
+        if (ids[i] >= m || !d.content().equals(docs[ids[i]])
+            || !TestSupport.has(docs[ids[i]], words[w])) {
+          t.check(false, name + ": " + words[w] + " matches " + d.title()
+              + " of the first " + m);
+          return;
+        }
+      }
+
+      if (size > 0) {
+        String title = PREFIX + ids[r.nextInt(size)];
+        t.check(SegmentTest.findable(e, title), name + ": " + title
+            + " is matched but not found");
+      }
+
+      if (size > 0 && r.nextBoolean()) {
+        // refine the query, which keeps to the documents it had
+        int w2 = (w + 1 + r.nextInt(KEYS - 1)) % KEYS;
+        int want = 0;
+        for (int i = 0; i < size; i++) {
+          if (TestSupport.has(docs[ids[i]], words[w2]))
+            want++;
+        }
+        int got;
+        try {
+          got = e.queryMore(words[w2]).size();
+        } catch (NotPossibleException x) {
+          got = 0; // the second keyword is not in the documents yet
+        }
+        t.check(got == want, name + ": " + words[w] + " " + words[w2] + " has "
+            + got + " matches, not " + want);
+      }
+    }
+
+    /**
+     * @effects returns the least number <code>m</code> of documents, a
+     *          multiple of <code>step</code> or <code>N</code>, of which
+     *          <code>size</code> have the keyword <code>w</code>, or
+     *          <code>-1</code> if there is none
+     */
+    private int visible(int w, int size) {
+      for (int m = 0; m <= N; m += step) {
+        if (counts[w][m] == size)
+          return m;
+        if (counts[w][m] > size)
+          return -1;
+      }
+      return (counts[w][N] == size) ? N : -1;
+    }
+  }
+}
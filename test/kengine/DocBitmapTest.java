@@ -0,0 +1,192 @@
+package kengine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * @overview Tests that a <code>DocBitmap</code> holds the ids added to it,
+ *           and that its ranks, selects and intersections are those of a
+ *           sorted array of the same ids.
+ *
+ *           The sets are generated at random, some sparse enough to be kept
+ *           in arrays and some dense enough to be kept in bitmaps, and they
+ *           span several chunks of 65536 ids so that a set mixes both kinds
+ *           of containers. The postings of a <code>BitmapPostings</code> are
+ *           compared with those of a <code>PostingList</code> in the same
+ *           way.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class DocBitmapTest {
+  /** the number of ids in a chunk, which shares one container */
+  private static final int CHUNK = 65536;
+
+  private static TestSupport t = new TestSupport("DocBitmapTest");
+
+  public static void main(String[] args) {
+    Random r = new Random(14);
+    int[][] sets = new int[8][];
+    for (int i = 0; i < sets.length; i++) {
+      sets[i] = ids(r, i);
+    }
+
+    DocBitmap[] bs = new DocBitmap[sets.length];
+    for (int i = 0; i < sets.length; i++) {
+      bs[i] = bitmap(sets[i]);
+      compare("set " + i, bs[i], sets[i], r);
+    }
+    compare("empty", new DocBitmap(), new int[0], r);
+
+    for (int i = 0; i < sets.length; i++) {
+      for (int j = 0; j < sets.length; j++) {
+        compare("and " + i + " " + j, DocBitmap.and(bs[i], bs[j]),
+            and(sets[i], sets[j]), r);
+      }
+    }
+
+    copy(r);
+    postings(r);
+    t.done();
+  }
+
+  /**
+   * @effects returns a sorted set of ids over four chunks, where the density
+   *          of each chunk is picked at random by <code>seed</code>, from
+   *          empty to almost full
+   */
+  private static int[] ids(Random r, int seed) {
+    double[] densities = { 0, 0.001, 0.05, 0.06, 0.5, 0.99 };
+    int[] ids = new int[4 * CHUNK];
+    int n = 0;
+    double p;
+    for (int c = 0; c < 4; c++) {
+      p = densities[(seed + c * 5 + r.nextInt(2)) % densities.length];
+      for (int low = 0; low < CHUNK; low++) {
+        if (r.nextDouble() < p)
+          ids[n++] = c * CHUNK + low;
+      }
+    }
+    return Arrays.copyOf(ids, n);
+  }
+
+  /**
+   * @effects returns a bitmap of the sorted ids <code>ids</code>
+   */
+  private static DocBitmap bitmap(int[] ids) {
+    DocBitmap b = new DocBitmap();
+    for (int i = 0; i < ids.length; i++) {
+      b.add(ids[i]);
+    }
+    return b;
+  }
+
+  /**
+   * @effects returns the ids that are in both of the sorted arrays
+   *          <code>a</code> and <code>b</code>
+   */
+  private static int[] and(int[] a, int[] b) {
+    int[] ids = new int[Math.min(a.length, b.length)];
+    int n = 0;
+    for (int i = 0; i < a.length; i++) {
+      if (Arrays.binarySearch(b, a[i]) >= 0)
+        ids[n++] = a[i];
+    }
+    return Arrays.copyOf(ids, n);
+  }
+
+  /**
+   * @effects checks that <code>b</code> holds the sorted ids
+   *          <code>ids</code>, that it ranks and selects them as their
+   *          indices in <code>ids</code>, and that it ranks the ids that
+   *          are not in it as the number of ids less than them
+   */
+  private static void compare(String what, DocBitmap b, int[] ids, Random r) {
+    t.check(b.size() == ids.length, what + ": size " + b.size() + " not "
+        + ids.length);
+    t.check(b.last() == ((ids.length > 0) ? ids[ids.length - 1] : -1), what
+        + ": last " + b.last());
+
+    int[] got = new int[b.size()];
+    b.toArray(got);
+    t.check(Arrays.equals(got, ids), what + ": toArray");
+
+    for (int i = 0; i < ids.length; i++) {
+      if (b.select(i) != ids[i] || b.rank(ids[i]) != i || !b.contains(ids[i])) {
+        t.check(false, what + ": id " + ids[i] + " at " + i);
+        return;
+      }
+    }
+
+    int id, i;
+    for (int k = 0; k < 2000; k++) {
+      id = r.nextInt(5 * CHUNK);
+      i = Arrays.binarySearch(ids, id);
+      if (b.contains(id) != (i >= 0) || b.rank(id) != ((i >= 0) ? i : -i - 1)) {
+        t.check(false, what + ": rank of " + id + " " + b.rank(id));
+        return;
+      }
+    }
+  }
+
+  /**
+   * @effects checks that a copy of a bitmap does not change when ids are
+   *          added to the bitmap, while the last container fills up
+   *          until it is a bitmap
+   */
+  private static void copy(Random r) {
+    int[] ids = ids(r, 4);
+    DocBitmap b = new DocBitmap();
+    DocBitmap c = null;
+    int cn = 0;
+    for (int i = 0; i < ids.length; i++) {
+      b.add(ids[i]);
+      if (i % 9000 == 0) {
+        if (c != null) {
+          compare("copy at " + cn, c, Arrays.copyOf(ids, cn), r);
+        }
+        c = b.copy();
+        cn = i + 1;
+      }
+    }
+    compare("last copy", c, Arrays.copyOf(ids, cn), r);
+    compare("copied", b, ids, r);
+  }
+
+  /**
+   * @effects checks that a <code>BitmapPostings</code> has the postings and
+   *          seeks of the <code>PostingList</code> that it is built from
+   */
+  private static void postings(Random r) {
+    int[] ids = ids(r, 3);
+    PostingList pl = new PostingList();
+    for (int i = 0; i < ids.length; i++) {
+      // a count that does not fit in a byte moves the counts to ints
+      pl.add(ids[i], (i == ids.length / 2) ? 1000 : 1 + r.nextInt(5));
+    }
+    BitmapPostings bp = new BitmapPostings(pl);
+
+    t.check(bp.size() == pl.size(), "postings: size " + bp.size());
+    t.check(bp.lastDoc() == pl.lastDoc(), "postings: last doc " + bp.lastDoc());
+    boolean same = true;
+    for (int i = 0; i < pl.size(); i++) {
+      if (bp.doc(i) != pl.doc(i) || bp.count(i) != pl.count(i))
+        same = false;
+    }
+    t.check(same, "postings: the postings differ");
+
+    int target, from;
+    for (int k = 0; k < 2000; k++) {
+      target = r.nextInt(5 * CHUNK);
+      from = r.nextInt(pl.size() + 1);
+      if (bp.seek(target, from) != pl.seek(target, from)) {
+        t.check(false, "postings: seek " + target + " from " + from);
+        return;
+      }
+    }
+  }
+}
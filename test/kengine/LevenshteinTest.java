@@ -0,0 +1,156 @@
+package kengine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+
+/**
+ * @overview Tests that a <code>LevenshteinAutomaton</code> accepts the
+ *           strings within its distance of its word, and finds the same terms
+ *           when it walks a <code>TermDictionary</code> as a comparison of the
+ *           word with every term does.
+ *
+ *           The terms are short random words over a small alphabet, so that
+ *           many of them are within one or two edits of each other, and the
+ *           words looked up are terms with a few random edits. The edit
+ *           distances are computed with the full matrix.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class LevenshteinTest {
+  private static TestSupport t = new TestSupport("LevenshteinTest");
+
+  public static void main(String[] args) {
+    Random r = new Random(18);
+    String[] terms = terms(r, 3000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TermDictionary.encode(terms, out);
+    TermDictionary dict = new TermDictionary(ByteBuffer.wrap(out.toByteArray()), 0);
+
+    String w;
+    for (int k = 0; k < 300; k++) {
+      w = edit(r, terms[r.nextInt(terms.length)], r.nextInt(4));
+      for (int d = 0; d <= 2; d++) {
+        compare(w, d, terms, dict);
+      }
+    }
+    compare("", 1, terms, dict);
+    t.done();
+  }
+
+  /**
+   * @effects returns <code>n</code> different words of 1 to 7 of the
+   *          letters a to d, in sorted order
+   */
+  private static String[] terms(Random r, int n) {
+    TreeSet set = new TreeSet();
+    StringBuffer sb = new StringBuffer();
+    while (set.size() < n) {
+      sb.setLength(0);
+      for (int k = 1 + r.nextInt(7); k > 0; k--) {
+        sb.append((char) ('a' + r.nextInt(4)));
+      }
+      set.add(sb.toString());
+    }
+    return (String[]) set.toArray(new String[n]);
+  }
+
+  /**
+   * @effects returns <code>w</code> with <code>n</code> random insertions,
+   *          deletions and substitutions of the letters a to e
+   */
+  private static String edit(Random r, String w, int n) {
+    StringBuffer sb = new StringBuffer(w);
+    int i;
+    for (; n > 0; n--) {
+      i = r.nextInt(sb.length() + 1);
+      switch (r.nextInt(3)) {
+      case 0:
+        sb.insert(i, (char) ('a' + r.nextInt(5)));
+        break;
+      case 1:
+        if (i < sb.length())
+          sb.deleteCharAt(i);
+        break;
+      default:
+        if (i < sb.length())
+          sb.setCharAt(i, (char) ('a' + r.nextInt(5)));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @effects returns the edit distance between <code>a</code> and
+   *          <code>b</code>
+   */
+  private static int distance(String a, String b) {
+    int[][] m = new int[a.length() + 1][b.length() + 1];
+    for (int i = 0; i <= a.length(); i++) {
+      for (int j = 0; j <= b.length(); j++) {
+        if (i == 0 || j == 0) {
+          m[i][j] = i + j;
+        } else {
+          m[i][j] = Math.min(Math.min(m[i - 1][j], m[i][j - 1]) + 1,
+              m[i - 1][j - 1] + ((a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1));
+        }
+      }
+    }
+    return m[a.length()][b.length()];
+  }
+
+  /**
+   * @effects checks that the automaton of <code>w</code> and <code>d</code>
+   *          computes the edit distances of <code>terms</code> up to
+   *          <code>d</code>, rejects them from their dead prefixes on, and
+   *          finds in <code>dict</code> the ranks of the terms within
+   *          <code>d</code> edits of <code>w</code>
+   */
+  private static void compare(String w, int d, String[] terms,
+      TermDictionary dict) {
+    String what = w + "~" + d;
+    LevenshteinAutomaton a = new LevenshteinAutomaton(w, d);
+    int[] want = new int[terms.length];
+    int n = 0, dist, k;
+    for (int i = 0; i < terms.length; i++) {
+      dist = distance(w, terms[i]);
+      if (a.editDistance(terms[i]) != Math.min(dist, d + 1)
+          || a.accepts(terms[i]) != (dist <= d)) {
+        t.check(false, what + ": distance to " + terms[i]);
+        return;
+      }
+      if (dist <= d)
+        want[n++] = i;
+
+      k = a.deadPrefix(terms[i]);
+      if (k >= 0 && (dist <= d || lowest(w, terms[i].substring(0, k)) <= d)) {
+        t.check(false, what + ": dead prefix " + k + " of " + terms[i]);
+        return;
+      }
+    }
+
+    int[] got = a.ranks(dict);
+    t.check(Arrays.equals(got, Arrays.copyOf(want, n)), what + ": found "
+        + got.length + " terms, not " + n);
+  }
+
+  /**
+   * @effects returns the least edit distance between <code>w</code> and the
+   *          strings that start with <code>p</code>, which is that between
+   *          <code>p</code> and the nearest prefix of <code>w</code>
+   */
+  private static int lowest(String w, String p) {
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i <= w.length(); i++) {
+      min = Math.min(min, distance(w.substring(0, i), p));
+    }
+    return min;
+  }
+}
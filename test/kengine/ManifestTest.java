@@ -0,0 +1,229 @@
+package kengine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+
+/**
+ * @overview Tests that an engine kept in a directory recovers the index of
+ *           its last complete flush when a flush is interrupted.
+ *
+ *           A flush writes a new segment file and then replaces the manifest
+ *           (see <code>Index.flush</code>). An interrupted flush is simulated
+ *           by putting back the manifest of the flush before it and leaving the
+ *           files that the interrupted flush wrote: its segment file, cut short,
+ *           and a partly written temporary manifest. An engine that opens the
+ *           directory must then have the documents and URLs of the earlier
+ *           flush only, and must be able to add the lost documents again.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class ManifestTest {
+  private static final String MANIFEST = "segments";
+
+  private static TestSupport t = new TestSupport("ManifestTest");
+
+  public static void main(String[] args) throws Exception {
+    File dir = TestSupport.tempDir("manifest");
+    try {
+      String[] words = TestSupport.words(300);
+      String ua = TestSupport.site(new File(dir, "a"),
+          TestSupport.docs("Manifest a ", 1200, 40, words, 4));
+      String ub = TestSupport.site(new File(dir, "b"),
+          TestSupport.docs("Manifest b ", 800, 40, words, 5));
+      Engine refA = new Engine();
+      refA.addDocs(ua);
+      Engine ref = new Engine();
+      ref.addDocs(ua);
+      ref.addDocs(ub);
+
+      interruptedFlush(new File(dir, "index1"), words, ua, ub, refA, ref);
+      interruptedFirstFlush(new File(dir, "index2"), words, ua, refA);
+      corruptManifest(new File(dir, "index3"), ua);
+    } finally {
+      TestSupport.delete(dir);
+    }
+    t.done();
+  }
+
+  /**
+   * @effects flushes the documents of <code>ua</code> and then those of
+   *          <code>ub</code> to <code>dir</code>, undoes the manifest of the
+   *          second flush as if it had been interrupted, and checks that the
+   *          index of <code>dir</code> is that of <code>refA</code> until
+   *          <code>ub</code> is added again, and then that of
+   *          <code>ref</code>
+   */
+  private static void interruptedFlush(File dir, String[] words, String ua,
+      String ub, Engine refA, Engine ref) throws Exception {
+    Engine e = new Engine(dir.getPath());
+    e.addDocs(ua);
+    e.flush();
+    byte[] before = read(new File(dir, MANIFEST));
+    String[] segsBefore = segmentFiles(dir);
+
+    e.addDocs(ub);
+    e.flush();
+    e.waitForMerges();
+    byte[] after = read(new File(dir, MANIFEST));
+    String[] segsAfter = segmentFiles(dir);
+    t.check(segsAfter.length > segsBefore.length, "the second flush wrote no segment: "
+        + Arrays.asList(segsAfter));
+
+    // the second flush stopped while it wrote its segment file, or its manifest
+    write(new File(dir, MANIFEST), before, before.length);
+    write(new File(dir, MANIFEST + ".tmp"), after, after.length / 2);
+    for (int i = 0; i < segsAfter.length; i++) {
+      if (!Arrays.asList(segsBefore).contains(segsAfter[i]))
+        truncate(new File(dir, segsAfter[i]));
+    }
+
+    Engine r = new Engine(dir.getPath());
+    String[][] qs = SegmentTest.queries(words);
+    for (int i = 0; i < qs.length; i++) {
+      t.check(TestSupport.matches(r, qs[i]).equals(TestSupport.matches(refA, qs[i])),
+          "recovered query " + Arrays.asList(qs[i]));
+    }
+    t.check(SegmentTest.findable(r, "Manifest a 0"), "a flushed document is lost");
+    t.check(!SegmentTest.findable(r, "Manifest b 0"),
+        "a document of the interrupted flush is found");
+    t.check(SegmentTest.rejects(r, ua), "the URL of the last complete flush is lost");
+
+    // the segment files left by the interrupted flush are written over
+    r.addDocs(ub);
+    r.flush();
+    r.waitForMerges();
+    t.check(!new File(dir, MANIFEST + ".tmp").exists(),
+        "the temporary manifest is left after a flush");
+    r = new Engine(dir.getPath());
+    for (int i = 0; i < qs.length; i++) {
+      t.check(TestSupport.matches(r, qs[i]).equals(TestSupport.matches(ref, qs[i])),
+          "query after recovery " + Arrays.asList(qs[i]));
+    }
+    t.check(SegmentTest.findable(r, "Manifest b 0"), "a document added again is lost");
+    t.check(SegmentTest.rejects(r, ub), "the URL added again is not recorded");
+  }
+
+  /**
+   * @effects leaves in <code>dir</code> the files of a first flush that
+   *          stopped before its manifest was written, and checks that the index
+   *          of <code>dir</code> is empty and then, after the documents of
+   *          <code>ua</code> are added and flushed, that of <code>refA</code>
+   */
+  private static void interruptedFirstFlush(File dir, String[] words, String ua,
+      Engine refA) throws Exception {
+    dir.mkdirs();
+    byte[] junk = new byte[1000];
+    Arrays.fill(junk, (byte) 0x4B);
+    write(new File(dir, "seg0.dat"), junk, junk.length);
+    write(new File(dir, MANIFEST + ".tmp"), junk, 10);
+
+    Engine r = new Engine(dir.getPath());
+    t.check(TestSupport.matches(r, new String[] { words[0] }).equals("none"),
+        "the index of an interrupted first flush is not empty");
+    t.check(!SegmentTest.findable(r, "Manifest a 0"),
+        "a document of an interrupted first flush is found");
+
+    r.addDocs(ua);
+    r.flush();
+    r = new Engine(dir.getPath());
+    String[][] qs = SegmentTest.queries(words);
+    for (int i = 0; i < qs.length; i++) {
+      t.check(TestSupport.matches(r, qs[i]).equals(TestSupport.matches(refA, qs[i])),
+          "query after a first flush " + Arrays.asList(qs[i]));
+    }
+  }
+
+  /**
+   * @effects checks that an engine refuses to open a directory whose manifest
+   *          is damaged, or lists a segment file that is missing, rather than
+   *          opening it as an empty index
+   */
+  private static void corruptManifest(File dir, String ua) throws Exception {
+    Engine e = new Engine(dir.getPath());
+    e.addDocs(ua);
+    e.flush();
+    e.waitForMerges();
+    File mf = new File(dir, MANIFEST);
+    byte[] m = read(mf);
+
+    write(mf, m, m.length / 2);
+    t.check(!opens(dir), "a truncated manifest is opened");
+
+    byte[] bad = m.clone();
+    bad[0] = 0;
+    write(mf, bad, bad.length);
+    t.check(!opens(dir), "a manifest without the magic number is opened");
+
+    write(mf, m, m.length);
+    String[] segs = segmentFiles(dir);
+    new File(dir, segs[0]).delete();
+    t.check(!opens(dir), "a manifest of a missing segment file is opened");
+  }
+
+  /**
+   * @effects returns <code>true</code> if an engine opens the index of
+   *          <code>dir</code>, else returns <code>false</code>
+   */
+  private static boolean opens(File dir) {
+    try {
+      new Engine(dir.getPath());
+      return true;
+    } catch (NotPossibleException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @effects returns the names of the segment files of <code>dir</code>, in
+   *          sorted order
+   */
+  private static String[] segmentFiles(File dir) {
+    String[] fs = dir.list();
+    int n = 0;
+    for (int i = 0; i < fs.length; i++) {
+      if (fs[i].startsWith("seg") && fs[i].endsWith(".dat"))
+        fs[n++] = fs[i];
+    }
+    String[] segs = Arrays.copyOf(fs, n);
+    Arrays.sort(segs);
+    return segs;
+  }
+
+  private static byte[] read(File f) throws IOException {
+    return Files.readAllBytes(f.toPath());
+  }
+
+  /**
+   * @effects makes the content of <code>f</code> the first <code>n</code>
+   *          bytes of <code>b</code>
+   */
+  private static void write(File f, byte[] b, int n) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(b, 0, n);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @effects cuts <code>f</code> to half its length
+   */
+  private static void truncate(File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      raf.setLength(raf.length() / 2);
+    } finally {
+      raf.close();
+    }
+  }
+}
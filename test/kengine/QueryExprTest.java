@@ -0,0 +1,250 @@
+package kengine;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Vector;
+
+
+/**
+ * @overview Tests that boolean queries are parsed by the rules of
+ *           <code>QueryExpr</code>, and that <code>Engine.query</code> finds
+ *           the documents that match them, with their counts, as a scan of
+ *           the documents does.
+ *
+ *           The expressions are generated at random, as trees of distinct
+ *           keywords with conjunctions, disjunctions and negated parts, and
+ *           are written with and without the optional <code>AND</code>. The
+ *           documents are those of <code>TestSupport.docs</code>, some in a
+ *           segment file and some in memory.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class QueryExprTest {
+  private static TestSupport t = new TestSupport("QueryExprTest");
+
+  public static void main(String[] args) throws Exception {
+    parse();
+    File dir = TestSupport.tempDir("expr");
+    try {
+      query(dir);
+    } finally {
+      TestSupport.delete(dir);
+    }
+    t.done();
+  }
+
+  /**
+   * @effects checks the trees of valid queries and that invalid queries are
+   *          rejected
+   */
+  private static void parse() {
+    String[][] valid = {
+        { "a", "a" },
+        { "a b", "(a AND b)" },
+        { "a AND b c", "(a AND b AND c)" },
+        { "a b OR c", "((a AND b) OR c)" },
+        { "a (b OR c)", "(a AND (b OR c))" },
+        { "a NOT b", "(a AND NOT b)" },
+        { "NOT b a", "(NOT b AND a)" },
+        { "Hanoi AND (nguyen OR le) NOT hue",
+            "(hanoi AND (nguyen OR le) AND NOT hue)" },
+        { "a NOT (b OR c)", "(a AND NOT (b OR c))" },
+        { "a NOT (b NOT c)", "(a AND NOT (b AND NOT c))" },
+        { "(a)", "a" },
+        { "a OR (b NOT c)", "(a OR (b AND NOT c))" } };
+    for (int i = 0; i < valid.length; i++) {
+      try {
+        String s = QueryExpr.parse(valid[i][0]).toString();
+        t.check(s.equals(valid[i][1]), "parse " + valid[i][0] + ": " + s);
+      } catch (NotPossibleException e) {
+        t.check(false, "parse " + valid[i][0] + ": " + e.getMessage());
+      }
+    }
+
+    String[] invalid = { null, "", "  ", "NOT a", "a OR NOT b", "NOT a NOT b",
+        "a NOT NOT b", "(a", "a)", "()", "a AND", "OR a", "a OR", "a AND OR b",
+        "a NOT (NOT b)", "a (NOT b OR c)" };
+    for (int i = 0; i < invalid.length; i++) {
+      try {
+        QueryExpr.parse(invalid[i]);
+        t.check(false, "parse " + invalid[i] + " is not rejected");
+      } catch (NotPossibleException e) {
+        t.check(true, "parse " + invalid[i]);
+      }
+    }
+  }
+
+  /**
+   * @effects queries random expressions over documents in a segment file and
+   *          in memory, and checks their matches against a scan of the
+   *          documents
+   */
+  private static void query(File dir) throws Exception {
+    String[] words = TestSupport.words(40);
+    String[] a = TestSupport.docs("Expr a ", 800, 30, words, 19);
+    String[] b = TestSupport.docs("Expr b ", 500, 30, words, 20);
+    String[] all = new String[a.length + b.length];
+    System.arraycopy(a, 0, all, 0, a.length);
+    System.arraycopy(b, 0, all, a.length, b.length);
+
+    Engine e = new Engine(new File(dir, "index").getPath());
+    e.addDocs(TestSupport.site(new File(dir, "a"), a));
+    e.flush();
+    e.addDocs(TestSupport.site(new File(dir, "b"), b));
+
+    Random r = new Random(19);
+    Node n;
+    String s, got, want;
+    for (int k = 0; k < 300; k++) {
+      n = Node.random(r, words.clone(), 3, false);
+      s = n.toString(r);
+      want = scan(n, all);
+      try {
+        got = matches(e.query(s));
+      } catch (NotPossibleException x) {
+        got = x.getMessage();
+      }
+      t.check(got.equals(want), "query " + s + ": " + got
+          + " not " + want);
+    }
+  }
+
+  /**
+   * @effects returns the matches of <code>n</code> among the documents
+   *          <code>docs</code>, in the form of <code>matches</code>
+   */
+  private static String scan(Node n, String[] docs) {
+    Vector v = new Vector();
+    int c;
+    String d;
+    for (int i = 0; i < docs.length; i++) {
+      d = docs[i];
+      c = n.count(d);
+      if (c > 0)
+        v.add(d.substring(d.indexOf("<title>") + 7, d.indexOf("</title>")) + "="
+            + c);
+    }
+    String[] ms = (String[]) v.toArray(new String[v.size()]);
+    Arrays.sort(ms);
+    return ms.length + " " + Arrays.asList(ms);
+  }
+
+  /**
+   * @effects returns the matches of <code>q</code> as their number followed
+   *          by their titles and counts in sorted order, or an error if they
+   *          are not in descending order of their counts
+   */
+  private static String matches(Query q) {
+    String[] ms = new String[q.size()];
+    Iterator it = q.matchIterator();
+    DocCnt dc;
+    int last = Integer.MAX_VALUE;
+    for (int i = 0; i < ms.length; i++) {
+      dc = (DocCnt) it.next();
+      if (dc.getCount() > last)
+        return "not ranked at " + i;
+      last = dc.getCount();
+      ms[i] = dc.getDoc().title() + "=" + dc.getCount();
+    }
+    Arrays.sort(ms);
+    return ms.length + " " + Arrays.asList(ms);
+  }
+
+  /**
+   * @overview A boolean query, which is evaluated over the content of a
+   *           document by counting its words.
+   */
+  private static class Node {
+    static final int KEY = 0, AND = 1, OR = 2;
+
+    int op;
+    boolean not;
+    String key;
+    Node[] parts;
+
+    /**
+     * @modifies <code>words</code>
+     * @effects returns a random query over <code>words</code> of at most
+     *          <code>depth</code> levels, negated if <code>not</code>; the
+     *          words that it uses are set to <code>null</code> in
+     *          <code>words</code>, so that they are not used again
+     */
+    static Node random(Random r, String[] words, int depth, boolean not) {
+      Node n = new Node();
+      n.not = not;
+      n.op = (depth == 0 || r.nextInt(3) == 0) ? KEY : AND + r.nextInt(2);
+      if (n.op == KEY) {
+        int i;
+        do {
+          i = (int) (Math.pow(r.nextDouble(), 2) * words.length);
+        } while (words[i] == null);
+        n.key = words[i];
+        words[i] = null;
+        return n;
+      }
+
+      n.parts = new Node[2 + r.nextInt(2)];
+      for (int i = 0; i < n.parts.length; i++) {
+        // a conjunction has a part that is not negated
+        n.parts[i] = random(r, words, depth - 1, n.op == AND && i > 0
+            && r.nextInt(3) == 0);
+      }
+      return n;
+    }
+
+    /**
+     * @effects returns the sum of the counts of the words of
+     *          <code>this</code> that the document <code>d</code> matches,
+     *          or <code>0</code> if it does not match <code>this</code>
+     */
+    int count(String d) {
+      int c = 0, p;
+      if (op == KEY) {
+        p = 0;
+        while ((p = d.indexOf(" " + key + " ", p)) >= 0) {
+          c++;
+          p += key.length() + 1;
+        }
+        return c;
+      }
+
+      for (int i = 0; i < parts.length; i++) {
+        p = parts[i].count(d);
+        if (op == AND && (parts[i].not ? p > 0 : p == 0))
+          return 0;
+        if (!parts[i].not)
+          c += p;
+      }
+      return c;
+    }
+
+    /**
+     * @effects returns <code>this</code> in the syntax of
+     *          <code>QueryExpr</code>, with <code>AND</code> left out at
+     *          random
+     */
+    String toString(Random r) {
+      if (op == KEY)
+        return key;
+
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; i < parts.length; i++) {
+        if (i > 0)
+          sb.append((op == OR) ? " OR " : (r.nextInt(2) == 0) ? " AND " : " ");
+        if (parts[i].not)
+          sb.append("NOT ");
+        if (parts[i].op == KEY)
+          sb.append(parts[i].key);
+        else
+          sb.append("(").append(parts[i].toString(r)).append(")");
+      }
+      return sb.toString();
+    }
+  }
+}
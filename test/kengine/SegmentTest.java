@@ -0,0 +1,306 @@
+package kengine;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Vector;
+
+
+/**
+ * @overview Tests that a segment reads back what <code>SegmentWriter</code>
+ *           wrote, and that an engine kept in a directory finds the same
+ *           documents after it is reopened as it did before.
+ *
+ *           A segment is written from an in-memory word table, to a file and
+ *           to a direct buffer, and its terms, postings, titles and documents
+ *           are compared with those of the word table. Then documents are added
+ *           to an engine in a directory, in several flushes, and the queries of
+ *           an engine that reopens the directory are compared with those of an
+ *           in-memory engine of the same documents.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class SegmentTest {
+  /** the id of the first document of the segment */
+  private static final int BASE = 1000;
+
+  private static TestSupport t = new TestSupport("SegmentTest");
+
+  public static void main(String[] args) throws Exception {
+    File dir = TestSupport.tempDir("segment");
+    try {
+      roundTrip(dir);
+      corrupt(dir);
+      reopen(dir);
+    } finally {
+      TestSupport.delete(dir);
+    }
+    t.done();
+  }
+
+  /**
+   * @effects writes a segment of generated documents to a file and to a
+   *          direct buffer, and checks that both read back as the word table
+   *          that they were written from
+   */
+  private static void roundTrip(File dir) throws Exception {
+    String[] words = TestSupport.words(400);
+    String[] contents = TestSupport.docs("Segment doc ", 700, 60, words, 1);
+
+    DocStore docs = new DocStore(BASE);
+    WordTable wt = new WordTable(docs);
+    Doc d;
+    for (int i = 0; i < contents.length; i++) {
+      d = new Doc(contents[i]);
+      wt.addDoc(d, docs.add(d));
+    }
+
+    // as Index.writeSegment does
+    String[] stop = wt.stopWords();
+    Vector keys = new Vector();
+    Vector postings = new Vector();
+    for (int i = 0; i < wt.termCount(); i++) {
+      if (wt.postings(i) != null) {
+        keys.add(wt.term(i));
+        postings.add(wt.postings(i));
+      }
+    }
+    String[] ks = (String[]) keys.toArray(new String[keys.size()]);
+    Postings[] ps = (Postings[]) postings.toArray(new Postings[postings.size()]);
+    String[] titles = new String[docs.size()];
+    Vector ds = new Vector();
+    for (int i = 0; i < titles.length; i++) {
+      titles[i] = Helpers.canon(docs.get(BASE + i).title());
+      ds.add(docs.get(BASE + i));
+    }
+
+    File f = new File(dir, "seg0.dat");
+    SegmentWriter.write(f, BASE, stop, ks, ps, titles, ds.iterator());
+    compare("file", Segment.open(f), stop, ks, ps, titles, contents);
+    compare("reopened file", Segment.open(f), stop, ks, ps, titles, contents);
+
+    Segment s = new Segment(null, SegmentWriter.write(BASE, stop, ks, ps, titles,
+        ds.iterator()));
+    compare("direct buffer", s, stop, ks, ps, titles, contents);
+    t.check(s.file() == null, "a segment in a direct buffer has no file");
+  }
+
+  /**
+   * @effects checks that <code>s</code> holds the uninteresting words
+   *          <code>stop</code>, the keywords <code>ks</code> with the postings
+   *          <code>ps</code>, the documents <code>contents</code> and their
+   *          titles <code>titles</code>
+   */
+  private static void compare(String what, Segment s, String[] stop, String[] ks,
+      Postings[] ps, String[] titles, String[] contents) {
+    t.check(s.base() == BASE, what + ": base " + s.base());
+    t.check(s.size() == titles.length, what + ": size " + s.size());
+    t.check(s.stopCount() == stop.length, what + ": stop words " + s.stopCount());
+    t.check(s.termCount() == stop.length + ks.length, what + ": terms " + s.termCount());
+
+    for (int i = 0; i < stop.length; i++) {
+      if (!s.term(i).equals(stop[i]) || s.postings(i) != null) {
+        t.check(false, what + ": stop word " + i + " " + s.term(i));
+        break;
+      }
+    }
+
+    int id;
+    for (int i = 0; i < ks.length; i++) {
+      id = s.termId(ks[i]);
+      t.check(id >= stop.length && s.term(id).equals(ks[i]), what + ": term "
+          + ks[i] + " has id " + id);
+      if (id >= 0)
+        comparePostings(what + ": postings of " + ks[i], s.postings(id), ps[i]);
+    }
+    t.check(s.termId("kwnosuchword") == -1, what + ": a missing term has an id");
+
+    boolean sorted = true;
+    for (int r = 1; r < s.termCount(); r++) {
+      if (s.term(s.sortedTerm(r - 1)).compareTo(s.term(s.sortedTerm(r))) >= 0)
+        sorted = false;
+    }
+    t.check(sorted, what + ": the sorted terms are not in order");
+
+    boolean titlesOk = true, docsOk = true;
+    for (int i = 0; i < titles.length; i++) {
+      if (s.titleId(titles[i]) != BASE + i || !s.title(BASE + i).equals(titles[i]))
+        titlesOk = false;
+      if (!s.doc(BASE + i).content().equals(contents[i]))
+        docsOk = false;
+    }
+    t.check(titlesOk, what + ": the titles differ");
+    t.check(docsOk, what + ": the documents differ");
+    t.check(s.titleId("no such title") == -1, what + ": a missing title has an id");
+  }
+
+  /**
+   * @effects checks that <code>got</code> has the postings of
+   *          <code>want</code>, and finds the same postings as
+   *          <code>want</code> when sought
+   */
+  private static void comparePostings(String what, Postings got, Postings want) {
+    if (got.size() != want.size()) {
+      t.check(false, what + ": size " + got.size() + " not " + want.size());
+      return;
+    }
+
+    int max = 0;
+    for (int i = 0; i < want.size(); i++) {
+      if (got.doc(i) != want.doc(i) || got.count(i) != want.count(i)) {
+        t.check(false, what + ": posting " + i);
+        return;
+      }
+      max = Math.max(max, want.count(i));
+    }
+    t.check(got.lastDoc() == want.lastDoc(), what + ": last doc " + got.lastDoc());
+    t.check(got.maxCount() == max, what + ": max count " + got.maxCount());
+
+    for (int target = BASE - 1; target <= want.lastDoc() + 1; target += 37) {
+      if (got.seek(target, 0) != want.seek(target, 0)) {
+        t.check(false, what + ": seek " + target);
+        return;
+      }
+    }
+  }
+
+  /**
+   * @effects checks that files that are not complete segments are not
+   *          opened as segments
+   */
+  private static void corrupt(File dir) throws Exception {
+    File f = new File(dir, "seg0.dat");
+    File g = new File(dir, "short.dat");
+    RandomAccessFile raf = new RandomAccessFile(g, "rw");
+    try {
+      raf.writeInt(Segment.MAGIC);
+    } finally {
+      raf.close();
+    }
+    t.check(!opens(g), "a file shorter than a header is opened");
+
+    raf = new RandomAccessFile(f, "rw");
+    try {
+      raf.writeInt(0);
+    } finally {
+      raf.close();
+    }
+    t.check(!opens(f), "a file without the magic number is opened");
+  }
+
+  /**
+   * @effects returns <code>true</code> if <code>f</code> is opened as a
+   *          segment, else returns <code>false</code>
+   */
+  private static boolean opens(File f) {
+    try {
+      Segment.open(f);
+      return true;
+    } catch (NotPossibleException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @effects adds documents to an engine in a directory, in several
+   *          flushes, and checks that an engine that reopens the directory
+   *          has the same documents, keywords and URLs
+   */
+  private static void reopen(File dir) throws Exception {
+    String[] words = TestSupport.words(300);
+    String[] a = TestSupport.docs("Reopen a ", 1500, 40, words, 2);
+    String[] b = TestSupport.docs("Reopen b ", 900, 40, words, 3);
+    String ua = TestSupport.site(new File(dir, "a"), a);
+    String ub = TestSupport.site(new File(dir, "b"), b);
+    String path = new File(dir, "index").getPath();
+
+    Engine refA = new Engine();
+    refA.addDocs(ua);
+    Engine ref = new Engine();
+    ref.addDocs(ua);
+    ref.addDocs(ub);
+
+    Engine e = new Engine(path);
+    e.addDocs(ua);
+    e.flush();
+    e.addDocs(ub);
+    for (int i = 0; i < 100; i++) {
+      e.addDoc(new Doc("<html><head><title>Reopen c " + i
+          + "</title></head><body> kwunflushed </body></html>"));
+    }
+    e.waitForMerges();
+
+    Engine r = new Engine(path);
+    String[][] qs = queries(words);
+    for (int i = 0; i < qs.length; i++) {
+      t.check(TestSupport.matches(r, qs[i]).equals(TestSupport.matches(refA, qs[i])),
+          "reopened query " + Arrays.asList(qs[i]));
+    }
+    t.check(TestSupport.matches(r, new String[] { "kwunflushed" }).equals("none"),
+        "documents added after the last flush are in the reopened index");
+
+    for (int i = 0; i < a.length; i += 97) {
+      t.check(findable(r, "Reopen a " + i), "title of a: " + i);
+    }
+    t.check(!findable(r, "Reopen b 0"), "documents after the last flush are found");
+    t.check(rejects(r, ua), "the URL of the flushed documents is not recorded");
+
+    // the documents that were not flushed may be added again
+    r.addDocs(ub);
+    r.flush();
+    r = new Engine(path);
+    for (int i = 0; i < qs.length; i++) {
+      t.check(TestSupport.matches(r, qs[i]).equals(TestSupport.matches(ref, qs[i])),
+          "query after a second flush " + Arrays.asList(qs[i]));
+    }
+    t.check(rejects(r, ub), "the URL of the second flush is not recorded");
+  }
+
+  /**
+   * @effects returns queries of one and two of <code>words</code>, among
+   *          frequent and rare words
+   */
+  static String[][] queries(String[] words) {
+    String[][] qs = new String[60][];
+    for (int i = 0; i < 40; i++) {
+      qs[i] = new String[] { words[i * words.length / 40] };
+    }
+    for (int i = 40; i < qs.length; i++) {
+      qs[i] = new String[] { words[i - 40], words[2 * (i - 40) + 1] };
+    }
+    return qs;
+  }
+
+  /**
+   * @effects returns <code>true</code> if <code>e</code> finds the document
+   *          whose title is <code>title</code>, else returns
+   *          <code>false</code>
+   */
+  static boolean findable(Engine e, String title) {
+    try {
+      return e.findDoc(title).title().equals(title);
+    } catch (NotPossibleException x) {
+      return false;
+    }
+  }
+
+  /**
+   * @effects returns <code>true</code> if <code>e</code> refuses to add the
+   *          documents of <code>u</code> again, else returns
+   *          <code>false</code>
+   */
+  static boolean rejects(Engine e, String u) {
+    try {
+      e.addDocs(u);
+      return false;
+    } catch (DuplicateException x) {
+      return false;
+    } catch (NotPossibleException x) {
+      return true;
+    }
+  }
+}
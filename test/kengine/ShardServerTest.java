@@ -0,0 +1,308 @@
+package kengine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+
+/**
+ * @overview Tests that a <code>Coordinator</code> of shard servers on the
+ *           loopback address answers as a <code>ShardedEngine</code> of the
+ *           same documents, and keeps answering when a replica is killed.
+ *
+ *           The servers are <code>ShardServer</code> processes, started with
+ *           the <code>java</code> and class path of this test, so that killing
+ *           one closes its connections as a crash would. Two shards are served,
+ *           the first by two replicas. The same documents are added to the
+ *           coordinator and to a sharded engine of two shards, and their
+ *           queries must have the same matches, in the same order, with the
+ *           same counts. Then:
+ *           <ul>
+ *           <li>a replica of the first shard is killed: the queries are still
+ *           answered in full, and a document added afterwards makes it out of
+ *           sync;</li>
+ *           <li>the server of the second shard is killed: the queries are
+ *           answered by the first shard only, and say so;</li>
+ *           <li>the last server is killed: the queries fail.</li>
+ *           </ul>
+ *           Last, a document is added to a shard whose second replica is a
+ *           socket that accepts connections but never replies: the write times
+ *           out on that replica, which is made out of sync.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class ShardServerTest {
+  /** the numbers of matches that the queries ask for */
+  private static final int[] KS = { 1, 5, 50, 100000 };
+
+  private static TestSupport t = new TestSupport("ShardServerTest");
+  private static Process[] servers = new Process[4];
+
+  public static void main(String[] args) throws Exception {
+    File dir = TestSupport.tempDir("shards");
+    Coordinator c = null;
+    ShardedEngine se = null;
+    try {
+      int[] ports = new int[servers.length];
+      for (int i = 0; i < servers.length; i++) {
+        ports[i] = start(i);
+      }
+      c = new Coordinator(new String[] {
+          "127.0.0.1:" + ports[0] + ",127.0.0.1:" + ports[1],
+          "127.0.0.1:" + ports[2] }, 5000, 30000, 50);
+      se = new ShardedEngine(2);
+      test(c, se, dir);
+      hung(ports[3]);
+    } finally {
+      for (int i = 0; i < servers.length; i++) {
+        if (servers[i] != null)
+          servers[i].destroyForcibly();
+      }
+      if (c != null)
+        c.close();
+      if (se != null)
+        se.close();
+      TestSupport.delete(dir);
+    }
+    t.done();
+  }
+
+  private static void test(Coordinator c, ShardedEngine se, File dir)
+      throws Exception {
+    String[] words = TestSupport.words(300);
+    String[] a = TestSupport.docs("Shard a ", 2500, 40, words, 7);
+    String[] b = TestSupport.docs("Shard b ", 1500, 40, words, 8);
+    String ua = TestSupport.site(new File(dir, "a"), a);
+    String ub = TestSupport.site(new File(dir, "b"), b);
+
+    c.addDocs(ua);
+    se.addDocs(ua);
+    c.addDocs(ub);
+    se.addDocs(ub);
+    String[][] qs = SegmentTest.queries(words);
+    compareAll("", c, se, qs);
+    compare("prefix", c, se, new String[] { "kwa*" }, 20);
+    compare("missing word", c, se, new String[] { "kwnosuchword" }, 20);
+    compare("missing second word", c, se, new String[] { words[0], "kwnosuchword" }, 20);
+    boolean rejected = false;
+    try {
+      c.queryFirst(words[0], ShardServer.MAX_MATCHES + 1);
+    } catch (NotPossibleException e) {
+      rejected = true;
+    }
+    t.check(rejected, "a query for more than MAX_MATCHES matches is sent");
+
+    for (int i = 0; i < a.length; i += 211) {
+      String title = "Shard a " + i;
+      t.check(c.findDoc(title).content().equals(se.findDoc(title).content()),
+          "findDoc " + title);
+    }
+    t.check(!findable(c, "no such title"), "a missing title is found");
+    t.check(added(c, new Doc("<html><head><title>shard A 0</title></head>"
+        + "<body> kwa </body></html>")) instanceof DuplicateException,
+        "a duplicate title is added");
+
+    // the first replica of shard 0 is killed
+    kill(0);
+    compareAll("replica killed: ", c, se, qs);
+    Doc d = doc(0, "kwafterkill");
+    Exception x = added(c, d);
+    se.addDoc(d);
+    t.check(x instanceof NotPossibleException
+        && x.getMessage().indexOf("out of sync") >= 0,
+        "a write that a replica missed is not reported: " + x);
+    t.check(!c.inSync(0, 0) && c.inSync(0, 1) && c.inSync(1, 0),
+        "the replica that missed a write is in sync");
+    compare("write after kill", c, se, new String[] { "kwafterkill" }, 10);
+    compareAll("replica out of sync: ", c, se, qs);
+
+    // shard 1 is killed: the queries are answered by shard 0 only
+    kill(2);
+    Coordinator.Result r = c.queryFirst(words[0], 100000);
+    DocCnt[] all = se.queryFirst(words[0], 100000);
+    t.check(r.isPartial() && r.getFailures()[0] == null && r.getFailures()[1] != null,
+        "a killed shard is not reported: " + Arrays.asList(r.getFailures()));
+    int n = 0;
+    for (int i = 0; i < all.length; i++) {
+      if (ShardedEngine.shardOf(Helpers.canon(all[i].getDoc().title()), 2) == 0)
+        n++;
+    }
+    t.check(r.getSize() == n && r.getMatches().length == n, "shard 0 alone has "
+        + r.getSize() + " matches, not " + n);
+    for (int i = 0; i < r.getMatches().length; i++) {
+      if (ShardedEngine.shardOf(Helpers.canon(r.getMatches()[i].getDoc().title()), 2) != 0) {
+        t.check(false, "a killed shard has a match");
+        break;
+      }
+    }
+
+    // no server is left
+    kill(1);
+    boolean failed = false;
+    try {
+      c.queryFirst(words[0], 10);
+    } catch (NotPossibleException e) {
+      failed = e.getMessage().indexOf("shard 0") >= 0
+          && e.getMessage().indexOf("shard 1") >= 0;
+    }
+    t.check(failed, "a query with no server does not fail naming every shard");
+  }
+
+  /**
+   * @effects checks that a write to a shard whose second replica accepts it
+   *          but never replies times out, and takes that replica out of
+   *          service, while the server on <code>port</code> adds it
+   */
+  private static void hung(int port) throws Exception {
+    ServerSocket hung = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    Coordinator c = null;
+    try {
+      c = new Coordinator(new String[] { "127.0.0.1:" + port + ",127.0.0.1:"
+          + hung.getLocalPort() }, 5000, 500, 50);
+      long start = System.currentTimeMillis();
+      Exception x = added(c, doc(0, "kwhung"));
+      t.check(System.currentTimeMillis() - start < 5000,
+          "a write to a replica that does not reply does not time out");
+      t.check(x instanceof NotPossibleException
+          && x.getMessage().indexOf("out of sync") >= 0,
+          "a write that timed out on a replica is not reported: " + x);
+      t.check(c.inSync(0, 0) && !c.inSync(0, 1),
+          "the replica that timed out is in sync");
+      Coordinator.Result r = c.queryFirst("kwhung", 10);
+      t.check(r.getSize() == 1 && !r.isPartial(),
+          "the write is not found on the replica that added it");
+    } finally {
+      if (c != null)
+        c.close();
+      hung.close();
+    }
+  }
+
+  private static void compareAll(String what, Coordinator c, ShardedEngine se,
+      String[][] qs) {
+    for (int i = 0; i < KS.length; i++) {
+      for (int j = 0; j < qs.length; j++) {
+        compare(what + "k " + KS[i], c, se, qs[j], KS[i]);
+      }
+    }
+  }
+
+  /**
+   * @effects checks that <code>c</code> and <code>se</code> have the same
+   *          best <code>k</code> matches of the query of the keywords
+   *          <code>ws</code>, and the same number of matches, or both cannot
+   *          query them
+   */
+  private static void compare(String what, Coordinator c, ShardedEngine se,
+      String[] ws, int k) {
+    String got, want;
+    try {
+      Coordinator.Result r = c.queryFirst(ws[0], k);
+      for (int i = 1; i < ws.length && r.getSize() > 0; i++) {
+        r = c.queryMore(ws[i]);
+      }
+      got = r.getSize() + " " + matches(r.getMatches())
+          + (r.isPartial() ? " partial " + Arrays.asList(r.getFailures()) : "");
+    } catch (NotPossibleException e) {
+      got = "none";
+    }
+    try {
+      DocCnt[] m = se.queryFirst(ws[0], k);
+      for (int i = 1; i < ws.length && se.size() > 0; i++) {
+        m = se.queryMore(ws[i]);
+      }
+      want = se.size() + " " + matches(m);
+    } catch (NotPossibleException e) {
+      want = "none";
+    }
+    if (!got.equals(want))
+      t.check(false, what + " " + Arrays.asList(ws) + ": " + abbrev(got) + " not "
+          + abbrev(want));
+    else
+      t.check(true, what);
+  }
+
+  private static String matches(DocCnt[] m) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < m.length; i++) {
+      sb.append(m[i].getDoc().title()).append('=').append(m[i].getCount()).append(',');
+    }
+    return sb.toString();
+  }
+
+  private static String abbrev(String s) {
+    return (s.length() > 200) ? s.substring(0, 200) + "..." : s;
+  }
+
+  /**
+   * @effects returns a new document with the word <code>w</code> whose title
+   *          is in shard <code>s</code> of two
+   */
+  private static Doc doc(int s, String w) throws NotPossibleException {
+    String title;
+    for (int i = 0;; i++) {
+      title = "Shard extra " + i;
+      if (ShardedEngine.shardOf(Helpers.canon(title), 2) == s)
+        return new Doc("<html><head><title>" + title + "</title></head><body> " + w
+            + " </body></html>");
+    }
+  }
+
+  /**
+   * @effects adds <code>d</code> to <code>c</code> and returns the exception
+   *          that it throws, or <code>null</code> if none
+   */
+  private static Exception added(Coordinator c, Doc d) {
+    try {
+      c.addDoc(d);
+      return null;
+    } catch (NotPossibleException e) {
+      return e;
+    } catch (DuplicateException e) {
+      return e;
+    }
+  }
+
+  private static boolean findable(Coordinator c, String title) {
+    try {
+      c.findDoc(title);
+      return true;
+    } catch (NotPossibleException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @effects starts the shard server <code>i</code> on any free port of the
+   *          loopback address and returns the port
+   */
+  private static int start(int i) throws IOException {
+    ProcessBuilder pb = new ProcessBuilder(new String[] {
+        System.getProperty("java.home") + File.separator + "bin" + File.separator
+            + "java", "-cp", System.getProperty("java.class.path"),
+        "kengine.ShardServer", "0" });
+    pb.redirectErrorStream(true);
+    servers[i] = pb.start();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        servers[i].getInputStream()));
+    String line = in.readLine();
+    if (line == null || !line.startsWith("ShardServer listening on port "))
+      throw new IOException("ShardServerTest: server " + i + " did not start: " + line);
+    return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+  }
+
+  /**
+   * @effects kills the shard server <code>i</code> and waits for it to exit
+   */
+  private static void kill(int i) throws InterruptedException {
+    servers[i].destroyForcibly().waitFor();
+  }
+}
@@ -0,0 +1,140 @@
+package kengine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+
+/**
+ * @overview Tests that a <code>TermDictionary</code> ranks its terms, maps
+ *           the ranks back to the terms and ranks the words that are not in
+ *           it as a sorted array of the same terms does.
+ *
+ *           The terms are generated at random from a few stems, prefixes and
+ *           suffixes, so that they share both prefixes and suffixes, as the
+ *           words of documents do. Each dictionary is encoded at an offset in
+ *           a buffer, as it is in a segment file.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class TermDictionaryTest {
+  private static TestSupport t = new TestSupport("TermDictionaryTest");
+
+  public static void main(String[] args) {
+    Random r = new Random(16);
+    int[] sizes = { 0, 1, 2, 10, 500, 5000 };
+    for (int i = 0; i < sizes.length; i++) {
+      String[] terms = terms(r, sizes[i]);
+      compare("size " + sizes[i], dictionary(terms, 12 + i), terms, r);
+    }
+
+    String[] odd = { "", "a", "ab", "abc", "b", "\uffff", "\uffff\uffff" };
+    compare("empty and largest characters", dictionary(odd, 3), odd, r);
+
+    t.check("abd".equals(TermDictionary.prefixEnd("abc")), "prefix end of abc");
+    t.check("b".equals(TermDictionary.prefixEnd("a\uffff")), "prefix end of a\\uffff");
+    t.check(TermDictionary.prefixEnd("\uffff") == null, "prefix end of \\uffff");
+    t.done();
+  }
+
+  /**
+   * @effects returns <code>n</code> different words made of random stems,
+   *          prefixes and suffixes, in sorted order
+   */
+  private static String[] terms(Random r, int n) {
+    String[] pre = { "", "re", "un", "pre", "over" };
+    String[] suf = { "", "s", "ed", "ing", "ation", "ness" };
+    TreeSet set = new TreeSet();
+    StringBuffer sb = new StringBuffer();
+    while (set.size() < n) {
+      sb.setLength(0);
+      sb.append(pre[r.nextInt(pre.length)]);
+      for (int k = 1 + r.nextInt(6); k > 0; k--) {
+        sb.append((char) ('a' + r.nextInt(6)));
+      }
+      sb.append(suf[r.nextInt(suf.length)]);
+      set.add(sb.toString());
+    }
+    return (String[]) set.toArray(new String[n]);
+  }
+
+  /**
+   * @effects returns the dictionary of the sorted terms <code>terms</code>,
+   *          encoded at offset <code>off</code> of a buffer
+   */
+  private static TermDictionary dictionary(String[] terms, int off) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TermDictionary.encode(terms, out);
+    byte[] b = out.toByteArray();
+    ByteBuffer buf = ByteBuffer.allocate(off + b.length);
+    buf.position(off);
+    buf.put(b);
+    return new TermDictionary(buf, off);
+  }
+
+  /**
+   * @effects checks that <code>d</code> holds the sorted terms
+   *          <code>terms</code>, that it ranks them and maps the ranks back
+   *          as their indexes in <code>terms</code>, and that it ranks the
+   *          words that are not in it, and the prefixes of the terms, as the
+   *          number of terms less than them
+   */
+  private static void compare(String what, TermDictionary d, String[] terms,
+      Random r) {
+    t.check(d.size() == terms.length, what + ": size " + d.size());
+
+    for (int i = 0; i < terms.length; i++) {
+      if (d.rank(terms[i]) != i || d.lowerRank(terms[i]) != i
+          || !d.term(i).equals(terms[i])) {
+        t.check(false, what + ": term " + terms[i] + " at " + i);
+        return;
+      }
+    }
+
+    String[] words = terms(r, 300);
+    String w;
+    int i;
+    for (int k = 0; k < words.length + terms.length; k++) {
+      // a random word, or a prefix of a term
+      if (k < words.length) {
+        w = words[k];
+      } else {
+        w = terms[k - words.length];
+        w = w.substring(0, r.nextInt(w.length() + 1));
+      }
+      i = Arrays.binarySearch(terms, w);
+      if (d.rank(w) != ((i >= 0) ? i : -1)
+          || d.lowerRank(w) != ((i >= 0) ? i : -i - 1)) {
+        t.check(false, what + ": rank of " + w + " " + d.rank(w) + " "
+            + d.lowerRank(w));
+        return;
+      }
+    }
+
+    // the terms with a prefix are the ranks up to the end of the prefix
+    String p, end;
+    int from, to, n;
+    for (int k = 0; k < 100 && terms.length > 0; k++) {
+      p = terms[r.nextInt(terms.length)];
+      p = p.substring(0, Math.min(p.length(), r.nextInt(3)));
+      end = TermDictionary.prefixEnd(p);
+      from = d.lowerRank(p);
+      to = (end != null) ? d.lowerRank(end) : d.size();
+      n = 0;
+      for (int j = 0; j < terms.length; j++) {
+        if (terms[j].startsWith(p))
+          n++;
+      }
+      if (to - from != n || (n > 0 && !d.term(from).startsWith(p))) {
+        t.check(false, what + ": the terms with prefix " + p);
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package kengine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * @overview Helpers of the tests of the engine: generated documents, temporary
+ *           directories and a count of the checks that a test makes.
+ *
+ *           The tests are plain classes, run with <code>java</code> from the
+ *           directory of the classes of <code>src</code> and
+ *           <code>test</code>, e.g.:
+ *           <pre>
+ *   javac -d out src/kengine/*.java test/kengine/*.java
+ *   cp src/kengine/nk.dat out/kengine/
+ *   java -cp out kengine.SegmentTest
+ *           </pre>
+ *           A test prints the checks that fail and the number of checks that
+ *           it made, and exits with status 1 if any of them failed.
+ *
+ *           The documents are generated from a vocabulary of made-up words,
+ *           picked with a skewed distribution so that the first words of the
+ *           vocabulary are in many documents and the last in few. Each word of
+ *           a document is surrounded by spaces, so that whether a document has
+ *           a word can be told from its content.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+class TestSupport {
+  // the rep of this class
+  private String test;
+  private int checks;
+  private int failures;
+
+  /**
+   * Constructor method
+   *
+   * @effects initialises <code>this</code> to count the checks of the test
+   *          <code>test</code>
+   */
+  TestSupport(String test) {
+    this.test = test;
+  }
+
+  /**
+   * @modifies <code>this</code>, <code>System.out</code>
+   * @effects counts a check; if <code>ok</code> is <code>false</code> counts
+   *          it as failed and prints <code>what</code>
+   */
+  synchronized void check(boolean ok, String what) {
+    checks++;
+    if (!ok) {
+      failures++;
+      System.out.println(test + ": FAILED: " + what);
+    }
+  }
+
+  /**
+   * @effects returns the number of checks that have failed
+   */
+  synchronized int failures() {
+    return failures;
+  }
+
+  /**
+   * @effects prints the number of checks of <code>this</code>; if any of
+   *          them failed exits with status 1
+   */
+  synchronized void done() {
+    System.out.println(test + ": " + checks + " checks, " + failures + " failed");
+    if (failures > 0)
+      System.exit(1);
+  }
+
+  /**
+   * @effects returns <code>n</code> different words of lower case letters
+   */
+  static String[] words(int n) {
+    String[] ws = new String[n];
+    StringBuffer sb = new StringBuffer();
+    int x;
+    for (int i = 0; i < n; i++) {
+      sb.setLength(0);
+      sb.append("kw");
+      x = i;
+      do {
+        sb.append((char) ('a' + x % 26));
+        x /= 26;
+      } while (x > 0);
+      ws[i] = sb.toString();
+    }
+    return ws;
+  }
+
+  /**
+   * @effects returns the content of <code>n</code> documents whose titles
+   *          are <code>prefix + i</code> and whose bodies have up to
+   *          <code>len</code> words of <code>words</code>, generated from
+   *          <code>seed</code>
+   */
+  static String[] docs(String prefix, int n, int len, String[] words, long seed) {
+    Random r = new Random(seed);
+    String[] docs = new String[n];
+    StringBuffer sb = new StringBuffer();
+    int m;
+    for (int i = 0; i < n; i++) {
+      sb.setLength(0);
+      sb.append("<html><head><title>").append(prefix).append(i)
+          .append("</title></head><body> ");
+      m = 1 + r.nextInt(len);
+      for (int j = 0; j < m; j++) {
+        sb.append(words[(int) (Math.pow(r.nextDouble(), 3) * words.length)])
+            .append(' ');
+      }
+      sb.append("</body></html>");
+      docs[i] = sb.toString();
+    }
+    return docs;
+  }
+
+  /**
+   * @effects returns <code>true</code> if the document <code>d</code>,
+   *          generated by <code>docs</code>, has the word <code>w</code>, else
+   *          returns <code>false</code>
+   */
+  static boolean has(String d, String w) {
+    return d.indexOf(" " + w + " ") >= 0;
+  }
+
+  /**
+   * @effects writes each of <code>docs</code> to a file of <code>dir</code>
+   *          and returns the <code>file://</code> URL of <code>dir</code>
+   */
+  static String site(File dir, String[] docs) throws IOException {
+    dir.mkdirs();
+    Writer w;
+    for (int i = 0; i < docs.length; i++) {
+      w = new FileWriter(new File(dir, "d" + (100000 + i) + ".html"));
+      try {
+        w.write(docs[i]);
+      } finally {
+        w.close();
+      }
+    }
+    return "file://" + dir.getPath();
+  }
+
+  /**
+   * @effects returns a new empty temporary directory
+   */
+  static File tempDir(String name) throws IOException {
+    return Files.createTempDirectory("kengine-" + name).toFile();
+  }
+
+  /**
+   * @effects deletes <code>f</code> and, if it is a directory, the files in
+   *          it
+   */
+  static void delete(File f) {
+    File[] fs = f.listFiles();
+    if (fs != null) {
+      for (int i = 0; i < fs.length; i++) {
+        delete(fs[i]);
+      }
+    }
+    f.delete();
+  }
+
+  /**
+   * @effects returns the matches of the query of the keywords
+   *          <code>ws</code> in <code>e</code>, as their number followed by
+   *          their titles in sorted order, or <code>"none"</code> if
+   *          <code>e</code> cannot query <code>ws</code>
+   */
+  static String matches(Engine e, String[] ws) {
+    Query q;
+    try {
+      q = e.queryFirst(ws[0]);
+      for (int i = 1; i < ws.length && q.size() > 0; i++) {
+        q = e.queryMore(ws[i]);
+      }
+    } catch (NotPossibleException x) {
+      return "none";
+    }
+    return titles(q);
+  }
+
+  /**
+   * @effects returns the matches of <code>q</code> as their number followed
+   *          by their titles in sorted order
+   */
+  static String titles(Query q) {
+    String[] ts = new String[q.size()];
+    for (int i = 0; i < ts.length; i++) {
+      ts[i] = q.fetch(i).title();
+    }
+    Arrays.sort(ts);
+    return ts.length + " " + Arrays.asList(ts);
+  }
+}
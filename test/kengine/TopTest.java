@@ -0,0 +1,197 @@
+package kengine;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+
+/**
+ * @overview Tests that <code>Engine.queryTop(e, k)</code> finds the best
+ *           <code>k</code> matches of <code>e</code>: the same counts as the
+ *           first <code>k</code> matches of <code>Engine.query(e)</code>, each
+ *           of a document that matches <code>e</code> with that count.
+ *           Matches with equal counts may be kept in any order, so the
+ *           documents of the last count are not compared.
+ *
+ *           The queries are disjunctions of keywords, which are evaluated with
+ *           <code>BlockMaxWand</code>, and other boolean queries, over
+ *           documents in segment files and in memory. A top query is also
+ *           refined with <code>queryMore</code>, and kept up to date as
+ *           documents are added. So is a conjunction of prefix keywords,
+ *           queried with a limit, whose new matches are read from the
+ *           postings of the words of each prefix.
+ *
+ *           See <code>TestSupport</code> for how to run it.
+ *
+ * @version 1.0
+ * @author dmle
+ *
+ */
+public class TopTest {
+  private static TestSupport t = new TestSupport("TopTest");
+
+  public static void main(String[] args) throws Exception {
+    File dir = TestSupport.tempDir("top");
+    try {
+      String[] words = TestSupport.words(200);
+      Engine e = new Engine(new File(dir, "index").getPath());
+      for (int i = 0; i < 3; i++) {
+        e.addDocs(TestSupport.site(new File(dir, "s" + i),
+            TestSupport.docs("Top " + i + " ", 1500, 80, words, 20 + i)));
+        if (i < 2)
+          e.flush();
+      }
+      e.waitForMerges();
+
+      Random r = new Random(20);
+      int[] ks = { 1, 5, 20, 300 };
+      String q, w;
+      for (int n = 0; n < 150; n++) {
+        q = query(r, words);
+        compare(e, q, ks[n % ks.length]);
+        if (n % 5 == 0) {
+          // a refined top query is the top query of the conjunction
+          w = words[r.nextInt(20)];
+          if (q.indexOf(w) < 0)
+            refine(e, q, w, ks[n % ks.length]);
+        }
+      }
+
+      // documents added after a top query, one at a time and in a batch;
+      // addDoc does not return the query, the addDocs that follows does
+      String[] more = TestSupport.docs("Top more ", 600, 80, words, 24);
+      String[] one;
+      String u;
+      int k;
+      for (int n = 0; n < 30; n++) {
+        q = query(r, words);
+        k = ks[n % ks.length];
+        e.queryTop(q, k);
+        for (int i = 0; i < 4; i++) {
+          e.addDoc(new Doc(more[n * 20 + i]));
+        }
+        one = new String[16];
+        System.arraycopy(more, n * 20 + 4, one, 0, one.length);
+        u = TestSupport.site(new File(dir, "more" + n), one);
+        compare("queryTop " + q + " " + k + " after adding documents",
+            e.addDocs(u), e.query(q), k);
+      }
+
+      // a conjunction of prefix keywords with a limit, kept up to date
+      more = TestSupport.docs("Top conj ", 400, 80, words, 25);
+      Query got;
+      for (int n = 0; n < 20; n++) {
+        q = "kw" + (char) ('a' + r.nextInt(26)) + "*";
+        w = (n % 2 == 0) ? words[r.nextInt(20)]
+            : "kw" + (char) ('a' + r.nextInt(26)) + "*";
+        k = ks[n % ks.length];
+        try {
+          e.queryFirst(q, k);
+          e.queryMore(w);
+        } catch (NotPossibleException x) {
+          continue;
+        }
+        one = new String[20];
+        System.arraycopy(more, n * 20, one, 0, one.length);
+        got = e.addDocs(TestSupport.site(new File(dir, "conj" + n), one));
+        compare("query " + q + " " + w + " " + k + " after adding documents",
+            got, e.query(q + " " + w), got.size());
+      }
+    } finally {
+      TestSupport.delete(dir);
+    }
+    t.done();
+  }
+
+  /**
+   * @effects returns a random query over <code>words</code>: a disjunction
+   *          of two to five keywords, or a conjunction of a keyword with
+   *          such a disjunction, with a negated keyword or with both
+   */
+  private static String query(Random r, String[] words) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 2 + r.nextInt(4); i > 0; i--) {
+      if (sb.length() > 0)
+        sb.append(" OR ");
+      // a mix of frequent and rare words
+      sb.append(words[(int) (Math.pow(r.nextDouble(), 2) * words.length)]);
+    }
+    switch (r.nextInt(4)) {
+    case 0:
+      return "kwa (" + sb + ")";
+    case 1:
+      return "(" + sb + ") NOT " + words[r.nextInt(10)];
+    case 2:
+      return "kwb (" + sb + ") NOT kwc";
+    default:
+      return sb.toString();
+    }
+  }
+
+  /**
+   * @effects checks that <code>e.queryTop(q, k)</code> holds the best
+   *          <code>k</code> matches of <code>e.query(q)</code>
+   */
+  private static void compare(Engine e, String q, int k) throws Exception {
+    compare("queryTop " + q + " " + k, e.queryTop(q, k), e.query(q), k);
+  }
+
+  /**
+   * @effects checks that the top query of <code>q</code> refined by
+   *          <code>w</code> holds the best <code>k</code> matches of the
+   *          conjunction of <code>q</code> and <code>w</code>
+   */
+  private static void refine(Engine e, String q, String w, int k)
+      throws Exception {
+    Query all = e.query("(" + q + ") " + w);
+    e.queryTop(q, k);
+    Query top;
+    try {
+      top = e.queryMore(w);
+    } catch (NotPossibleException x) {
+      t.check(all.size() == 0, "refine " + q + " with " + w + ": " + x);
+      return;
+    }
+    compare("refine " + q + " with " + w + " " + k, top, all, k);
+  }
+
+  /**
+   * @effects checks that <code>top</code> holds the best <code>k</code>
+   *          matches of <code>all</code>
+   */
+  private static void compare(String what, Query top, Query all, int k) {
+    int n = Math.min(k, all.size());
+    if (top.size() != n) {
+      t.check(false, what + ": size " + top.size() + " not " + n);
+      return;
+    }
+
+    HashMap counts = new HashMap();
+    int[] want = new int[n];
+    Iterator it = all.matchIterator();
+    DocCnt dc;
+    for (int i = 0; i < all.size(); i++) {
+      dc = (DocCnt) it.next();
+      counts.put(dc.getDoc().title(), Integer.valueOf(dc.getCount()));
+      if (i < n)
+        want[i] = dc.getCount();
+    }
+
+    int[] got = new int[n];
+    Integer c;
+    it = (n > 0) ? top.matchIterator() : null;
+    for (int i = 0; i < n; i++) {
+      dc = (DocCnt) it.next();
+      got[i] = dc.getCount();
+      c = (Integer) counts.get(dc.getDoc().title());
+      if (c == null || c.intValue() != got[i]) {
+        t.check(false, what + ": " + dc + " is not a match with that count");
+        return;
+      }
+    }
+    t.check(Arrays.equals(got, want), what + ": counts "
+        + Arrays.toString(got) + " not " + Arrays.toString(want));
+  }
+}